@@ -0,0 +1,237 @@
+/**
+ *  BatchRunner evaluates a query file as a pipeline:
+ *
+ *    read query -> parse -> evaluate -> top-k -> format -> write
+ *
+ *  A pool of evaluation threads runs everything up to formatting, one
+ *  query per task, and a dedicated writer thread writes the formatted
+ *  results in query file order.  The number of queries that have been
+ *  read but not yet written is bounded by the size of the queue
+ *  between the stages, and each query's result is released as soon
+ *  as it is formatted, so memory use does not grow with the size of
+ *  the query file, and output I/O overlaps with evaluation.
+ *
+ *  A query that fails gets the dummy result line, as in a sequential
+ *  run.  If the writer fails, the run stops reading queries and
+ *  throws the writer's exception.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+public class BatchRunner {
+
+    //  Results written per query, and the writer's buffer size.
+
+    static final int RESULTS_PER_QUERY = 100;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    //  How often a reader that waits for room in the queue checks that
+    //  the writer is still running.
+
+    private static final long WRITER_CHECK_MILLIS = 100;
+
+    //  Marks the end of the query file in the queue.
+
+    private static final Pending END_OF_QUERIES = new Pending(null, new FutureTask<String>(new Callable<String>() {
+        public String call() {
+            return null;
+        }
+    }));
+
+    private final RetrievalModel model;
+    private final int threads;
+    private final int queueSize;
+
+    /**
+     * @param model     The retrieval model.
+     * @param threads   The number of evaluation threads.
+     * @param queueSize The maximum number of queries in flight.
+     */
+    public BatchRunner(RetrievalModel model, int threads, int queueSize) {
+        this.model = model;
+        this.threads = Math.max(threads, 1);
+        this.queueSize = Math.max(queueSize, 1);
+    }
+
+    /**
+     * Evaluate every query in a query file and write the results in
+     * trec_eval format.
+     *
+     * @param queryFilePath The query file; one "id:query" per line.
+     * @param outputPath    The result file.
+     * @throws IOException
+     */
+    public void run(String queryFilePath, String outputPath) throws IOException {
+
+        final BlockingQueue<Pending> pending = new ArrayBlockingQueue<Pending>(queueSize);
+        final BufferedWriter out = new BufferedWriter(new FileWriter(new File(outputPath)), WRITE_BUFFER_SIZE);
+        final Throwable[] writeError = new Throwable[1];
+
+        //  The writer takes results in the order the queries were read.
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Pending next = pending.take();
+                        if (next == END_OF_QUERIES)
+                            break;
+
+                        String lines;
+                        try {
+                            lines = next.result.get();
+                        } catch (ExecutionException e) {
+                            System.err.println("Error: Query " + next.queryId + " failed: " + e.getCause());
+                            e.getCause().printStackTrace();
+                            lines = QryEval.formatResults(next.queryId, new ScoreList(), RESULTS_PER_QUERY);
+                        }
+                        out.write(lines);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    writeError[0] = e;
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        if (writeError[0] == null)
+                            writeError[0] = e;
+                    }
+                }
+            }
+        }, "trec-writer");
+
+        ExecutorService evaluators = Executors.newFixedThreadPool(threads);
+        writer.start();
+
+        Scanner scan = new Scanner(new File(queryFilePath));
+        boolean complete = false;
+        try {
+            boolean writing = true;
+            while (writing && scan.hasNextLine()) {
+                String line = scan.nextLine();
+                if (line.trim().isEmpty())
+                    continue;
+
+                String[] pair = line.split(":");
+                writing = enqueue(pending, new Pending(pair[0], evaluators.submit(new QueryTask(pair[0], pair[1]))),
+                        writer);
+            }
+            if (writing && enqueue(pending, END_OF_QUERIES, writer)) {
+                writer.join();
+                complete = true;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            scan.close();
+            evaluators.shutdownNow();
+        }
+
+        Throwable error = writeError[0];
+        if (error == null && !complete)
+            throw new IOException("The result writer stopped before all of the queries were written");
+        if (error instanceof IOException)
+            throw (IOException) error;
+        if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        if (error instanceof Error)
+            throw (Error) error;
+        if (error != null)
+            throw new IOException(error);
+    }
+
+    /**
+     * Put a query in the queue, unless the writer stopped.
+     *
+     * @param pending The queue.
+     * @param next    The query.
+     * @param writer  The writer thread.
+     * @return False if the writer stopped, so the query can't be written.
+     * @throws InterruptedException
+     */
+    private static boolean enqueue(BlockingQueue<Pending> pending, Pending next, Thread writer)
+            throws InterruptedException {
+        while (!pending.offer(next, WRITER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A query whose result is being evaluated, in the queue.
+     */
+    private static class Pending {
+        final String queryId;
+        final Future<String> result;
+
+        Pending(String queryId, Future<String> result) {
+            this.queryId = queryId;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Evaluate one query and format its top results.
+     */
+    private class QueryTask implements Callable<String> {
+
+        private final String queryId;
+        private final String queryString;
+
+        QueryTask(String queryId, String queryString) {
+            this.queryId = queryId;
+            this.queryString = queryString;
+        }
+
+        public String call() throws IOException {
+            //  The query uses one snapshot of the index from evaluation
+            //  through fetching the external ids of its results.
+
+            long start = System.nanoTime();
+            IndexSnapshot snapshot = QryEval.acquireSnapshot();
+            IndexSnapshot previous = QryEval.pin(snapshot);
+            QueryContext context = new QueryContext(queryId);
+            context.depth = RESULTS_PER_QUERY;
+            QueryContext previousContext = QueryContext.enter(context);
+            Qryop qTree = null;
+            try {
+                qTree = QryEval.parseQuery(queryString, model);
+                if (QryPlanner.explain)
+                    QryPlanner.report(queryId, qTree);
+                QryResult result = QryEval.evaluateQuery(queryId, queryString, qTree, model);
+                if (QryProfiler.enabled)
+                    QryProfiler.report(queryId, qTree);
+                result.docScores.prioritySort(RESULTS_PER_QUERY);
+                return QryEval.formatResults(queryId, result.docScores, RESULTS_PER_QUERY);
+            } catch (QueryMemory.LimitException e) {
+                System.err.println("Error: Query " + queryId + " failed: " + e.getMessage());
+                return QryEval.formatResults(queryId, new ScoreList(), RESULTS_PER_QUERY);
+            } catch (QueryDeadline.ExpiredException e) {
+                System.err.println("Error: Query " + queryId + " failed: " + e.getMessage());
+                return QryEval.formatResults(queryId, new ScoreList(), RESULTS_PER_QUERY);
+            } finally {
+                QueryContext.enter(previousContext);
+                context.close();
+                QryEval.pin(previous);
+                QryEval.releaseSnapshot(snapshot);
+                QryMetrics.recordQuery(model, qTree, System.nanoTime() - start, context.memory.getPeak());
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *  BitPacker packs blocks of non-negative integers with a fixed number
+ *  of bits per value (frame of reference packing), as used by the
+ *  postings blocks of {@link NativeIndexWriter}.  Values are packed
+ *  from the least significant bit up, and a block of n values with b
+ *  bits each takes ceil(n * b / 8) bytes.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+public class BitPacker {
+
+    /**
+     * @param values Some values.
+     * @param n      The number of values to consider.
+     * @return The number of bits needed to represent the largest value.
+     */
+    public static int bitsRequired(int[] values, int n) {
+        int or = 0;
+        for (int i = 0; i < n; i++)
+            or |= values[i];
+        return 32 - Integer.numberOfLeadingZeros(or);
+    }
+
+    /**
+     * Append n values of the given width to a byte stream.
+     *
+     * @param values The values.
+     * @param n      The number of values.
+     * @param bits   The number of bits per value, from 0 to 32.
+     * @param out    The stream.
+     */
+    public static void pack(int[] values, int n, int bits, ByteArrayOutputStream out) {
+        if (bits == 0)
+            return;
+
+        long mask = (1L << bits) - 1;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < n; i++) {
+            acc |= (values[i] & mask) << accBits;
+            accBits += bits;
+            while (accBits >= 8) {
+                out.write((int) acc & 0xFF);
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        if (accBits > 0)
+            out.write((int) acc & 0xFF);
+    }
+
+    /**
+     * Read n values of the given width from a buffer.  The buffer's
+     * position is not used or changed, so a buffer can be shared by
+     * many readers.
+     *
+     * @param buf    The buffer.
+     * @param offset The offset of the first byte of the values.
+     * @param n      The number of values.
+     * @param bits   The number of bits per value, from 0 to 32.
+     * @param out    The array that receives the values.
+     * @return The offset of the first byte after the values.
+     */
+    public static int unpack(ByteBuffer buf, int offset, int n, int bits, int[] out) {
+        if (bits == 0) {
+            for (int i = 0; i < n; i++)
+                out[i] = 0;
+            return offset;
+        }
+
+        long mask = (1L << bits) - 1;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < n; i++) {
+            while (accBits < bits) {
+                acc |= (long) (buf.get(offset++) & 0xFF) << accBits;
+                accBits += 8;
+            }
+            out[i] = (int) (acc & mask);
+            acc >>>= bits;
+            accBits -= bits;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ *  Cascade evaluates a query in two stages.  The first stage ranks the
+ *  whole collection with a cheap bag-of-words version of the query
+ *  (its terms, without structure) under a fast retrieval model, e.g.,
+ *  #SUM with BM25.  The second stage evaluates the full structured
+ *  query under the main retrieval model, but only scores the top
+ *  documents of the first stage (see {@link Qryop#restrictTo}).
+ *
+ *  The second stage isn't O(candidates) for every query: a derived
+ *  operator (#NEAR, #WINDOW, #SYN) needs its df and ctf over the whole
+ *  collection, so by default it is evaluated over the whole collection
+ *  the first time it is seen for an index generation, and its
+ *  statistics are kept for later queries (see {@link DerivedStats}).
+ *  With candidates:derivedStats=estimated, the statistics are
+ *  estimated from the candidates instead, and the second stage only
+ *  merges the candidates' postings, at the cost of approximate
+ *  scores.
+ *
+ *  The two stages share the query's term operators, so postings that
+ *  are fetched by the first stage are not fetched again by the second.
+ *
+ *  With diagnostics enabled, every query is also evaluated
+ *  exhaustively, and the overlap of the two top-100 rankings is
+ *  reported, so that the depth of the first stage can be tuned.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class Cascade {
+
+    private static final int RECALL_DEPTH = 100;
+
+    private final RetrievalModel firstStageModel;
+    private final int depth;
+    private final boolean diagnostics;
+
+    //  Totals over all queries, for the summary.
+
+    private int queries = 0;
+    private long firstStageNanos = 0;
+    private long secondStageNanos = 0;
+    private long exhaustiveNanos = 0;
+    private double recallSum = 0;
+
+    /**
+     * @param firstStageModel The model used to generate candidates.
+     * @param depth           The number of candidates to rerank.
+     * @param diagnostics     If true, compare with exhaustive evaluation.
+     */
+    public Cascade(RetrievalModel firstStageModel, int depth, boolean diagnostics) {
+        this.firstStageModel = firstStageModel;
+        this.depth = depth;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Evaluate a query with the cascade.
+     *
+     * @param queryId     The query id, used in diagnostic messages.
+     * @param queryString The query text.
+     * @param query       The query, parsed for model.
+     * @param model       The retrieval model of the second stage.
+     * @return The result of the second stage.
+     * @throws IOException
+     */
+    public QryResult evaluate(String queryId, String queryString, Qryop query, RetrievalModel model) throws IOException {
+
+        //  Stage one: the bag-of-words query over the whole collection.
+
+        long start = System.nanoTime();
+
+        Qryop bag = bagOfWords(query);
+        if (bag == null)
+            return new QryResult();
+
+        int[] candidates = QryProfiler.evaluate(bag, firstStageModel).docScores.bestDocids(depth);
+        long firstStage = System.nanoTime();
+
+        //  Stage two: the structured query over the candidates.  The
+        //  query is unrestricted again even if it fails, because it may
+        //  be evaluated again (see QryEval.degrade).
+
+        QryResult result;
+        query.restrictTo(candidates);
+        try {
+            result = QryProfiler.evaluate(query, model);
+        } finally {
+            query.restrictTo(null);
+        }
+        long secondStage = System.nanoTime();
+
+        synchronized (this) {
+            queries++;
+            firstStageNanos += firstStage - start;
+            secondStageNanos += secondStage - firstStage;
+        }
+
+        String message = "Cascade " + queryId + ": stage 1 " + millis(firstStage - start) + " ms ("
+                + candidates.length + " candidates), stage 2 " + millis(secondStage - firstStage) + " ms";
+
+        if (diagnostics) {
+            Qryop exhaustive = QryEval.parseQuery(queryString, model, query);
+            long exhaustiveStart = System.nanoTime();
+            QryResult full = exhaustive.evaluate(model);
+            long exhaustiveTime = System.nanoTime() - exhaustiveStart;
+
+            double recall = overlap(result.docScores.bestDocids(RECALL_DEPTH),
+                    full.docScores.bestDocids(RECALL_DEPTH));
+
+            synchronized (this) {
+                exhaustiveNanos += exhaustiveTime;
+                recallSum += recall;
+            }
+            message += ", exhaustive " + millis(exhaustiveTime) + " ms, recall@" + RECALL_DEPTH + " "
+                    + String.format("%.3f", recall);
+        }
+
+        System.out.println(message);
+        return result;
+    }
+
+    /**
+     * Build the first stage query: the default query operator of the
+     * first stage model over all of the terms of the query.  The term
+     * operators are shared with the original query.
+     *
+     * @param query The structured query.
+     * @return The bag-of-words query, or null if there are no terms.
+     */
+    Qryop bagOfWords(Qryop query) throws IOException {
+        List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+        collectTerms(query, terms);
+        if (terms.isEmpty())
+            return null;
+
+        Qryop bag = firstStageModel.scorer().bagOfWords();
+        for (QryopIlTerm term : terms)
+            bag.add(term);
+        return bag;
+    }
+
+    private static void collectTerms(Qryop q, List<QryopIlTerm> terms) {
+        if (q instanceof QryopIlTerm) {
+            terms.add((QryopIlTerm) q);
+        } else {
+            for (int i = 0; i < q.args.size(); i++)
+                collectTerms(q.args.get(i), terms);
+        }
+    }
+
+    /**
+     * The fraction of the exhaustive top documents that the cascade found.
+     */
+    static double overlap(int[] cascade, int[] exhaustive) {
+        if (exhaustive.length == 0)
+            return 1.0;
+
+        int found = 0;
+        for (int docid : exhaustive) {
+            if (Arrays.binarySearch(cascade, docid) >= 0)
+                found++;
+        }
+        return (double) found / exhaustive.length;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    /*
+     *  Return a summary of the stage timings over all queries.
+     */
+    public synchronized String toString() {
+        if (queries == 0)
+            return "Cascade: no queries";
+
+        String summary = "Cascade: " + queries + " queries, depth " + depth
+                + ", stage 1 avg " + millis(firstStageNanos / queries) + " ms"
+                + ", stage 2 avg " + millis(secondStageNanos / queries) + " ms";
+
+        if (diagnostics) {
+            summary += ", exhaustive avg " + millis(exhaustiveNanos / queries) + " ms"
+                    + ", mean recall@" + RECALL_DEPTH + " " + String.format("%.3f", recallSum / queries);
+        }
+        return summary;
+    }
+}
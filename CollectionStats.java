@@ -0,0 +1,174 @@
+/**
+ *  CollectionStats holds the statistics that scoring needs from the
+ *  whole collection: the number of documents, the length and document
+ *  count of each field, and the df and ctf of terms.  A shard worker
+ *  (see {@link ShardWorker}) computes the statistics of its own shard,
+ *  the broker sums them over all of the shards, and every worker then
+ *  scores with the sums, so scores are the same as over one index of
+ *  the whole collection.  The document and field statistics are
+ *  exchanged once at startup, and the term statistics with each
+ *  query, for the query's terms only, so their size doesn't grow with
+ *  the vocabulary.
+ *
+ *  Only fields that have positions are included, so the externalId
+ *  field isn't counted.  The statistics are sent as lines of text:
+ *
+ *    N  numDocs
+ *    F  sumTotalTermFreq  docCount  field
+ *    T  df  ctf  field  term
+ *    END
+ *
+ *  with the values separated by tabs.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CollectionStats {
+
+    private int numDocs = 0;
+    private final Map<String, long[]> fields = new HashMap<String, long[]>();
+
+    //  {df, ctf} of the terms of a query.  The map can be shared with
+    //  the segments of SegmentEvaluator, which look up term statistics
+    //  in it.
+
+    final ConcurrentHashMap<Term, long[]> terms = new ConcurrentHashMap<Term, long[]>();
+
+    /**
+     * Read the document and field statistics of an index.
+     *
+     * @param reader The index.
+     * @return The statistics.
+     * @throws IOException
+     */
+    public static CollectionStats of(IndexReader reader) throws IOException {
+        CollectionStats stats = new CollectionStats();
+        stats.numDocs = reader.numDocs();
+
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            Terms fieldTerms = MultiFields.getTerms(reader, field);
+            if (fieldTerms != null && fieldTerms.hasPositions())
+                stats.fields.put(field, new long[]{reader.getSumTotalTermFreq(field), reader.getDocCount(field)});
+        }
+        return stats;
+    }
+
+    /**
+     * Read the statistics of some terms of an index.
+     *
+     * @param reader The index.
+     * @param terms  The terms, e.g., those of a query.
+     * @return The statistics, which only have the terms.
+     * @throws IOException
+     */
+    public static CollectionStats of(IndexReader reader, Collection<Term> terms) throws IOException {
+        CollectionStats stats = new CollectionStats();
+        for (Term term : terms)
+            stats.terms.put(term, new long[]{reader.docFreq(term), reader.totalTermFreq(term)});
+        return stats;
+    }
+
+    /**
+     * Add the statistics of another part of the collection.
+     */
+    public void add(CollectionStats other) {
+        numDocs += other.numDocs;
+        for (Map.Entry<String, long[]> e : other.fields.entrySet())
+            sum(fields, e.getKey(), e.getValue());
+        for (Map.Entry<Term, long[]> e : other.terms.entrySet())
+            sum(terms, e.getKey(), e.getValue());
+    }
+
+    private static <K> void sum(Map<K, long[]> map, K key, long[] values) {
+        long[] total = map.get(key);
+        if (total == null)
+            map.put(key, values.clone());
+        else {
+            total[0] += values[0];
+            total[1] += values[1];
+        }
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    public long getSumTotalTermFreq(String field) {
+        long[] stats = fields.get(field);
+        return stats == null ? 0 : stats[0];
+    }
+
+    public int getDocCount(String field) {
+        long[] stats = fields.get(field);
+        return stats == null ? 0 : (int) stats[1];
+    }
+
+    public int docFreq(String field, String term) {
+        long[] stats = terms.get(new Term(field, new BytesRef(term)));
+        return stats == null ? 0 : (int) stats[0];
+    }
+
+    /**
+     * Write the statistics, followed by an END line.
+     *
+     * @param out The writer.  It isn't flushed.
+     * @throws IOException
+     */
+    public void write(Writer out) throws IOException {
+        out.write("N\t" + numDocs + "\n");
+        for (Map.Entry<String, long[]> e : fields.entrySet())
+            out.write("F\t" + e.getValue()[0] + "\t" + e.getValue()[1] + "\t" + e.getKey() + "\n");
+        for (Map.Entry<Term, long[]> e : terms.entrySet()) {
+            out.write("T\t" + e.getValue()[0] + "\t" + e.getValue()[1] + "\t" + e.getKey().field() + "\t"
+                    + e.getKey().text() + "\n");
+        }
+        out.write("END\n");
+    }
+
+    /**
+     * Read statistics that were written by {@link #write}.
+     *
+     * @param in The reader, positioned after any header line.
+     * @return The statistics.
+     * @throws IOException
+     */
+    public static CollectionStats read(BufferedReader in) throws IOException {
+        CollectionStats stats = new CollectionStats();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("END")) {
+            String[] parts = line.split("\t", 5);
+            if (parts[0].equals("N")) {
+                stats.numDocs = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("F")) {
+                stats.fields.put(parts[3], new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+            } else if (parts[0].equals("T")) {
+                stats.terms.put(new Term(parts[3], new BytesRef(parts[4])),
+                        new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+            } else {
+                throw new IOException("Malformed statistics: " + line);
+            }
+        }
+        if (line == null)
+            throw new IOException("Statistics ended early");
+        return stats;
+    }
+
+    /*
+     *  Return a description of the statistics.
+     */
+    public String toString() {
+        return "Collection statistics: " + numDocs + " documents, " + fields.size() + " fields";
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ *  A compact, immutable variant of {@link TermVector}.  It is built
+ *  with a single pass over the Lucene term vector into primitive
+ *  arrays, and it identifies stems by their global ordinals in
+ *  {@link QryEval#stemDictionary}, so the collection statistics of a
+ *  stem are array reads rather than index lookups, in the table of
+ *  the generation of the index that the query uses.  It keeps the
+ *  stem frequencies and the field length, and optionally the stem at
+ *  each position, but none of the Lucene objects that a TermVector
+ *  holds on to.  This makes it cheap to keep many of them in a
+ *  {@link TermVectorCache}.
+ *
+ *  As in TermVector, stem 0 indicates a stopword, so real stems have
+ *  indexes 1 through stemsLength()-1.
+ */
+
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+public class CompactTermVector {
+
+    private final int[] stemIds;      // global stem ordinals; stemIds[0] is -1
+    private final int[] stemsFreq;
+    private final int length;
+    private final int[] positions;    // null if positions are not kept
+
+    /**
+     * Constructor.  Create a CompactTermVector for a field in a document.
+     *
+     * @param docId          The internal document id.
+     * @param fieldName      The field name.
+     * @param keepPositions  If true, keep the stem at each position.
+     * @throws IOException
+     */
+    public CompactTermVector(int docId, String fieldName, boolean keepPositions) throws IOException {
+
+        QryEvents.TermVectorBuild event = new QryEvents.TermVectorBuild();
+        event.begin();
+
+        Terms luceneTerms = QryEval.reader().getTermVector(docId, fieldName);
+        int stemsLength = (int) luceneTerms.size();
+
+        stemIds = new int[stemsLength + 1];
+        stemsFreq = new int[stemsLength + 1];
+        stemIds[0] = -1;
+
+        //  Stems that are not in the dictionary yet are collected and
+        //  resolved together after the pass.  Because the term vector
+        //  is in index order, so are they.
+
+        BytesRef[] unknown = new BytesRef[stemsLength];
+        int[] unknownIndex = new int[stemsLength];
+        int numUnknown = 0;
+
+        int[] pos = new int[keepPositions ? 64 : 0];
+        int maxPosition = 0;
+
+        TermsEnum ithTerm = luceneTerms.iterator(null);
+        DocsAndPositionsEnum ithPositions = null;
+
+        for (int i = 1; ithTerm.next() != null; i++) {
+            BytesRef term = ithTerm.term();
+            stemIds[i] = QryEval.stemDictionary.ordinal(fieldName, term);
+            if (stemIds[i] < 0) {
+                unknown[numUnknown] = BytesRef.deepCopyOf(term);
+                unknownIndex[numUnknown++] = i;
+            }
+
+            int tf = (int) ithTerm.totalTermFreq();
+            stemsFreq[i] = tf;
+
+            //  The field length is one more than the last position, so
+            //  positions are decoded even if they aren't kept.
+
+            ithPositions = ithTerm.docsAndPositions(null, ithPositions);
+            ithPositions.nextDoc();
+
+            for (int j = 0; j < tf; j++) {
+                int p = ithPositions.nextPosition();
+                maxPosition = Math.max(maxPosition, p);
+                if (keepPositions) {
+                    if (p >= pos.length)
+                        pos = ArrayUtil.grow(pos, p + 1);
+                    pos[p] = i;
+                }
+            }
+        }
+
+        if (numUnknown > 0) {
+            BytesRef[] terms = new BytesRef[numUnknown];
+            System.arraycopy(unknown, 0, terms, 0, numUnknown);
+            int[] ords = QryEval.stemDictionary.resolve(fieldName, terms);
+            for (int k = 0; k < numUnknown; k++)
+                stemIds[unknownIndex[k]] = ords[k];
+        }
+
+        this.length = maxPosition + 1;
+        if (keepPositions) {
+            this.positions = new int[length];
+            System.arraycopy(pos, 0, this.positions, 0, length);
+        } else {
+            this.positions = null;
+        }
+
+        if (event.shouldCommit()) {
+            event.queryId = QryEvents.queryId();
+            event.docid = docId;
+            event.field = fieldName;
+            event.stems = stemsLength;
+            event.positions = length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Get the number of positions in this field (the field length).
+     *
+     * @return The field length.
+     */
+    public int positionsLength() {
+        return this.length;
+    }
+
+    /**
+     * Return the index of the stem that occurred at position i in the
+     * document, or -1 if positions are not kept or i is invalid.
+     *
+     * @param i A position in the document.
+     * @return Index of the stem.
+     */
+    public int stemAt(int i) {
+        if (positions != null && i < positions.length)
+            return positions[i];
+        else
+            return -1;
+    }
+
+    /**
+     * Get the frequency of the i'th stem, or -1 if the index is invalid.
+     *
+     * @param i Index of the stem.
+     * @return The stem frequency (tf).
+     */
+    public int stemFreq(int i) {
+        if (i < stemsFreq.length)
+            return stemsFreq[i];
+        else
+            return -1;
+    }
+
+    /**
+     * Get the global ordinal of the i'th stem, or -1 if the index is
+     * invalid or indicates a stopword.
+     *
+     * @param i Index of the stem.
+     * @return The stem ordinal.
+     */
+    public int stemId(int i) {
+        if (i < stemIds.length)
+            return stemIds[i];
+        else
+            return -1;
+    }
+
+    /**
+     * Get the string for the i'th stem, or null if the index is invalid.
+     *
+     * @param i Index of the stem.
+     * @return The stem string.
+     */
+    public String stemString(int i) {
+        if (i > 0 && i < stemIds.length)
+            return QryEval.stemDictionary.term(stemIds[i]);
+        else
+            return null;
+    }
+
+    /**
+     * The number of unique stems in this field, plus one for stopwords.
+     *
+     * @return The number of stems.
+     */
+    public int stemsLength() {
+        return this.stemIds.length;
+    }
+
+    /**
+     * Returns ctf of the i'th stem.
+     *
+     * @param i Index of the stem.
+     * @return ctf of the stem.
+     * @throws IOException
+     */
+    public long totalStemFreq(int i) throws IOException {
+        return QryEval.stemStats().ctf(stemIds[i]);
+    }
+
+    /**
+     * Returns the df of the i'th stem.
+     *
+     * @param i Index of the stem.
+     * @return df of the stem.
+     * @throws IOException
+     */
+    public int stemDf(int i) throws IOException {
+        return QryEval.stemStats().df(stemIds[i]);
+    }
+}
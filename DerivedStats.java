@@ -0,0 +1,157 @@
+/**
+ *  DerivedStats decides how the collection statistics of a derived
+ *  inverted list (#NEAR, #WINDOW, #SYN) are found when the list is
+ *  evaluated for a restricted set of candidates (see Qryop.restrictTo).
+ *  The candidates don't tell how often the list matches in the rest of
+ *  the collection, and its df and ctf decide its scores.
+ *
+ *  With candidates:derivedStats=exact (the default), the operator is
+ *  evaluated once over the whole collection for its exact statistics,
+ *  and its list is then restricted to the candidates, so scores are
+ *  the same as in an unrestricted evaluation.  That evaluation costs as
+ *  much as evaluating the operator without candidates: a rerank costs
+ *  O(collection) for each derived list, and O(candidates) only for the
+ *  rest of the query.  The statistics are kept by operator (its query
+ *  string) for the index that they were computed for, so a later
+ *  evaluation of the same operator, in the same query or in another
+ *  one, only merges the candidates.  Only the first evaluation of each
+ *  operator, and the first after the index is reopened, pays for the
+ *  whole collection.  At most MAX_ENTRIES operators are kept.
+ *
+ *  With candidates:derivedStats=estimated, the operator only merges
+ *  the candidates' postings, and its statistics are estimated: its df
+ *  and ctf over the candidates are scaled by how much larger the
+ *  collection statistics of its arguments are than their lists over
+ *  the candidates.  A rerank then costs O(candidates), but scores are
+ *  approximate.  Candidates are usually the top documents of a ranking
+ *  of the same terms, where the arguments occur together more often
+ *  than in the rest of the collection, so the estimates tend to be
+ *  high.  A query that is degraded because it went over its memory
+ *  limit (see QryEval.degrade) always uses estimated statistics, since
+ *  a whole-collection evaluation is what it can't afford.
+ *
+ *  Over the segments of the index (segmentParallel) and in shard
+ *  workers, statistics are always exact, because they are the sums of
+ *  the statistics of every segment.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DerivedStats {
+
+    static final int MAX_ENTRIES = 10000;
+
+    //  Set once at startup.
+
+    static boolean estimated = false;
+
+    //  The exact statistics {df, ctf} of derived lists, by operator,
+    //  for one index: the Lucene reader of an index generation, or the
+    //  native index.  A query over another index starts a new table.
+
+    private static volatile Table latest = null;
+
+    private DerivedStats() {
+    }
+
+    /**
+     * @param params candidates:derivedStats (exact or estimated).
+     */
+    static void configure(Map<String, String> params) {
+        String mode = params.get("candidates:derivedStats");
+        if (mode != null && !mode.equals("exact") && !mode.equals("estimated"))
+            throw new IllegalArgumentException("Unknown candidates:derivedStats " + mode);
+        estimated = "estimated".equals(mode);
+    }
+
+    /**
+     * @param op A derived operator.
+     * @return True if the operator is evaluated over the whole
+     * collection for its exact statistics, because it is restricted to
+     * candidates and its statistics aren't estimated.
+     */
+    static boolean needsCollection(Qryop op) {
+        return op.candidates != null && op.segment == null && !isEstimated() && get(op.toString()) == null;
+    }
+
+    /**
+     * @return True if the current thread's query estimates the
+     * statistics of derived lists: if candidates:derivedStats=estimated,
+     * or if the query is degraded.
+     */
+    static boolean isEstimated() {
+        if (estimated)
+            return true;
+        QueryContext context = QueryContext.current();
+        return context != null && context.degraded;
+    }
+
+    /**
+     * @param key A derived operator, as a string.
+     * @return The exact statistics {df, ctf} of the operator's list in
+     * the current thread's index, or null if they aren't known.
+     */
+    static long[] get(String key) {
+        Table table = latest;
+        if (table == null || table.index != index())
+            return null;
+        return table.stats.get(key);
+    }
+
+    /**
+     * Keep the exact statistics of a derived list in the current
+     * thread's index.
+     *
+     * @param key  A derived operator, as a string.
+     * @param list The operator's list over the whole collection.
+     */
+    static void put(String key, InvList list) {
+        Object index = index();
+        Table table = latest;
+        if (table == null || table.index != index || table.stats.size() >= MAX_ENTRIES) {
+            table = new Table(index);
+            latest = table;
+        }
+        table.stats.put(key, new long[]{list.getCollectionDf(), list.getCollectionCtf()});
+    }
+
+    /**
+     * @return The index of the current thread's query.
+     */
+    private static Object index() {
+        return (QryEval.nativeIndex != null) ? QryEval.nativeIndex : QryEval.reader();
+    }
+
+    /**
+     * Estimate the collection statistics of a derived list that was
+     * evaluated over candidates.
+     *
+     * @param list The list, over the candidates.
+     * @param args The sums of the statistics of the operator's
+     *             arguments: {df, collection df, ctf, collection ctf}
+     *             (see QryopIl.allocArgPtrs).
+     */
+    static void estimate(InvList list, long[] args) {
+        list.collectionDf = (int) Math.min(QryEval.numDocs(), scale(list.df, args[1], args[0]));
+        list.collectionCtf = scale(list.ctf, args[3], args[2]);
+    }
+
+    /**
+     * @return n, scaled by collection / candidates.
+     */
+    private static long scale(long n, long collection, long candidates) {
+        if (candidates <= 0)
+            return n;
+        return Math.max(n, Math.round((double) n * collection / candidates));
+    }
+
+    private static class Table {
+        private final Object index;
+        private final Map<String, long[]> stats = new ConcurrentHashMap<String, long[]>();
+
+        Table(Object index) {
+            this.index = index;
+        }
+    }
+}
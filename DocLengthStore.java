@@ -2,31 +2,100 @@
  *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * The lengths are read directly from the norms of each index segment,
+ * rather than through a composite view of all of the segments.
  */
 public class DocLengthStore {
 
     private IndexReader reader;
-    private Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+    private int[] docStarts;
+    private Object[] coreKeys;
+    private Map<String, NumericDocValues[]> values = new HashMap<String, NumericDocValues[]>();
+    private NativeIndex nativeIndex;
+    private int segmentsReused = 0;
 
     /**
      * @param reader IndexReader object created in {@link QryEval}.
      */
     public DocLengthStore(IndexReader reader) throws IOException {
+        this(reader, null);
+    }
+
+    /**
+     * Create the store of a reopened reader.  The norms of the
+     * segments that it shares with the previous reader are reused, so
+     * only those of new segments are read.
+     *
+     * @param reader   The reopened reader.
+     * @param previous The store of the previous reader, or null.
+     */
+    public DocLengthStore(IndexReader reader, DocLengthStore previous) throws IOException {
         this.reader = reader;
+
+        List<AtomicReaderContext> leaves = reader.leaves();
+        this.docStarts = new int[leaves.size()];
+        this.coreKeys = new Object[leaves.size()];
+        for (int i = 0; i < leaves.size(); i++) {
+            this.docStarts[i] = leaves.get(i).docBase;
+            this.coreKeys[i] = leaves.get(i).reader().getCoreCacheKey();
+        }
+
+        //  The segments of the previous reader, by core.  Deletions
+        //  don't change a segment's core or its norms.
+
+        Map<Object, Integer> previousLeaves = new HashMap<Object, Integer>();
+        if (previous != null && previous.coreKeys != null) {
+            for (int j = 0; j < previous.coreKeys.length; j++)
+                previousLeaves.put(previous.coreKeys[j], j);
+        }
+
+        //  A segment that doesn't contain a field has no norms for it.
+
         for (String field : MultiFields.getIndexedFields(reader)) {
-            this.values.put(field, MultiDocValues.getNormValues(reader, field));
+            NumericDocValues[] norms = new NumericDocValues[leaves.size()];
+            NumericDocValues[] previousNorms = (previous == null) ? null : previous.values.get(field);
+            for (int i = 0; i < leaves.size(); i++) {
+                Integer j = previousLeaves.get(coreKeys[i]);
+                if (j != null && previousNorms != null)
+                    norms[i] = previousNorms[j];
+                else
+                    norms[i] = leaves.get(i).reader().getNormValues(field);
+            }
+            this.values.put(field, norms);
         }
+
+        for (int i = 0; i < leaves.size(); i++) {
+            if (previousLeaves.containsKey(coreKeys[i]))
+                segmentsReused++;
+        }
+    }
+
+    /**
+     * @return The number of segments whose norms were reused from the
+     * previous store.
+     */
+    public int getSegmentsReused() {
+        return segmentsReused;
+    }
+
+    /**
+     * @param nativeIndex A native index; the lengths are read from it.
+     */
+    public DocLengthStore(NativeIndex nativeIndex) {
+        this.nativeIndex = nativeIndex;
     }
 
     /**
@@ -37,6 +106,13 @@ public class DocLengthStore {
      * @param docid     The internal docid in the lucene index.
      */
     public long getDocLength(String fieldname, int docid) throws IOException {
-        return values.get(fieldname).get(docid);
+        if (nativeIndex != null)
+            return nativeIndex.getDocLength(fieldname, docid);
+
+        NumericDocValues[] norms = values.get(fieldname);
+        int leaf = (docStarts.length == 1) ? 0 : ReaderUtil.subIndex(docid, docStarts);
+        if (norms[leaf] == null)
+            return 0;
+        return norms[leaf].get(docid - docStarts[leaf]);
     }
 }
@@ -0,0 +1,346 @@
+/**
+ *  ImpactEvaluator evaluates BM25 #SUM queries of terms score-at-a-time
+ *  over an impact-ordered index (see {@link ImpactIndexWriter}).  The
+ *  impact segments of all of the query terms are processed in
+ *  decreasing impact order, adding each segment's impact to the
+ *  accumulators of its documents.  The highest impacts, which decide
+ *  the top of the ranking, come first, so evaluation can stop after a
+ *  budget of postings and still return a good approximate ranking
+ *  (anytime early termination).  Without a budget, every posting is
+ *  processed, and the ranking differs from exhaustive evaluation only
+ *  by the quantization of the impacts.
+ *
+ *  With diagnostics enabled, every query is also evaluated
+ *  exhaustively, and the overlap of the two top-100 rankings is
+ *  reported.
+ *
+ *  The index is memory-mapped, and the evaluator is safe for
+ *  concurrent use.  Each evaluation borrows accumulators as large as
+ *  the collection from a pool, so there are only as many of them as
+ *  queries that were ever evaluated at the same time, however many
+ *  threads have used the evaluator.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ImpactEvaluator {
+
+    private static final int RECALL_DEPTH = 100;
+
+    private final String field;
+    private final double k1;
+    private final double b;
+    private final int levels;
+    private final double scale;
+    private final int maxDoc;
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+    private final MappedFile impacts;
+
+    private final long budget;
+    private final int depth;
+    private final boolean diagnostics;
+
+    //  Idle accumulators, which are as large as the collection.
+
+    private final Queue<Accumulators> accumulators = new ConcurrentLinkedQueue<Accumulators>();
+
+    //  Totals over all queries, for the summary.
+
+    private int queries = 0;
+    private long postingsProcessed = 0;
+    private long postingsTotal = 0;
+    private long nanos = 0;
+    private long exhaustiveNanos = 0;
+    private double recallSum = 0;
+
+    /**
+     * @param path        The directory of the impact index.
+     * @param budget      The maximum number of postings processed per
+     *                    query, or 0 to process all of them.
+     * @param depth       The number of results of each query.
+     * @param diagnostics If true, compare with exhaustive evaluation.
+     * @throws IOException
+     */
+    public ImpactEvaluator(String path, long budget, int depth, boolean diagnostics) throws IOException {
+        File dir = new File(path);
+
+        Properties meta = new Properties();
+        InputStream in = new FileInputStream(new File(dir, "meta.properties"));
+        try {
+            meta.load(in);
+        } finally {
+            in.close();
+        }
+        field = meta.getProperty("field");
+        k1 = Double.parseDouble(meta.getProperty("k_1"));
+        b = Double.parseDouble(meta.getProperty("b"));
+        levels = Integer.parseInt(meta.getProperty("levels"));
+        scale = Double.parseDouble(meta.getProperty("scale"));
+        maxDoc = Integer.parseInt(meta.getProperty("maxDoc"));
+
+        DataInputStream dict = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, "terms.dat"))));
+        try {
+            int numTerms = dict.readInt();
+            for (int i = 0; i < numTerms; i++) {
+                String term = dict.readUTF();
+                dict.readInt();     // df
+                offsets.put(term, dict.readLong());
+            }
+        } finally {
+            dict.close();
+        }
+
+        impacts = new MappedFile(new File(dir, "impacts.dat"));
+
+        this.budget = budget;
+        this.depth = depth;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * @param model A retrieval model.
+     * @return true if the index holds the model's scores, i.e., it is
+     * BM25 and the index was built with its parameters.
+     */
+    public boolean matches(RetrievalModel model) {
+        return model.scorer().matchesImpacts(k1, b);
+    }
+
+    /**
+     * Evaluate a query score-at-a-time, if it is a #SUM of terms in
+     * the indexed field and the model's parameters match the index.
+     *
+     * @param queryId The query id, used in diagnostic messages.
+     * @param query   The query, parsed for model.  It is not evaluated,
+     *                except for diagnostics.
+     * @param model   The retrieval model.
+     * @return The (unsorted) top depth results, or null if the query
+     * can't be evaluated with the impact index.
+     * @throws IOException
+     */
+    public QryResult evaluate(String queryId, Qryop query, RetrievalModel model) throws IOException {
+        if (!matches(model))
+            return null;
+
+        List<String> terms = sumOfTerms(query);
+        if (terms == null)
+            return null;
+
+        long start = System.nanoTime();
+
+        //  Collect the impact segments of the query terms.  A term that
+        //  occurs twice in the query counts twice, as in #SUM.
+
+        List<long[]> segments = new ArrayList<long[]>();
+        long total = 0;
+        for (String term : terms) {
+            Long offset = offsets.get(term);
+            if (offset == null)
+                continue;
+
+            int numSegments = impacts.getInt(offset);
+            long p = offset + 4;
+            for (int s = 0; s < numSegments; s++) {
+                int impact = impacts.getInt(p);
+                int n = impacts.getInt(p + 4);
+                int bits = impacts.get(p + 8);
+                segments.add(new long[]{impact, n, bits, p + 9});
+                total += n;
+                p += 9 + ((long) n * bits + 7) / 8;
+            }
+        }
+
+        //  Highest impacts first.  The sort is stable, so ties are
+        //  processed in query term order.
+
+        Collections.sort(segments, new Comparator<long[]>() {
+            public int compare(long[] s1, long[] s2) {
+                return Long.compare(s2[0], s1[0]);
+            }
+        });
+
+        //  Accumulators are only returned to the pool after collect has
+        //  reset them, so a failed evaluation just drops its own.
+
+        Accumulators acc = accumulators.poll();
+        if (acc == null)
+            acc = new Accumulators(maxDoc);
+        long processed = 0;
+        for (long[] segment : segments) {
+            int n = (int) segment[1];
+            if (budget > 0 && processed + n > budget)
+                n = (int) (budget - processed);
+
+            int[] docids = acc.buffer(n);
+            int bits = (int) segment[2];
+            BitPacker.unpack(impacts.slice(segment[3], ((long) n * bits + 7) / 8), 0, n, bits, docids);
+            int impact = (int) segment[0];
+            int docid = -1;
+            for (int i = 0; i < n; i++) {
+                docid += docids[i] + 1;
+                acc.add(docid, impact);
+            }
+
+            processed += n;
+            if (budget > 0 && processed >= budget)
+                break;
+        }
+
+        QryResult result = new QryResult();
+        acc.collect(depth, scale / levels, result.docScores);
+        accumulators.offer(acc);
+        long time = System.nanoTime() - start;
+
+        synchronized (this) {
+            queries++;
+            postingsProcessed += processed;
+            postingsTotal += total;
+            nanos += time;
+        }
+
+        if (diagnostics) {
+            long exhaustiveStart = System.nanoTime();
+            QryResult full = query.evaluate(model);
+            long exhaustiveTime = System.nanoTime() - exhaustiveStart;
+
+            double recall = Cascade.overlap(result.docScores.bestDocids(RECALL_DEPTH),
+                    full.docScores.bestDocids(RECALL_DEPTH));
+
+            synchronized (this) {
+                exhaustiveNanos += exhaustiveTime;
+                recallSum += recall;
+            }
+            System.out.println("Impact " + queryId + ": " + processed + " of " + total + " postings, "
+                    + millis(time) + " ms, exhaustive " + millis(exhaustiveTime) + " ms, overlap@"
+                    + RECALL_DEPTH + " " + String.format("%.3f", recall));
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the terms of a #SUM query whose arguments are all terms in
+     * the indexed field, or null if the query has a different form.
+     */
+    private List<String> sumOfTerms(Qryop query) {
+        while (query instanceof QryopSlSum && query.args.size() == 1 && query.args.get(0) instanceof QryopSlSum)
+            query = query.args.get(0);
+
+        if (!(query instanceof QryopSlSum) || query.candidates != null)
+            return null;
+
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < query.args.size(); i++) {
+            Qryop arg = query.args.get(i);
+            if (!(arg instanceof QryopIlTerm) || !field.equals(((QryopIlTerm) arg).getField()))
+                return null;
+            terms.add(((QryopIlTerm) arg).getTerm());
+        }
+        return terms;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    /*
+     *  Return a summary of the evaluation statistics over all queries.
+     */
+    public synchronized String toString() {
+        if (queries == 0)
+            return "Impact evaluation: no queries";
+
+        String summary = "Impact evaluation: " + queries + " queries, "
+                + (budget > 0 ? "budget " + budget : "no budget")
+                + ", " + postingsProcessed + " of " + postingsTotal + " postings processed"
+                + ", avg " + millis(nanos / queries) + " ms";
+
+        if (diagnostics) {
+            summary += ", exhaustive avg " + millis(exhaustiveNanos / queries) + " ms"
+                    + ", mean overlap@" + RECALL_DEPTH + " " + String.format("%.3f", recallSum / queries);
+        }
+        return summary;
+    }
+
+    /**
+     * Score accumulators for one evaluation at a time.  Only the
+     * accumulators of the documents that a query touched are reset
+     * afterwards.
+     */
+    private static class Accumulators {
+        private final int[] scores;
+        private int[] touched = new int[1024];
+        private int numTouched = 0;
+        private int[] buffer = new int[1024];
+
+        Accumulators(int maxDoc) {
+            scores = new int[maxDoc];
+        }
+
+        int[] buffer(int n) {
+            if (buffer.length < n)
+                buffer = new int[Math.max(n, 2 * buffer.length)];
+            return buffer;
+        }
+
+        void add(int docid, int impact) {
+            if (scores[docid] == 0) {
+                if (numTouched == touched.length)
+                    touched = Arrays.copyOf(touched, 2 * touched.length);
+                touched[numTouched++] = docid;
+            }
+            scores[docid] += impact;
+        }
+
+        /**
+         * Add the documents that can be in the top k to a score list,
+         * with their accumulators scaled to scores, and reset the
+         * accumulators.  Documents that tie with the k'th best are
+         * kept, as in {@link ScoreList#retainTop}.
+         *
+         * @throws QueryMemory.LimitException If the list takes the
+         *                                    query over its memory limit.
+         */
+        void collect(int k, double unit, ScoreList list) throws QueryMemory.LimitException {
+            int threshold = 1;
+            if (numTouched > k && k > 0) {
+                PriorityQueue<Integer> best = new PriorityQueue<Integer>(k);
+                for (int i = 0; i < numTouched; i++) {
+                    int s = scores[touched[i]];
+                    if (best.size() < k) {
+                        best.offer(s);
+                    } else if (s > best.peek()) {
+                        best.poll();
+                        best.offer(s);
+                    }
+                }
+                threshold = best.peek();
+            }
+
+            for (int i = 0; i < numTouched; i++) {
+                int docid = touched[i];
+                if (k > 0 && scores[docid] >= threshold)
+                    list.add(docid, scores[docid] * unit);
+                scores[docid] = 0;
+            }
+            numTouched = 0;
+        }
+    }
+}
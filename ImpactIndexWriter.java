@@ -0,0 +1,272 @@
+/**
+ *  ImpactIndexWriter builds an impact-ordered index of one field for
+ *  score-at-a-time BM25 evaluation (see {@link ImpactEvaluator}).
+ *
+ *    java ImpactIndexWriter paramFile
+ *
+ *  It reads indexPath, impactIndexPath, BM25:k_1 and BM25:b from the
+ *  parameter file, and optionally impact:field (default body) and
+ *  impact:bits (default 8).
+ *
+ *  The BM25 score of every (term, document) pair is computed as in
+ *  {@link QryopSlScore} and quantized to an integer impact from 1 to
+ *  2^bits - 1.  The scale is the largest idf of the field, which is
+ *  an upper bound of every score, because the tf weight of BM25 is
+ *  less than 1.  Terms whose idf is not positive get no postings, as
+ *  in exhaustive evaluation.
+ *
+ *  The postings of each term are grouped into segments of equal
+ *  impact, in decreasing impact order, and the documents of a segment
+ *  are stored as bit-packed docid gaps in increasing order.  The
+ *  index directory holds these files:
+ *
+ *    meta.properties  The field, k_1, b, bits, scale and maxDoc.
+ *    terms.dat        The number of terms (int), then for each term:
+ *                     term (UTF), df (int), offset in impacts.dat (long).
+ *    impacts.dat      For each term: the number of segments (int), then
+ *                     for each segment: impact (int), number of
+ *                     documents (int), bit width (byte), packed gaps.
+ *
+ *  The index must be rebuilt when k_1, b or the Lucene index change.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+public class ImpactIndexWriter {
+
+    private final IndexReader reader;
+    private final File dir;
+    private final String field;
+    private final double k1;
+    private final double b;
+    private final int levels;
+
+    /**
+     * @param reader The Lucene index.
+     * @param dir    The directory of the impact index.
+     * @param field  The field to index.
+     * @param k1     The BM25 k_1 parameter.
+     * @param b      The BM25 b parameter.
+     * @param bits   The number of bits of an impact.
+     */
+    public ImpactIndexWriter(IndexReader reader, File dir, String field, double k1, double b, int bits) {
+        this.reader = reader;
+        this.dir = dir;
+        this.field = field;
+        this.k1 = k1;
+        this.b = b;
+        this.levels = (1 << bits) - 1;
+    }
+
+    /**
+     * @param args The only argument is the path to the parameter file.
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:  java ImpactIndexWriter paramFile");
+            System.exit(1);
+        }
+
+        Map<String, String> params = QryEval.readParameters(args[0]);
+        if (!params.containsKey("indexPath") || !params.containsKey("impactIndexPath")
+                || !params.containsKey("BM25:k_1") || !params.containsKey("BM25:b")) {
+            QryEval.fatalError("Error: indexPath, impactIndexPath, BM25:k_1 and BM25:b are required");
+        }
+        String field = params.containsKey("impact:field") ? params.get("impact:field") : "body";
+        int bits = params.containsKey("impact:bits") ? Integer.parseInt(params.get("impact:bits")) : 8;
+        if (bits < 1 || bits > 16) {
+            QryEval.fatalError("Error: impact:bits must be from 1 to 16");
+        }
+
+        long start = System.currentTimeMillis();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+        try {
+            new ImpactIndexWriter(reader, new File(params.get("impactIndexPath")), field,
+                    Double.parseDouble(params.get("BM25:k_1")), Double.parseDouble(params.get("BM25:b")),
+                    bits).write();
+        } finally {
+            reader.close();
+        }
+        System.out.println("Built in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Write the impact index.
+     *
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (terms == null)
+            throw new IOException("The index has no field " + field);
+
+        int numDocs = reader.numDocs();
+        double avgLen = reader.getSumTotalTermFreq(field) / (double) reader.getDocCount(field);
+        DocLengthStore lengths = new DocLengthStore(reader);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+        //  The scale is the largest idf.
+
+        double scale = 0;
+        TermsEnum termsEnum = terms.iterator(null);
+        while (termsEnum.next() != null)
+            scale = Math.max(scale, idf(numDocs, termsEnum.docFreq()));
+
+        DataOutputStream dict = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, "terms.dat"))));
+        DataOutputStream impacts = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, "impacts.dat")), 1 << 16));
+        ByteArrayOutputStream dictEntries = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(dictEntries);
+
+        int numTerms = 0;
+        long size = 0;
+        long numPostings = 0;
+
+        int[] docids = new int[1024];
+        int[] quantized = new int[1024];
+        int[] counts = new int[levels + 1];
+        int[] sorted = new int[1024];
+        int[] gaps = new int[1024];
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+
+        try {
+            termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                double idf = idf(numDocs, termsEnum.docFreq());
+                if (idf <= 0)
+                    continue;
+
+                //  Quantize the impacts of the term's postings.
+
+                int df = 0;
+                Arrays.fill(counts, 0);
+                docsEnum = termsEnum.docs(liveDocs, docsEnum);
+                while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    int docid = docsEnum.docID();
+                    int tf = docsEnum.freq();
+                    long docLen = lengths.getDocLength(field, docid);
+                    double score = idf * tf / (tf + k1 * ((1 - b) + b * docLen / avgLen));
+                    int q = Math.max(1, Math.min(levels, (int) Math.round(score / scale * levels)));
+
+                    if (df == docids.length) {
+                        docids = ArrayUtil.grow(docids, df + 1);
+                        quantized = ArrayUtil.grow(quantized, df + 1);
+                    }
+                    docids[df] = docid;
+                    quantized[df++] = q;
+                    counts[q]++;
+                }
+                if (df == 0)
+                    continue;
+
+                //  Sort the postings by decreasing impact.  The sort is
+                //  stable, so docids stay in increasing order within a
+                //  segment.
+
+                int[] starts = new int[levels + 2];
+                int numSegments = 0;
+                for (int q = levels; q >= 1; q--) {
+                    starts[q - 1] = starts[q] + counts[q];
+                    if (counts[q] > 0)
+                        numSegments++;
+                }
+                if (sorted.length < df)
+                    sorted = new int[ArrayUtil.oversize(df, 4)];
+                int[] next = new int[levels + 1];
+                for (int q = 1; q <= levels; q++)
+                    next[q] = starts[q];
+                for (int i = 0; i < df; i++)
+                    sorted[next[quantized[i]]++] = docids[i];
+
+                entries.writeUTF(term.utf8ToString());
+                entries.writeInt(df);
+                entries.writeLong(size);
+                numTerms++;
+
+                impacts.writeInt(numSegments);
+                size += 4;
+                for (int q = levels; q >= 1; q--) {
+                    int n = counts[q];
+                    if (n == 0)
+                        continue;
+
+                    if (gaps.length < n)
+                        gaps = new int[ArrayUtil.oversize(n, 4)];
+                    int last = -1;
+                    for (int i = 0; i < n; i++) {
+                        int docid = sorted[starts[q] + i];
+                        gaps[i] = docid - last - 1;
+                        last = docid;
+                    }
+                    int bits = BitPacker.bitsRequired(gaps, n);
+                    packed.reset();
+                    BitPacker.pack(gaps, n, bits, packed);
+
+                    impacts.writeInt(q);
+                    impacts.writeInt(n);
+                    impacts.writeByte(bits);
+                    packed.writeTo(impacts);
+                    size += 9 + packed.size();
+                }
+                numPostings += df;
+            }
+
+            dict.writeInt(numTerms);
+            dictEntries.writeTo(dict);
+        } finally {
+            dict.close();
+            impacts.close();
+        }
+
+        Properties meta = new Properties();
+        meta.setProperty("field", field);
+        meta.setProperty("k_1", Double.toString(k1));
+        meta.setProperty("b", Double.toString(b));
+        meta.setProperty("levels", Integer.toString(levels));
+        meta.setProperty("scale", Double.toString(scale));
+        meta.setProperty("maxDoc", Integer.toString(reader.maxDoc()));
+        OutputStream out = new FileOutputStream(new File(dir, "meta.properties"));
+        try {
+            meta.store(out, "QryEval impact index");
+        } finally {
+            out.close();
+        }
+
+        System.out.println("Indexed " + numTerms + " terms, " + numPostings + " postings, " + size + " bytes.");
+    }
+
+    /**
+     * The BM25 idf, as in {@link QryopSlScore}.
+     */
+    private static double idf(int numDocs, int df) {
+        return Math.log((numDocs - df + 0.5) / (df + 0.5));
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ *  IndexReopener picks up documents that another process committed to
+ *  the index without restarting QryEval.  It reopens the reader with
+ *  DirectoryReader.openIfChanged, either every reopen:interval
+ *  milliseconds or when it is asked to (e.g., by the /reopen endpoint
+ *  of {@link QryEvalServer}).  Segments that didn't change are shared
+ *  with the previous reader, so only new segments are opened.
+ *
+ *  A reopen builds a new {@link IndexSnapshot} and then swaps it in
+ *  atomically.  Queries that started earlier keep using the snapshot
+ *  that they acquired, and its reader is closed when the last of them
+ *  releases it.
+ *
+ *  Caches are only invalidated as far as the new generation affects
+ *  them:
+ *
+ *    Document lengths    Reused for every segment that is still in
+ *                        the index; only new segments are read.
+ *    Term vectors        Kept for documents whose segment is still in
+ *                        the index at the same docBase, i.e., whose
+ *                        internal docid didn't change.  Queries of
+ *                        older generations bypass the cache.
+ *    Stem statistics     A new table for the new generation, filled
+ *                        in for the stems that are already in the
+ *                        dictionary, because every new document can
+ *                        change df and ctf.  The table of the previous
+ *                        generation doesn't change, so feedback that
+ *                        is in progress keeps its statistics.  Stem
+ *                        ordinals, which cached term vectors refer to,
+ *                        stay the same.
+ */
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class IndexReopener {
+
+    private volatile IndexSnapshot current;
+    private ScheduledExecutorService poller;
+
+    private long reopens = 0;
+    private long segmentsReused = 0;
+    private long segmentsOpened = 0;
+    private long vectorsDiscarded = 0;
+
+    /**
+     * @param reader The current reader.  The reopener takes over its
+     *               reference, and QryEval.dls must hold its lengths.
+     * @throws IOException
+     */
+    public IndexReopener(DirectoryReader reader) throws IOException {
+        this.current = new IndexSnapshot(reader, QryEval.dls, QryEval.stemDictionary.stats(reader), 0);
+    }
+
+    /**
+     * Acquire the current snapshot.  It must be released with
+     * {@link #release}.
+     *
+     * @return The snapshot.
+     */
+    public IndexSnapshot acquire() {
+        while (true) {
+            IndexSnapshot s = current;
+            if (s.reader.tryIncRef())
+                return s;
+
+            //  The snapshot was replaced and closed in the meantime;
+            //  the next one is current now.
+        }
+    }
+
+    /**
+     * Release a snapshot that was acquired.
+     *
+     * @param s The snapshot.
+     * @throws IOException
+     */
+    public void release(IndexSnapshot s) throws IOException {
+        s.reader.decRef();
+    }
+
+    /**
+     * Reopen the reader every interval milliseconds, in the background.
+     *
+     * @param interval The interval.
+     */
+    public void start(long interval) {
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "index-reopener");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    maybeReopen();
+                } catch (IOException e) {
+                    System.err.println("Warning: index reopen failed: " + e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reopen the reader if the index changed, and make the new
+     * generation current.
+     *
+     * @return true if there is a new generation.
+     * @throws IOException
+     */
+    public synchronized boolean maybeReopen() throws IOException {
+        IndexSnapshot previous = current;
+        DirectoryReader reader = DirectoryReader.openIfChanged((DirectoryReader) previous.reader);
+        if (reader == null)
+            return false;
+
+        DocLengthStore dls = new DocLengthStore(reader, previous.dls);
+        segmentsReused += dls.getSegmentsReused();
+        segmentsOpened += reader.leaves().size() - dls.getSegmentsReused();
+
+        //  Invalidate the caches before the new generation is visible.
+
+        IndexSnapshot next = new IndexSnapshot(reader, dls, QryEval.stemDictionary.stats(reader),
+                previous.generation + 1);
+        if (QryEval.termVectors != null) {
+            vectorsDiscarded += QryEval.termVectors.retainRanges(unchangedRanges(previous, reader),
+                    next.generation);
+        }
+
+        current = next;
+        QryEval.READER = reader;
+        QryEval.dls = dls;
+        reopens++;
+
+        //  The reader is closed once the queries that use it finish.
+
+        previous.reader.decRef();
+        return true;
+    }
+
+    /**
+     * Return the docid ranges of the previous snapshot's segments that
+     * are still in the new reader at the same docBase.
+     */
+    private static List<int[]> unchangedRanges(IndexSnapshot previous, DirectoryReader reader) {
+        Map<Object, Integer> bases = new HashMap<Object, Integer>();
+        for (AtomicReaderContext leaf : reader.leaves())
+            bases.put(leaf.reader().getCoreCacheKey(), leaf.docBase);
+
+        List<int[]> ranges = new ArrayList<int[]>();
+        for (AtomicReaderContext leaf : previous.reader.leaves()) {
+            Integer base = bases.get(leaf.reader().getCoreCacheKey());
+            if (base != null && base == leaf.docBase)
+                ranges.add(new int[]{leaf.docBase, leaf.docBase + leaf.reader().maxDoc()});
+        }
+        return ranges;
+    }
+
+    /**
+     * @return The current generation.
+     */
+    public long getGeneration() {
+        return current.generation;
+    }
+
+    /*
+     *  Return a summary of the reopen statistics.
+     */
+    public synchronized String toString() {
+        return "Index reopen: generation " + current.generation + ", " + reopens + " reopens, "
+                + segmentsReused + " segments reused, " + segmentsOpened + " segments opened, "
+                + vectorsDiscarded + " cached term vectors discarded";
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ *  IndexSnapshot is one generation of the index: a reader, the
+ *  document lengths of its segments and the statistics of the stems
+ *  of the term vectors (see {@link StemDictionary}).  A query pins the snapshot that
+ *  is current when it starts (see {@link QryEval#pin}), and all of its
+ *  index accesses go to that snapshot, so a reopen that happens while
+ *  the query runs (see {@link IndexReopener}) doesn't change the
+ *  documents or statistics that it sees.
+ *
+ *  The snapshot's reader is reference counted: the reopener holds one
+ *  reference while the snapshot is current, and every query that uses
+ *  it holds another.  The reader is closed when the last reference is
+ *  released.
+ */
+
+import org.apache.lucene.index.IndexReader;
+
+public class IndexSnapshot {
+
+    final IndexReader reader;
+    final DocLengthStore dls;
+    final StemDictionary.Stats stemStats;
+    final long generation;
+
+    /**
+     * @param reader     The reader.  The snapshot owns one reference.
+     * @param dls        The document lengths of the reader.
+     * @param stemStats  The stem statistics of the reader.
+     * @param generation The generation number, starting from 0.
+     */
+    IndexSnapshot(IndexReader reader, DocLengthStore dls, StemDictionary.Stats stemStats, long generation) {
+        this.reader = reader;
+        this.dls = dls;
+        this.stemStats = stemStats;
+        this.generation = generation;
+    }
+
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+}
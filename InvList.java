@@ -10,6 +10,8 @@
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
 
@@ -27,6 +29,32 @@ public class InvList {
     public int df = 0;
     public String field;
     public Vector<DocPosting> postings = new Vector<DocPosting>();
+
+    //  Collection statistics.  When a list only covers a set of
+    //  candidate documents (see Qryop.restrictTo), df and ctf only
+    //  count the postings in the list.  These fields hold the
+    //  statistics of the whole collection, or -1 if they are the same
+    //  as df and ctf.
+
+    public int collectionDf = -1;
+    public long collectionCtf = -1;
+
+    //  True if the query's deadline stopped the fetch before the end of
+    //  the list (see QueryDeadline).  Lists that are fetched from the
+    //  index keep the statistics of the whole list; the statistics of
+    //  a truncated derived list (#NEAR, #SYN, ...) are unknown unless
+    //  collectionDf and collectionCtf are set.
+
+    public boolean truncated = false;
+
+    //  The postings and positions that were charged to the query's
+    //  memory while the list grew, and the bytes that stay charged
+    //  until an operator returns the list (see QueryMemory).
+
+    private int chargedDf = 0;
+    private int chargedCtf = 0;
+    long chargedBytes = 0;
+
     /**
      * Constructor.  An empty inverted list. Useful for some query operators.
      */
@@ -53,19 +81,47 @@ public class InvList {
 
         this.field = new String(fieldString);
 
-        //  Prepare to access the index.
+        //  Prepare to access the index.  If the query's deadline stops
+        //  the fetch, the list only has the postings before the stop,
+        //  and keeps the statistics of the whole list.
+
+        QueryDeadline deadline = QueryDeadline.current();
+
+        if (QryEval.nativeIndex != null) {
+            NativePostingsCursor cursor = QryEval.nativeIndex.postings(fieldString, termString);
+            if (cursor == null)
+                return;
+
+            while (cursor.nextDoc() != NativePostingsCursor.NO_MORE_DOCS) {
+                if (deadline != null && (this.df & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(cursor.docID())) {
+                    this.collectionDf = cursor.df();
+                    this.collectionCtf = QryEval.nativeIndex.totalTermFreq(fieldString, termString);
+                    this.truncated = true;
+                    break;
+                }
+
+                int tf = cursor.freq();
+                int[] positions = new int[tf];
+
+                for (int j = 0; j < tf; j++)
+                    positions[j] = cursor.nextPosition();
+
+                this.add(new DocPosting(cursor.docID(), positions));
+            }
+            return;
+        }
 
         BytesRef termBytes = new BytesRef(termString);
         Term term = new Term(fieldString, termBytes);
 
-        if (QryEval.READER.docFreq(term) < 1)
+        if (QryEval.reader().docFreq(term) < 1)
             return;
 
         //  Lookup the inverted list.
 
         DocsAndPositionsEnum iList =
-                MultiFields.getTermPositionsEnum(QryEval.READER,
-                        MultiFields.getLiveDocs(QryEval.READER),
+                MultiFields.getTermPositionsEnum(QryEval.reader(),
+                        MultiFields.getLiveDocs(QryEval.reader()),
                         fieldString, termBytes);
 
         //  Copy from Lucene inverted list format to our inverted list
@@ -74,6 +130,12 @@ public class InvList {
         //  details of Lucene inverted list implementations.
 
         while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            if (deadline != null && (this.df & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(iList.docID())) {
+                this.collectionDf = QryEval.reader().docFreq(term);
+                this.collectionCtf = QryEval.reader().totalTermFreq(term);
+                this.truncated = true;
+                break;
+            }
 
             int tf = iList.freq();
             int[] positions = new int[tf];
@@ -81,12 +143,193 @@ public class InvList {
             for (int j = 0; j < tf; j++)
                 positions[j] = iList.nextPosition();
 
-            this.postings.add(new DocPosting(iList.docID(), positions));
-            this.df++;
-            this.ctf += tf;
+            this.add(new DocPosting(iList.docID(), positions));
         }
     }
 
+    /**
+     * Fetch the part of an inverted list that matches a set of
+     * candidate documents.  The postings cursor advances directly from
+     * one candidate to the next, so the cost depends on the number of
+     * candidates rather than on the length of the inverted list.
+     * Collection statistics are those of the whole inverted list.
+     *
+     * @param termString  The processed (stemmed, lower-cased, etc) term string.
+     * @param fieldString The field that the term occurs in.
+     * @param candidates  Internal document ids, in ascending order.
+     * @throws IOException
+     */
+    public InvList(String termString, String fieldString, int[] candidates) throws IOException {
+
+        this.field = new String(fieldString);
+        this.collectionDf = 0;
+        this.collectionCtf = 0;
+
+        QueryDeadline deadline = QueryDeadline.current();
+
+        if (QryEval.nativeIndex != null) {
+            NativePostingsCursor cursor = QryEval.nativeIndex.postings(fieldString, termString);
+            if (cursor == null)
+                return;
+
+            this.collectionDf = cursor.df();
+            this.collectionCtf = QryEval.nativeIndex.totalTermFreq(fieldString, termString);
+
+            for (int i = 0; i < candidates.length; i++) {
+                if (deadline != null && (i & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(candidates[i])) {
+                    this.truncated = true;
+                    break;
+                }
+
+                int doc = cursor.advance(candidates[i]);
+                if (doc == NativePostingsCursor.NO_MORE_DOCS)
+                    break;
+
+                if (doc == candidates[i]) {
+                    int tf = cursor.freq();
+                    int[] positions = new int[tf];
+
+                    for (int j = 0; j < tf; j++)
+                        positions[j] = cursor.nextPosition();
+
+                    this.add(new DocPosting(doc, positions));
+                }
+            }
+            return;
+        }
+
+        Terms terms = MultiFields.getTerms(QryEval.reader(), fieldString);
+        if (terms == null)
+            return;
+
+        TermsEnum termsEnum = terms.iterator(null);
+        if (!termsEnum.seekExact(new BytesRef(termString), true))
+            return;
+
+        this.collectionDf = termsEnum.docFreq();
+        this.collectionCtf = termsEnum.totalTermFreq();
+
+        DocsAndPositionsEnum iList =
+                termsEnum.docsAndPositions(MultiFields.getLiveDocs(QryEval.reader()), null);
+
+        int doc = -1;
+        for (int i = 0; i < candidates.length; i++) {
+            if (deadline != null && (i & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(candidates[i])) {
+                this.truncated = true;
+                break;
+            }
+
+            if (doc < candidates[i]) {
+                doc = iList.advance(candidates[i]);
+                if (doc == DocIdSetIterator.NO_MORE_DOCS)
+                    break;
+            }
+
+            if (doc == candidates[i]) {
+                int tf = iList.freq();
+                int[] positions = new int[tf];
+
+                for (int j = 0; j < tf; j++)
+                    positions[j] = iList.nextPosition();
+
+                this.add(new DocPosting(doc, positions));
+            }
+        }
+    }
+
+    /**
+     * Fetch the part of an inverted list that is in one segment of the
+     * index.  The postings are read from the segment's own reader, and
+     * their document ids are offset by the segment's docBase.
+     * Collection statistics are those of the whole index.
+     *
+     * @param termString  The processed (stemmed, lower-cased, etc) term string.
+     * @param fieldString The field that the term occurs in.
+     * @param segment     The segment.
+     * @throws IOException
+     */
+    public InvList(String termString, String fieldString, SegmentEvaluator.Segment segment) throws IOException {
+
+        this.field = new String(fieldString);
+
+        Term term = new Term(fieldString, new BytesRef(termString));
+        long[] stats = segment.termStats(term);
+        this.collectionDf = (int) stats[0];
+        this.collectionCtf = stats[1];
+
+        if (this.collectionDf < 1)
+            return;
+
+        DocsAndPositionsEnum iList = segment.reader.termPositionsEnum(term);
+        if (iList == null)
+            return;
+
+        QueryDeadline deadline = QueryDeadline.current();
+        int docBase = segment.docBase;
+        while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            if (deadline != null && (this.df & QueryDeadline.CHECK_MASK) == 0
+                    && deadline.stop(docBase + iList.docID())) {
+                this.truncated = true;
+                break;
+            }
+
+            int tf = iList.freq();
+            int[] positions = new int[tf];
+
+            for (int j = 0; j < tf; j++)
+                positions[j] = iList.nextPosition();
+
+            this.add(new DocPosting(docBase + iList.docID(), positions));
+        }
+    }
+
+    /**
+     * Return a list that contains only the postings of this list that
+     * match a set of candidate documents.  The postings are shared
+     * with this list.  Collection statistics are those of this list,
+     * and the result is truncated if this list is.
+     *
+     * @param candidates Internal document ids, in ascending order.
+     * @return The restricted list.
+     */
+    public InvList restrict(int[] candidates) {
+        InvList result = new InvList(this.field);
+        result.truncated = this.truncated;
+
+        //  The statistics of a truncated list are only known if they
+        //  were set.
+
+        result.collectionDf = this.truncated ? this.collectionDf : getCollectionDf();
+        result.collectionCtf = this.truncated ? this.collectionCtf : getCollectionCtf();
+
+        int c = 0;
+        for (int i = 0; i < this.df && c < candidates.length; i++) {
+            DocPosting p = this.postings.get(i);
+            while (c < candidates.length && candidates[c] < p.docid)
+                c++;
+            if (c < candidates.length && candidates[c] == p.docid) {
+                result.postings.add(p);
+                result.df++;
+                result.ctf += p.tf;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of documents in the collection that match.
+     */
+    public int getCollectionDf() {
+        return this.collectionDf >= 0 ? this.collectionDf : this.df;
+    }
+
+    /**
+     * @return The number of occurrences in the collection.
+     */
+    public long getCollectionCtf() {
+        return this.collectionCtf >= 0 ? this.collectionCtf : this.ctf;
+    }
+
     /**
      * Append a posting to the posting list.  Posting must be appended
      * in docid order, otherwise this method fails.
@@ -94,8 +337,10 @@ public class InvList {
      * @param n         The posting internal document id.
      * @param positions A list of positions where the term occurs.
      * @result true if the posting was added successfully, otherwise false.
+     * @throws QueryMemory.LimitException If the list takes the query
+     *                                    over its memory limit.
      */
-    public boolean appendPosting(int docid, List<Integer> positions) {
+    public boolean appendPosting(int docid, List<Integer> positions) throws QueryMemory.LimitException {
 
         //  A posting can only be appended if its docid is greater than
         //  the last docid.
@@ -104,12 +349,31 @@ public class InvList {
                 (this.postings.get(this.df - 1).docid >= docid))
             return false;
 
-        DocPosting p = new DocPosting(docid, positions);
+        this.add(new DocPosting(docid, positions));
+        return true;
+    }
 
+    /**
+     * Add a posting to the end of the list, and charge the growth of
+     * the list to the query's memory every QueryMemory.CHARGE_BATCH
+     * postings.
+     *
+     * @param p The posting.
+     * @throws QueryMemory.LimitException If the list takes the query
+     *                                    over its memory limit.
+     */
+    private void add(DocPosting p) throws QueryMemory.LimitException {
         this.postings.add(p);
         this.df++;
         this.ctf += p.tf;
-        return true;
+
+        if (this.df - this.chargedDf >= QueryMemory.CHARGE_BATCH) {
+            long bytes = QueryMemory.POSTING_BYTES * (this.df - this.chargedDf)
+                    + QueryMemory.POSITION_BYTES * (this.ctf - this.chargedCtf);
+            this.chargedDf = this.df;
+            this.chargedCtf = this.ctf;
+            this.chargedBytes += QueryMemory.chargeCurrent(bytes);
+        }
     }
 
     /**
@@ -0,0 +1,100 @@
+/**
+ *  A histogram of latencies in the style of HdrHistogram: values (in
+ *  microseconds) below 128 have a bucket each, and every larger power
+ *  of two is divided into 64 buckets, so a percentile is within 1.6%
+ *  of the true value over the whole range of a long, in a fixed
+ *  array of counts.  Recording is lock-free and safe for concurrent
+ *  use.  Percentiles are the highest value of their bucket, but never
+ *  more than the largest value recorded.
+ */
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros))
+            m = max.get();
+    }
+
+    /**
+     * @return The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param percentile A percentile between 0 and 100.
+     * @return The latency at the percentile, in microseconds, or 0 if
+     * nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return The summary of the histogram as a JSON object, in
+     * milliseconds.
+     */
+    public String toJson() {
+        long n = count.get();
+        return String.format(Locale.ROOT,
+                "{\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p95Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}",
+                n, (n == 0) ? 0.0 : sum.get() / 1000.0 / n, getPercentile(50) / 1000.0,
+                getPercentile(95) / 1000.0, getPercentile(99) / 1000.0, max.get() / 1000.0);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR)
+            return (int) micros;
+
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highest(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
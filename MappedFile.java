@@ -0,0 +1,108 @@
+/**
+ *  A read-only memory mapping of a file of any size.  A single
+ *  mapping is limited to 2 GB, so the file is mapped in overlapping
+ *  windows: window i starts at i * CHUNK_SIZE and is two chunks long
+ *  (less a byte), so any range of up to CHUNK_SIZE bytes lies
+ *  entirely within the window of the chunk that it starts in.  Reads
+ *  never straddle two mappings, and ranges can be sliced as one
+ *  ByteBuffer.  The overlap only costs address space, not memory.
+ *
+ *  The buffers are only read with absolute gets, so a MappedFile is
+ *  safe for concurrent use.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedFile {
+
+    static final int CHUNK_BITS = 30;
+    static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    private final File file;
+    private final long length;
+    private final int chunkBits;
+    private final long chunkMask;
+    private final ByteBuffer[] windows;
+
+    /**
+     * Map a file.
+     *
+     * @param file The file.
+     * @throws IOException
+     */
+    public MappedFile(File file) throws IOException {
+        this(file, CHUNK_BITS);
+    }
+
+    /**
+     * Map a file in smaller chunks, so that tests can cross chunk
+     * boundaries with small files.
+     *
+     * @param file      The file.
+     * @param chunkBits The log2 of the chunk size, at most CHUNK_BITS.
+     * @throws IOException
+     */
+    MappedFile(File file, int chunkBits) throws IOException {
+        this.file = file;
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1L << chunkBits) - 1;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            length = raf.length();
+            long chunkSize = 1L << chunkBits;
+            int n = (int) Math.max(1, (length + chunkSize - 1) >>> chunkBits);
+            windows = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = (long) i << chunkBits;
+                long size = Math.min(length - start, 2 * chunkSize - 1);
+                windows[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, Math.max(size, 0));
+            }
+        } finally {
+            raf.close();    // The mappings stay valid.
+        }
+    }
+
+    /**
+     * @return The length of the file in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    public byte get(long offset) {
+        return windows[(int) (offset >>> chunkBits)].get((int) (offset & chunkMask));
+    }
+
+    public int getInt(long offset) {
+        return windows[(int) (offset >>> chunkBits)].getInt((int) (offset & chunkMask));
+    }
+
+    public long getLong(long offset) {
+        return windows[(int) (offset >>> chunkBits)].getLong((int) (offset & chunkMask));
+    }
+
+    /**
+     * Return a range of the file as a buffer whose offsets are
+     * relative to the start of the range.
+     *
+     * @param offset The start of the range.
+     * @param size   The size of the range, at most one chunk.
+     * @return The range.
+     * @throws IOException If the range is larger than a chunk.
+     */
+    public ByteBuffer slice(long offset, long size) throws IOException {
+        if (size > chunkMask + 1 || offset < 0 || offset + size > length)
+            throw new IOException("Can't map " + size + " bytes at " + offset + " of " + file);
+
+        ByteBuffer window = windows[(int) (offset >>> chunkBits)].duplicate();
+        int start = (int) (offset & chunkMask);
+        window.limit(start + (int) size);
+        window.position(start);
+        return window.slice();
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ *  NativeIndex reads an index that was written by
+ *  {@link NativeIndexWriter}.  All of its files are memory-mapped (see
+ *  {@link MappedFile}, so files can be larger than 2 GB), and nothing
+ *  is copied to the heap when the index is opened, so opening is cheap
+ *  and the operating system's page cache is the only cache.
+ *  Postings are read with {@link NativePostingsCursor}s, which decode
+ *  the mapped blocks directly.
+ *
+ *  The index is immutable, and the mapped buffers are only read with
+ *  absolute gets, so it is safe for concurrent use.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class NativeIndex {
+
+    private final int maxDoc;
+    private final int numDocs;
+    private final Map<String, Integer> fieldOrds = new HashMap<String, Integer>();
+    private final long[] sumTotalTermFreq;
+    private final int[] docCount;
+
+    private final MappedFile termRecords;
+    private final MappedFile termKeys;
+    private final MappedFile postings;
+    private final MappedFile lengths;
+    private final MappedFile docidOffsets;
+    private final MappedFile docids;
+    private final long numTerms;
+
+    /**
+     * Open a native index.
+     *
+     * @param path The directory of the index.
+     * @throws IOException
+     */
+    public NativeIndex(String path) throws IOException {
+        this(path, MappedFile.CHUNK_BITS);
+    }
+
+    /**
+     * Open a native index, mapped in smaller chunks, so that tests can
+     * cross chunk boundaries with small indexes.
+     *
+     * @param path      The directory of the index.
+     * @param chunkBits The log2 of the chunk size of the mappings.
+     * @throws IOException
+     */
+    NativeIndex(String path, int chunkBits) throws IOException {
+        File dir = new File(path);
+
+        Properties meta = new Properties();
+        InputStream in = new FileInputStream(new File(dir, "meta.properties"));
+        try {
+            meta.load(in);
+        } finally {
+            in.close();
+        }
+        if (!Integer.toString(NativeIndexWriter.FORMAT_VERSION).equals(meta.getProperty("version")))
+            throw new IOException(path + " is not a version " + NativeIndexWriter.FORMAT_VERSION
+                    + " native index; export it again");
+
+        maxDoc = Integer.parseInt(meta.getProperty("maxDoc"));
+        numDocs = Integer.parseInt(meta.getProperty("numDocs"));
+        String[] fields = meta.getProperty("fields").isEmpty() ? new String[0] : meta.getProperty("fields").split(",");
+        sumTotalTermFreq = new long[fields.length];
+        docCount = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fieldOrds.put(fields[i], i);
+            sumTotalTermFreq[i] = Long.parseLong(meta.getProperty("field." + fields[i] + ".sumTotalTermFreq"));
+            docCount[i] = Integer.parseInt(meta.getProperty("field." + fields[i] + ".docCount"));
+        }
+
+        termRecords = new MappedFile(new File(dir, "terms.dat"), chunkBits);
+        termKeys = new MappedFile(new File(dir, "terms.keys"), chunkBits);
+        postings = new MappedFile(new File(dir, "postings.dat"), chunkBits);
+        lengths = new MappedFile(new File(dir, "lengths.dat"), chunkBits);
+        docidOffsets = new MappedFile(new File(dir, "docids.dat"), chunkBits);
+        docids = new MappedFile(new File(dir, "docids.keys"), chunkBits);
+        numTerms = termRecords.length() / NativeIndexWriter.TERM_RECORD_SIZE;
+    }
+
+    public int maxDoc() {
+        return maxDoc;
+    }
+
+    public int numDocs() {
+        return numDocs;
+    }
+
+    /**
+     * @param field A field name.
+     * @return The number of term occurrences in the field.
+     */
+    public long getSumTotalTermFreq(String field) {
+        Integer ord = fieldOrds.get(field);
+        return ord == null ? 0 : sumTotalTermFreq[ord];
+    }
+
+    /**
+     * @param field A field name.
+     * @return The number of documents that have the field.
+     */
+    public int getDocCount(String field) {
+        Integer ord = fieldOrds.get(field);
+        return ord == null ? 0 : docCount[ord];
+    }
+
+    /**
+     * @return The df of a term, or 0 if it doesn't occur.
+     */
+    public int docFreq(String field, String term) throws IOException {
+        long record = find(field, term);
+        return record < 0 ? 0 : termRecords.getInt(record + 12);
+    }
+
+    /**
+     * @return The ctf of a term, or 0 if it doesn't occur.
+     */
+    public long totalTermFreq(String field, String term) throws IOException {
+        long record = find(field, term);
+        return record < 0 ? 0 : termRecords.getLong(record + 16);
+    }
+
+    /**
+     * Return a cursor over the postings of a term.
+     *
+     * @param field A field name.
+     * @param term  A processed term.
+     * @return The cursor, or null if the term doesn't occur.
+     * @throws IOException
+     */
+    public NativePostingsCursor postings(String field, String term) throws IOException {
+        long record = find(field, term);
+        if (record < 0)
+            return null;
+
+        //  A term's postings end where the next term's start.
+
+        long start = termRecords.getLong(record + 24);
+        long next = record + NativeIndexWriter.TERM_RECORD_SIZE;
+        long end = next < termRecords.length() ? termRecords.getLong(next + 24) : postings.length();
+        return new NativePostingsCursor(postings.slice(start, end - start), termRecords.getInt(record + 12));
+    }
+
+    /**
+     * @param field A field name.
+     * @param docid An internal document id.
+     * @return The length of the field in the document.
+     */
+    public long getDocLength(String field, int docid) {
+        Integer ord = fieldOrds.get(field);
+        if (ord == null)
+            return 0;
+        return lengths.getInt(4L * ((long) ord * maxDoc + docid));
+    }
+
+    /**
+     * @param docid An internal document id.
+     * @return The external id of the document, or null if it is deleted.
+     */
+    public String getExternalId(int docid) throws IOException {
+        long start = docidOffsets.getLong(8L * docid);
+        long end = docidOffsets.getLong(8L * (docid + 1));
+        if (start == end)
+            return null;
+
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = docids.get(start + i);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Binary search the term dictionary.
+     *
+     * @return The offset of the term's record, or -1.
+     */
+    private long find(String field, String term) throws IOException {
+        byte[] key = (field + "\0" + term).getBytes("UTF-8");
+
+        long low = 0, high = numTerms - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long record = mid * NativeIndexWriter.TERM_RECORD_SIZE;
+            int c = compareKey(termRecords.getLong(record), termRecords.getInt(record + 8), key);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return record;
+        }
+        return -1;
+    }
+
+    /**
+     * Compare a key in terms.keys with a key, as unsigned bytes.
+     */
+    private int compareKey(long offset, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = termKeys.get(offset + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b)
+                return a - b;
+        }
+        return length - key.length;
+    }
+
+    /*
+     *  Return a description of the index.
+     */
+    public String toString() {
+        return "Native index: " + numDocs + " documents, " + numTerms + " terms, "
+                + postings.length() + " bytes of postings";
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ *  NativeIndexWriter exports a Lucene index to the native index format
+ *  that {@link NativeIndex} memory-maps at query time.
+ *
+ *    java NativeIndexWriter luceneIndexPath nativeIndexPath
+ *
+ *  Every field that has positions is exported.  The index directory
+ *  holds these files:
+ *
+ *    meta.properties  The format version, maxDoc, numDocs, and the
+ *                     fields with their sumTotalTermFreq and docCount.
+ *    terms.dat        One 32 byte record per term, sorted by key:
+ *                     keyOffset (long), keyLength (int), df (int),
+ *                     ctf (long), postingsOffset (long).
+ *    terms.keys       The keys: field, a 0 byte, and term, in UTF-8.
+ *    postings.dat     The postings of each term: the number of blocks
+ *                     (int), a skip table with the last docid and the
+ *                     relative offset of each block (int, int), then
+ *                     the blocks.
+ *    lengths.dat      The length of each document in each field (int),
+ *                     field by field, in meta.properties order.
+ *    docids.dat       maxDoc + 1 offsets (long) into docids.keys.
+ *    docids.keys      The external document ids, in UTF-8.
+ *
+ *  A postings block holds up to BLOCK_SIZE documents: the number of
+ *  documents minus 1 and the bit widths of the docid gaps, the
+ *  frequencies minus 1 and the position gaps (one byte each),
+ *  followed by those three bit-packed arrays (see {@link BitPacker}).
+ *  Docid gaps of the first document of a block are relative to the
+ *  last docid of the previous block, and the first position of each
+ *  document is relative to 0.
+ *
+ *  Document ids are the same as in the Lucene index, so the rankings
+ *  of the two backends can be compared directly.  Deleted documents
+ *  have no postings.  Offsets into files are longs, so files can be
+ *  larger than 2 GB, but offsets within the postings of a term are
+ *  ints, and a term's postings are limited to one chunk of a
+ *  {@link MappedFile} (1 GB), so a cursor can read them as one buffer.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+public class NativeIndexWriter {
+
+    static final int BLOCK_SIZE = 128;
+    static final int TERM_RECORD_SIZE = 32;
+    static final int FORMAT_VERSION = 2;
+
+    private final IndexReader reader;
+    private final File dir;
+
+    /**
+     * @param reader The Lucene index.
+     * @param dir    The directory of the native index.
+     */
+    public NativeIndexWriter(IndexReader reader, File dir) {
+        this.reader = reader;
+        this.dir = dir;
+    }
+
+    /**
+     * @param args luceneIndexPath nativeIndexPath
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage:  java NativeIndexWriter luceneIndexPath nativeIndexPath");
+            System.exit(1);
+        }
+
+        long start = System.currentTimeMillis();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+        try {
+            new NativeIndexWriter(reader, new File(args[1])).write();
+        } finally {
+            reader.close();
+        }
+        System.out.println("Exported in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Write the native index.
+     *
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+
+        //  Fields are exported in key order.  The 0 byte that follows
+        //  the field name in a key sorts before any other byte, so all
+        //  of a field's keys sort before those of any longer field name
+        //  that it is a prefix of.
+
+        List<String> fields = new ArrayList<String>();
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            Terms terms = MultiFields.getTerms(reader, field);
+            if (terms != null && terms.hasPositions())
+                fields.add(field);
+        }
+        Collections.sort(fields);
+
+        Properties meta = new Properties();
+        meta.setProperty("version", Integer.toString(FORMAT_VERSION));
+        meta.setProperty("maxDoc", Integer.toString(reader.maxDoc()));
+        meta.setProperty("numDocs", Integer.toString(reader.numDocs()));
+        meta.setProperty("fields", join(fields));
+        for (String field : fields) {
+            meta.setProperty("field." + field + ".sumTotalTermFreq",
+                    Long.toString(reader.getSumTotalTermFreq(field)));
+            meta.setProperty("field." + field + ".docCount", Integer.toString(reader.getDocCount(field)));
+        }
+
+        writeTerms(fields);
+        writeLengths(fields);
+        writeExternalIds();
+
+        OutputStream out = new FileOutputStream(new File(dir, "meta.properties"));
+        try {
+            meta.store(out, "QryEval native index");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeTerms(List<String> fields) throws IOException {
+        DataOutputStream records = open("terms.dat");
+        DataOutputStream keys = open("terms.keys");
+        DataOutputStream postings = open("postings.dat");
+        long keysSize = 0;
+        long postingsSize = 0;
+        long numTerms = 0;
+
+        try {
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            PostingsEncoder encoder = new PostingsEncoder();
+
+            for (String field : fields) {
+                byte[] prefix = (field + "\0").getBytes("UTF-8");
+                TermsEnum termsEnum = MultiFields.getTerms(reader, field).iterator(null);
+                DocsAndPositionsEnum iList = null;
+
+                BytesRef term;
+                while ((term = termsEnum.next()) != null) {
+                    iList = termsEnum.docsAndPositions(liveDocs, iList);
+                    encoder.reset();
+                    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                        encoder.add(iList);
+                    if (encoder.df == 0)
+                        continue;       // Only deleted documents contain the term.
+
+                    int keyLength = prefix.length + term.length;
+                    records.writeLong(keysSize);
+                    records.writeInt(keyLength);
+                    records.writeInt(encoder.df);
+                    records.writeLong(encoder.ctf);
+                    records.writeLong(postingsSize);
+
+                    keys.write(prefix);
+                    keys.write(term.bytes, term.offset, term.length);
+                    keysSize += keyLength;
+
+                    if (encoder.size() > MappedFile.CHUNK_SIZE)
+                        throw new IOException("The postings of " + field + ":" + term.utf8ToString()
+                                + " are larger than " + MappedFile.CHUNK_SIZE + " bytes");
+                    postingsSize += encoder.writeTo(postings);
+                    numTerms++;
+                }
+            }
+        } finally {
+            records.close();
+            keys.close();
+            postings.close();
+        }
+
+        System.out.println("Exported " + numTerms + " terms, " + postingsSize + " bytes of postings.");
+    }
+
+    private void writeLengths(List<String> fields) throws IOException {
+        DocLengthStore lengths = new DocLengthStore(reader);
+        DataOutputStream out = open("lengths.dat");
+        try {
+            for (String field : fields) {
+                for (int docid = 0; docid < reader.maxDoc(); docid++)
+                    out.writeInt((int) lengths.getDocLength(field, docid));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeExternalIds() throws IOException {
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        DataOutputStream offsets = open("docids.dat");
+        DataOutputStream ids = open("docids.keys");
+        long size = 0;
+
+        try {
+            for (int docid = 0; docid < reader.maxDoc(); docid++) {
+                offsets.writeLong(size);
+
+                if (liveDocs != null && !liveDocs.get(docid))
+                    continue;
+                String externalId = reader.document(docid).get("externalId");
+                if (externalId == null)
+                    continue;
+                byte[] bytes = externalId.getBytes("UTF-8");
+                ids.write(bytes);
+                size += bytes.length;
+            }
+            offsets.writeLong(size);
+        } finally {
+            offsets.close();
+            ids.close();
+        }
+    }
+
+    private DataOutputStream open(String name) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name)), 1 << 16));
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(values.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes the postings of one term into blocks.
+     */
+    private static class PostingsEncoder {
+        int df;
+        long ctf;
+
+        private final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        private final List<int[]> skips = new ArrayList<int[]>();
+
+        private final int[] docGaps = new int[BLOCK_SIZE];
+        private final int[] freqs = new int[BLOCK_SIZE];
+        private int[] positionGaps = new int[BLOCK_SIZE];
+        private int numDocs = 0;
+        private int numPositions = 0;
+        private int lastDocid = -1;
+
+        void reset() {
+            df = 0;
+            ctf = 0;
+            blocks.reset();
+            skips.clear();
+            numDocs = 0;
+            numPositions = 0;
+            lastDocid = -1;
+        }
+
+        void add(DocsAndPositionsEnum iList) throws IOException {
+            int docid = iList.docID();
+            int tf = iList.freq();
+
+            docGaps[numDocs] = docid - lastDocid - 1;
+            freqs[numDocs] = tf - 1;
+
+            if (numPositions + tf > positionGaps.length)
+                positionGaps = ArrayUtil.grow(positionGaps, numPositions + tf);
+            int last = 0;
+            for (int j = 0; j < tf; j++) {
+                int p = iList.nextPosition();
+                positionGaps[numPositions++] = p - last;
+                last = p;
+            }
+
+            numDocs++;
+            lastDocid = docid;
+            df++;
+            ctf += tf;
+
+            if (numDocs == BLOCK_SIZE)
+                flushBlock();
+        }
+
+        private void flushBlock() {
+            skips.add(new int[]{lastDocid, blocks.size()});
+
+            int docBits = BitPacker.bitsRequired(docGaps, numDocs);
+            int freqBits = BitPacker.bitsRequired(freqs, numDocs);
+            int positionBits = BitPacker.bitsRequired(positionGaps, numPositions);
+
+            blocks.write(numDocs - 1);
+            blocks.write(docBits);
+            blocks.write(freqBits);
+            blocks.write(positionBits);
+            BitPacker.pack(docGaps, numDocs, docBits, blocks);
+            BitPacker.pack(freqs, numDocs, freqBits, blocks);
+            BitPacker.pack(positionGaps, numPositions, positionBits, blocks);
+
+            numDocs = 0;
+            numPositions = 0;
+        }
+
+        /**
+         * @return The number of bytes that writeTo will write.
+         */
+        long size() {
+            if (numDocs > 0)
+                flushBlock();
+            return 4 + 8L * skips.size() + blocks.size();
+        }
+
+        /**
+         * Write the skip table and the blocks.
+         *
+         * @return The number of bytes written.
+         */
+        long writeTo(DataOutputStream out) throws IOException {
+            if (numDocs > 0)
+                flushBlock();
+
+            int skipSize = 4 + 8 * skips.size();
+            out.writeInt(skips.size());
+            for (int[] skip : skips) {
+                out.writeInt(skip[0]);
+                out.writeInt(skipSize + skip[1]);
+            }
+            blocks.writeTo(out);
+            return skipSize + blocks.size();
+        }
+    }
+}
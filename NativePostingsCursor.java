@@ -0,0 +1,175 @@
+/**
+ *  A cursor over the postings of one term in a {@link NativeIndex}.  It
+ *  works like Lucene's DocsAndPositionsEnum: nextDoc and advance move
+ *  to a document, and then freq and nextPosition describe it.  Blocks
+ *  are decoded from the mapped file one at a time, and advance uses
+ *  the skip table to jump over whole blocks without decoding them.
+ *  Positions are only decoded when they are requested.
+ *
+ *  A cursor is not safe for concurrent use, but any number of cursors
+ *  can read the same index.
+ */
+
+import java.nio.ByteBuffer;
+
+public class NativePostingsCursor {
+
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private final ByteBuffer buf;   // The term's postings
+    private final int numBlocks;
+    private final int df;
+
+    //  The current block.
+
+    private int block = -1;
+    private int blockDocs = 0;
+    private final int[] docids = new int[NativeIndexWriter.BLOCK_SIZE];
+    private final int[] freqs = new int[NativeIndexWriter.BLOCK_SIZE];
+    private int positionsOffset;    // Offset of the block's packed positions
+    private int positionBits;
+    private int[] positions = null; // Decoded on demand
+    private int[] positionStarts = new int[NativeIndexWriter.BLOCK_SIZE];
+
+    //  The current document.
+
+    private int doc = -1;
+    private int index = -1;
+    private int nextPosition;
+    private int lastPosition;
+
+    /**
+     * @param buf The term's postings, sliced from the mapped postings
+     *            file, so offsets are relative to their start.
+     * @param df  The number of documents in the postings.
+     */
+    NativePostingsCursor(ByteBuffer buf, int df) {
+        this.buf = buf;
+        this.numBlocks = buf.getInt(0);
+        this.df = df;
+    }
+
+    /**
+     * @return The number of documents in the postings.
+     */
+    public int df() {
+        return df;
+    }
+
+    /**
+     * @return The current document, -1 before the first call to
+     * nextDoc or advance, or NO_MORE_DOCS at the end.
+     */
+    public int docID() {
+        return doc;
+    }
+
+    /**
+     * Move to the next document.
+     *
+     * @return The document, or NO_MORE_DOCS.
+     */
+    public int nextDoc() {
+        if (doc == NO_MORE_DOCS)
+            return doc;
+
+        if (++index >= blockDocs) {
+            if (block + 1 >= numBlocks)
+                return doc = NO_MORE_DOCS;
+            loadBlock(block + 1);
+            index = 0;
+        }
+        return startDoc();
+    }
+
+    /**
+     * Move to the first document that is at least target.
+     *
+     * @param target An internal document id.
+     * @return The document, or NO_MORE_DOCS.
+     */
+    public int advance(int target) {
+        if (doc == NO_MORE_DOCS || (doc >= target && doc >= 0))
+            return doc;
+
+        //  Find the first block whose last document is at least target.
+
+        if (block < 0 || lastDocid(block) < target) {
+            int low = Math.max(block + 1, 0), high = numBlocks - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (lastDocid(mid) < target)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            if (low >= numBlocks || lastDocid(low) < target)
+                return doc = NO_MORE_DOCS;
+            loadBlock(low);
+            index = 0;
+        }
+
+        while (docids[index] < target)
+            index++;
+        return startDoc();
+    }
+
+    /**
+     * @return The frequency of the term in the current document.
+     */
+    public int freq() {
+        return freqs[index];
+    }
+
+    /**
+     * @return The next position of the term in the current document.
+     */
+    public int nextPosition() {
+        if (positions == null)
+            decodePositions();
+        lastPosition += positions[nextPosition++];
+        return lastPosition;
+    }
+
+    private int startDoc() {
+        nextPosition = positionStarts[index];
+        lastPosition = 0;
+        return doc = docids[index];
+    }
+
+    private int lastDocid(int b) {
+        return buf.getInt(4 + 8 * b);
+    }
+
+    private void loadBlock(int b) {
+        int offset = buf.getInt(8 + 8 * b);
+        int base = (b == 0) ? -1 : lastDocid(b - 1);
+
+        blockDocs = (buf.get(offset) & 0xFF) + 1;
+        int docBits = buf.get(offset + 1);
+        int freqBits = buf.get(offset + 2);
+        positionBits = buf.get(offset + 3);
+        offset += 4;
+
+        offset = BitPacker.unpack(buf, offset, blockDocs, docBits, docids);
+        positionsOffset = BitPacker.unpack(buf, offset, blockDocs, freqBits, freqs);
+
+        int numPositions = 0;
+        for (int i = 0; i < blockDocs; i++) {
+            base += docids[i] + 1;
+            docids[i] = base;
+            freqs[i]++;
+            positionStarts[i] = numPositions;
+            numPositions += freqs[i];
+        }
+
+        block = b;
+        positions = null;
+    }
+
+    private void decodePositions() {
+        int numPositions = positionStarts[blockDocs - 1] + freqs[blockDocs - 1];
+        positions = new int[numPositions];
+        BitPacker.unpack(buf, positionsOffset, numPositions, positionBits, positions);
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ *  ParallelArgEvaluator evaluates the arguments of a query operator as
+ *  fork/join tasks, so that a single query with several expensive
+ *  subtrees (e.g., #AND of #NEAR, #WINDOW and #SYN operators) can use
+ *  more than one core.  Arguments whose estimated cost (see
+ *  {@link Qryop#estimatedCost}) is below the threshold are evaluated
+ *  inline by the calling thread, because forking a task costs more
+ *  than fetching a short inverted list.
+ *
+ *  Every argument is still evaluated exactly once and the results are
+ *  returned in argument order, so the result of the query does not
+ *  depend on how the tasks are scheduled.
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelArgEvaluator {
+
+    private final ForkJoinPool pool;
+    private final long threshold;
+
+    /**
+     * @param threads   The parallelism of the fork/join pool.
+     * @param threshold The minimum estimated cost of an argument that is
+     *                  evaluated as a separate task.
+     */
+    public ParallelArgEvaluator(int threads, long threshold) {
+        this.pool = new ForkJoinPool(Math.max(threads, 1));
+        this.threshold = threshold;
+    }
+
+    /**
+     * Evaluate a list of query arguments.
+     *
+     * @param args The arguments.
+     * @param r    A retrieval model that controls how the operators behave.
+     * @return The result of each argument, in argument order.
+     * @throws IOException
+     */
+    public QryResult[] evaluate(List<Qryop> args, RetrievalModel r) throws IOException {
+        QryResult[] results = new QryResult[args.size()];
+
+        //  Parallelism only helps if at least two arguments are expensive.
+
+        boolean[] fork = new boolean[args.size()];
+        int expensive = 0;
+        for (int i = 0; i < args.size(); i++) {
+            fork[i] = args.get(i).estimatedCost() >= threshold;
+            if (fork[i])
+                expensive++;
+        }
+
+        if (expensive < 2) {
+            for (int i = 0; i < args.size(); i++)
+                results[i] = QryProfiler.evaluate(args.get(i), r);
+            return results;
+        }
+
+        ArgsTask task = new ArgsTask(args, fork, r, results, QryEval.pinned());
+        if (ForkJoinTask.inForkJoinPool())
+            task.invoke();
+        else
+            pool.invoke(task);
+
+        if (task.error != null)
+            throw task.error;
+        return results;
+    }
+
+    /*
+     *  Return a description of the configuration.
+     */
+    public String toString() {
+        return "Parallel argument evaluation: " + pool.getParallelism() + " threads, cost threshold " + threshold;
+    }
+
+    /**
+     * Forks the expensive arguments, evaluates the cheap ones inline,
+     * then joins the forked ones.
+     */
+    private static class ArgsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Qryop> args;
+        private final boolean[] fork;
+        private final RetrievalModel r;
+        private final QryResult[] results;
+        private final IndexSnapshot snapshot;
+        private final QueryContext context = QueryContext.current();
+        IOException error;
+
+        ArgsTask(List<Qryop> args, boolean[] fork, RetrievalModel r, QryResult[] results, IndexSnapshot snapshot) {
+            this.args = args;
+            this.fork = fork;
+            this.r = r;
+            this.results = results;
+            this.snapshot = snapshot;
+        }
+
+        protected void compute() {
+            IndexSnapshot previous = QryEval.pin(snapshot);
+            QueryContext previousContext = QueryContext.enter(context);
+            try {
+                evaluateArgs();
+            } finally {
+                QueryContext.enter(previousContext);
+                QryEval.pin(previous);
+            }
+        }
+
+        private void evaluateArgs() {
+            ArgTask[] forked = new ArgTask[args.size()];
+            for (int i = 0; i < args.size(); i++) {
+                if (fork[i]) {
+                    forked[i] = new ArgTask(args.get(i), r);
+                    forked[i].fork();
+                }
+            }
+
+            try {
+                for (int i = 0; i < args.size(); i++) {
+                    if (forked[i] == null)
+                        results[i] = QryProfiler.evaluate(args.get(i), r);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            for (int i = 0; i < args.size(); i++) {
+                if (forked[i] != null) {
+                    forked[i].join();
+                    if (forked[i].error != null && error == null)
+                        error = forked[i].error;
+                    results[i] = forked[i].result;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates one argument.  Its own arguments may fork again.
+     */
+    private static class ArgTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Qryop arg;
+        private final RetrievalModel r;
+        private final IndexSnapshot snapshot = QryEval.pinned();
+        private final QueryContext context = QueryContext.current();
+        QryResult result;
+        IOException error;
+
+        ArgTask(Qryop arg, RetrievalModel r) {
+            this.arg = arg;
+            this.r = r;
+        }
+
+        protected void compute() {
+            IndexSnapshot previous = QryEval.pin(snapshot);
+            QueryContext previousContext = QueryContext.enter(context);
+            try {
+                result = QryProfiler.evaluate(arg, r);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                QueryContext.enter(previousContext);
+                QryEval.pin(previous);
+            }
+        }
+    }
+}
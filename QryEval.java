@@ -15,13 +15,19 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 
@@ -30,6 +36,7 @@ public class QryEval {
     private static class QueryRes{
         String id;
         QryResult result;
+        Qryop tree;     // The evaluated query, if it is needed later
 
         QueryRes(String id, QryResult res) {
             this.id = id;
@@ -37,23 +44,24 @@ public class QryEval {
         }
     }
 
-    private static class Stem{
-        String stem;
-        double score;
-        double ptc;
-        HashSet<Integer> docs;
-
-        Stem(String stem, double score, double ptc) {
-            this.stem = stem;
-            this.score = score;
-            this.ptc = ptc;
-            this.docs = new HashSet<Integer>();
-        }
-
-    }
-
-    public static IndexReader READER;
-    public static DocLengthStore dls;
+    public static volatile IndexReader READER;
+    public static volatile DocLengthStore dls;
+    public static TermVectorCache termVectors;
+    public static Cascade cascade;
+    public static ParallelArgEvaluator argEvaluator;
+    public static SegmentEvaluator segments;
+    public static NativeIndex nativeIndex;
+    public static ImpactEvaluator impacts;
+    public static ShardBroker broker;
+    public static CollectionStats globalStats;
+    public static IndexReopener reopener;
+
+    //  The index snapshot that the current thread's query uses, if the
+    //  index can be reopened (see IndexReopener).  READER and dls are
+    //  those of the current snapshot.
+
+    private static final ThreadLocal<IndexSnapshot> PINNED = new ThreadLocal<IndexSnapshot>();
+    public static StemDictionary stemDictionary = new StemDictionary();
 
     //  The index file reader is accessible via a global variable. This
     //  isn't great programming style, but the alternative is for every
@@ -85,24 +93,35 @@ public class QryEval {
         }
 
         // read in the parameter file; one parameter per line in format of key=value
-        Map<String, String> params = new HashMap<String, String>();
-        Scanner scan = new Scanner(new File(args[0]));
-        String line = null;
-        do {
-            line = scan.nextLine();
-            String[] pair = line.split("=");
-            params.put(pair[0].trim(), pair[1].trim());
-        } while (scan.hasNext());
-        scan.close();
+        Map<String, String> params = readParameters(args[0]);
+
+        //  In broker mode, this process has no index.  Shard workers
+        //  (worker=true) own the shards and evaluate the queries.
+
+        if ("true".equals(params.get("broker"))) {
+            runBroker(params);
+            return;
+        }
 
         // parameters required for this example to run
-        if (!params.containsKey("indexPath")) {
+        if (!params.containsKey("indexPath") && !params.containsKey("indexPaths")) {
             System.err.println("Error: Parameters were missing.");
             System.exit(1);
         }
 
-        // open the index
-        READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+        // open the index.  A document-partitioned index is given as a
+        // comma-separated list of shards, which are read as one index,
+        // so df, ctf and document lengths are those of the whole
+        // collection.
+        if (params.containsKey("indexPaths")) {
+            String[] paths = params.get("indexPaths").split(",");
+            IndexReader[] shards = new IndexReader[paths.length];
+            for (int i = 0; i < paths.length; i++)
+                shards[i] = DirectoryReader.open(FSDirectory.open(new File(paths[i].trim())));
+            READER = new MultiReader(shards);
+        } else {
+            READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+        }
 
         if (READER == null) {
             System.err.println(usage);
@@ -110,213 +129,466 @@ public class QryEval {
         }
 
         RetrievalModel model = null;
+        try {
+            model = createModel(params.get("retrievalAlgorithm"), params);
+        } catch (IllegalArgumentException e) {
+            fatalError(e.getMessage());
+        }
+        if (model == null && !"true".equals(params.get("worker"))) {
+            System.err.println(usage);
+            System.exit(1);
+        }
 
-        String modelName = params.get("retrievalAlgorithm");
-        if (modelName.equals("UnrankedBoolean")) {
-            model = new RetrievalModelUnrankedBoolean();
-        } else if (modelName.equals("RankedBoolean")){
-            model = new RetrievalModelRankedBoolean();
-        } else if (modelName.equals("BM25")) {
-            model = new RetrievalModelBM25();
-            if (!(model.setParameter("k_1", params.get("BM25:k_1")) && model.setParameter("b", params.get("BM25:b"))
-                    && model.setParameter("k_3", params.get("BM25:k_3")))) {
-                System.err.println("BM25 missing necessary params");
-                System.exit(1);
-            }
-        } else if (modelName.equals("Indri")) {
-            model = new RetrievalModelIndri();
-            if (!(model.setParameter("mu", params.get("Indri:mu")) && model.setParameter("lambda", params.get("Indri:lambda")))) {
-                System.err.println("BM25 missing necessary params");
-                System.exit(1);
+        //  Postings and document lengths can be read from a native
+        //  index (see NativeIndexWriter) instead of the Lucene index.
+        //  Feedback still reads term vectors from the Lucene index.
+
+        if ("native".equals(params.get("indexBackend"))) {
+            if (!params.containsKey("nativeIndexPath")) {
+                fatalError("Error: indexBackend=native requires nativeIndexPath");
             }
+            nativeIndex = new NativeIndex(params.get("nativeIndexPath"));
+            dls = new DocLengthStore(nativeIndex);
+            System.out.println(nativeIndex);
         } else {
-            System.err.println(usage);
-            System.exit(1);
+            dls = new DocLengthStore(READER);
         }
 
-        dls = new DocLengthStore(READER);
+        //  In worker mode, the index is served as one shard of a
+        //  collection to a broker in another process.  The broker sends
+        //  the model and the collection statistics.
 
-        long startTime = System.currentTimeMillis();
+        if ("true".equals(params.get("worker"))) {
+            if (nativeIndex != null) {
+                fatalError("Error: worker mode requires the Lucene index backend");
+            }
+            int port = params.containsKey("workerPort") ? Integer.valueOf(params.get("workerPort")) : 8090;
+            new ShardWorker().start(port);
+            return;
+        }
+
+        //  The index can be reopened while QryEval runs, to pick up
+        //  documents that another process commits.
 
-        BufferedWriter writer = null;
+        if ("true".equals(params.get("reopen"))) {
+            if (!(READER instanceof DirectoryReader) || nativeIndex != null || params.containsKey("impactIndexPath")) {
+                fatalError("Error: reopen requires a single Lucene indexPath and no impact index");
+            }
+            reopener = new IndexReopener((DirectoryReader) READER);
+            long interval = params.containsKey("reopen:interval") ? Long.valueOf(params.get("reopen:interval")) : 0;
+            if (interval > 0) {
+                reopener.start(interval);
+            }
+        }
+
+        //  In cascade mode, a fast first stage model generates the
+        //  candidates that the main model reranks.
+
+        if ("true".equals(params.get("cascade"))) {
+            String firstStageName = params.containsKey("cascade:firstStageModel") ?
+                    params.get("cascade:firstStageModel") : "BM25";
+            RetrievalModel firstStageModel = null;
+            try {
+                firstStageModel = createModel(firstStageName, params);
+            } catch (IllegalArgumentException e) {
+                fatalError(e.getMessage());
+            }
+            if (firstStageModel == null) {
+                fatalError("Error: Unknown cascade:firstStageModel " + firstStageName);
+            }
+            int depth = params.containsKey("cascade:depth") ? Integer.valueOf(params.get("cascade:depth")) : 1000;
+            cascade = new Cascade(firstStageModel, depth, "true".equals(params.get("cascade:diagnostics")));
+        }
+
+        //  Optionally, the expensive arguments of a query operator are
+        //  evaluated in parallel.
+
+        if ("true".equals(params.get("parallelArgs"))) {
+            int argThreads = params.containsKey("parallelArgs:threads") ?
+                    Integer.valueOf(params.get("parallelArgs:threads")) : Runtime.getRuntime().availableProcessors();
+            long threshold = params.containsKey("parallelArgs:threshold") ?
+                    Long.valueOf(params.get("parallelArgs:threshold")) : 10000;
+            argEvaluator = new ParallelArgEvaluator(argThreads, threshold);
+            System.out.println(argEvaluator);
+        }
+
+        //  Optionally, the evaluation of each operator is profiled, and
+        //  the memory of each query is limited.
 
         try {
-            writer = new BufferedWriter(new FileWriter(new File(params.get("trecEvalOutputPath"))));
-        } catch (Exception e) {
-            e.printStackTrace();
+            QryProfiler.configure(params);
+            QueryMemory.configure(params);
+            QueryDeadline.configure(params);
+            QryPlanner.configure(params);
+            DerivedStats.configure(params);
+        } catch (IllegalArgumentException e) {
+            fatalError("Error: " + e.getMessage());
         }
 
-        ArrayList<QueryRes> results = new ArrayList<QueryRes>();
-        String queryFilePath = params.get("queryFilePath");
+        //  BM25 #SUM queries can be evaluated score-at-a-time over an
+        //  impact-ordered index (see ImpactIndexWriter).
+
+        if (params.containsKey("impactIndexPath")) {
+            long budget = params.containsKey("impact:budget") ? Long.valueOf(params.get("impact:budget")) : 0;
+            int depth = params.containsKey("impact:depth") ? Integer.valueOf(params.get("impact:depth")) : 1000;
+            impacts = new ImpactEvaluator(params.get("impactIndexPath"), budget, depth,
+                    "true".equals(params.get("impact:diagnostics")));
+            if (model != null && !impacts.matches(model)) {
+                System.err.println("Warning: the impact index was built for BM25 with other parameters "
+                        + "than the retrieval model's; it will not be used.");
+            }
+        }
 
-        ArrayList<String> originQueries = getOriginQueries(queryFilePath);
+        //  Optionally, each segment of the index is evaluated
+        //  separately, in parallel.  The shards of a sharded index are
+        //  evaluated in parallel unless shardParallel=false.
+
+        if ("true".equals(params.get("segmentParallel"))) {
+            if (nativeIndex != null) {
+                fatalError("Error: segmentParallel requires the Lucene index backend");
+            }
+            int segmentThreads = params.containsKey("segmentParallel:threads") ?
+                    Integer.valueOf(params.get("segmentParallel:threads")) : Runtime.getRuntime().availableProcessors();
+            int depth = params.containsKey("segmentParallel:depth") ?
+                    Integer.valueOf(params.get("segmentParallel:depth")) : 1000;
+            segments = new SegmentEvaluator(segmentThreads, depth, false);
+            System.out.println(segments);
+        } else if (params.containsKey("indexPaths") && !"false".equals(params.get("shardParallel"))
+                && nativeIndex == null) {
+            int shardThreads = params.containsKey("shardParallel:threads") ?
+                    Integer.valueOf(params.get("shardParallel:threads")) : Runtime.getRuntime().availableProcessors();
+            int depth = params.containsKey("shardParallel:depth") ?
+                    Integer.valueOf(params.get("shardParallel:depth")) : 1000;
+            segments = new SegmentEvaluator(shardThreads, depth, true);
+            System.out.println(segments);
+        }
+
+        //  In server mode, the index stays open and queries arrive over
+        //  HTTP until the process is stopped.
+
+        if ("true".equals(params.get("server"))) {
+            int port = params.containsKey("serverPort") ? Integer.valueOf(params.get("serverPort")) : 8080;
+            new QryEvalServer(params, model).start(port);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        QryMetrics.start();
+
+        String queryFilePath = params.get("queryFilePath");
 
         if (!params.containsKey("fb") || !params.get("fb").equals("true")) {
-            // Old way to retrieve documents
-            getResultsFromQuery(queryFilePath, results, model);
+            // Stream the queries through the evaluation pipeline
+            int threads = params.containsKey("threads") ? Integer.valueOf(params.get("threads"))
+                    : Runtime.getRuntime().availableProcessors();
+            int queueSize = params.containsKey("pipelineQueueSize") ?
+                    Integer.valueOf(params.get("pipelineQueueSize")) : 4 * threads;
+            new BatchRunner(model, threads, queueSize).run(queryFilePath, params.get("trecEvalOutputPath"));
         } else {
-            if (params.containsKey("fbInitialRankingFile")) {
-                // Load result from result file
-                getResultFromFile(params.get("fbInitialRankingFile"), results);
-            } else {
-                getResultsFromQuery(queryFilePath, results, model);
-            }
+            //  Feedback reads the documents of the initial rankings again,
+            //  so the whole run uses one snapshot of the index.
+
+            IndexSnapshot snapshot = acquireSnapshot();
+            pin(snapshot);
+            try {
+                BufferedWriter writer = null;
+
+                try {
+                    writer = new BufferedWriter(new FileWriter(new File(params.get("trecEvalOutputPath"))));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                ArrayList<QueryRes> results = new ArrayList<QueryRes>();
+                ArrayList<String> originQueries = getOriginQueries(queryFilePath);
+
+                if (params.containsKey("fbInitialRankingFile")) {
+                    // Load result from result file
+                    getResultFromFile(params.get("fbInitialRankingFile"), results);
+                } else {
+                    long keepLists = (long) ((params.containsKey("fbKeepListsMB") ?
+                            Double.parseDouble(params.get("fbKeepListsMB")) : 256) * (1 << 20));
+                    getResultsFromQuery(queryFilePath, results, model, true, keepLists);
+                }
 
-            // Query expansion begin
+                // Query expansion begin
 
-            results = queryExpansion(params, results, model, originQueries);
+                int cacheSize = params.containsKey("fbVectorCacheSize") ?
+                        Integer.valueOf(params.get("fbVectorCacheSize")) : 10000;
+                termVectors = new TermVectorCache(cacheSize,
+                        "true".equals(params.get("fbVectorCachePositions")));
 
-        }
+                results = queryExpansion(params, results, model, originQueries);
+                System.out.println(termVectors);
 
+                for (QueryRes res : results) {
+                    writeResults(writer, res.id, res.result);
+                }
 
-        for (QueryRes res : results) {
-            writeResults(writer, res.id, res.result);
+                try {
+                    writer.close();
+                } catch (NullPointerException e) {
+                    e.printStackTrace();
+                }
+            } finally {
+                pin(null);
+                releaseSnapshot(snapshot);
+            }
         }
 
-        try {
-            writer.close();
-        } catch (NullPointerException e) {
-            e.printStackTrace();
+        if (cascade != null) {
+            System.out.println(cascade);
+        }
+        if (impacts != null) {
+            System.out.println(impacts);
         }
+        if (reopener != null) {
+            System.out.println(reopener);
+        }
+
+        QryProfiler.close();
 
         long endTime = System.currentTimeMillis();
 
         System.out.println("Running time: " + (endTime - startTime) + " ms.");
         printMemoryUsage(false);
+        QryMetrics.report(params);
 
     }
 
+    /**
+     * Run the queries of the parameter file through the shard workers
+     * on the loopback ports of broker:workers, or serve them over HTTP
+     * in server mode.
+     *
+     * @param params The parameters.
+     * @throws IOException
+     */
+    static void runBroker(Map<String, String> params) throws IOException {
+        RetrievalModel model = null;
+        try {
+            model = createModel(params.get("retrievalAlgorithm"), params);
+        } catch (IllegalArgumentException e) {
+            fatalError(e.getMessage());
+        }
+        if (model == null) {
+            System.err.println(usage);
+            System.exit(1);
+        }
+        if (!params.containsKey("broker:workers")) {
+            fatalError("Error: broker mode requires broker:workers");
+        }
+        if ("true".equals(params.get("fb"))) {
+            fatalError("Error: broker mode doesn't support feedback");
+        }
+
+        List<Integer> ports = new ArrayList<Integer>();
+        for (String port : params.get("broker:workers").split(","))
+            ports.add(Integer.valueOf(port.trim()));
+        int depth = params.containsKey("broker:depth") ? Integer.valueOf(params.get("broker:depth")) : 1000;
+        long timeout = params.containsKey("broker:timeout") ? Long.valueOf(params.get("broker:timeout")) : 10000;
+
+        broker = new ShardBroker(ports, depth, timeout);
+        try {
+            broker.start();
+        } catch (IOException e) {
+            fatalError("Error: " + e.getMessage());
+        }
+
+        if ("true".equals(params.get("server"))) {
+            int port = params.containsKey("serverPort") ? Integer.valueOf(params.get("serverPort")) : 8080;
+            new QryEvalServer(params, model).start(port);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        QryMetrics.start();
+        int threads = params.containsKey("threads") ? Integer.valueOf(params.get("threads"))
+                : Runtime.getRuntime().availableProcessors();
+        int queueSize = params.containsKey("pipelineQueueSize") ?
+                Integer.valueOf(params.get("pipelineQueueSize")) : 4 * threads;
+        new BatchRunner(model, threads, queueSize).run(params.get("queryFilePath"), params.get("trecEvalOutputPath"));
+
+        System.out.println(broker);
+        System.out.println("Running time: " + (System.currentTimeMillis() - startTime) + " ms.");
+        printMemoryUsage(false);
+        QryMetrics.report(params);
+    }
+
+    /**
+     * Read a parameter file; one parameter per line in format of key=value.
+     *
+     * @param path The path to the parameter file.
+     * @return The parameters.
+     * @throws IOException
+     */
+    static Map<String, String> readParameters(String path) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        Scanner scan = new Scanner(new File(path));
+        String line = null;
+        do {
+            line = scan.nextLine();
+            String[] pair = line.split("=");
+            params.put(pair[0].trim(), pair[1].trim());
+        } while (scan.hasNext());
+        scan.close();
+        return params;
+    }
+
+    /**
+     * Expand every query with pseudo-relevance feedback terms and
+     * rerun it.  The expansion terms of upcoming queries are computed
+     * by a pool of fbThreads workers (see {@link QueryExpansion}) while
+     * this thread evaluates the expanded queries in order, so term
+     * vector fetching overlaps with retrieval and the expansion query
+     * file is written in query order.  If fbRerankDepth is set, the
+     * expanded query only reranks the top fbRerankDepth documents of
+     * the initial ranking (see {@link Qryop#restrictTo}).  The
+     * original query trees reuse the inverted lists that they kept
+     * (up to fbKeepListsMB in all), which are released once the
+     * expanded query is evaluated.
+     */
     static ArrayList<QueryRes> queryExpansion(Map<String, String> params, ArrayList<QueryRes> results, RetrievalModel model, ArrayList<String> originQuerys)  throws IOException{
         int topDocs = params.containsKey("fbDocs") ? Integer.valueOf(params.get("fbDocs")) : -1;
         int topTerms = params.containsKey("fbTerms") ? Integer.valueOf(params.get("fbTerms")) : -1;
         double mu = params.containsKey("fbMu") ? Double.valueOf(params.get("fbMu")) : -1;
         double ow = params.containsKey("fbOrigWeight") ? Double.valueOf(params.get("fbOrigWeight")) : -1;
         String expandOutPath = params.containsKey("fbExpansionQueryFile") ? params.get("fbExpansionQueryFile") : "";
+        int threads = params.containsKey("fbThreads") ? Integer.valueOf(params.get("fbThreads"))
+                : Runtime.getRuntime().availableProcessors();
+        int rerankDepth = params.containsKey("fbRerankDepth") ? Integer.valueOf(params.get("fbRerankDepth")) : 0;
 
-
-        HashMap<String, Stem> stemMap = new HashMap<String, Stem>();
-        long totalC = QryEval.READER.getSumTotalTermFreq("body");
+        long totalC = getSumTotalTermFreq("body");
         BufferedWriter expandWriter = new BufferedWriter(new FileWriter(new File(expandOutPath)));
-        HashMap<Integer, Integer> docLenMap = new HashMap<Integer, Integer>();
-
-        ArrayList<QueryRes> res = new ArrayList<QueryRes>();
-        for(int i = 0; i < results.size(); i++) {
-
-            QueryRes curr = results.get(i);
-            HashSet<Integer> totalDocs = new HashSet<Integer>();
-
-            for (int j = 0; j < topDocs && j < curr.result.docScores.size(); j++) {
 
+        //  Keep a bounded window of feedback jobs ahead of the query
+        //  that is being evaluated.
 
-                double indriScore = curr.result.docScores.getDocidScore(j);
-                int currDoc = curr.result.docScores.getDocid(j);
-                TermVector vector = new TermVector(currDoc, "body");
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        LinkedList<Future<QueryExpansion>> pending = new LinkedList<Future<QueryExpansion>>();
+        int window = Math.max(threads, 1) * 2;
+        int submitted = 0;
 
-                // Use a set to avoid calculating duplicate stem in one document
-                HashSet<Integer> currDocVisited = new HashSet<Integer>();
-                int docLen = vector.positionsLength();
-                docLenMap.put(j, docLen);
-                totalDocs.add(j);
+        ArrayList<QueryRes> res = new ArrayList<QueryRes>();
+        try {
+            for (int i = 0; i < results.size(); i++) {
 
-                for (int k = 0; k < docLen; k++) {
-                    int currStem = vector.stemAt(k);
-                    if (currStem == 0) {
-                        continue;
-                    }
-                    String stemString = vector.stemString(currStem);
-                    if (currDocVisited.contains(currStem) || stemString.contains(".") || stemString.contains(",")) {
-                        continue;
-                    }
+                while (submitted < results.size() && submitted < i + window) {
+                    QueryRes curr = results.get(submitted++);
+                    pending.add(pool.submit(new QueryExpansion(curr.id, curr.result.docScores,
+                            topDocs, topTerms, mu, totalC)));
+                }
 
-                    currDocVisited.add(currStem);
-                    int tf = vector.stemFreq(currStem);
-                    double ptc = (double) vector.totalStemFreq(currStem) / totalC;
-                    double idf = Math.log(1.0/ptc);
-                    double ptd = (tf + mu * ptc) / (docLen + mu);
-                    double currScore = indriScore * ptd * idf;
+                QueryExpansion expansion;
+                try {
+                    expansion = pending.removeFirst().get();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
 
-                    if (stemMap.containsKey(stemString)) {
-                        stemMap.get(stemString).score += currScore;
-                        stemMap.get(stemString).docs.add(j);
-                    } else {
-                        Stem tempStem = new Stem(stemString, currScore, ptc);
-                        tempStem.docs.add(j);
-                        stemMap.put(stemString, tempStem);
-                    }
+                //  Reuse the evaluated original query if there is one.
 
+                Qryop original = results.get(i).tree;
+                if (original == null) {
+                    original = parseQuery(originQuerys.get(i), model);
                 }
-            }
 
-            if (mu != 0) {
-                for (String k : stemMap.keySet()) {
-                    Stem currStem = stemMap.get(k);
+                Qryop qtree = expansion.expandedQuery(original, ow);
 
-                    // Get diff set
-                    HashSet<Integer> copy = new HashSet<Integer>(totalDocs);
-                    copy.removeAll(currStem.docs);
+                //  Optionally, only rerank the top documents of the
+                //  initial ranking instead of searching the collection.
 
-
-                    double currPtc = currStem.ptc;
-                    double idf = Math.log(1.0 / currPtc);
-                    for (int id : copy) {
-                        double indriScore = curr.result.docScores.getDocidScore(id);
-                        int len = docLenMap.get(id);
-                        double ptd = (mu * currPtc) / (len + mu);
-                        double defaultScore = indriScore * ptd * idf;
-                        currStem.score += defaultScore;
-                    }
+                if (rerankDepth > 0) {
+                    qtree.restrictTo(results.get(i).result.docScores.topDocids(rerankDepth));
                 }
-            }
 
-            // Find out top terms using a heap
-            PriorityQueue<Stem> pq = new PriorityQueue<Stem>(topTerms, new Comparator<Stem>() {
-                @Override
-                public int compare(Stem t1, Stem t2) {
-                    if (t1.score > t2.score) {
-                        return 1;
-                    } else if (t1.score == t2.score) {
-                        return 0;
-                    } else {
-                        return -1;
+                long start = System.nanoTime();
+                QueryContext context = new QueryContext(expansion.getQueryId());
+                QueryContext previousContext = QueryContext.enter(context);
+                QryResult result;
+                try {
+                    result = QueryDeadline.finish(QryProfiler.evaluate(qtree, model));
+                } catch (QueryMemory.LimitException e) {
+                    try {
+                        result = degrade(expansion.getQueryId(), qtree, model, e);
+                    } catch (QueryMemory.LimitException failed) {
+                        System.err.println("Error: Query " + expansion.getQueryId() + " failed: "
+                                + failed.getMessage());
+                        result = new QryResult();
                     }
+                } catch (QueryDeadline.ExpiredException e) {
+                    System.err.println("Error: Query " + expansion.getQueryId() + " failed: " + e.getMessage());
+                    result = new QryResult();
+                } finally {
+                    QueryContext.enter(previousContext);
+                    context.close();
                 }
-            });
-
-            for (String k : stemMap.keySet()) {
-                Stem sc = stemMap.get(k);
-                if (pq.size() < topTerms || pq.peek().score < sc.score) {
-                    pq.offer(stemMap.get(k));
-                    if (pq.size() > topTerms) {
-                        pq.poll();
-                    }
+                result.docScores.prioritySort();
+                QryMetrics.recordQuery(model, qtree, System.nanoTime() - start, context.memory.getPeak());
+                res.add(new QueryRes(expansion.getQueryId(), result));
+                if (QryProfiler.enabled) {
+                    QryProfiler.report(expansion.getQueryId(), qtree);
                 }
 
-            }
+                if (expansion.isExpanded()) {
+                    String line = expansion.getQueryId() + ": " + expansion.toQueryString();
+                    System.out.println(line);
+                    expandWriter.write(line + "\n");
+                } else {
+                    System.err.println("Warning: Query " + expansion.getQueryId()
+                            + " has no expansion terms; it is evaluated as is");
+                }
+
+                //  The initial ranking and the lists that the original
+                //  tree kept are no longer needed.
 
-            StringBuilder sb = new StringBuilder();
-            sb.append(curr.id + ": #wand(");
-            for (Stem s : pq) {
-                //System.out.println(s.stem + ": " + s.score);
-                sb.append(s.score + " " + s.stem + " ");
+                qtree.releaseLists();
+                results.set(i, null);
             }
+        } finally {
+            pool.shutdownNow();
+            expandWriter.close();
+        }
 
-            sb.append(")");
+        return res;
+    }
 
-            String query = sb.toString().split(":")[1];
-            String finalQuery = "#wand(" + String.valueOf(ow) + " #and(" + originQuerys.get(i) + ") " + String.valueOf(1 - ow) + " " + query + ")";
-            Qryop qtree = parseQuery(finalQuery, model);
-            QryResult result = qtree.evaluate(model);
-            result.docScores.prioritySort();
-            res.add(new QueryRes(curr.id, result));
+    /**
+     * Create a retrieval model and set its parameters from the
+     * parameter file, e.g., BM25:k_1=1.2 for the BM25 model.
+     *
+     * @param modelName The name of the retrieval model.
+     * @param params    The parameters.
+     * @return The retrieval model, or null if the name is unknown.
+     * @throws IllegalArgumentException if a parameter is missing or invalid.
+     */
+    static RetrievalModel createModel(String modelName, Map<String, String> params) {
+        RetrievalModel model = null;
 
-            sb.append("\n");
-            System.out.println(sb.toString());
-            expandWriter.write(sb.toString());
-            expandWriter.flush();
+        if ("UnrankedBoolean".equals(modelName)) {
+            model = new RetrievalModelUnrankedBoolean();
+        } else if ("RankedBoolean".equals(modelName)){
+            model = new RetrievalModelRankedBoolean();
+        } else if ("BM25".equals(modelName)) {
+            model = new RetrievalModelBM25();
+            if (!params.containsKey("BM25:k_1") || !params.containsKey("BM25:b") || !params.containsKey("BM25:k_3")) {
+                throw new IllegalArgumentException("BM25 missing necessary params");
+            }
+            model.setParameter("k_1", params.get("BM25:k_1"));
+            model.setParameter("b", params.get("BM25:b"));
+            model.setParameter("k_3", params.get("BM25:k_3"));
+        } else if ("Indri".equals(modelName)) {
+            model = new RetrievalModelIndri();
+            if (!params.containsKey("Indri:mu") || !params.containsKey("Indri:lambda")) {
+                throw new IllegalArgumentException("Indri missing necessary params");
+            }
+            model.setParameter("mu", params.get("Indri:mu"));
+            model.setParameter("lambda", params.get("Indri:lambda"));
         }
 
-        expandWriter.close();
-        return res;
+        return model;
     }
 
     static ArrayList<String> getOriginQueries(String paramFileName) {
@@ -335,20 +607,135 @@ public class QryEval {
 
         } catch (FileNotFoundException e) {
             e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
         return res;
     }
 
+    /**
+     * Evaluate a parsed query in the configured evaluation mode.  In
+     * segment mode, the query is parsed again for each segment, and
+     * qTree is not evaluated.  A query that goes over its memory limit
+     * fails, or is degraded with memory:onExceed=degrade.  A query that
+     * takes more than its deadline fails, or returns a partial result
+     * with deadline:onExpiry=partial.
+     *
+     * @param queryId     The query id.
+     * @param queryString The query text.
+     * @param qTree       The query, parsed for model.
+     * @param model       The retrieval model.
+     * @return The (unsorted) result of the query.
+     * @throws IOException
+     */
+    static QryResult evaluateQuery(String queryId, String queryString, Qryop qTree, RetrievalModel model) throws IOException {
+        QryResult result;
+        try {
+            result = evaluateInMode(queryId, queryString, qTree, model);
+        } catch (QueryMemory.LimitException e) {
+            result = degrade(queryId, qTree, model, e);
+        }
+        return QueryDeadline.finish(result);
+    }
+
+    private static QryResult evaluateInMode(String queryId, String queryString, Qryop qTree, RetrievalModel model)
+            throws IOException {
+        if (broker != null) {
+            return broker.evaluate(queryId, queryString, model);
+        }
+        if (cascade != null) {
+            return cascade.evaluate(queryId, queryString, qTree, model);
+        }
+        if (impacts != null) {
+            QryResult result = impacts.evaluate(queryId, qTree, model);
+            if (result != null) {
+                return result;
+            }
+        }
+        if (segments != null) {
+            return segments.evaluate(queryString, qTree, model);
+        }
+        return QryProfiler.evaluate(qTree, model);
+    }
+
+    /**
+     * Evaluate a query that went over its memory limit again, if
+     * memory:onExceed=degrade, over only the documents that contain its
+     * rarest term.  Term lists are then at most as long as that term's
+     * inverted list.  So are derived lists (#NEAR, #WINDOW, #SYN): they
+     * only merge the documents, and their collection statistics are
+     * estimated (see DerivedStats), unless they are already known for
+     * the index.  Documents without the term are lost, and the scores
+     * of derived lists are approximate, so the result is marked as
+     * degraded.
+     *
+     * @param queryId The query id.
+     * @param qTree   The query, parsed for model.
+     * @param model   The retrieval model.
+     * @param e       The reason that the query failed.
+     * @return The degraded result of the query.
+     * @throws IOException e, if the query isn't degraded or fails again.
+     */
+    static QryResult degrade(String queryId, Qryop qTree, RetrievalModel model, QueryMemory.LimitException e)
+            throws IOException {
+        QueryContext context = QueryContext.current();
+        QryopIlTerm rarest = rarestTerm(qTree, null);
+        if (!QueryMemory.degrade || context == null || rarest == null) {
+            throw e;
+        }
+
+        //  The lists of the failed evaluation are garbage.
+
+        context.memory.releaseAll();
+        QueryMemory.forget(qTree);
+
+        InvList list = (qTree.candidates != null) ?
+                new InvList(rarest.getTerm(), rarest.getField(), qTree.candidates) :
+                new InvList(rarest.getTerm(), rarest.getField());
+        long listBytes = QueryMemory.POSTING_BYTES * list.df + QueryMemory.POSITION_BYTES * list.ctf;
+        context.memory.charge(listBytes);
+        int[] docids = new int[list.df];
+        for (int i = 0; i < list.df; i++) {
+            docids[i] = list.getDocid(i);
+        }
+        context.memory.release(listBytes);
+
+        System.err.println("Warning: Query " + queryId + " is evaluated over the " + docids.length
+                + " documents that contain " + rarest + ": " + e.getMessage());
+        QryMetrics.queryDegraded();
+
+        context.degraded = true;
+        qTree.restrictTo(docids);
+        QryResult result = QryProfiler.evaluate(qTree, model);
+        result.degraded = true;
+        return result;
+    }
+
+    private static QryopIlTerm rarestTerm(Qryop op, QryopIlTerm rarest) throws IOException {
+        if (op instanceof QryopIlTerm) {
+            if (rarest == null || op.estimatedCost() < rarest.estimatedCost()) {
+                return (QryopIlTerm) op;
+            }
+            return rarest;
+        }
+        for (int i = 0; i < op.args.size(); i++) {
+            rarest = rarestTerm(op.args.get(i), rarest);
+        }
+        return rarest;
+    }
+
     /**
      * Run query retrieval to get results
      * @param paramFileName
      * @param results
      * @param model
+     * @param keepTrees If true, keep each evaluated query tree in its result
+     * @param keepLists The estimated size of the inverted lists that
+     *                  the kept trees may hold in all.  Trees beyond
+     *                  it are kept without their lists.
      */
-    static void getResultsFromQuery(String paramFileName, ArrayList<QueryRes> results, RetrievalModel model) {
+    static void getResultsFromQuery(String paramFileName, ArrayList<QueryRes> results, RetrievalModel model,
+                                    boolean keepTrees, long keepLists) {
         Scanner scan = null;
+        long keptLists = 0;
         try {
             scan = new Scanner(new File(paramFileName));
 
@@ -357,10 +744,43 @@ public class QryEval {
                 String[] pair = line.split(":");
                 String queryId = pair[0];
                 String queryString = pair[1];
+                QueryContext context = new QueryContext(queryId);
+                QueryContext previousContext = QueryContext.enter(context);
                 Qryop qTree = parseQuery(queryString, model);
-                QryResult result = qTree.evaluate(model);
-                result.docScores.prioritySort();
-                results.add(new QueryRes(queryId, result));
+                if (QryPlanner.explain) {
+                    QryPlanner.report(queryId, qTree);
+                }
+                long start = System.nanoTime();
+                QryResult result;
+                try {
+                    result = evaluateQuery(queryId, queryString, qTree, model);
+                    result.docScores.prioritySort();
+                } catch (QueryMemory.LimitException e) {
+                    System.err.println("Error: Query " + queryId + " failed: " + e.getMessage());
+                    result = new QryResult();
+                } catch (QueryDeadline.ExpiredException e) {
+                    System.err.println("Error: Query " + queryId + " failed: " + e.getMessage());
+                    result = new QryResult();
+                } finally {
+                    QueryContext.enter(previousContext);
+                    context.close();
+                }
+                QueryMemory.forget(qTree);
+                QryMetrics.recordQuery(model, qTree, System.nanoTime() - start, context.memory.getPeak());
+                if (QryProfiler.enabled) {
+                    QryProfiler.report(queryId, qTree);
+                }
+                QueryRes res = new QueryRes(queryId, result);
+                if (keepTrees) {
+                    long bytes = qTree.keptListBytes();
+                    if (keptLists + bytes > keepLists) {
+                        qTree.releaseLists();
+                    } else {
+                        keptLists += bytes;
+                    }
+                    res.tree = qTree;
+                }
+                results.add(res);
 
             } while (scan.hasNext());
             scan.close();
@@ -431,11 +851,145 @@ public class QryEval {
      * @throws IOException
      */
     static String getExternalDocid(int iid) throws IOException {
-        Document d = QryEval.READER.document(iid);
+        QryMetrics.externalIdLoad();
+        if (nativeIndex != null)
+            return nativeIndex.getExternalId(iid);
+
+        Document d = reader().document(iid);
         String eid = d.get("externalId");
         return eid;
     }
 
+    /**
+     * @return The index reader of the current thread's query: that of
+     * its pinned snapshot, if any, or else the current one.
+     */
+    static IndexReader reader() {
+        IndexSnapshot s = PINNED.get();
+        return (s != null) ? s.reader : READER;
+    }
+
+    /**
+     * @return The document lengths of the current thread's query.
+     */
+    static DocLengthStore docLengths() {
+        IndexSnapshot s = PINNED.get();
+        return (s != null) ? s.dls : dls;
+    }
+
+    /**
+     * @return The stem statistics of the current thread's query.
+     * @throws IOException
+     */
+    static StemDictionary.Stats stemStats() throws IOException {
+        IndexSnapshot s = PINNED.get();
+        return (s != null) ? s.stemStats : stemDictionary.stats(READER);
+    }
+
+    /**
+     * @return The index generation of the current thread's query.
+     */
+    static long generation() {
+        IndexSnapshot s = PINNED.get();
+        if (s != null)
+            return s.generation;
+        return (reopener != null) ? reopener.getGeneration() : 0;
+    }
+
+    /**
+     * Acquire the current index snapshot for a query, if the index can
+     * be reopened.  It must be released with releaseSnapshot.
+     *
+     * @return The snapshot, or null.
+     */
+    static IndexSnapshot acquireSnapshot() {
+        return (reopener != null) ? reopener.acquire() : null;
+    }
+
+    /**
+     * @param s A snapshot from acquireSnapshot, or null.
+     * @throws IOException
+     */
+    static void releaseSnapshot(IndexSnapshot s) throws IOException {
+        if (s != null)
+            reopener.release(s);
+    }
+
+    /**
+     * Make the current thread use a snapshot of the index.  Work that a
+     * query hands to other threads pins the query's snapshot there.
+     *
+     * @param s The snapshot, or null to use the current index.
+     * @return The snapshot that the thread used before, to restore.
+     */
+    static IndexSnapshot pin(IndexSnapshot s) {
+        IndexSnapshot previous = PINNED.get();
+        if (s != null)
+            PINNED.set(s);
+        else
+            PINNED.remove();
+        return previous;
+    }
+
+    /**
+     * @return The snapshot that the current thread uses, or null.
+     */
+    static IndexSnapshot pinned() {
+        return PINNED.get();
+    }
+
+    /**
+     * The collection statistics helpers below answer for the whole
+     * collection.  In worker mode, that is the statistics that the
+     * broker sent rather than those of the worker's own shard: those
+     * of the documents and fields at startup, and those of the terms
+     * of the current query in its context.
+     *
+     * @return The number of documents in the index.
+     */
+    static int numDocs() {
+        if (globalStats != null)
+            return globalStats.numDocs();
+        return (nativeIndex != null) ? nativeIndex.numDocs() : reader().numDocs();
+    }
+
+    /**
+     * @param field A field name.
+     * @return The number of term occurrences in the field.
+     * @throws IOException
+     */
+    static long getSumTotalTermFreq(String field) throws IOException {
+        if (globalStats != null)
+            return globalStats.getSumTotalTermFreq(field);
+        return (nativeIndex != null) ? nativeIndex.getSumTotalTermFreq(field) : reader().getSumTotalTermFreq(field);
+    }
+
+    /**
+     * @param field A field name.
+     * @return The number of documents that have the field.
+     * @throws IOException
+     */
+    static int getDocCount(String field) throws IOException {
+        if (globalStats != null)
+            return globalStats.getDocCount(field);
+        return (nativeIndex != null) ? nativeIndex.getDocCount(field) : reader().getDocCount(field);
+    }
+
+    /**
+     * @param field A field name.
+     * @param term  A processed term.
+     * @return The number of documents that contain the term.
+     * @throws IOException
+     */
+    static int docFreq(String field, String term) throws IOException {
+        if (globalStats != null) {
+            QueryContext context = QueryContext.current();
+            return (context == null || context.termStats == null) ? 0 : context.termStats.docFreq(field, term);
+        }
+        return (nativeIndex != null) ? nativeIndex.docFreq(field, term)
+                : reader().docFreq(new Term(field, new BytesRef(term)));
+    }
+
     /**
      * Finds the internal document id for a document specified by its
      * external id, e.g. clueweb09-enwp00-88-09710.  If no such
@@ -448,7 +1002,7 @@ public class QryEval {
     static int getInternalDocid(String externalId) throws Exception {
         Query q = new TermQuery(new Term("externalId", externalId));
 
-        IndexSearcher searcher = new IndexSearcher(QryEval.READER);
+        IndexSearcher searcher = new IndexSearcher(reader());
         TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
         searcher.search(q, collector);
         ScoreDoc[] hits = collector.topDocs().scoreDocs;
@@ -461,12 +1015,48 @@ public class QryEval {
     }
 
     /**
-     * parseQuery converts a query string into a query tree.
+     * parseQuery converts a query string into a query tree, and plans
+     * its evaluation for the current query context if the planner is
+     * active (see {@link QryPlanner}).
      *
      * @param qString A string containing a query.
      * @throws IOException
      */
     static Qryop parseQuery(String qString, RetrievalModel model) throws IOException {
+        Qryop qTree = parseQuery(qString, model, null);
+        if (qTree != null && QryPlanner.isActive())
+            QryPlanner.plan(qTree, model);
+        return qTree;
+    }
+
+    /**
+     * Parse a query again, e.g., for another segment of the index, and
+     * give the new tree the plans of a tree that was parsed from the
+     * same query before, so that a query is only planned once.
+     *
+     * @param qString A string containing a query.
+     * @param planned A tree of the query, or null to leave the new
+     *                tree unplanned.
+     * @throws IOException
+     */
+    static Qryop parseQuery(String qString, RetrievalModel model, Qryop planned) throws IOException {
+        QryEvents.Parse event = new QryEvents.Parse();
+        event.begin();
+
+        Qryop qTree = parse(qString, model);
+        if (qTree != null && planned != null)
+            QryPlanner.copyPlans(planned, qTree);
+
+        if (event.shouldCommit()) {
+            event.queryId = QryEvents.queryId();
+            event.query = qString;
+            event.operators = (qTree == null) ? 0 : QryEvents.size(qTree);
+            event.commit();
+        }
+        return qTree;
+    }
+
+    private static Qryop parse(String qString, RetrievalModel model) throws IOException {
 
         Qryop currentOp = null;
         Stack<Qryop> stack = new Stack<Qryop>();
@@ -479,13 +1069,7 @@ public class QryEval {
         //if (qString.charAt(0) != '#') {
         //qString = "#or(" + qString + ")";
 
-        if (model instanceof RetrievalModelUnrankedBoolean || model instanceof RetrievalModelRankedBoolean) {
-            qString = "#and(" + qString + ")";
-        } else if (model instanceof RetrievalModelBM25) {
-            qString = "#sum(" + qString + ")";
-        } else if (model instanceof RetrievalModelIndri) {
-            qString = "#and(" + qString + ")";
-        }
+        qString = model.scorer().defaultOperator() + "(" + qString + ")";
 
 
         // Tokenize the query.
@@ -702,18 +1286,43 @@ public class QryEval {
     }
 
     static void writeResults(BufferedWriter writer, String queryId, QryResult result) throws IOException{
-        if (result.docScores.scores.size() < 1) {
+        writer.write(formatResults(queryId, result.docScores, 100));
+    }
+
+    /**
+     * Format the first k entries of a sorted score list in trec_eval
+     * format: QueryID Q0 DocID Rank Score RunID.  A query without
+     * results gets a dummy line.
+     *
+     * @param queryId The query id.
+     * @param scores  A score list sorted by {@link ScoreList#prioritySort}.
+     * @param k       The maximum number of results.
+     * @return The formatted results.
+     * @throws IOException
+     */
+    static String formatResults(String queryId, ScoreList scores, int k) throws IOException {
+        QryEvents.ResultWrite event = new QryEvents.ResultWrite();
+        event.begin();
+
+        StringBuilder sb = new StringBuilder();
+        if (scores.scores.size() < 1) {
             System.out.println("\tNo results.");
-            writer.write(queryId + "\tQ0\tdummy\t1\t0\tfubar\n");
+            sb.append(queryId).append("\tQ0\tdummy\t1\t0\tfubar\n");
         }
-        for (int i = 0; i < result.docScores.scores.size(); i++) {
-            if (i == 100) {
-                return;
-            }
-            writer.write(queryId + "\tQ0\t" + getExternalDocid(result.docScores.getDocid(i)) + "\t" + (i+1) + "\t");
-            writer.write(result.docScores.getDocidScore(i) + "\t" + "fubar\n");
-            writer.flush();
+        for (int i = 0; i < scores.scores.size() && i < k; i++) {
+            ScoreListEntry entry = scores.scores.get(i);
+            String externalId = entry.externalId.isEmpty() ? getExternalDocid(entry.getDocid()) : entry.externalId;
+            sb.append(queryId).append("\tQ0\t").append(externalId).append('\t').append(i + 1).append('\t');
+            sb.append(entry.getScore()).append("\tfubar\n");
+        }
+
+        if (event.shouldCommit()) {
+            event.queryId = queryId;
+            event.results = Math.min(scores.scores.size(), k);
+            event.characters = sb.length();
+            event.commit();
         }
+        return sb.toString();
     }
 
     /**
@@ -0,0 +1,409 @@
+/**
+ *  QryEvalServer keeps the index, the document lengths and the caches
+ *  of QryEval resident and answers queries over HTTP, so that
+ *  interactive tools don't pay for JVM startup, opening the index and
+ *  warming up on every query.  The server only listens on the
+ *  loopback interface.
+ *
+ *    GET /search?q=QUERY[&model=NAME][&k=N][&offset=N][&deadlineMs=N][&onExpiry=abort|partial]
+ *               [&PARAM=VALUE...]
+ *
+ *  returns the documents ranked offset+1 through offset+k as JSON.
+ *  The model defaults to the retrievalAlgorithm of the parameter file,
+ *  and model parameters (e.g., BM25:k_1=1.5) given in the request
+ *  override the ones in the parameter file for that request only.
+ *  The response reports the estimated peak memory of the query's
+ *  intermediate lists (see {@link QueryMemory}), and a query that
+ *  goes over its memory limit gets status 503.
+ *
+ *  deadlineMs and onExpiry override deadline:ms and deadline:onExpiry
+ *  (see {@link QueryDeadline}).  A query that is aborted at its
+ *  deadline gets status 504, and a partial result is marked with
+ *  "partial":true.
+ *
+ *  The response reports the estimated cost of the query's plan (see
+ *  {@link QryPlanner}), and with explain=true, the plan itself.  A
+ *  query whose estimated cost is above maxCost, or planner:maxCost,
+ *  gets status 503 without being evaluated.  The planner may prune
+ *  the evaluation to the top offset+k documents (a PRUNED plan); then
+ *  matches only counts the documents that were scored, and the
+ *  response is marked with "pruned":true.
+ *
+ *  With profile=text or profile=json, the response also has the
+ *  operator tree of the query with its measurements (see
+ *  {@link QryProfiler}).
+ *
+ *    GET /health
+ *
+ *  returns 200 while the server is running.
+ *
+ *    GET /metrics
+ *
+ *  returns the latency histograms and counters of {@link QryMetrics}.
+ *
+ *    POST /reopen
+ *
+ *  reopens the index if another process changed it, when the server
+ *  runs with reopen=true (see {@link IndexReopener}).  Queries that are
+ *  in progress finish on the generation that they started on.
+ *
+ *  Each request runs on its own virtual thread where the JVM provides
+ *  them, and on a cached thread pool otherwise.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class QryEvalServer {
+
+    private static final int DEFAULT_K = 10;
+    private static final int MAX_RESULTS = 10000;
+
+    private final Map<String, String> params;
+    private final RetrievalModel defaultModel;
+    private final AtomicLong queryIds = new AtomicLong();
+    private HttpServer server;
+
+    /**
+     * @param params       The parameters of the parameter file.
+     * @param defaultModel The model used by requests that don't name one.
+     */
+    public QryEvalServer(Map<String, String> params, RetrievalModel defaultModel) {
+        this.params = params;
+        this.defaultModel = defaultModel;
+    }
+
+    /**
+     * Start listening on a loopback port.  The method returns once the
+     * server is accepting requests.
+     *
+     * @param port The port number.
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                search(exchange);
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "{\"status\":\"ok\"}");
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, QryMetrics.toJson());
+            }
+        });
+        server.createContext("/reopen", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                reopen(exchange);
+            }
+        });
+        server.setExecutor(requestExecutor());
+        server.start();
+        QryMetrics.start();
+        System.out.println("Listening on " + server.getAddress());
+    }
+
+    /**
+     * Stop the server, waiting at most delay seconds for requests in
+     * progress.
+     */
+    public void stop(int delay) {
+        if (server != null)
+            server.stop(delay);
+    }
+
+    /**
+     * Return an executor that runs each request on a new virtual
+     * thread (Java 21 and later), or a cached thread pool on older
+     * JVMs.  Reflection keeps the class compatible with both.
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        Map<String, String> request;
+        try {
+            request = parseQueryString(exchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error("Malformed request"));
+            return;
+        }
+
+        String query = request.get("q");
+        if (query == null || query.trim().isEmpty()) {
+            respond(exchange, 400, error("Missing parameter q"));
+            return;
+        }
+
+        RetrievalModel model;
+        int k, offset;
+        long deadlineMs;
+        boolean partial;
+        double maxCost;
+        String modelName = request.containsKey("model") ? request.get("model") : params.get("retrievalAlgorithm");
+        try {
+            k = request.containsKey("k") ? Integer.parseInt(request.get("k")) : DEFAULT_K;
+            offset = request.containsKey("offset") ? Integer.parseInt(request.get("offset")) : 0;
+            if (k < 0 || offset < 0 || (long) k + offset > MAX_RESULTS)
+                throw new IllegalArgumentException("k and offset must not be negative, and k + offset at most "
+                        + MAX_RESULTS);
+            deadlineMs = request.containsKey("deadlineMs") ?
+                    Long.parseLong(request.get("deadlineMs")) : QueryDeadline.defaultMillis;
+            if (deadlineMs < 0)
+                throw new IllegalArgumentException("deadlineMs must not be negative (0 means no deadline)");
+            partial = QueryDeadline.parseOnExpiry(request.get("onExpiry"), QueryDeadline.defaultPartial);
+            maxCost = request.containsKey("maxCost") ?
+                    Double.parseDouble(request.get("maxCost")) : QryPlanner.maxCost;
+            model = modelFor(modelName, request);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        }
+        if (model == null) {
+            respond(exchange, 400, error("Unknown model " + modelName));
+            return;
+        }
+
+        String body;
+        IndexSnapshot snapshot = QryEval.acquireSnapshot();
+        IndexSnapshot previous = QryEval.pin(snapshot);
+        String queryId = "http-" + queryIds.incrementAndGet();
+        QueryContext context = new QueryContext(queryId);
+        context.deadline.start(deadlineMs, partial);
+        context.depth = offset + k;
+        QueryContext previousContext = QueryContext.enter(context);
+        try {
+            long start = System.nanoTime();
+            Qryop qTree = QryEval.parseQuery(query, model);
+            boolean explain = "true".equals(request.get("explain"));
+            if (qTree.plan == null && (maxCost > 0 || explain) && QryEval.broker == null)
+                QryPlanner.plan(qTree, model);
+            double cost = (qTree.plan != null) ? qTree.plan.cost : 0;
+            if (maxCost > 0 && cost > maxCost)
+                throw new CostException(String.format(Locale.ROOT,
+                        "The estimated cost of the query, %.0f, is above the limit of %.0f", cost, maxCost));
+            QryResult result = QryEval.evaluateQuery(queryId, query, qTree, model);
+            int matches = result.docScores.size();
+            result.docScores.prioritySort(offset + k);
+            long peak = context.memory.getPeak();
+            body = formatJson(query, modelName, result, matches, offset, k, System.nanoTime() - start, peak, cost,
+                    qTree.plan != null && qTree.plan.strategy == QryPlanner.Strategy.PRUNED,
+                    explain ? QryPlanner.json(qTree) : null,
+                    QryProfiler.enabled ? QryProfiler.json(qTree) : null);
+            QryMetrics.recordQuery(model, qTree, System.nanoTime() - start, peak);
+        } catch (QueryMemory.LimitException e) {
+            respond(exchange, 503, error(e.getMessage()));
+            return;
+        } catch (CostException e) {
+            respond(exchange, 503, error(e.getMessage()));
+            return;
+        } catch (QueryDeadline.ExpiredException e) {
+            respond(exchange, 504, error(e.getMessage()));
+            return;
+        } catch (IOException e) {
+            respond(exchange, 500, error(e.toString()));
+            return;
+        } catch (RuntimeException e) {
+            //  Most likely a query that couldn't be parsed.
+            respond(exchange, 400, error("Invalid query: " + e));
+            return;
+        } finally {
+            QueryContext.enter(previousContext);
+            context.close();
+            QryEval.pin(previous);
+            QryEval.releaseSnapshot(snapshot);
+        }
+
+        respond(exchange, 200, body);
+    }
+
+    private void reopen(HttpExchange exchange) throws IOException {
+        if (QryEval.reopener == null) {
+            respond(exchange, 400, error("The server doesn't run with reopen=true"));
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, error("Use POST"));
+            return;
+        }
+
+        boolean reopened;
+        try {
+            reopened = QryEval.reopener.maybeReopen();
+        } catch (IOException e) {
+            respond(exchange, 500, error(e.toString()));
+            return;
+        }
+        respond(exchange, 200, "{\"reopened\":" + reopened + ",\"generation\":"
+                + QryEval.reopener.getGeneration() + "}");
+    }
+
+    /**
+     * Return the model for a request: the default model if the
+     * request neither names a different one nor overrides any of its
+     * parameters, and otherwise a new model.
+     */
+    private RetrievalModel modelFor(String modelName, Map<String, String> request) {
+        boolean overrides = false;
+        for (String key : request.keySet()) {
+            if (key.indexOf(':') > 0)
+                overrides = true;
+        }
+
+        if (!overrides && modelName != null && modelName.equals(params.get("retrievalAlgorithm")))
+            return defaultModel;
+
+        Map<String, String> merged = new HashMap<String, String>(params);
+        merged.putAll(request);
+        return QryEval.createModel(modelName, merged);
+    }
+
+    private static String formatJson(String query, String modelName, QryResult result, int matches,
+                                     int offset, int k, long nanos, long memoryBytes, double cost,
+                                     boolean pruned, String plan, String profile)
+            throws IOException {
+        ScoreList scores = result.docScores;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"query\":").append(quote(query));
+        sb.append(",\"model\":").append(quote(modelName));
+        sb.append(",\"matches\":").append(matches);
+        sb.append(",\"offset\":").append(offset);
+        sb.append(",\"k\":").append(k);
+        sb.append(",\"timeMs\":").append(nanos / 1000000.0);
+        sb.append(",\"memoryBytes\":").append(memoryBytes);
+        sb.append(",\"estimatedCost\":").append(String.format(Locale.ROOT, "%.0f", cost));
+        if (result.degraded)
+            sb.append(",\"degraded\":true");
+        if (result.partial)
+            sb.append(",\"partial\":true");
+        if (pruned)
+            sb.append(",\"pruned\":true");
+        sb.append(",\"results\":[");
+        for (int i = offset; i < scores.size() && i < offset + k; i++) {
+            ScoreListEntry entry = scores.scores.get(i);
+            String externalId = entry.externalId.isEmpty() ?
+                    QryEval.getExternalDocid(entry.getDocid()) : entry.externalId;
+            if (i > offset)
+                sb.append(',');
+            sb.append("{\"rank\":").append(i + 1);
+            sb.append(",\"docid\":").append(quote(externalId));
+            sb.append(",\"score\":").append(entry.getScore()).append('}');
+        }
+        sb.append(']');
+        if (plan != null)
+            sb.append(",\"plan\":").append(plan);
+        if (profile != null)
+            sb.append(",\"profile\":").append(profile);
+        return sb.append('}').toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    /**
+     * Quote a string as a JSON string literal.
+     */
+    static String quote(String s) {
+        if (s == null)
+            return "null";
+
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Decode a URL query string, e.g. "q=apple%20pie&k=5".
+     */
+    private static Map<String, String> parseQueryString(String rawQuery) {
+        Map<String, String> values = new HashMap<String, String>();
+        if (rawQuery == null)
+            return values;
+
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty())
+                continue;
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                values.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return values;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A query's estimated cost is above the limit of the server.
+     */
+    private static class CostException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CostException(String message) {
+            super(message);
+        }
+    }
+}
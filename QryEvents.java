@@ -0,0 +1,155 @@
+/**
+ *  QryEvents defines the Java Flight Recorder events of the engine:
+ *  query parsing, operator evaluation, postings fetches, term vector
+ *  construction, priority sorts and result formatting.  A recording,
+ *  e.g.,
+ *
+ *    java -XX:StartFlightRecording=filename=qryeval.jfr,settings=profile QryEval ...
+ *
+ *  shows them in JMC under "QryEval", next to the GC, I/O and thread
+ *  events of the JVM.  When no recording is running, an event costs a
+ *  test of whether it should be committed.
+ *
+ *  Events carry the id of the query that caused them, from the
+ *  thread's {@link QueryContext}.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class QryEvents {
+
+    private QryEvents() {
+    }
+
+    /**
+     * @return The id of the current thread's query, or null.
+     */
+    static String queryId() {
+        QueryContext context = QueryContext.current();
+        return (context != null) ? context.queryId : null;
+    }
+
+    /**
+     * @return The number of operators in a query tree.
+     */
+    static int size(Qryop qTree) {
+        int size = 1;
+        for (int i = 0; i < qTree.args.size(); i++)
+            size += size(qTree.args.get(i));
+        return size;
+    }
+
+    @Name("qryeval.Parse")
+    @Label("Query Parse")
+    @Category("QryEval")
+    static class Parse extends Event {
+        @Label("Query Id")
+        String queryId;
+
+        @Label("Query")
+        String query;
+
+        @Label("Operators")
+        int operators;
+    }
+
+    @Name("qryeval.Evaluate")
+    @Label("Operator Evaluation")
+    @Description("The evaluation of one query operator, including its arguments")
+    @Category("QryEval")
+    static class Evaluate extends Event {
+        @Label("Query Id")
+        String queryId;
+
+        @Label("Operator")
+        String operator;
+
+        @Label("Term")
+        String term;
+
+        @Label("Field")
+        String field;
+
+        @Label("Output Size")
+        int outputSize;
+    }
+
+    @Name("qryeval.PostingsFetch")
+    @Label("Postings Fetch")
+    @Description("An inverted list read from the index")
+    @Category("QryEval")
+    static class PostingsFetch extends Event {
+        @Label("Query Id")
+        String queryId;
+
+        @Label("Term")
+        String term;
+
+        @Label("Field")
+        String field;
+
+        @Label("Candidates")
+        @Description("The number of candidate documents, or -1 if the whole list is read")
+        int candidates;
+
+        @Label("Postings")
+        int postings;
+
+        @Label("Positions")
+        long positions;
+    }
+
+    @Name("qryeval.TermVector")
+    @Label("Term Vector Construction")
+    @Category("QryEval")
+    static class TermVectorBuild extends Event {
+        @Label("Query Id")
+        String queryId;
+
+        @Label("Document")
+        int docid;
+
+        @Label("Field")
+        String field;
+
+        @Label("Stems")
+        int stems;
+
+        @Label("Positions")
+        int positions;
+    }
+
+    @Name("qryeval.PrioritySort")
+    @Label("Priority Sort")
+    @Category("QryEval")
+    static class PrioritySort extends Event {
+        @Label("Query Id")
+        String queryId;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Top K")
+        @Description("The number of entries kept, or -1 if the whole list is sorted")
+        int k;
+    }
+
+    @Name("qryeval.ResultWrite")
+    @Label("Result Write")
+    @Description("The formatting of the results of a query")
+    @Category("QryEval")
+    static class ResultWrite extends Event {
+        @Label("Query Id")
+        String queryId;
+
+        @Label("Results")
+        int results;
+
+        @Label("Characters")
+        int characters;
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ *  QryMetrics collects the metrics of the engine: the latency of every
+ *  query in {@link LatencyHistogram}s, overall, by retrieval model, and
+ *  by retrieval model and operator mix (the kinds of operators in the
+ *  query, e.g., "#AND+#NEAR"), the estimated peak memory of queries
+ *  (see {@link QueryMemory}), and counters of query throughput,
+ *  postings read, external id loads, expired deadlines (see
+ *  {@link QueryDeadline}) and cache hits and misses.
+ *
+ *  Metrics are always collected; they cost a few atomic additions per
+ *  inverted list, per external id and per query.  A batch run writes
+ *  them as JSON to metrics:path, or to stdout with metrics=true, when
+ *  it ends, and the server returns them from GET /metrics.
+ *
+ *  Postings bytes are the size of the postings that are copied into
+ *  inverted lists (a docid, a tf and the positions, 4 bytes each),
+ *  which doesn't depend on how the index backend compresses them.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class QryMetrics {
+
+    private static volatile long startNanos = System.nanoTime();
+
+    private static final AtomicLong queries = new AtomicLong();
+    private static final LatencyHistogram latency = new LatencyHistogram();
+    private static final ConcurrentMap<String, LatencyHistogram> byModel =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> byOperators =
+            new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+    private static final AtomicLong postingsLists = new AtomicLong();
+    private static final AtomicLong postingsListsReused = new AtomicLong();
+    private static final AtomicLong postings = new AtomicLong();
+    private static final AtomicLong positions = new AtomicLong();
+    private static final AtomicLong externalIdLoads = new AtomicLong();
+
+    private static final AtomicLong peakBytes = new AtomicLong();
+    private static final AtomicLong maxPeakBytes = new AtomicLong();
+    private static final AtomicLong memoryLimitExceeded = new AtomicLong();
+    private static final AtomicLong degraded = new AtomicLong();
+    private static final AtomicLong deadlineExpired = new AtomicLong();
+    private static final AtomicLong partial = new AtomicLong();
+
+    private QryMetrics() {
+    }
+
+    /**
+     * Start measuring throughput now, e.g., at the start of a batch.
+     */
+    static void start() {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Record the latency and the memory of a query.
+     *
+     * @param model The retrieval model of the query.
+     * @param qTree The query, or null if it wasn't parsed.
+     * @param nanos The latency in nanoseconds.
+     * @param peak  The estimated peak memory of the query in bytes.
+     */
+    static void recordQuery(RetrievalModel model, Qryop qTree, long nanos, long peak) {
+        String modelName = modelName(model);
+
+        queries.incrementAndGet();
+        peakBytes.addAndGet(peak);
+        long m = maxPeakBytes.get();
+        while (peak > m && !maxPeakBytes.compareAndSet(m, peak))
+            m = maxPeakBytes.get();
+
+        latency.record(nanos);
+        histogram(byModel, modelName).record(nanos);
+
+        ConcurrentMap<String, LatencyHistogram> operators = byOperators.get(modelName);
+        if (operators == null) {
+            byOperators.putIfAbsent(modelName, new ConcurrentHashMap<String, LatencyHistogram>());
+            operators = byOperators.get(modelName);
+        }
+        histogram(operators, operatorMix(qTree)).record(nanos);
+    }
+
+    /**
+     * Record an inverted list that was read from the index.
+     *
+     * @param df  The number of postings.
+     * @param ctf The number of positions.
+     */
+    static void postingsRead(int df, long ctf) {
+        postingsLists.incrementAndGet();
+        postings.addAndGet(df);
+        positions.addAndGet(ctf);
+    }
+
+    /**
+     * Record an inverted list that a term operator had already read.
+     */
+    static void postingsReused() {
+        postingsListsReused.incrementAndGet();
+    }
+
+    /**
+     * Record the load of an external document id from the index.
+     */
+    static void externalIdLoad() {
+        externalIdLoads.incrementAndGet();
+    }
+
+    /**
+     * Record a query that went over its memory limit.
+     */
+    static void memoryLimitExceeded() {
+        memoryLimitExceeded.incrementAndGet();
+    }
+
+    /**
+     * Record a query that was degraded to stay within its memory limit.
+     */
+    static void queryDegraded() {
+        degraded.incrementAndGet();
+    }
+
+    /**
+     * Record a query that was aborted because of its deadline.
+     */
+    static void deadlineExpired() {
+        deadlineExpired.incrementAndGet();
+    }
+
+    /**
+     * Record a query that returned a partial result because of its
+     * deadline.
+     */
+    static void queryPartial() {
+        partial.incrementAndGet();
+    }
+
+    /**
+     * @return The metrics as a JSON object.
+     */
+    static String toJson() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long n = queries.get();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds));
+        sb.append(",\"queries\":").append(n);
+        sb.append(",\"queriesPerSecond\":").append(String.format(Locale.ROOT, "%.3f",
+                (seconds > 0) ? n / seconds : 0.0));
+        sb.append(",\"latency\":").append(latency.toJson());
+
+        sb.append(",\"models\":{");
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram> model : byModel.entrySet()) {
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append(QryEvalServer.quote(model.getKey())).append(":{\"latency\":").append(model.getValue().toJson());
+            sb.append(",\"operators\":{");
+            boolean firstMix = true;
+            for (Map.Entry<String, LatencyHistogram> mix : byOperators.get(model.getKey()).entrySet()) {
+                if (!firstMix)
+                    sb.append(',');
+                firstMix = false;
+                sb.append(QryEvalServer.quote(mix.getKey())).append(':').append(mix.getValue().toJson());
+            }
+            sb.append("}}");
+        }
+        sb.append('}');
+
+        sb.append(",\"postings\":{\"lists\":").append(postingsLists.get());
+        sb.append(",\"postings\":").append(postings.get());
+        sb.append(",\"positions\":").append(positions.get());
+        sb.append(",\"bytes\":").append(4 * (2 * postings.get() + positions.get())).append('}');
+        sb.append(",\"externalIdLoads\":").append(externalIdLoads.get());
+
+        sb.append(",\"memory\":{\"meanPeakBytes\":").append((n == 0) ? 0 : peakBytes.get() / n);
+        sb.append(",\"maxPeakBytes\":").append(maxPeakBytes.get());
+        sb.append(",\"inUseBytes\":").append(QueryMemory.getGlobal());
+        sb.append(",\"limitExceeded\":").append(memoryLimitExceeded.get());
+        sb.append(",\"degraded\":").append(degraded.get()).append('}');
+
+        sb.append(",\"deadline\":{\"aborted\":").append(deadlineExpired.get());
+        sb.append(",\"partial\":").append(partial.get()).append('}');
+
+        sb.append(",\"caches\":{\"postings\":{\"hits\":").append(postingsListsReused.get());
+        sb.append(",\"misses\":").append(postingsLists.get()).append('}');
+        TermVectorCache termVectors = QryEval.termVectors;
+        if (termVectors != null) {
+            sb.append(",\"termVectors\":{\"hits\":").append(termVectors.getHits());
+            sb.append(",\"misses\":").append(termVectors.getMisses());
+            sb.append(",\"evictions\":").append(termVectors.getEvictions()).append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    /**
+     * Write the metrics at the end of a batch run: to metrics:path, or
+     * to stdout if metrics=true.
+     *
+     * @param params The parameters.
+     * @throws IOException
+     */
+    static void report(Map<String, String> params) throws IOException {
+        if (params.containsKey("metrics:path")) {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(params.get("metrics:path")));
+            try {
+                writer.write(toJson());
+                writer.newLine();
+            } finally {
+                writer.close();
+            }
+        } else if ("true".equals(params.get("metrics"))) {
+            System.out.println(toJson());
+        }
+    }
+
+    private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram h = histograms.get(key);
+        if (h == null) {
+            histograms.putIfAbsent(key, new LatencyHistogram());
+            h = histograms.get(key);
+        }
+        return h;
+    }
+
+    /**
+     * @return The name of a retrieval model, e.g., "BM25".
+     */
+    static String modelName(RetrievalModel model) {
+        String name = model.getClass().getSimpleName();
+        return name.startsWith("RetrievalModel") ? name.substring("RetrievalModel".length()) : name;
+    }
+
+    /**
+     * @return The kinds of operators in a query, e.g., "#AND+#NEAR",
+     * without the #SCORE operators that score lists add, or "terms" if
+     * the query is only terms.
+     */
+    static String operatorMix(Qryop qTree) {
+        if (qTree == null)
+            return "unknown";
+
+        TreeSet<String> kinds = new TreeSet<String>();
+        addOperators(qTree, kinds);
+        if (kinds.isEmpty())
+            return "terms";
+
+        StringBuilder sb = new StringBuilder();
+        for (String kind : kinds) {
+            if (sb.length() > 0)
+                sb.append('+');
+            sb.append(kind);
+        }
+        return sb.toString();
+    }
+
+    private static void addOperators(Qryop op, TreeSet<String> kinds) {
+        if (op.args.isEmpty())
+            return;
+
+        String s = op.toString();
+        int end = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '/' || c == '(' || Character.isWhitespace(c)) {
+                end = i;
+                break;
+            }
+        }
+        String kind = s.substring(0, end).toUpperCase(Locale.ROOT);
+        if (!kind.equals("#SCORE"))
+            kinds.add(kind);
+
+        for (int i = 0; i < op.args.size(); i++)
+            addOperators(op.args.get(i), kinds);
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ *  QryPlanner chooses how each operator of a query is evaluated.  A
+ *  cost model estimates, bottom up, the length of every operator's
+ *  list and the cost of producing it, from the df and ctf of the
+ *  terms and the size of the collection (or of the candidates, see
+ *  Qryop.restrictTo).  Operators that can be evaluated in more than
+ *  one way get the cheapest of their strategies:
+ *
+ *    TAAT    term at a time: each argument's list is accumulated into
+ *            a hash map (#SUM, #OR).
+ *    DAAT    document at a time: the argument lists are merged in
+ *            docid order (#SUM, #OR, and #AND with boolean models).
+ *    BITSET  a bit per document of the collection: lists are set in
+ *            bitsets and combined word by word (#AND and unranked #OR
+ *            with boolean models).  It pays off for long lists.
+ *    PRUNED  the #SUM at the root of a query over terms, with a model
+ *            whose term scores have upper bounds (BM25, see
+ *            Scorer.bound), when the caller only needs the top k
+ *            (QueryContext.depth): arguments are evaluated from the
+ *            highest upper bound of their scores down, until the remaining
+ *            arguments can't lift a new document into the top k; those
+ *            are only fetched for the documents found so far.  The top
+ *            k are exact, but the result doesn't have every match.
+ *
+ *  Operators that need default scores (Indri) or positions are always
+ *  document at a time.  With planner=false, every operator uses its
+ *  original strategy, and queries are only planned for their costs
+ *  when planner:maxCost or planner:explain is set (or a server request
+ *  sets maxCost or explain).  A query is planned once: the trees that
+ *  are parsed again for the segments of the index share its plans.
+ *
+ *  The estimated cost of the root is the cost of the whole query, in
+ *  units of a posting copied from the index, including the evaluation
+ *  of derived lists over the whole collection for the statistics of
+ *  a query that is restricted to candidates; the server rejects a
+ *  query whose cost is above planner:maxCost (or maxCost) before
+ *  evaluating it.  With planner:explain=true, the plan of each query
+ *  is printed with the cost of every alternative; the server adds it
+ *  to its responses with explain=true.
+ */
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+public class QryPlanner {
+
+    /**
+     * The evaluation strategies of score list operators.
+     */
+    enum Strategy {
+        TAAT, DAAT, BITSET, PRUNED
+    }
+
+    //  The cost model, relative to copying one posting from the index.
+    //  Hash accumulators box and probe; a merge compares the head of
+    //  each argument list for every document; bitsets are set per
+    //  posting and combined per 64 documents of the collection;
+    //  fetching a posting for a candidate advances the index cursor.
+
+    static final double POSTING = 1.0;
+    static final double POSITION = 0.25;
+    static final double SCORE = 2.0;
+    static final double ACCUMULATE = 4.0;
+    static final double MERGE = 1.0;
+    static final double BIT = 0.5;
+    static final double WORD = 1.0 / 64;
+    static final double ADVANCE = 8.0;
+
+    //  Set once at startup.
+
+    static boolean enabled = true;
+    static boolean explain = false;
+    static double maxCost = 0;
+
+    private QryPlanner() {
+    }
+
+    /**
+     * @param params planner (false to keep the operators' original
+     *               strategies), planner:explain and planner:maxCost.
+     */
+    static void configure(Map<String, String> params) {
+        enabled = !"false".equals(params.get("planner"));
+        explain = "true".equals(params.get("planner:explain"));
+        if (params.containsKey("planner:maxCost"))
+            maxCost = Double.parseDouble(params.get("planner:maxCost"));
+    }
+
+    /**
+     * @return True if queries are planned: the planner chooses the
+     * strategies, or plans are reported or checked against maxCost.  A
+     * broker has no index to plan with.
+     */
+    static boolean isActive() {
+        return (enabled || explain || maxCost > 0) && QryEval.broker == null;
+    }
+
+    /**
+     * Give the operators of a tree the plans of the operators of
+     * another tree of the same query.  Plans are not changed once they
+     * are made, so the trees can share them.
+     *
+     * @param from The planned tree.
+     * @param to   The tree to plan.
+     */
+    static void copyPlans(Qryop from, Qryop to) {
+        to.plan = from.plan;
+        for (int i = 0; i < from.args.size() && i < to.args.size(); i++)
+            copyPlans(from.args.get(i), to.args.get(i));
+    }
+
+    /**
+     * Plan a query for the current thread's query context.
+     *
+     * @param qTree The query.
+     * @param model The retrieval model.
+     * @return The plan of the root.
+     * @throws IOException
+     */
+    static Plan plan(Qryop qTree, RetrievalModel model) throws IOException {
+        QueryContext context = QueryContext.current();
+        return plan(qTree, model, (context != null) ? context.depth : 0);
+    }
+
+    /**
+     * @param op       An operator.
+     * @param strategy The strategy that the operator was written with.
+     * @return The strategy that the operator's plan chose, or strategy
+     * if the operator has no plan.
+     */
+    static Strategy strategy(Qryop op, Strategy strategy) {
+        if (op.plan == null || op.plan.strategy == null)
+            return strategy;
+        return op.plan.strategy;
+    }
+
+    private static Plan plan(Qryop op, RetrievalModel model, int depth) throws IOException {
+        int k = op.args.size();
+        Plan[] args = new Plan[k];
+        double[] costs = new double[k];
+        double argCost = 0, sumLength = 0, minLength = Double.MAX_VALUE, positions = 0;
+        int longest = 0;
+        boolean docidOrder = true;
+        for (int i = 0; i < k; i++) {
+            args[i] = plan(op.args.get(i), model, 0);
+
+            //  Score list operators wrap inverted lists in #SCORE.
+
+            costs[i] = args[i].cost;
+            if (op instanceof QryopSl && !(op instanceof QryopSlScore) && op.args.get(i) instanceof QryopIl)
+                costs[i] += SCORE * args[i].length;
+
+            argCost += costs[i];
+            sumLength += args[i].length;
+            minLength = Math.min(minLength, args[i].length);
+            positions += args[i].positions;
+            docidOrder &= args[i].docidOrder;
+            if (args[i].length > args[longest].length)
+                longest = i;
+        }
+        if (k == 0)
+            minLength = 0;
+
+        double n = coveredDocs(op);
+        double union = Math.min(n, sumLength);
+        Plan plan = new Plan();
+
+        if (op instanceof QryopIlTerm) {
+            QryopIlTerm term = (QryopIlTerm) op;
+            plan.length = term.estimatedCost();
+            plan.positions = term.estimatedPositions();
+            plan.cost = POSTING * plan.length + POSITION * plan.positions;
+        } else if (op instanceof QryopIlSyn) {
+            plan.length = union;
+            plan.positions = positions;
+            plan.cost = argCost + MERGE * k * union + POSITION * positions;
+        } else if (op instanceof QryopIl) {
+            plan.length = minLength;
+            plan.positions = positions;
+            plan.cost = argCost + MERGE * sumLength + POSITION * positions;
+        } else if (op instanceof QryopSlScore) {
+            plan.length = (k > 0) ? args[0].length : 0;
+            plan.cost = argCost + SCORE * plan.length;
+        } else if (op instanceof QryopSlAnd && !model.scorer().defaultScores()) {
+            plan.length = minLength;
+            plan.alternatives = new double[Strategy.values().length];
+            plan.alternatives[Strategy.DAAT.ordinal()] = argCost + MERGE * sumLength;
+            if (docidOrder || model.scorer().constantScores())
+                plan.alternatives[Strategy.BITSET.ordinal()] = argCost + BIT * sumLength + WORD * (k + 1) * n;
+            choose(plan, Strategy.DAAT);
+
+            //  The matches are sorted by score.
+
+            plan.docidOrder = model.scorer().constantScores();
+        } else if (op instanceof QryopSlOr || op instanceof QryopSlSum) {
+            plan.length = union;
+            plan.alternatives = new double[Strategy.values().length];
+            plan.alternatives[Strategy.TAAT.ordinal()] = argCost + ACCUMULATE * sumLength;
+            if (docidOrder)
+                plan.alternatives[Strategy.DAAT.ordinal()] = argCost + MERGE * k * union;
+            if (op instanceof QryopSlOr && model.scorer().constantScores())
+                plan.alternatives[Strategy.BITSET.ordinal()] = argCost + BIT * sumLength + 2 * WORD * n;
+
+            //  Pruning saves most of the longest argument: it is only
+            //  fetched for the documents of the others, if their top k
+            //  leave it no room.
+
+            if (op instanceof QryopSlSum && model.scorer().boundedScores() && depth > 0 && k > 1
+                    && QryEval.globalStats == null && termsOnly(op)) {
+                double others = Math.min(n, sumLength - args[longest].length);
+                if (others > depth) {
+                    double skipped = Math.min(others, args[longest].length);
+                    plan.alternatives[Strategy.PRUNED.ordinal()] = argCost - costs[longest]
+                            + (ADVANCE + SCORE) * skipped
+                            + ACCUMULATE * (sumLength - args[longest].length) + MERGE * k * others;
+                    plan.depth = depth;
+                }
+            }
+            choose(plan, Strategy.TAAT);
+            plan.docidOrder = plan.strategy != Strategy.TAAT;
+        } else {
+            plan.length = union;
+            plan.cost = argCost + (MERGE + SCORE) * k * union;
+            plan.strategy = Strategy.DAAT;
+            plan.docidOrder = docidOrder;
+        }
+
+        //  A derived list that is restricted to candidates is also
+        //  evaluated over the whole collection, for its exact statistics
+        //  (see DerivedStats).
+
+        if (op instanceof QryopIl && !(op instanceof QryopIlTerm) && DerivedStats.needsCollection(op))
+            plan.cost += statisticsCost(op);
+
+        op.plan = plan;
+        return plan;
+    }
+
+    /**
+     * The cost of evaluating a derived list over the whole collection:
+     * every posting of its terms is fetched and merged.  Derived
+     * arguments count the postings of their own terms.
+     */
+    private static double statisticsCost(Qryop op) throws IOException {
+        double cost = 0;
+        for (int i = 0; i < op.args.size(); i++) {
+            if (!(op.args.get(i) instanceof QryopIlTerm))
+                continue;
+
+            QryopIlTerm term = (QryopIlTerm) op.args.get(i);
+            double df = QryEval.docFreq(term.getField(), term.getTerm());
+            long length = term.estimatedCost();
+            double positions = (length > 0) ? (double) term.estimatedPositions() * df / length : 0;
+            cost += (POSTING + MERGE) * df + POSITION * positions;
+        }
+        return cost;
+    }
+
+    /**
+     * Choose the cheapest alternative, unless planning is disabled.
+     * Alternatives that aren't possible cost 0.  Ties go to the
+     * operator's original strategy.
+     */
+    private static void choose(Plan plan, Strategy original) {
+        plan.strategy = original;
+        plan.cost = plan.alternatives[original.ordinal()];
+        if (!enabled)
+            return;
+
+        for (Strategy s : Strategy.values()) {
+            double cost = plan.alternatives[s.ordinal()];
+            if (cost > 0 && cost < plan.cost) {
+                plan.strategy = s;
+                plan.cost = cost;
+            }
+        }
+    }
+
+    private static boolean termsOnly(Qryop op) {
+        for (int i = 0; i < op.args.size(); i++) {
+            if (term(op.args.get(i)) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The term of an argument that is a term, or #SCORE of a
+     * term, or null.
+     */
+    private static QryopIlTerm term(Qryop arg) {
+        if (arg instanceof QryopSlScore && arg.args.size() == 1)
+            arg = arg.args.get(0);
+        return (arg instanceof QryopIlTerm) ? (QryopIlTerm) arg : null;
+    }
+
+    /**
+     * @return The number of documents that an operator is evaluated
+     * over.
+     */
+    private static double coveredDocs(Qryop op) {
+        double n = QryEval.numDocs();
+        if (op.candidates != null)
+            n = Math.min(n, op.candidates.length);
+        if (op.segment != null)
+            n = Math.min(n, op.segment.numDocs());
+        return n;
+    }
+
+    /**
+     * The largest score that an argument of #SUM can give a document
+     * (see Scorer.bound).
+     *
+     * @param arg   A term, or #SCORE of a term.
+     * @param model The retrieval model.
+     * @return The upper bound, or infinity if arg isn't a term.
+     * @throws IOException
+     */
+    static double bound(Qryop arg, RetrievalModel model) throws IOException {
+        QryopIlTerm term = term(arg);
+        if (term == null)
+            return Double.POSITIVE_INFINITY;
+        return model.scorer().bound(term);
+    }
+
+    /**
+     * Print the plan of a query to stdout.
+     *
+     * @param queryId The query id.
+     * @param qTree   The planned query.
+     */
+    static void report(String queryId, Qryop qTree) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Plan of query ").append(queryId).append(":\n");
+        text(qTree, 1, sb);
+        synchronized (System.out) {
+            System.out.print(sb);
+        }
+    }
+
+    /**
+     * @param qTree The planned query.
+     * @return The plan as a JSON object.
+     */
+    static String json(Qryop qTree) {
+        StringBuilder sb = new StringBuilder();
+        json(qTree, sb);
+        return sb.toString();
+    }
+
+    private static void text(Qryop op, int depth, StringBuilder sb) {
+        for (int i = 0; i < depth; i++)
+            sb.append("  ");
+        sb.append(QryProfiler.label(op));
+
+        Plan plan = op.plan;
+        if (plan != null) {
+            if (plan.strategy != null)
+                sb.append("  ").append(plan.strategy);
+            sb.append(String.format(Locale.ROOT, "  cost=%.0f rows=%.0f", plan.cost, plan.length));
+            if (plan.alternatives != null) {
+                sb.append("  (");
+                boolean first = true;
+                for (Strategy s : Strategy.values()) {
+                    if (plan.alternatives[s.ordinal()] > 0) {
+                        if (!first)
+                            sb.append(' ');
+                        first = false;
+                        sb.append(String.format(Locale.ROOT, "%s=%.0f", s, plan.alternatives[s.ordinal()]));
+                    }
+                }
+                sb.append(')');
+            }
+            if (plan.strategy == Strategy.PRUNED)
+                sb.append(" top=").append(plan.depth);
+        }
+        sb.append('\n');
+
+        for (int i = 0; i < op.args.size(); i++)
+            text(op.args.get(i), depth + 1, sb);
+    }
+
+    private static void json(Qryop op, StringBuilder sb) {
+        sb.append("{\"op\":").append(QryEvalServer.quote(QryProfiler.label(op)));
+
+        Plan plan = op.plan;
+        if (plan != null) {
+            if (plan.strategy != null)
+                sb.append(",\"strategy\":\"").append(plan.strategy).append('"');
+            sb.append(String.format(Locale.ROOT, ",\"cost\":%.0f,\"rows\":%.0f", plan.cost, plan.length));
+            if (plan.alternatives != null) {
+                sb.append(",\"alternatives\":{");
+                boolean first = true;
+                for (Strategy s : Strategy.values()) {
+                    if (plan.alternatives[s.ordinal()] > 0) {
+                        if (!first)
+                            sb.append(',');
+                        first = false;
+                        sb.append(String.format(Locale.ROOT, "\"%s\":%.0f", s, plan.alternatives[s.ordinal()]));
+                    }
+                }
+                sb.append('}');
+            }
+        }
+
+        if (!op.args.isEmpty()) {
+            sb.append(",\"args\":[");
+            for (int i = 0; i < op.args.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                json(op.args.get(i), sb);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * The plan of one operator.
+     */
+    static class Plan {
+        Strategy strategy;          // null if the operator has one strategy
+        double cost;                // of the operator and its arguments
+        double length;              // of the operator's list
+        double positions;           // in the operator's list
+        double[] alternatives;      // the cost of each strategy, or null
+        int depth;                  // the top k that PRUNED keeps
+        boolean docidOrder = true;  // if the operator's list is in docid order
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ *  QryProfiler is an opt-in profiler of query evaluation, in the
+ *  spirit of EXPLAIN ANALYZE.  With profile=text (or true) or
+ *  profile=json, every operator that is evaluated records its number
+ *  of evaluations, wall time, CPU time, allocated bytes, postings read,
+ *  positions decoded, default-score calls and the size of its output
+ *  list, and the annotated operator tree of each query is printed to
+ *  stdout, or to profile:path if it is set.  The server adds the tree
+ *  to its JSON responses instead.
+ *
+ *  Operators evaluate their arguments through evaluate(Qryop,
+ *  RetrievalModel), which also emits the operator's flight recorder
+ *  event (see {@link QryEvents}).  When profiling is off and no
+ *  recording is running, it only calls the operator's evaluate
+ *  method, so the cost is a test of a static field and of the event
+ *  per operator.
+ *
+ *  Times, allocations and counts are recorded per thread: an
+ *  operator's self cost is its cost minus the cost of the operators
+ *  that were evaluated inside it on the same thread.  When arguments
+ *  are evaluated in parallel (parallelArgs), a forked argument's cost
+ *  is only its own, and the wall time of the operator that forked it
+ *  includes the time it waited.  Only queries that are evaluated as one
+ *  operator tree are profiled; a query that the impact or segment
+ *  evaluators evaluate shows no measurements.  With the cascade, the
+ *  tree shows the second stage, and its terms also count the postings
+ *  that the first stage read (see {@link Cascade}).
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+
+public class QryProfiler {
+
+    //  Set once at startup, before any query is evaluated.
+
+    static boolean enabled = false;
+    private static boolean json = false;
+    private static PrintWriter out = null;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS =
+            (THREADS instanceof com.sun.management.ThreadMXBean) ?
+                    (com.sun.management.ThreadMXBean) THREADS : null;
+    private static boolean cpuTime = false;
+    private static boolean allocatedBytes = false;
+
+    //  The operator that the current thread is evaluating.
+
+    private static final ThreadLocal<Node> CURRENT = new ThreadLocal<Node>();
+
+    private QryProfiler() {
+    }
+
+    /**
+     * Enable profiling if the parameters ask for it.
+     *
+     * @param params profile (text, true or json) and profile:path.
+     * @throws IOException
+     */
+    static void configure(Map<String, String> params) throws IOException {
+        String format = params.get("profile");
+        if (format == null || format.equals("false"))
+            return;
+        if (!format.equals("true") && !format.equals("text") && !format.equals("json"))
+            throw new IllegalArgumentException("Unknown profile format " + format);
+
+        json = format.equals("json");
+        out = params.containsKey("profile:path") ?
+                new PrintWriter(new BufferedWriter(new FileWriter(params.get("profile:path")))) :
+                new PrintWriter(System.out, true);
+
+        if (THREADS.isCurrentThreadCpuTimeSupported()) {
+            if (!THREADS.isThreadCpuTimeEnabled())
+                THREADS.setThreadCpuTimeEnabled(true);
+            cpuTime = true;
+        }
+        if (ALLOCATIONS != null && ALLOCATIONS.isThreadAllocatedMemorySupported()) {
+            if (!ALLOCATIONS.isThreadAllocatedMemoryEnabled())
+                ALLOCATIONS.setThreadAllocatedMemoryEnabled(true);
+            allocatedBytes = true;
+        }
+        enabled = true;
+    }
+
+    /**
+     * Evaluate an operator, profile it if profiling is enabled, and
+     * account for the memory of its result (see {@link QueryMemory}).
+     *
+     * @param op The operator.
+     * @param r  A retrieval model that controls how the operator behaves.
+     * @return The result of the operator.
+     * @throws IOException
+     */
+    static QryResult evaluate(Qryop op, RetrievalModel r) throws IOException {
+        QryEvents.Evaluate event = new QryEvents.Evaluate();
+        event.begin();
+
+        QryResult result = enabled ? profile(op, r) : op.evaluate(r);
+        QueryMemory.account(op, result);
+
+        if (event.shouldCommit()) {
+            event.queryId = QryEvents.queryId();
+            if (op instanceof QryopIlTerm) {
+                event.operator = "#TERM";
+                event.term = ((QryopIlTerm) op).getTerm();
+                event.field = ((QryopIlTerm) op).getField();
+            } else {
+                event.operator = label(op);
+            }
+            if (result != null)
+                event.outputSize = outputSize(op, result);
+            event.commit();
+        }
+        return result;
+    }
+
+    private static QryResult profile(Qryop op, RetrievalModel r) throws IOException {
+        Node node = op.profile;
+        if (node == null) {
+            node = new Node();
+            op.profile = node;
+        }
+
+        Node outer = CURRENT.get();
+        CURRENT.set(node);
+
+        long wall = System.nanoTime();
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        QryResult result = null;
+        try {
+            result = op.evaluate(r);
+            return result;
+        } finally {
+            wall = System.nanoTime() - wall;
+            cpu = cpuTime() - cpu;
+            allocated = allocatedBytes() - allocated;
+
+            node.calls++;
+            node.wallNanos += wall;
+            node.selfWallNanos += wall;
+            node.selfCpuNanos += cpu;
+            node.selfAllocatedBytes += allocated;
+            if (result != null)
+                node.output = outputSize(op, result);
+
+            if (outer != null) {
+                outer.selfWallNanos -= wall;
+                outer.selfCpuNanos -= cpu;
+                outer.selfAllocatedBytes -= allocated;
+            }
+            CURRENT.set(outer);
+        }
+    }
+
+    /**
+     * Record an inverted list that was read from the index.  Callers
+     * check enabled first.
+     *
+     * @param df  The number of postings.
+     * @param ctf The number of positions.
+     */
+    static void postingsRead(int df, long ctf) {
+        Node node = CURRENT.get();
+        if (node != null) {
+            node.postings += df;
+            node.positions += ctf;
+        }
+    }
+
+    /**
+     * Record a default score.  Callers check enabled first.
+     */
+    static void defaultScore() {
+        Node node = CURRENT.get();
+        if (node != null)
+            node.defaultScores++;
+    }
+
+    /**
+     * Write the profile of a query to stdout or profile:path.
+     *
+     * @param queryId The query id.
+     * @param qTree   The evaluated query.
+     */
+    static void report(String queryId, Qryop qTree) {
+        StringBuilder sb = new StringBuilder();
+        if (json) {
+            sb.append("{\"query\":").append(QryEvalServer.quote(queryId)).append(",\"tree\":");
+            json(qTree, sb);
+            sb.append('}');
+        } else {
+            sb.append("Profile of query ").append(queryId).append(":\n");
+            text(qTree, 1, sb);
+        }
+
+        synchronized (out) {
+            out.println(sb);
+            out.flush();
+        }
+    }
+
+    /**
+     * @param qTree The evaluated query.
+     * @return The profile of the query as a JSON object.
+     */
+    static String json(Qryop qTree) {
+        StringBuilder sb = new StringBuilder();
+        json(qTree, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Close profile:path, if profiles are written there.
+     */
+    static void close() {
+        if (out != null)
+            out.close();
+    }
+
+    private static void text(Qryop op, int depth, StringBuilder sb) {
+        for (int i = 0; i < depth; i++)
+            sb.append("  ");
+        sb.append(label(op));
+
+        Node node = op.profile;
+        if (node == null) {
+            sb.append("  (not evaluated)");
+        } else {
+            sb.append(String.format(Locale.ROOT, "  wall=%.3fms self=%.3fms",
+                    node.wallNanos / 1e6, node.selfWallNanos / 1e6));
+            if (cpuTime)
+                sb.append(String.format(Locale.ROOT, " cpu=%.3fms", node.selfCpuNanos / 1e6));
+            if (allocatedBytes)
+                sb.append(String.format(Locale.ROOT, " alloc=%.1fKB", node.selfAllocatedBytes / 1024.0));
+            sb.append(" out=").append(node.output);
+            if (node.calls > 1)
+                sb.append(" calls=").append(node.calls);
+            if (node.postings > 0)
+                sb.append(" postings=").append(node.postings).append(" positions=").append(node.positions);
+            if (node.defaultScores > 0)
+                sb.append(" defaultScores=").append(node.defaultScores);
+        }
+        sb.append('\n');
+
+        for (int i = 0; i < op.args.size(); i++)
+            text(op.args.get(i), depth + 1, sb);
+    }
+
+    private static void json(Qryop op, StringBuilder sb) {
+        sb.append("{\"op\":").append(QryEvalServer.quote(label(op)));
+
+        Node node = op.profile;
+        if (node != null) {
+            sb.append(",\"calls\":").append(node.calls);
+            sb.append(",\"wallNanos\":").append(node.wallNanos);
+            sb.append(",\"selfWallNanos\":").append(node.selfWallNanos);
+            if (cpuTime)
+                sb.append(",\"selfCpuNanos\":").append(node.selfCpuNanos);
+            if (allocatedBytes)
+                sb.append(",\"selfAllocatedBytes\":").append(node.selfAllocatedBytes);
+            sb.append(",\"postings\":").append(node.postings);
+            sb.append(",\"positions\":").append(node.positions);
+            sb.append(",\"defaultScores\":").append(node.defaultScores);
+            sb.append(",\"output\":").append(node.output);
+        }
+
+        if (!op.args.isEmpty()) {
+            sb.append(",\"args\":[");
+            for (int i = 0; i < op.args.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                json(op.args.get(i), sb);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * @return The name of an operator without its arguments, e.g.,
+     * "#NEAR/3", or a term, e.g., "apple.body".
+     */
+    static String label(Qryop op) {
+        String s = op.toString();
+        int paren = s.indexOf('(');
+        return (paren < 0) ? s : s.substring(0, paren).trim();
+    }
+
+    private static int outputSize(Qryop op, QryResult result) {
+        return (op instanceof QryopIl) ? result.invertedList.df : result.docScores.size();
+    }
+
+    private static long cpuTime() {
+        return cpuTime ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes() {
+        return allocatedBytes ? ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * The measurements of one operator.  An operator is only evaluated
+     * by one thread at a time, and the threads of a query are joined
+     * before its profile is reported.
+     */
+    static class Node {
+        long calls;
+        long wallNanos;
+        long selfWallNanos;
+        long selfCpuNanos;
+        long selfAllocatedBytes;
+        long postings;
+        long positions;
+        long defaultScores;
+        int output;
+    }
+}
@@ -20,4 +20,15 @@ public class QryResult {
     ScoreList docScores = new ScoreList();
     InvList invertedList = new InvList();
 
+    //  True if the result is approximate, because the query was
+    //  evaluated over fewer documents to stay within its memory limit
+    //  (see QueryMemory).
+
+    boolean degraded = false;
+
+    //  True if the result only covers the documents before the point
+    //  where the query's deadline passed (see QueryDeadline).
+
+    boolean partial = false;
+
 }
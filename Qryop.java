@@ -27,6 +27,31 @@ public abstract class Qryop {
 
     protected double weight = 0;
 
+    //  If not null, evaluation is restricted to these documents (in
+    //  ascending internal docid order).  See restrictTo.
+
+    protected int[] candidates = null;
+
+    //  If not null, evaluation is limited to one segment of the
+    //  index.  See restrictToSegment.
+
+    protected SegmentEvaluator.Segment segment = null;
+
+    //  The measurements of this operator, if profiling is enabled (see
+    //  QryProfiler).
+
+    QryProfiler.Node profile = null;
+
+    //  The estimated size of this operator's last result, while its
+    //  query holds it (see QueryMemory).
+
+    long resultBytes = 0;
+
+    //  How this operator is evaluated and what it is estimated to
+    //  cost (see QryPlanner), or null if the query wasn't planned.
+
+    QryPlanner.Plan plan = null;
+
     /**
      * Appends an argument to the list of query operator arguments.  This
      * simplifies the design of some query parsing architectures.
@@ -66,6 +91,100 @@ public abstract class Qryop {
         this.argPtrs = new ArrayList<ArgPtr>();
     }
 
+    /**
+     * Restrict the evaluation of this operator and its arguments to a
+     * set of candidate documents, e.g., the documents of a first-pass
+     * ranking that is being reranked.  Postings are only fetched for
+     * the candidates, and documents that are not candidates never
+     * appear in a result, so the cost of evaluation depends on the
+     * number of candidates rather than the size of the collection.
+     * Operators that derive inverted lists from their arguments
+     * (#NEAR, #WINDOW, #SYN) are the exception: by default they are
+     * evaluated over the whole collection once per query, for their
+     * collection statistics, and scores are the same as in an
+     * unrestricted evaluation.  With estimated statistics, they only
+     * evaluate the candidates too (see DerivedStats).
+     *
+     * @param docids Internal document ids in ascending order, or null
+     *               to evaluate over the whole collection.
+     * @return void
+     */
+    public void restrictTo(int[] docids) {
+        this.candidates = docids;
+        for (int i = 0; i < this.args.size(); i++)
+            this.args.get(i).restrictTo(docids);
+    }
+
+    /**
+     * Restrict the evaluation of this operator and its arguments to
+     * one segment of the index (see {@link SegmentEvaluator}).
+     * Inverted lists are read from the segment only, but document ids
+     * and collection statistics are those of the whole index.
+     *
+     * @param s The segment, or null to evaluate the whole index.
+     * @return void
+     */
+    public void restrictToSegment(SegmentEvaluator.Segment s) {
+        this.segment = s;
+        for (int i = 0; i < this.args.size(); i++)
+            this.args.get(i).restrictToSegment(s);
+    }
+
+    /**
+     * Release the inverted lists that the operator and its arguments
+     * keep after they are evaluated (see QryopIlTerm), when the tree
+     * won't be evaluated again.
+     *
+     * @return void
+     */
+    public void releaseLists() {
+        for (int i = 0; i < this.args.size(); i++)
+            this.args.get(i).releaseLists();
+    }
+
+    /**
+     * @return The estimated size of the inverted lists that the
+     * operator and its arguments keep (see releaseLists).
+     */
+    public long keptListBytes() {
+        long bytes = 0;
+        for (int i = 0; i < this.args.size(); i++)
+            bytes += this.args.get(i).keptListBytes();
+        return bytes;
+    }
+
+    /**
+     * Estimate the cost of evaluating this operator, in postings.  By
+     * default it is the total cost of the arguments.
+     *
+     * @return The estimated cost.
+     * @throws IOException
+     */
+    public long estimatedCost() throws IOException {
+        long cost = 0;
+        for (int i = 0; i < this.args.size(); i++)
+            cost += this.args.get(i).estimatedCost();
+        return cost;
+    }
+
+    /**
+     * Evaluate all of the query arguments, in parallel if parallel
+     * argument evaluation is enabled (see {@link ParallelArgEvaluator}).
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of each argument, in argument order.
+     * @throws IOException
+     */
+    protected QryResult[] evaluateArgs(RetrievalModel r) throws IOException {
+        if (QryEval.argEvaluator != null)
+            return QryEval.argEvaluator.evaluate(this.args, r);
+
+        QryResult[] results = new QryResult[this.args.size()];
+        for (int i = 0; i < this.args.size(); i++)
+            results[i] = QryProfiler.evaluate(this.args.get(i), r);
+        return results;
+    }
+
     /**
      * Removes an argument from the list of query operator arguments.
      * This simplifies the design of some query parsing architectures.
@@ -13,6 +13,13 @@ import java.io.IOException;
 
 public abstract class QryopIl extends Qryop {
 
+    //  The sums of the statistics of the arguments' lists, from the
+    //  last allocArgPtrs: {df, collection df, ctf, collection ctf}.
+    //  They are used to estimate the statistics of a derived list that
+    //  is evaluated over candidates (see DerivedStats).
+
+    private long[] argStats = new long[4];
+
     /**
      * Use the specified retrieval model to evaluate the query arguments.
      * Define and return ArgPtrs pointers that the query operator can use.
@@ -23,14 +30,118 @@ public abstract class QryopIl extends Qryop {
      */
     public void allocArgPtrs(RetrievalModel r) throws IOException {
 
+        QryResult[] results = evaluateArgs(r);
+        long[] stats = new long[4];
+
         for (int i = 0; i < this.args.size(); i++) {
             ArgPtr ptri = new ArgPtr();
-            ptri.invList = this.args.get(i).evaluate(r).invertedList;
+            ptri.invList = results[i].invertedList;
             ptri.scoreList = null;
             ptri.nextDoc = 0;
 
             this.argPtrs.add(ptri);
+
+            stats[0] += ptri.invList.df;
+            stats[1] += ptri.invList.getCollectionDf();
+            stats[2] += ptri.invList.ctf;
+            stats[3] += ptri.invList.getCollectionCtf();
+        }
+        this.argStats = stats;
+    }
+
+    /**
+     * @return True if the query's deadline truncated the inverted list
+     * of an argument (see allocArgPtrs).
+     */
+    protected boolean argsTruncated() {
+        for (int i = 0; i < this.argPtrs.size(); i++) {
+            if (this.argPtrs.get(i).invList.truncated)
+                return true;
         }
+        return false;
+    }
+
+    /**
+     * Evaluate the operator's inverted list.  Operators that derive
+     * their list from their arguments (#NEAR, #WINDOW, #SYN) implement
+     * it, and evaluate it through evaluateCandidates when they are
+     * restricted to candidates.
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of evaluating the operator.
+     * @throws IOException
+     */
+    protected QryResult evaluateList(RetrievalModel r) throws IOException {
+        return evaluate(r);
+    }
+
+    /**
+     * Evaluate a derived inverted list for a restricted set of
+     * candidates (see restrictTo).  Its collection statistics can't be
+     * known from the candidates, which are usually the top documents of
+     * another ranking, so the list is evaluated once over the whole
+     * collection (or segment) for its exact statistics, and then
+     * restricted to the candidates.  The statistics are kept for the
+     * index (see DerivedStats), so that evaluating the operator again,
+     * for this query or a later one, only evaluates the candidates.  If
+     * statistics are estimated, only the candidates are evaluated.
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of evaluating the operator.
+     * @throws IOException
+     */
+    protected QryResult evaluateCandidates(RetrievalModel r) throws IOException {
+        String key = this.toString();
+        boolean cached = this.segment == null && QryEval.globalStats == null;
+        long[] stats = cached ? DerivedStats.get(key) : null;
+
+        if (stats != null) {
+            QryResult result = evaluateList(r);
+            result.invertedList.collectionDf = (int) stats[0];
+            result.invertedList.collectionCtf = stats[1];
+            return result;
+        }
+
+        //  The statistics of a truncated list can't be estimated; they
+        //  stay unknown (see QueryDeadline).
+
+        if (DerivedStats.isEstimated() && this.segment == null) {
+            QryResult result = evaluateList(r);
+            if (!result.invertedList.truncated)
+                DerivedStats.estimate(result.invertedList, this.argStats);
+            return result;
+        }
+
+        int[] candidates = this.candidates;
+        QryResult result;
+        restrictTo(null);
+        try {
+            result = evaluateList(r);
+        } finally {
+            restrictTo(candidates);
+        }
+
+        InvList list = result.invertedList;
+        if (cached && !list.truncated)
+            DerivedStats.put(key, list);
+        result.invertedList = list.restrict(candidates);
+        return result;
+    }
+
+    /**
+     * Over one segment, the collection statistics of a derived list
+     * are only known once every segment has evaluated it (see
+     * {@link SegmentEvaluator}): record the segment's statistics, or
+     * set the sums of all of the segments.
+     *
+     * @param list An inverted list computed over one segment.
+     * @return void
+     * @throws QueryDeadline.ExpiredException If the query's deadline
+     *                                        truncated the list.
+     */
+    protected void segmentCollectionStats(InvList list) throws QueryDeadline.ExpiredException {
+        if (this.segment != null)
+            this.segment.collectionStats(this.toString(), list);
     }
 
 }
@@ -46,6 +46,20 @@ public class QryopIlSyn extends QryopIl {
      * @throws IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
+        if (this.candidates != null)
+            return evaluateCandidates(r);
+        return evaluateList(r);
+    }
+
+    /**
+     * Evaluates the operator's inverted list from the lists of its
+     * arguments.
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of evaluating the query.
+     * @throws IOException
+     */
+    protected QryResult evaluateList(RetrievalModel r) throws IOException {
 
         //  Initialization
 
@@ -55,6 +69,10 @@ public class QryopIlSyn extends QryopIl {
         QryResult result = new QryResult();
         result.invertedList.field = new String(this.argPtrs.get(0).invList.field);
 
+        //  A list that is derived from a truncated list is truncated too.
+
+        result.invertedList.truncated = argsTruncated();
+
         //  Each pass of the loop adds 1 document to result until all of
         //  the inverted lists are depleted.  When a list is depleted, it
         //  is removed from argPtrs, so this loop runs until argPtrs is empty.
@@ -62,9 +80,18 @@ public class QryopIlSyn extends QryopIl {
         //  This implementation is intended to be clear.  A more efficient
         //  implementation would combine loops and use merge-sort.
 
+        QueryDeadline deadline = QueryDeadline.current();
+        int steps = 0;
+
         while (this.argPtrs.size() > 0) {
 
             int nextDocid = getSmallestCurrentDocid();
+            if (nextDocid == Integer.MAX_VALUE)
+                break;      // The remaining lists are empty.
+            if (deadline != null && (steps++ & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(nextDocid)) {
+                result.invertedList.truncated = true;
+                break;      // The query's deadline passed.
+            }
 
             //  Create a new posting that is the union of the posting lists
             //  that match the nextDocid.
@@ -96,6 +123,11 @@ public class QryopIlSyn extends QryopIl {
             }
         }
 
+        //  Over one segment, the statistics of the whole collection are
+        //  known after all of the segments have been evaluated once.
+
+        segmentCollectionStats(result.invertedList);
+
         freeArgPtrs();
 
         return result;
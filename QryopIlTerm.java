@@ -8,6 +8,9 @@
  *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
 import java.io.IOException;
 
 public class QryopIlTerm extends QryopIl {
@@ -15,6 +18,18 @@ public class QryopIlTerm extends QryopIl {
     private String term;
     private String field;
 
+    //  The inverted list is kept after the first evaluation, so that a
+    //  query tree can be evaluated again (e.g., as part of an expanded
+    //  query) without fetching it from the index again.
+
+    private InvList postings;
+    private int[] postingsCandidates;
+    private SegmentEvaluator.Segment postingsSegment;
+
+    //  The document frequency of the term, or -1 until it is needed.
+
+    private int df = -1;
+
     /**
      * Constructor.  The term is assumed to match the body field.
      *
@@ -48,6 +63,27 @@ public class QryopIlTerm extends QryopIl {
     public void add(Qryop q) {
     }
 
+    /**
+     * Release the inverted list that the operator keeps.
+     *
+     * @return void
+     */
+    public void releaseLists() {
+        this.postings = null;
+        this.postingsCandidates = null;
+        this.postingsSegment = null;
+    }
+
+    /**
+     * @return The estimated size of the inverted list that the
+     * operator keeps.
+     */
+    public long keptListBytes() {
+        if (this.postings == null)
+            return 0;
+        return QueryMemory.POSTING_BYTES * this.postings.df + QueryMemory.POSITION_BYTES * this.postings.ctf;
+    }
+
     /**
      * Evaluates the query operator and returns the result.
      *
@@ -56,11 +92,110 @@ public class QryopIlTerm extends QryopIl {
      * @throws IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
+
+        //  A list that covers the whole collection (or segment) can be
+        //  filtered for any set of candidates; a restricted list can
+        //  only be reused for the same candidates, and a list that a
+        //  deadline truncated can't be reused.
+
+        if (this.postings == null || this.postings.truncated || this.postingsSegment != this.segment ||
+                (this.postingsCandidates != null && this.postingsCandidates != this.candidates)) {
+            QryEvents.PostingsFetch event = new QryEvents.PostingsFetch();
+            event.begin();
+
+            if (this.segment != null)
+                this.postings = new InvList(this.term, this.field, this.segment);
+            else if (this.candidates == null)
+                this.postings = new InvList(this.term, this.field);
+            else
+                this.postings = new InvList(this.term, this.field, this.candidates);
+
+            if (event.shouldCommit()) {
+                event.queryId = QryEvents.queryId();
+                event.term = this.term;
+                event.field = this.field;
+                event.candidates = (this.segment == null && this.candidates != null) ? this.candidates.length : -1;
+                event.postings = this.postings.df;
+                event.positions = this.postings.ctf;
+                event.commit();
+            }
+            this.postingsCandidates = (this.segment != null) ? null : this.candidates;
+            this.postingsSegment = this.segment;
+
+            QryMetrics.postingsRead(this.postings.df, this.postings.ctf);
+            if (QryProfiler.enabled)
+                QryProfiler.postingsRead(this.postings.df, this.postings.ctf);
+        } else {
+            QryMetrics.postingsReused();
+        }
+
         QryResult result = new QryResult();
-        result.invertedList = new InvList(this.term, this.field);
+        if (this.candidates == this.postingsCandidates)
+            result.invertedList = this.postings;
+        else
+            result.invertedList = this.postings.restrict(this.candidates);
         return result;
     }
 
+    /**
+     * The cost of a term is the length of its inverted list.
+     *
+     * @return The estimated cost.
+     * @throws IOException
+     */
+    public long estimatedCost() throws IOException {
+        if (this.postings != null && !this.postings.truncated && this.postingsSegment == this.segment
+                && this.postingsCandidates == this.candidates)
+            return this.postings.df;
+
+        if (this.df < 0)
+            this.df = QryEval.docFreq(this.field, this.term);
+
+        long cost = this.df;
+        if (this.segment != null)
+            cost = cost * this.segment.numDocs() / Math.max(QryEval.numDocs(), 1);
+        if (this.candidates != null)
+            cost = Math.min(cost, this.candidates.length);
+        return cost;
+    }
+
+    /**
+     * The number of positions in the term's list is estimated from the
+     * term's ctf in this index, in proportion to the list's estimated
+     * length.
+     *
+     * @return The estimated number of positions.
+     * @throws IOException
+     */
+    public long estimatedPositions() throws IOException {
+        long df, ctf;
+        if (QryEval.nativeIndex != null) {
+            df = QryEval.nativeIndex.docFreq(this.field, this.term);
+            ctf = QryEval.nativeIndex.totalTermFreq(this.field, this.term);
+        } else {
+            Term t = new Term(this.field, new BytesRef(this.term));
+            df = QryEval.reader().docFreq(t);
+            ctf = QryEval.reader().totalTermFreq(t);
+        }
+        if (df <= 0)
+            return 0;
+        return Math.max(ctf, df) * estimatedCost() / df;
+    }
+
+    /**
+     * @return The term string.
+     */
+    public String getTerm() {
+        return this.term;
+    }
+
+    /**
+     * @return The field name.
+     */
+    public String getField() {
+        return this.field;
+    }
+
     /*
      *  Return a string version of this query operator.
      *  @return The string version of this query operator.
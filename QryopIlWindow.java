@@ -41,6 +41,20 @@ public class QryopIlWindow extends QryopIl {
      * @throws java.io.IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
+        if (this.candidates != null)
+            return evaluateCandidates(r);
+        return evaluateList(r);
+    }
+
+    /**
+     * Evaluates the operator's inverted list from the lists of its
+     * arguments.
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of evaluating the query.
+     * @throws java.io.IOException
+     */
+    protected QryResult evaluateList(RetrievalModel r) throws IOException {
 
         //  Initialization
 
@@ -50,8 +64,14 @@ public class QryopIlWindow extends QryopIl {
         QryResult result = new QryResult();
         result.invertedList.field = new String(this.argPtrs.get(0).invList.field);
 
+        //  A list that is derived from a truncated list is truncated too.
+
+        result.invertedList.truncated = argsTruncated();
+
         int len = argPtrs.size();
         int[] pointers = new int[len];
+        QueryDeadline deadline = QueryDeadline.current();
+        int steps = 0;
         while (true) {
             boolean end = false, equal = true;
 
@@ -76,6 +96,11 @@ public class QryopIlWindow extends QryopIl {
                 }
             }
 
+            if (deadline != null && (steps++ & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(smallDocId)) {
+                result.invertedList.truncated = true;
+                break;
+            }
+
             // When a docid found in all inverted list
             if (equal) {
                 int[] locs = new int[len];
@@ -138,6 +163,8 @@ public class QryopIlWindow extends QryopIl {
             }
         }
 
+        segmentCollectionStats(result.invertedList);
+
         freeArgPtrs();
 
         return result;
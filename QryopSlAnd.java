@@ -5,6 +5,8 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.PriorityQueue;
@@ -44,13 +46,11 @@ public class QryopSlAnd extends QryopSl {
      * @throws IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
-        if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean) {
-            return (evaluateBoolean(r));
-        } else if (r instanceof RetrievalModelIndri) {
+        if (r.scorer().defaultScores()) {
             return (evaluateIndri(r));
         }
 
-        return null;
+        return (evaluateBoolean(r));
     }
 
     /**
@@ -66,6 +66,14 @@ public class QryopSlAnd extends QryopSl {
         //  Initialization
 
         allocArgPtrs(r);
+
+        //  The planner may choose bitsets for long lists (see
+        //  QryPlanner).  Document at a time is the default.
+
+        if (QryPlanner.strategy(this, QryPlanner.Strategy.DAAT) == QryPlanner.Strategy.BITSET) {
+            return evaluateBitset(r);
+        }
+
         QryResult result = new QryResult();
 
         //  Sort the arguments so that the shortest lists are first.  This
@@ -92,12 +100,16 @@ public class QryopSlAnd extends QryopSl {
         //  Otherwise it is necessary to use flags, which is also ugly.
 
         ArgPtr ptr0 = this.argPtrs.get(0);
+        QueryDeadline deadline = QueryDeadline.current();
+        boolean ranked = !r.scorer().constantScores();
 
         EVALUATEDOCUMENTS:
         for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
 
             int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
-            double docScore = r instanceof RetrievalModelRankedBoolean ? ptr0.scoreList.getDocidScore(ptr0.nextDoc) : 1.0;
+            if (deadline != null && (ptr0.nextDoc & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(ptr0Docid))
+                break;
+            double docScore = ranked ? ptr0.scoreList.getDocidScore(ptr0.nextDoc) : 1.0;
 
             //  Do the other query arguments have the ptr0Docid?
 
@@ -113,7 +125,7 @@ public class QryopSlAnd extends QryopSl {
                     else if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid)
                         ptrj.nextDoc++;            // Not yet at the right doc.
                     else {
-                        if (r instanceof RetrievalModelRankedBoolean) {
+                        if (ranked) {
                             docScore = Math.min(docScore, ptrj.scoreList.getDocidScore(ptrj.nextDoc));
                         }
                         break;                // ptrj matches ptr0Docid
@@ -134,6 +146,69 @@ public class QryopSlAnd extends QryopSl {
         return result;
     }
 
+    /**
+     * Evaluates the query operator for boolean retrieval models by
+     * intersecting a bitset of each argument's documents.  For the
+     * ranked boolean model, each list then visits the matches in docid
+     * order, to find their minimum scores.
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of evaluating the query.
+     * @throws IOException
+     */
+    private QryResult evaluateBitset(RetrievalModel r) throws IOException {
+        QryResult result = new QryResult();
+        QueryDeadline deadline = QueryDeadline.current();
+        int limit = Integer.MAX_VALUE;
+        boolean ranked = !r.scorer().constantScores();
+
+        BitSet matches = null;
+        for (int k = 0; k < this.argPtrs.size(); k++) {
+            ScoreList list = this.argPtrs.get(k).scoreList;
+            BitSet docs = new BitSet(QryEval.numDocs());
+
+            for (int j = 0; j < list.scores.size(); j++) {
+                int docid = list.getDocid(j);
+                if (deadline != null && (j & QueryDeadline.CHECK_MASK) == 0)
+                    limit = deadline.check(docid);
+                if (docid >= limit)
+                    continue;
+                docs.set(docid);
+            }
+
+            if (matches == null)
+                matches = docs;
+            else
+                matches.and(docs);
+        }
+
+        double[] scores = null;
+        if (ranked) {
+            scores = new double[matches.cardinality()];
+            Arrays.fill(scores, Double.MAX_VALUE);
+
+            for (int k = 0; k < this.argPtrs.size(); k++) {
+                ScoreList list = this.argPtrs.get(k).scoreList;
+                int m = 0;
+                for (int j = 0; j < list.scores.size() && m < scores.length; j++) {
+                    if (matches.get(list.getDocid(j))) {
+                        scores[m] = Math.min(scores[m], list.getDocidScore(j));
+                        m++;
+                    }
+                }
+            }
+        }
+
+        int m = 0;
+        for (int docid = matches.nextSetBit(0); docid >= 0; docid = matches.nextSetBit(docid + 1))
+            result.docScores.add(docid, ranked ? scores[m++] : 1.0);
+
+        Collections.sort(result.docScores.scores);
+        freeArgPtrs();
+
+        return result;
+    }
+
 
     public QryResult evaluateIndri(RetrievalModel r) throws IOException{
         allocArgPtrs(r);
@@ -141,13 +216,26 @@ public class QryopSlAnd extends QryopSl {
 
         if (args.size() == 1) {
             result.docScores = this.argPtrs.get(0).scoreList;
+            freeArgPtrs();
             return result;
         }
 
-        int index = 0;
-        while (index < argPtrs.size()) {
+        //  Each pass of the loop scores the smallest unexamined docid,
+        //  until all of the score lists are depleted.  (Empty lists
+        //  are depleted from the start.)
+
+        QueryDeadline deadline = QueryDeadline.current();
+        int steps = 0;
+
+        while (true) {
             // Get smallest docid in ptri[nextDocid]
             int docid = getSmallestDocid();
+            if (docid == Integer.MAX_VALUE) {
+                break;
+            }
+            if (deadline != null && (steps++ & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(docid)) {
+                break;
+            }
             double score = 1.0;
 
             for (int i = 0; i < argPtrs.size(); i++) {
@@ -160,11 +248,6 @@ public class QryopSlAnd extends QryopSl {
                     // In case of equal
                     score *= ptri.scoreList.getDocidScore(ptri.nextDoc);
                     ptri.nextDoc++;
-
-                    // If one ptri has traversed out score list, we know we finished some part
-                    if (ptri.nextDoc >= ptri.scoreList.scores.size()) {
-                        index++;
-                    }
                 }
             }
 
@@ -204,7 +287,7 @@ public class QryopSlAnd extends QryopSl {
      */
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-        if (!(r instanceof RetrievalModelIndri)) {
+        if (!r.scorer().defaultScores()) {
             return (0.0);
         }
 
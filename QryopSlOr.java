@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,6 +31,17 @@ public class QryopSlOr extends QryopSl {
         //  Initialization
 
         allocArgPtrs(r);
+
+        //  The planner chooses how the score lists are combined (see
+        //  QryPlanner).  Term at a time is the default.
+
+        QryPlanner.Strategy strategy = QryPlanner.strategy(this, QryPlanner.Strategy.TAAT);
+        if (strategy == QryPlanner.Strategy.DAAT) {
+            return evaluateDaat(r);
+        } else if (strategy == QryPlanner.Strategy.BITSET && r.scorer().constantScores()) {
+            return evaluateBitset();
+        }
+
         QryResult result = new QryResult();
 
         // Use a hashmap to record max score
@@ -37,13 +49,20 @@ public class QryopSlOr extends QryopSl {
 
         // Use a set to remove duplicate
         HashSet<Integer> set = new HashSet<Integer>();
+        QueryDeadline deadline = QueryDeadline.current();
+        int limit = Integer.MAX_VALUE;
+        boolean ranked = !r.scorer().constantScores();
         for (int k = 0; k < this.argPtrs.size(); k++) {
             ArgPtr ptr = this.argPtrs.get(k);
 
             for (int j = 0; j < ptr.scoreList.scores.size(); j++) {
                 int ptrDocid = ptr.scoreList.getDocid(j);
+                if (deadline != null && (j & QueryDeadline.CHECK_MASK) == 0)
+                    limit = deadline.check(ptrDocid);
+                if (ptrDocid >= limit)
+                    continue;
                 set.add(ptrDocid);
-                if (r instanceof RetrievalModelRankedBoolean) {
+                if (ranked) {
                     if (!scoreMap.containsKey(ptrDocid)) {
                         scoreMap.put(ptrDocid, ptr.scoreList.scores.get(j).getScore());
                     } else {
@@ -57,17 +76,108 @@ public class QryopSlOr extends QryopSl {
         }
 
         for (int i : set) {
-            if (r instanceof RetrievalModelUnrankedBoolean)
-                result.docScores.scores.add(new ScoreListEntry(i, 1.0));
+            if (!ranked)
+                result.docScores.add(i, 1.0);
             else
-                result.docScores.scores.add(new ScoreListEntry(i, scoreMap.get(i)));
+                result.docScores.add(i, scoreMap.get(i));
+        }
+
+        freeArgPtrs();
+
+        return result;
+    }
+
+    /**
+     * Combine the score lists document at a time.  Each pass of the
+     * loop scores the smallest unexamined docid, so the result is in
+     * docid order.
+     *
+     * @param r A retrieval model that controls how the operator behaves.
+     * @return The result of the operator.
+     * @throws IOException
+     */
+    private QryResult evaluateDaat(RetrievalModel r) throws IOException {
+        QryResult result = new QryResult();
+        QueryDeadline deadline = QueryDeadline.current();
+        boolean ranked = !r.scorer().constantScores();
+        int steps = 0;
+
+        while (true) {
+            int docid = getSmallestDocid();
+            if (docid == Integer.MAX_VALUE) {
+                break;
+            }
+            if (deadline != null && (steps++ & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(docid)) {
+                break;
+            }
+            double score = Double.NEGATIVE_INFINITY;
+
+            for (int i = 0; i < argPtrs.size(); i++) {
+                ArgPtr ptri = argPtrs.get(i);
+
+                if (ptri.nextDoc < ptri.scoreList.scores.size() && ptri.scoreList.getDocid(ptri.nextDoc) == docid) {
+                    score = Math.max(score, ptri.scoreList.getDocidScore(ptri.nextDoc));
+                    ptri.nextDoc++;
+                }
+            }
+
+            result.docScores.add(docid, ranked ? score : 1.0);
         }
 
         freeArgPtrs();
+        return result;
+    }
 
+    /**
+     * Combine the score lists of the unranked boolean model in a
+     * bitset of the collection.  The result is in docid order.
+     *
+     * @return The result of the operator.
+     * @throws IOException
+     */
+    private QryResult evaluateBitset() throws IOException {
+        QryResult result = new QryResult();
+        QueryDeadline deadline = QueryDeadline.current();
+        int limit = Integer.MAX_VALUE;
+        BitSet matches = new BitSet(QryEval.numDocs());
+
+        for (int k = 0; k < this.argPtrs.size(); k++) {
+            ScoreList list = this.argPtrs.get(k).scoreList;
+
+            for (int j = 0; j < list.scores.size(); j++) {
+                int docid = list.getDocid(j);
+                if (deadline != null && (j & QueryDeadline.CHECK_MASK) == 0)
+                    limit = deadline.check(docid);
+                if (docid >= limit)
+                    continue;
+                matches.set(docid);
+            }
+        }
+
+        for (int docid = matches.nextSetBit(0); docid >= 0; docid = matches.nextSetBit(docid + 1))
+            result.docScores.add(docid, 1.0);
+
+        freeArgPtrs();
         return result;
     }
 
+    /**
+     * Get smallest docid in all argPtrs on index nextDocid
+     * @return
+     */
+    private int getSmallestDocid() {
+        int docid = Integer.MAX_VALUE;
+
+        for (int i = 0; i < argPtrs.size(); i++) {
+            ArgPtr ptri = argPtrs.get(i);
+            if (ptri.nextDoc >= ptri.scoreList.scores.size()) {
+                continue;
+            }
+            docid = Math.min(docid, ptri.scoreList.getDocid(ptri.nextDoc));
+        }
+        return docid;
+    }
+
     @Override
     public String toString() {
         String result = new String();
@@ -81,9 +191,6 @@ public class QryopSlOr extends QryopSl {
 
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-        if (r instanceof RetrievalModelUnrankedBoolean)
-            return (0.0);
-
         return 0.0;
     }
 }
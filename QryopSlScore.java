@@ -13,10 +13,9 @@ import java.util.Iterator;
 
 public class QryopSlScore extends QryopSl {
 
-    private double lambda;
-    private double mu;
-    private double indriIDF;
-    private String field;
+    //  The scorer of the argument's list, from the last evaluation.
+
+    private Scorer.Term term = null;
 
     /**
      * Construct a new SCORE operator.  The SCORE operator accepts just
@@ -62,45 +61,28 @@ public class QryopSlScore extends QryopSl {
      * @throws IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
-        if (r instanceof RetrievalModelUnrankedBoolean || r instanceof RetrievalModelRankedBoolean) {
-            return (evaluateBoolean(r));
-        } else if (r instanceof RetrievalModelBM25) {
-            return (evaluateBM((RetrievalModelBM25) r));
-        } else if (r instanceof RetrievalModelIndri) {
-            // Load params at once to avoid repeat
-            loadParams(r);
-            return (evaluateIndri((RetrievalModelIndri) r));
-        }
-        return null;
-    }
-
-    /**
-     * Evaluate the query operator for boolean retrieval models.
-     *
-     * @param r A retrieval model that controls how the operator behaves.
-     * @return The result of evaluating the query.
-     * @throws IOException
-     */
-    public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
 
         // Evaluate the query argument.
 
-        QryResult result = args.get(0).evaluate(r);
+        QryResult result = QryProfiler.evaluate(args.get(0), r);
+        InvList list = result.invertedList;
+        if (list.truncated && list.collectionDf < 0)
+            throw QueryDeadline.statisticsUnknown(args.get(0).toString());
+
+        Scorer.Term term = r.scorer().term(list);
+        this.term = term;
+        QueryDeadline deadline = QueryDeadline.current();
 
         // Each pass of the loop computes a score for one document. Note:
         // If the evaluate operation above returned a score list (which is
         // very possible), this loop gets skipped.
 
-        for (int i = 0; i < result.invertedList.df; i++) {
-
-            // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY.
-            // Unranked Boolean. All matching documents get a score of 1.0.
-            if (r instanceof RetrievalModelUnrankedBoolean) {
-                result.docScores.add(result.invertedList.postings.get(i).docid,
-                        (float) 1.0);
-            } else if (r instanceof RetrievalModelRankedBoolean) {
-                result.docScores.add(result.invertedList.postings.get(i).docid,
-                        (double) result.invertedList.postings.get(i).tf);
+        if (!term.isEmpty()) {
+            for (int i = 0; i < list.df; i++) {
+                InvList.DocPosting posting = list.postings.get(i);
+                if (deadline != null && (i & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(posting.docid))
+                    break;
+                result.docScores.add(posting.docid, term.score(posting.docid, posting.tf));
             }
         }
 
@@ -113,65 +95,6 @@ public class QryopSlScore extends QryopSl {
         return result;
     }
 
-    public QryResult evaluateBM(RetrievalModelBM25 r) throws  IOException{
-        QryResult result = args.get(0).evaluate(r);
-
-        // Get global params
-        double k1 = r.getK1(), b = r.getB();
-        int df = result.invertedList.df;
-        int numDocs = QryEval.READER.numDocs();
-        String field = result.invertedList.field;
-
-        // Get doc related params and do calculation
-        for (int i = 0; i < df; i++) {
-            double idf = Math.log((numDocs - df + 0.5) / (df + 0.5));
-            if (idf <= 0) {
-                continue;
-            }
-            int tf = result.invertedList.getTf(i);
-
-            long docLen = QryEval.dls.getDocLength(field, result.invertedList.getDocid(i));
-            double avgLen = QryEval.READER.getSumTotalTermFreq(field) / (double) QryEval.READER.getDocCount(field);
-
-            double tfWeight = tf / (tf + k1 * ((1-b) + b * docLen/avgLen));
-            double score = idf * tfWeight;
-            result.docScores.add(result.invertedList.getDocid(i), score);
-        }
-
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
-        return result;
-    }
-
-    public QryResult evaluateIndri(RetrievalModelIndri r) throws IOException {
-        QryResult result = args.get(0).evaluate(r);
-
-        for (int i = 0; i < result.invertedList.df; i++) {
-            InvList.DocPosting currDoc = result.invertedList.postings.get(i);
-            double indriScore = (1 - lambda) * (currDoc.tf + mu * indriIDF) / (QryEval.dls.getDocLength(field, currDoc.docid) + mu) + lambda * indriIDF;
-            result.docScores.add(currDoc.docid, indriScore);
-        }
-
-
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
-
-        return result;
-    }
-
-    /**
-     * Load necessary params of Indri at once to avoid repeatedly call
-     * @param r
-     * @throws IOException
-     */
-    private void loadParams(RetrievalModel r) throws IOException{
-        RetrievalModelIndri ir = (RetrievalModelIndri) r;
-        lambda = ir.getLambda();
-        mu = ir.getMu();
-        InvList currInv = args.get(0).evaluate(r).invertedList;
-        indriIDF = (double) currInv.ctf / QryEval.READER.getSumTotalTermFreq(currInv.field);
-        field = currInv.field;
-    }
     /*
      *  Calculate the default score for a document that does not match
      *  the query argument.  This score is 0 for many retrieval models,
@@ -182,12 +105,13 @@ public class QryopSlScore extends QryopSl {
      */
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-        if (!(r instanceof RetrievalModelIndri))
-            return (0.0);
+        if (QryProfiler.enabled)
+            QryProfiler.defaultScore();
 
-        double docLength = QryEval.dls.getDocLength(field, (int) docid);
+        if (term == null)
+            return (0.0);
 
-        return (1.0 - lambda) * mu * indriIDF / (docLength + mu) + lambda * indriIDF;
+        return term.defaultScore((int) docid);
     }
 
     /**
@@ -1,6 +1,9 @@
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.PriorityQueue;
 
 /**
  * Created by wenhanl on 15-2-17.
@@ -20,11 +23,24 @@ public class QryopSlSum extends QryopSl{
 
     @Override
     public QryResult evaluate(RetrievalModel r) throws IOException {
-        if (!(r instanceof RetrievalModelBM25)) {
+        if (r.scorer().defaultScores()) {
             return null;
         }
 
+        //  The planner chooses how the score lists are summed (see
+        //  QryPlanner).  Term at a time is the default.
+
+        QryPlanner.Strategy strategy = QryPlanner.strategy(this, QryPlanner.Strategy.TAAT);
+        if (strategy == QryPlanner.Strategy.PRUNED) {
+            allocPrunedArgPtrs(r, this.plan.depth);
+            return evaluateDaat();
+        }
+
         allocArgPtrs(r);
+        if (strategy == QryPlanner.Strategy.DAAT) {
+            return evaluateDaat();
+        }
+
         QryResult result = new QryResult();
 
         // Use a hashmap to record sum
@@ -32,11 +48,17 @@ public class QryopSlSum extends QryopSl{
 
         // Use a set to remove duplicate
         HashSet<Integer> set = new HashSet<Integer>();
+        QueryDeadline deadline = QueryDeadline.current();
+        int limit = Integer.MAX_VALUE;
         for (int k = 0; k < this.argPtrs.size(); k++) {
             ArgPtr ptr = this.argPtrs.get(k);
 
             for (int j = 0; j < ptr.scoreList.scores.size(); j++) {
                 int ptrDocid = ptr.scoreList.getDocid(j);
+                if (deadline != null && (j & QueryDeadline.CHECK_MASK) == 0)
+                    limit = deadline.check(ptrDocid);
+                if (ptrDocid >= limit)
+                    continue;
                 //set.add(ptrDocid);
                 if (set.add(ptrDocid)) {
                     scoreMap.put(ptrDocid, ptr.scoreList.getDocidScore(j));
@@ -47,7 +69,7 @@ public class QryopSlSum extends QryopSl{
         }
 
         for (int i : set) {
-            result.docScores.scores.add(new ScoreListEntry(i, scoreMap.get(i)));
+            result.docScores.add(i, scoreMap.get(i));
         }
 
         freeArgPtrs();
@@ -55,6 +77,157 @@ public class QryopSlSum extends QryopSl{
 
     }
 
+    /**
+     * Sum the score lists document at a time.  Each pass of the loop
+     * scores the smallest unexamined docid, so the result is in docid
+     * order.
+     *
+     * @return The result of the operator.
+     * @throws IOException
+     */
+    private QryResult evaluateDaat() throws IOException {
+        QryResult result = new QryResult();
+        QueryDeadline deadline = QueryDeadline.current();
+        int steps = 0;
+
+        while (true) {
+            int docid = getSmallestDocid();
+            if (docid == Integer.MAX_VALUE) {
+                break;
+            }
+            if (deadline != null && (steps++ & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(docid)) {
+                break;
+            }
+            double score = 0;
+
+            for (int i = 0; i < argPtrs.size(); i++) {
+                ArgPtr ptri = argPtrs.get(i);
+
+                if (ptri.nextDoc < ptri.scoreList.scores.size() && ptri.scoreList.getDocid(ptri.nextDoc) == docid) {
+                    score += ptri.scoreList.getDocidScore(ptri.nextDoc);
+                    ptri.nextDoc++;
+                }
+            }
+
+            result.docScores.add(docid, score);
+        }
+
+        freeArgPtrs();
+        return result;
+    }
+
+    /**
+     * Evaluate the arguments for pruned evaluation (see QryPlanner).
+     * They are evaluated from the highest upper bound of their scores
+     * down, until the bounds of the arguments that are left add up to
+     * less than the depth'th best partial score.  A document that none
+     * of the evaluated arguments matched can't reach the top depth
+     * then, so the arguments that are left are only evaluated for the
+     * documents that were matched.
+     *
+     * @param r     A retrieval model that controls how the operator behaves.
+     * @param depth The number of top documents that must be exact.
+     * @throws IOException
+     */
+    private void allocPrunedArgPtrs(RetrievalModel r, int depth) throws IOException {
+        int n = this.args.size();
+        final double[] bounds = new double[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            if (!QryopSl.class.isInstance(this.args.get(i)))
+                this.args.set(i, new QryopSlScore(this.args.get(i), this.args.get(i).weight));
+            bounds[i] = QryPlanner.bound(this.args.get(i), r);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(bounds[b], bounds[a]);
+            }
+        });
+
+        ScoreList[] lists = new ScoreList[n];
+        HashMap<Integer, Double> partial = new HashMap<Integer, Double>();
+        int next = 0;
+        for (; next < n; next++) {
+            double rest = 0;
+            for (int j = next; j < n; j++)
+                rest += bounds[order[j]];
+            if (next > 0 && rest < kthBest(partial, depth))
+                break;
+
+            ScoreList list = QryProfiler.evaluate(this.args.get(order[next]), r).docScores;
+            for (int j = 0; j < list.scores.size(); j++) {
+                Double score = partial.get(list.getDocid(j));
+                partial.put(list.getDocid(j),
+                        (score == null) ? list.getDocidScore(j) : score + list.getDocidScore(j));
+            }
+            lists[order[next]] = list;
+        }
+
+        if (next < n) {
+            int[] matched = new int[partial.size()];
+            int m = 0;
+            for (int docid : partial.keySet())
+                matched[m++] = docid;
+            Arrays.sort(matched);
+
+            for (; next < n; next++) {
+                Qryop arg = this.args.get(order[next]);
+                arg.restrictTo(matched);
+                try {
+                    lists[order[next]] = QryProfiler.evaluate(arg, r).docScores;
+                } finally {
+                    arg.restrictTo(this.candidates);
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            ArgPtr ptri = new ArgPtr();
+            ptri.invList = null;
+            ptri.scoreList = lists[i];
+            ptri.nextDoc = 0;
+
+            this.argPtrs.add(ptri);
+        }
+    }
+
+    /**
+     * @return The k'th best score, or 0 if there are fewer than k.
+     */
+    private static double kthBest(HashMap<Integer, Double> scores, int k) {
+        if (scores.size() < k)
+            return 0;
+
+        PriorityQueue<Double> best = new PriorityQueue<Double>(k);
+        for (double score : scores.values()) {
+            if (best.size() < k) {
+                best.offer(score);
+            } else if (score > best.peek()) {
+                best.poll();
+                best.offer(score);
+            }
+        }
+        return best.peek();
+    }
+
+    /**
+     * Get smallest docid in all argPtrs on index nextDocid
+     * @return
+     */
+    private int getSmallestDocid() {
+        int docid = Integer.MAX_VALUE;
+
+        for (int i = 0; i < argPtrs.size(); i++) {
+            ArgPtr ptri = argPtrs.get(i);
+            if (ptri.nextDoc >= ptri.scoreList.scores.size()) {
+                continue;
+            }
+            docid = Math.min(docid, ptri.scoreList.getDocid(ptri.nextDoc));
+        }
+        return docid;
+    }
+
     @Override
     public String toString() {
         String result = new String();
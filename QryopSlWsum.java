@@ -10,7 +10,7 @@ public class QryopSlWsum extends QryopSl{
 
     @Override
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-        if (!(r instanceof RetrievalModelIndri)) {
+        if (!r.scorer().defaultScores()) {
             return (0.0);
         }
 
@@ -30,7 +30,7 @@ public class QryopSlWsum extends QryopSl{
 
     @Override
     public QryResult evaluate(RetrievalModel r) throws IOException {
-        if (!(r instanceof RetrievalModelIndri)) {
+        if (!r.scorer().defaultScores()) {
             return null;
         }
 
@@ -39,6 +39,7 @@ public class QryopSlWsum extends QryopSl{
 
         if (args.size() == 1) {
             result.docScores = this.argPtrs.get(0).scoreList;
+            freeArgPtrs();
             return result;
         }
 
@@ -47,10 +48,22 @@ public class QryopSlWsum extends QryopSl{
             totalWeight += args.get(i).weight;
         }
 
-        int index = 0;
-        while (index < argPtrs.size()) {
+        //  Each pass of the loop scores the smallest unexamined docid,
+        //  until all of the score lists are depleted.  (Empty lists
+        //  are depleted from the start.)
+
+        QueryDeadline deadline = QueryDeadline.current();
+        int steps = 0;
+
+        while (true) {
             // Get smallest docid in ptri[nextDocid]
             int docid = getSmallestDocid();
+            if (docid == Integer.MAX_VALUE) {
+                break;
+            }
+            if (deadline != null && (steps++ & QueryDeadline.CHECK_MASK) == 0 && deadline.stop(docid)) {
+                break;
+            }
             double score = 0;
 
             for (int i = 0; i < argPtrs.size(); i++) {
@@ -66,11 +79,6 @@ public class QryopSlWsum extends QryopSl{
                     double tmp = ptri.scoreList.getDocidScore(ptri.nextDoc);
                     score += tmp * weight;
                     ptri.nextDoc++;
-
-                    // If one ptri has traversed out score list, we know we finished some part
-                    if (ptri.nextDoc >= ptri.scoreList.scores.size()) {
-                        index++;
-                    }
                 }
             }
 
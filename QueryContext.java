@@ -0,0 +1,75 @@
+/**
+ *  QueryContext is the state that the threads evaluating one query
+ *  share: the query id that its flight recorder events carry (see
+ *  {@link QryEvents}), the account of the memory that its
+ *  intermediate lists hold (see {@link QueryMemory}) and its deadline
+ *  (see {@link QueryDeadline}), which starts when the context is
+ *  created.  The caller also sets how many of the top documents it
+ *  needs, which lets the planner prune (see {@link QryPlanner}).
+ *
+ *  The thread that starts a query enters its context, and the
+ *  parallel evaluators pass it on to their threads with the pinned
+ *  index snapshot.  The query's memory is released when the context
+ *  is closed.
+ */
+
+public class QueryContext {
+
+    private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<QueryContext>();
+
+    final String queryId;
+    final QueryMemory memory = new QueryMemory();
+    final QueryDeadline deadline = new QueryDeadline();
+
+    //  The number of top documents that the caller needs, or 0 if it
+    //  needs every match.
+
+    int depth = 0;
+
+    //  True once the query is evaluated again over the documents of its
+    //  rarest term (see QryEval.degrade).
+
+    volatile boolean degraded = false;
+
+    //  In a shard worker, the collection statistics of the query's
+    //  terms, which the broker sent (see ShardWorker), or null.
+
+    CollectionStats termStats;
+
+    /**
+     * @param queryId The query id.
+     */
+    public QueryContext(String queryId) {
+        this.queryId = queryId;
+    }
+
+    /**
+     * @return The context of the current thread's query, or null.
+     */
+    static QueryContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Make a context the current thread's context.
+     *
+     * @param context The context, or null if the thread has no query.
+     * @return The previous context, which the caller restores when the
+     * query is done.
+     */
+    static QueryContext enter(QueryContext context) {
+        QueryContext previous = CURRENT.get();
+        if (context == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * Release the memory of the query.
+     */
+    public void close() {
+        memory.close();
+    }
+}
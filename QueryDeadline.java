@@ -0,0 +1,229 @@
+/**
+ *  QueryDeadline bounds the time that one query takes.  With
+ *  deadline:ms, every query must finish within that many milliseconds
+ *  of its start; the server also accepts deadlineMs (and onExpiry) per
+ *  request.
+ *
+ *  The deadline is checked cooperatively: the loops that fetch
+ *  postings and that merge the lists of operator arguments check it
+ *  every CHECK_INTERVAL documents.  Loops that visit documents in
+ *  docid order call stop, and stop at the first document at or after
+ *  the limit (below), so the documents before it have been evaluated
+ *  completely by that operator.  Loops over lists that may be in
+ *  another order (term at a time, bitsets), e.g., the result of a
+ *  nested term-at-a-time #SUM or #OR, which is in hash order, or of a
+ *  ranked boolean #AND, which is sorted by score, call check instead,
+ *  and skip the documents at or after the limit, but don't stop.
+ *
+ *  With deadline:onExpiry=abort (the default), an expired query
+ *  throws ExpiredException.  With deadline:onExpiry=partial, the docid
+ *  becomes the limit of the query instead: every loop stops at it,
+ *  including those of operators that are evaluated afterwards, and
+ *  the result only contains documents before it (see finish), so
+ *  their scores are exact.  The result is the best top k of the
+ *  documents that were evaluated, and it is marked as partial.  The
+ *  rest of the evaluation is bounded by the deadline again: a query
+ *  that is still running after twice its time is aborted.
+ *
+ *  A derived inverted list (#NEAR, #SYN, ...) that is truncated has
+ *  unknown collection statistics, unless they were computed before,
+ *  so the query is aborted before the list is scored, with either
+ *  setting (see statisticsUnknown).
+ *
+ *  Evaluators that have their own loops (impacts, the shard broker)
+ *  are not checked.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+public class QueryDeadline {
+
+    //  Loops check the clock once per CHECK_INTERVAL documents, so a
+    //  check costs about as much as a few postings.
+
+    static final int CHECK_INTERVAL = 256;
+    static final int CHECK_MASK = CHECK_INTERVAL - 1;
+
+    //  The longest deadline, about 73 years.  The clock is compared by
+    //  differences, so hardEnd must stay within 2^63 ns of now.
+
+    private static final long MAX_MILLIS = Long.MAX_VALUE / 4 / 1000000L;
+
+    //  Set once at startup.  0 means no deadline.
+
+    static long defaultMillis = 0;
+    static boolean defaultPartial = false;
+
+    private long millis = 0;
+    private boolean partial;
+    private long end;
+    private long hardEnd;
+
+    private volatile boolean expired = false;
+    private volatile int limit = Integer.MAX_VALUE;
+
+    /**
+     * Start the clock of a query, with the configured deadline.
+     */
+    QueryDeadline() {
+        start(defaultMillis, defaultPartial);
+    }
+
+    /**
+     * Set the defaults.
+     *
+     * @param params deadline:ms and deadline:onExpiry (abort or
+     *               partial).
+     */
+    static void configure(Map<String, String> params) {
+        if (params.containsKey("deadline:ms"))
+            defaultMillis = Long.parseLong(params.get("deadline:ms"));
+        if (defaultMillis < 0)
+            throw new IllegalArgumentException("deadline:ms must not be negative (0 means no deadline)");
+
+        defaultPartial = parseOnExpiry(params.get("deadline:onExpiry"), false);
+    }
+
+    /**
+     * @param onExpiry abort, partial or null.
+     * @param partial  The value if onExpiry is null.
+     * @return True if an expired query returns a partial result.
+     */
+    static boolean parseOnExpiry(String onExpiry, boolean partial) {
+        if (onExpiry == null)
+            return partial;
+        if (!onExpiry.equals("abort") && !onExpiry.equals("partial"))
+            throw new IllegalArgumentException("Unknown deadline:onExpiry " + onExpiry);
+        return onExpiry.equals("partial");
+    }
+
+    /**
+     * Restart the clock with a different deadline, e.g., the deadline
+     * of a request.  The query must not be evaluated yet.
+     *
+     * @param millis  The deadline in milliseconds, or 0 for none.
+     * @param partial True if an expired query returns a partial result.
+     */
+    void start(long millis, boolean partial) {
+        long now = System.nanoTime();
+
+        //  Clamp very long deadlines, so the hard end doesn't overflow.
+        millis = Math.min(millis, MAX_MILLIS);
+        this.millis = millis;
+        this.partial = partial;
+        this.end = now + millis * 1000000L;
+        this.hardEnd = now + 2 * millis * 1000000L;
+    }
+
+    /**
+     * @return The deadline of the current thread's query, or null if
+     * it has none.  Loops fetch it once, before they start.
+     */
+    static QueryDeadline current() {
+        QueryContext context = QueryContext.current();
+        return (context != null && context.deadline.millis > 0) ? context.deadline : null;
+    }
+
+    /**
+     * Check the deadline in a loop over documents in docid order.
+     *
+     * @param docid The next document that the loop would evaluate.
+     * @return True if the loop must stop, because the query's result
+     * is limited to the documents before docid.
+     * @throws ExpiredException If the query is aborted.
+     */
+    boolean stop(int docid) throws ExpiredException {
+        return docid >= limit || docid >= check(docid);
+    }
+
+    /**
+     * Check the deadline in a loop over documents in any order.
+     *
+     * @param docid The next document that the loop would evaluate.
+     * @return The limit of the query's result: the loop skips
+     * documents at or after it.  Integer.MAX_VALUE if there is none.
+     * @throws ExpiredException If the query is aborted.
+     */
+    int check(int docid) throws ExpiredException {
+        long now = System.nanoTime();
+        if (!expired) {
+            if (now - end < 0)
+                return limit;
+            if (!partial) {
+                QryMetrics.deadlineExpired();
+                throw new ExpiredException("The query took more than its deadline of " + millis + " ms");
+            }
+
+            expire(docid);
+            return limit;
+        }
+
+        if (now - hardEnd >= 0) {
+            QryMetrics.deadlineExpired();
+            throw new ExpiredException("The query took more than twice its deadline of " + millis
+                    + " ms, even for a partial result");
+        }
+        return limit;
+    }
+
+    /**
+     * Limit the query's result to the documents before docid, as an
+     * expired partial query does.
+     *
+     * @param docid The document that a loop reached.
+     */
+    synchronized void expire(int docid) {
+        if (!expired) {
+            limit = docid;
+            expired = true;
+        }
+    }
+
+    /**
+     * Limit the result of the current thread's query to the documents
+     * that it evaluated completely, if its deadline passed.
+     *
+     * @param result The result of the query.
+     * @return The result, marked as partial if the deadline passed.
+     */
+    static QryResult finish(QryResult result) {
+        QueryDeadline deadline = current();
+        if (deadline == null || !deadline.expired || result.partial)
+            return result;
+
+        result.docScores.retainBefore(deadline.limit);
+        result.partial = true;
+        QryMetrics.queryPartial();
+
+        System.err.println("Warning: Query " + QryEvents.queryId() + " took more than its deadline of "
+                + deadline.millis + " ms; the result only covers the documents before " + deadline.limit);
+        return result;
+    }
+
+    /**
+     * The deadline truncated a derived inverted list (#NEAR, #SYN,
+     * ...) before its collection statistics were known.  Scores from
+     * the statistics of the truncated list would be wrong, so the
+     * query is aborted, even if it returns partial results.
+     *
+     * @param key The operator that computed the list, as a string.
+     * @return The exception to throw.
+     */
+    static ExpiredException statisticsUnknown(String key) {
+        QryMetrics.deadlineExpired();
+        return new ExpiredException("The query's deadline passed before the collection statistics of "
+                + key + " were known");
+    }
+
+    /**
+     * A query took more than its deadline.
+     */
+    static class ExpiredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExpiredException(String message) {
+            super(message);
+        }
+    }
+}
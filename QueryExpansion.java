@@ -0,0 +1,301 @@
+/**
+ *  QueryExpansion computes the pseudo-relevance feedback terms for a
+ *  single query from its initial ranking.  It fetches the term
+ *  vectors of the top fbDocs documents, scores every candidate stem
+ *  with the Indri expansion formula, and keeps the fbTerms best.
+ *
+ *  Each instance owns all of its state, so the expansions of many
+ *  queries can be computed concurrently (see
+ *  {@link QryEval#queryExpansion}).  Candidate stems are identified by
+ *  their global ordinals (see {@link CompactTermVector}) and mapped to
+ *  dense slots by a small open addressing table, and per-stem
+ *  statistics live in primitive arrays indexed by slot instead of
+ *  per-stem objects and document sets.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+
+public class QueryExpansion implements Callable<QueryExpansion> {
+
+    private final String queryId;
+    private final ScoreList ranking;
+    private final int fbDocs;
+    private final int fbTerms;
+    private final double fbMu;
+    private final long totalC;
+    private final IndexSnapshot snapshot = QryEval.pinned();
+
+    //  Per-query stem table.  slotKeys and slotValues are an open
+    //  addressing hash table that maps a stem ordinal (stored as
+    //  ordinal + 1, so that 0 marks an empty bucket) to its index in
+    //  the arrays below.  presentWeight is the sum of
+    //  indriScore / (docLen + mu) over the feedback documents that
+    //  contain the stem; it is used to compute the default score
+    //  contribution of the documents that don't.
+
+    private int[] slotKeys = new int[512];
+    private int[] slotValues = new int[512];
+    private int[] stems = new int[256];
+    private double[] scores = new double[256];
+    private double[] ptcs = new double[256];
+    private double[] presentWeight = new double[256];
+    private int numStems = 0;
+
+    //  The selected expansion terms, in descending weight order.
+
+    String[] terms;
+    double[] weights;
+
+    /**
+     * @param queryId The query id.
+     * @param ranking The initial ranking of the query, sorted by score.
+     * @param fbDocs  The number of feedback documents.
+     * @param fbTerms The number of expansion terms to select.
+     * @param fbMu    The Dirichlet smoothing parameter of the expansion model.
+     * @param totalC  The total number of terms in the body field.
+     */
+    public QueryExpansion(String queryId, ScoreList ranking, int fbDocs, int fbTerms, double fbMu, long totalC) {
+        this.queryId = queryId;
+        this.ranking = ranking;
+        this.fbDocs = fbDocs;
+        this.fbTerms = fbTerms;
+        this.fbMu = fbMu;
+        this.totalC = totalC;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    /**
+     * Score the candidate stems and select the expansion terms.
+     *
+     * @return this object, with terms and weights filled in.
+     * @throws IOException
+     */
+    public QueryExpansion call() throws IOException {
+        IndexSnapshot previous = QryEval.pin(snapshot);
+        QueryContext context = new QueryContext(queryId);
+        QueryContext previousContext = QueryContext.enter(context);
+        try {
+            return expand();
+        } finally {
+            QueryContext.enter(previousContext);
+            context.close();
+            QryEval.pin(previous);
+        }
+    }
+
+    private QueryExpansion expand() throws IOException {
+
+        int numDocs = Math.min(fbDocs, ranking.size());
+        double totalWeight = 0;
+
+        for (int j = 0; j < numDocs; j++) {
+
+            double indriScore = ranking.getDocidScore(j);
+            CompactTermVector vector = QryEval.termVectors.get(ranking.getDocid(j), "body");
+
+            int docLen = vector.positionsLength();
+            double docWeight = indriScore / (docLen + fbMu);
+            totalWeight += docWeight;
+
+            //  Each stem of the document's vocabulary is scored once.
+
+            for (int k = 1; k < vector.stemsLength(); k++) {
+                int slot = slotOf(vector.stemId(k));
+                if (ptcs[slot] < 0) {
+                    continue;
+                }
+                if (ptcs[slot] == 0) {
+                    String stemString = vector.stemString(k);
+                    if (stemString.contains(".") || stemString.contains(",")) {
+                        ptcs[slot] = -1;
+                        continue;
+                    }
+                    ptcs[slot] = (double) vector.totalStemFreq(k) / totalC;
+                }
+                double ptc = ptcs[slot];
+                double idf = Math.log(1.0 / ptc);
+                double ptd = (vector.stemFreq(k) + fbMu * ptc) / (docLen + fbMu);
+
+                scores[slot] += indriScore * ptd * idf;
+                presentWeight[slot] += docWeight;
+            }
+        }
+
+        //  Documents that don't contain a stem contribute its default score.
+
+        if (fbMu != 0) {
+            for (int s = 0; s < numStems; s++) {
+                if (ptcs[s] < 0) {
+                    continue;
+                }
+                double idf = Math.log(1.0 / ptcs[s]);
+                scores[s] += fbMu * ptcs[s] * idf * (totalWeight - presentWeight[s]);
+            }
+        }
+
+        //  The stem table is the largest structure of the expansion.
+
+        QueryMemory.chargeCurrent(4L * (slotKeys.length + slotValues.length + stems.length)
+                + 8L * (scores.length + ptcs.length + presentWeight.length));
+
+        selectTerms();
+        return this;
+    }
+
+    /**
+     * Keep the fbTerms highest scoring stems.  Ties are broken by the
+     * stem string so that the selection is deterministic.
+     */
+    private void selectTerms() {
+        int candidates = 0;
+        Integer[] order = new Integer[numStems];
+        for (int s = 0; s < numStems; s++) {
+            if (ptcs[s] > 0) {
+                order[candidates++] = s;
+            }
+        }
+        order = Arrays.copyOf(order, candidates);
+
+        final String[] strings = new String[numStems];
+        for (int i = 0; i < candidates; i++) {
+            strings[order[i]] = QryEval.stemDictionary.term(stems[order[i]]);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer s1, Integer s2) {
+                if (scores[s1] != scores[s2]) {
+                    return scores[s1] > scores[s2] ? -1 : 1;
+                }
+                return strings[s1].compareTo(strings[s2]);
+            }
+        });
+
+        int n = Math.min(Math.max(fbTerms, 0), candidates);
+        terms = new String[n];
+        weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            terms[i] = strings[order[i]];
+            weights[i] = scores[order[i]];
+        }
+
+        //  The stem table is no longer needed.
+
+        slotKeys = slotValues = stems = null;
+        scores = ptcs = presentWeight = null;
+    }
+
+    /**
+     * Return the slot of a stem ordinal, allocating one if necessary.
+     * New slots start with ptc 0, which means "not scored yet".
+     */
+    private int slotOf(int ord) {
+        int mask = slotKeys.length - 1;
+        int bucket = bucketOf(ord, mask);
+        while (slotKeys[bucket] != 0) {
+            if (slotKeys[bucket] == ord + 1) {
+                return slotValues[bucket];
+            }
+            bucket = (bucket + 1) & mask;
+        }
+
+        if (numStems == stems.length) {
+            int size = stems.length * 2;
+            stems = Arrays.copyOf(stems, size);
+            scores = Arrays.copyOf(scores, size);
+            ptcs = Arrays.copyOf(ptcs, size);
+            presentWeight = Arrays.copyOf(presentWeight, size);
+        }
+
+        stems[numStems] = ord;
+        slotKeys[bucket] = ord + 1;
+        slotValues[bucket] = numStems;
+
+        //  Keep the table at most half full.
+
+        if (2 * (numStems + 1) > slotKeys.length) {
+            rehash(slotKeys.length * 2);
+        }
+        return numStems++;
+    }
+
+    private static int bucketOf(int ord, int mask) {
+        int h = ord * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash(int size) {
+        int[] keys = slotKeys;
+        int[] values = slotValues;
+        slotKeys = new int[size];
+        slotValues = new int[size];
+        for (int b = 0; b < keys.length; b++) {
+            if (keys[b] != 0) {
+                int bucket = bucketOf(keys[b] - 1, size - 1);
+                while (slotKeys[bucket] != 0) {
+                    bucket = (bucket + 1) & (size - 1);
+                }
+                slotKeys[bucket] = keys[b];
+                slotValues[bucket] = values[b];
+            }
+        }
+    }
+
+    /**
+     * Build the expanded query tree
+     * #wand(ow original 1-ow #wand(w1 t1 w2 t2 ...)) directly from the
+     * original query tree and the selected stems.  The stems are
+     * already processed, so they are not analyzed again.  If the
+     * original tree has been evaluated, its term operators still hold
+     * their inverted lists, so they are not fetched again.  If no
+     * expansion terms were selected, the query is not expanded.
+     *
+     * @param original The parsed original query.
+     * @param ow       The weight of the original query.
+     * @return The expanded query, or the original query.
+     * @throws IOException
+     */
+    public Qryop expandedQuery(Qryop original, double ow) throws IOException {
+        if (terms.length == 0)
+            return original;
+
+        QryopSlWand expansion = new QryopSlWand();
+        expansion.weight = 1 - ow;
+        for (int i = 0; i < terms.length; i++) {
+            QryopIlTerm term = new QryopIlTerm(terms[i]);
+            term.weight = weights[i];
+            expansion.add(term);
+        }
+
+        original.weight = ow;
+
+        QryopSlWand query = new QryopSlWand();
+        query.add(original);
+        query.add(expansion);
+        return query;
+    }
+
+    /**
+     * @return True if expansion terms were selected.
+     */
+    public boolean isExpanded() {
+        return terms.length > 0;
+    }
+
+    /**
+     * Return the expansion query, e.g. "#wand(0.4 apple 0.2 pie )".
+     */
+    public String toQueryString() {
+        StringBuilder sb = new StringBuilder("#wand(");
+        for (int i = 0; i < terms.length; i++) {
+            sb.append(weights[i]).append(' ').append(terms[i]).append(' ');
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ *  QueryMemory accounts for the memory that the intermediate lists of
+ *  one query hold: the postings and positions of inverted lists, the
+ *  entries of score lists, and the stem table of query expansion.
+ *  Sizes are estimates from the number of entries, not measurements.
+ *
+ *  Lists are charged while they grow, every CHARGE_BATCH postings or
+ *  scores, so a list that is too large fails the query before it is
+ *  complete.  When the operator returns its result, the growth is
+ *  replaced by the size of the whole result, which is released when
+ *  the operator that consumed it returns, so a query's usage follows
+ *  the lists that are alive at the same time.  Lists that no operator
+ *  returns (e.g., temporary lists) stay charged until the query ends.
+ *  Every query also counts against the global usage of all queries.
+ *
+ *  With memory:queryLimitMB or memory:globalLimitMB, a charge that
+ *  takes the query or all queries over the limit throws
+ *  LimitException, which fails the query.  With
+ *  memory:onExceed=degrade, the query is instead evaluated again over
+ *  the documents of its rarest term (see QryEval.evaluateQuery), and
+ *  its result is marked as degraded.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class QueryMemory {
+
+    //  Estimated sizes: a posting is a DocPosting, its positions array
+    //  and a list slot; a score is a ScoreListEntry and a list slot.
+
+    static final long POSTING_BYTES = 48;
+    static final long POSITION_BYTES = 4;
+    static final long SCORE_BYTES = 40;
+
+    //  The number of postings or scores that a list grows by between
+    //  charges.
+
+    static final int CHARGE_BATCH = 1024;
+
+    //  Set once at startup.  0 means no limit.
+
+    private static long queryLimit = 0;
+    private static long globalLimit = 0;
+    static boolean degrade = false;
+
+    private static final AtomicLong global = new AtomicLong();
+
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+
+    /**
+     * Set the limits.
+     *
+     * @param params memory:queryLimitMB, memory:globalLimitMB and
+     *               memory:onExceed (fail or degrade).
+     */
+    static void configure(Map<String, String> params) {
+        if (params.containsKey("memory:queryLimitMB"))
+            queryLimit = (long) (Double.parseDouble(params.get("memory:queryLimitMB")) * (1 << 20));
+        if (params.containsKey("memory:globalLimitMB"))
+            globalLimit = (long) (Double.parseDouble(params.get("memory:globalLimitMB")) * (1 << 20));
+
+        String onExceed = params.get("memory:onExceed");
+        if (onExceed != null && !onExceed.equals("fail") && !onExceed.equals("degrade"))
+            throw new IllegalArgumentException("Unknown memory:onExceed " + onExceed);
+        degrade = "degrade".equals(onExceed);
+    }
+
+    /**
+     * @return The estimated size of an operator result.
+     */
+    static long bytes(QryResult result) {
+        return POSTING_BYTES * result.invertedList.df + POSITION_BYTES * result.invertedList.ctf
+                + SCORE_BYTES * result.docScores.size();
+    }
+
+    /**
+     * Account for the result of an operator in the current thread's
+     * query, if it has one.  The results of the operator's arguments
+     * are released, because the operator has consumed them, and so is
+     * its previous result, if it is evaluated again.
+     *
+     * @param op     The operator.
+     * @param result Its result.
+     * @throws LimitException If the query or all queries are over
+     *                        their limit.
+     */
+    static void account(Qryop op, QryResult result) throws LimitException {
+        QueryContext context = QueryContext.current();
+        if (context == null)
+            return;
+
+        for (int i = 0; i < op.args.size(); i++) {
+            Qryop arg = op.args.get(i);
+            context.memory.release(arg.resultBytes);
+            arg.resultBytes = 0;
+        }
+        context.memory.release(op.resultBytes);
+        if (result != null) {
+            context.memory.release(result.invertedList.chargedBytes);
+            result.invertedList.chargedBytes = 0;
+            context.memory.release(result.docScores.chargedBytes);
+            result.docScores.chargedBytes = 0;
+        }
+        op.resultBytes = (result != null) ? bytes(result) : 0;
+        context.memory.charge(op.resultBytes);
+    }
+
+    /**
+     * Forget the results that the operators of a query hold, after the
+     * query's memory was released with releaseAll.
+     *
+     * @param qTree The query.
+     */
+    static void forget(Qryop qTree) {
+        qTree.resultBytes = 0;
+        for (int i = 0; i < qTree.args.size(); i++)
+            forget(qTree.args.get(i));
+    }
+
+    /**
+     * Charge memory to the current thread's query, if it has one.
+     *
+     * @param bytes The estimated size.
+     * @return The bytes that were charged: bytes, or 0 if the thread
+     *         has no query.
+     * @throws LimitException If the query or all queries are over
+     *                        their limit.
+     */
+    static long chargeCurrent(long bytes) throws LimitException {
+        QueryContext context = QueryContext.current();
+        if (context == null)
+            return 0;
+        context.memory.charge(bytes);
+        return bytes;
+    }
+
+    /**
+     * Charge memory to this query.
+     *
+     * @param bytes The estimated size.
+     * @throws LimitException If the query or all queries are over
+     *                        their limit.
+     */
+    void charge(long bytes) throws LimitException {
+        if (bytes <= 0)
+            return;
+
+        long total = global.addAndGet(bytes);
+        long query = used.addAndGet(bytes);
+
+        long p = peak.get();
+        while (query > p && !peak.compareAndSet(p, query))
+            p = peak.get();
+
+        if (queryLimit > 0 && query > queryLimit) {
+            QryMetrics.memoryLimitExceeded();
+            throw new LimitException("The query needs more than its memory limit of " + queryLimit + " bytes");
+        }
+        if (globalLimit > 0 && total > globalLimit) {
+            QryMetrics.memoryLimitExceeded();
+            throw new LimitException("The queries in progress need more than the global memory limit of "
+                    + globalLimit + " bytes");
+        }
+    }
+
+    /**
+     * Release memory of this query.
+     *
+     * @param bytes The estimated size.
+     */
+    void release(long bytes) {
+        if (bytes <= 0)
+            return;
+
+        used.addAndGet(-bytes);
+        global.addAndGet(-bytes);
+    }
+
+    /**
+     * Release all of the memory of this query, e.g., before it is
+     * evaluated again.
+     */
+    void releaseAll() {
+        global.addAndGet(-used.getAndSet(0));
+    }
+
+    /**
+     * @return The largest estimated size that the query held at once.
+     */
+    long getPeak() {
+        return peak.get();
+    }
+
+    void close() {
+        releaseAll();
+    }
+
+    /**
+     * @return The estimated size that all queries hold.
+     */
+    static long getGlobal() {
+        return global.get();
+    }
+
+    /**
+     * A query went over its memory limit or over the global limit.
+     */
+    static class LimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitException(String message) {
+            super(message);
+        }
+    }
+}
@@ -8,8 +8,16 @@
  * Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public abstract class RetrievalModel {
 
+    //  The scorer of the current parameters, made when it is first
+    //  needed.  It is immutable, so threads may share it.
+
+    private volatile Scorer scorer = null;
+
     /**
      * Set a retrieval model parameter.
      *
@@ -27,4 +35,42 @@ public abstract class RetrievalModel {
      * @return true if the parameter is set successfully, false otherwise.
      */
     public abstract boolean setParameter(String parameterName, String value);
+
+    /**
+     * @return The name of the model in parameter files
+     * (retrievalAlgorithm), e.g., "BM25".
+     */
+    abstract String name();
+
+    /**
+     * @return The model's parameters, named as in parameter files
+     * (see QryEval.createModel), e.g., BM25:k_1, in a fixed order.
+     */
+    Map<String, String> parameters() {
+        return new LinkedHashMap<String, String>();
+    }
+
+    /**
+     * @return The scorer of the model, bound to its parameters.
+     */
+    Scorer scorer() {
+        Scorer s = this.scorer;
+        if (s == null) {
+            s = newScorer();
+            this.scorer = s;
+        }
+        return s;
+    }
+
+    /**
+     * @return A new scorer, bound to the current parameters.
+     */
+    abstract Scorer newScorer();
+
+    /**
+     * Forget the scorer, after a parameter changed.
+     */
+    void parametersChanged() {
+        this.scorer = null;
+    }
 }
@@ -1,6 +1,9 @@
 /**
  * Created by wenhanl on 15-2-16.
  */
+
+import java.util.Map;
+
 class RetrievalModelBM25 extends RetrievalModel {
     private double k_1;
     private double b;
@@ -10,12 +13,15 @@ class RetrievalModelBM25 extends RetrievalModel {
     public boolean setParameter(String parameterName, double value) {
         if (parameterName.equals("k_1")) {
             this.k_1 = value;
+            parametersChanged();
             return true;
         } else if (parameterName.equals("b")) {
             this.b = value;
+            parametersChanged();
             return true;
         } else if (parameterName.equals("k_3")) {
             this.k_3 = value;
+            parametersChanged();
             return true;
         }
         return false;
@@ -25,12 +31,15 @@ class RetrievalModelBM25 extends RetrievalModel {
     public boolean setParameter(String parameterName, String value) {
         if (parameterName.equals("k_1")) {
             this.k_1 = Double.parseDouble(value);
+            parametersChanged();
             return true;
         } else if (parameterName.equals("b")) {
             this.b = Double.parseDouble(value);
+            parametersChanged();
             return true;
         } else if (parameterName.equals("k_3")) {
             this.k_3 = Double.parseDouble(value);
+            parametersChanged();
             return true;
         }
         return false;
@@ -47,4 +56,20 @@ class RetrievalModelBM25 extends RetrievalModel {
     public double getK3() {
         return this.k_3;
     }
+
+    String name() {
+        return "BM25";
+    }
+
+    Map<String, String> parameters() {
+        Map<String, String> params = super.parameters();
+        params.put("BM25:k_1", String.valueOf(this.k_1));
+        params.put("BM25:b", String.valueOf(this.b));
+        params.put("BM25:k_3", String.valueOf(this.k_3));
+        return params;
+    }
+
+    Scorer newScorer() {
+        return new Scorer.BM25(this.k_1, this.b);
+    }
 }
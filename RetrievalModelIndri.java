@@ -1,6 +1,9 @@
 /**
  * Created by wenhanl on 15-2-16.
  */
+
+import java.util.Map;
+
 class RetrievalModelIndri extends RetrievalModel {
     private int mu;
     private double lambda;
@@ -14,9 +17,11 @@ class RetrievalModelIndri extends RetrievalModel {
     public boolean setParameter(String parameterName, String value) {
         if (parameterName.equals("mu")) {
             this.mu = Integer.parseInt(value);
+            parametersChanged();
             return true;
         } else if (parameterName.equals("lambda")) {
             this.lambda = Double.parseDouble(value);
+            parametersChanged();
             return true;
         }
         return false;
@@ -29,4 +34,19 @@ class RetrievalModelIndri extends RetrievalModel {
     public double getLambda() {
         return this.lambda;
     }
+
+    String name() {
+        return "Indri";
+    }
+
+    Map<String, String> parameters() {
+        Map<String, String> params = super.parameters();
+        params.put("Indri:mu", String.valueOf(this.mu));
+        params.put("Indri:lambda", String.valueOf(this.lambda));
+        return params;
+    }
+
+    Scorer newScorer() {
+        return new Scorer.Indri(this.mu, this.lambda);
+    }
 }
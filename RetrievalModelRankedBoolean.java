@@ -29,4 +29,12 @@ public class RetrievalModelRankedBoolean extends RetrievalModel{
                 parameterName);
         return false;
     }
+
+    String name() {
+        return "RankedBoolean";
+    }
+
+    Scorer newScorer() {
+        return new Scorer.RankedBoolean();
+    }
 }
@@ -34,4 +34,11 @@ public class RetrievalModelUnrankedBoolean extends RetrievalModel {
         return false;
     }
 
+    String name() {
+        return "UnrankedBoolean";
+    }
+
+    Scorer newScorer() {
+        return new Scorer.UnrankedBoolean();
+    }
 }
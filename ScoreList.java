@@ -8,6 +8,7 @@
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
@@ -18,14 +19,65 @@ public class ScoreList{
 
     List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+    //  The entries that were charged to the query's memory while the
+    //  list grew, and the bytes that stay charged until an operator
+    //  returns the list (see QueryMemory).
+
+    private int chargedSize = 0;
+    long chargedBytes = 0;
+
     public void prioritySort() {
+        QryEvents.PrioritySort event = new QryEvents.PrioritySort();
+        event.begin();
+        int entries = scores.size();
+
+        sort();
+
+        if (event.shouldCommit()) {
+            event.queryId = QryEvents.queryId();
+            event.entries = entries;
+            event.k = -1;
+            event.commit();
+        }
+    }
+
+    /**
+     * Sort the list like {@link #prioritySort()}, by descending score
+     * and then external id, but keep only the first k entries.  Only
+     * the entries that can be in the top k (those that score at least
+     * as well as the k'th best score) are sorted, and only their
+     * external ids are fetched from the index.
+     *
+     * @param k The number of entries to keep.
+     */
+    public void prioritySort(int k) {
+        QryEvents.PrioritySort event = new QryEvents.PrioritySort();
+        event.begin();
+        int entries = scores.size();
+
+        retainTop(k);
+        sort();
+        if (scores.size() > k)
+            scores = new ArrayList<ScoreListEntry>(scores.subList(0, k));
+
+        if (event.shouldCommit()) {
+            event.queryId = QryEvents.queryId();
+            event.entries = entries;
+            event.k = k;
+            event.commit();
+        }
+    }
+
+    private void sort() {
         PriorityQueue<ScoreListEntry> queue = new PriorityQueue<ScoreListEntry>(100);
 
         for (ScoreListEntry entry : scores) {
-            try {
-                entry.externalId = QryEval.getExternalDocid(entry.getDocid());
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (entry.externalId.isEmpty()) {
+                try {
+                    entry.externalId = QryEval.getExternalDocid(entry.getDocid());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
             queue.offer(entry);
         }
@@ -37,14 +89,79 @@ public class ScoreList{
     }
 
     /**
-     * Append a document score to a score list.
+     * Remove the entries that can't be in the top k, i.e., those that
+     * score worse than the k'th best score.  Entries that tie with the
+     * k'th best score are kept, because the tie is broken by external
+     * id.  The remaining entries are not sorted, and no external ids
+     * are fetched, so lists that are retained separately (e.g., one
+     * per index segment) can be combined and sorted afterwards.
+     *
+     * @param k The number of entries that are needed.
+     */
+    public void retainTop(int k) {
+        if (k <= 0 || scores.isEmpty()) {
+            scores = new ArrayList<ScoreListEntry>();
+            return;
+        }
+        if (scores.size() <= k)
+            return;
+
+        //  Find the k'th best score.
+
+        PriorityQueue<Double> best = new PriorityQueue<Double>(k);
+        for (ScoreListEntry entry : scores) {
+            if (best.size() < k) {
+                best.offer(entry.getScore());
+            } else if (entry.getScore() > best.peek()) {
+                best.poll();
+                best.offer(entry.getScore());
+            }
+        }
+        double threshold = best.peek();
+
+        List<ScoreListEntry> top = new ArrayList<ScoreListEntry>(k);
+        for (ScoreListEntry entry : scores) {
+            if (entry.getScore() >= threshold)
+                top.add(entry);
+        }
+        scores = top;
+    }
+
+    /**
+     * Remove the entries of the documents at or after a docid, e.g.,
+     * those that a query didn't evaluate completely before its
+     * deadline.  The order of the remaining entries is kept.
+     *
+     * @param docid An internal document id.
+     */
+    public void retainBefore(int docid) {
+        List<ScoreListEntry> before = new ArrayList<ScoreListEntry>();
+        for (ScoreListEntry entry : scores) {
+            if (entry.getDocid() < docid)
+                before.add(entry);
+        }
+        scores = before;
+    }
+
+    /**
+     * Append a document score to a score list.  The growth of the list
+     * is charged to the query's memory every QueryMemory.CHARGE_BATCH
+     * entries.
      *
      * @param docid An internal document id.
      * @param score The document's score.
      * @return void
+     * @throws QueryMemory.LimitException If the list takes the query
+     *                                    over its memory limit.
      */
-    public void add(int docid, double score) {
+    public void add(int docid, double score) throws QueryMemory.LimitException {
         scores.add(new ScoreListEntry(docid, score));
+
+        if (scores.size() - chargedSize >= QueryMemory.CHARGE_BATCH) {
+            long bytes = QueryMemory.SCORE_BYTES * (scores.size() - chargedSize);
+            chargedSize = scores.size();
+            chargedBytes += QueryMemory.chargeCurrent(bytes);
+        }
     }
 
     /**
@@ -71,6 +188,55 @@ public class ScoreList{
     }
 
 
+    /**
+     * Get the document ids of the first n entries, in ascending docid
+     * order.  This is the form that {@link Qryop#restrictTo} expects.
+     *
+     * @param n The number of entries.
+     * @return The sorted internal document ids.
+     */
+    public int[] topDocids(int n) {
+        int[] docids = new int[Math.min(n, this.scores.size())];
+        for (int i = 0; i < docids.length; i++)
+            docids[i] = this.scores.get(i).getDocid();
+        Arrays.sort(docids);
+        return docids;
+    }
+
+    /**
+     * Get the document ids of the n highest scoring entries, in
+     * ascending docid order.  The list does not need to be sorted.
+     * Ties are broken in favor of smaller document ids.
+     *
+     * @param n The number of entries.
+     * @return The sorted internal document ids.
+     */
+    public int[] bestDocids(int n) {
+        if (n <= 0)
+            return new int[0];
+
+        PriorityQueue<ScoreListEntry> queue = new PriorityQueue<ScoreListEntry>(n, new Comparator<ScoreListEntry>() {
+            @Override
+            public int compare(ScoreListEntry e1, ScoreListEntry e2) {
+                if (e1.getScore() != e2.getScore())
+                    return e1.getScore() < e2.getScore() ? -1 : 1;
+                return e2.getDocid() - e1.getDocid();
+            }
+        });
+
+        for (ScoreListEntry entry : scores) {
+            queue.offer(entry);
+            if (queue.size() > n)
+                queue.poll();
+        }
+
+        int[] docids = new int[queue.size()];
+        for (int i = 0; i < docids.length; i++)
+            docids[i] = queue.poll().getDocid();
+        Arrays.sort(docids);
+        return docids;
+    }
+
     public boolean isEmpty(){
         return scores.isEmpty();
     }
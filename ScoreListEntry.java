@@ -3,7 +3,7 @@ import java.io.IOException;
 /**
  * Created by wenhanl on 15-1-31.
  */
-public class ScoreListEntry implements Comparable{
+public class ScoreListEntry implements Comparable<ScoreListEntry> {
     private int docid;
     private double score;
     public String externalId = "";
@@ -22,8 +22,7 @@ public class ScoreListEntry implements Comparable{
     }
 
     @Override
-    public int compareTo(Object o) {
-        ScoreListEntry sl = (ScoreListEntry) o;
+    public int compareTo(ScoreListEntry sl) {
         double compareScore = sl.score;
         if (this.score != compareScore) {
             return (compareScore > this.score ? 1 : -1);
@@ -0,0 +1,286 @@
+/**
+ *  A Scorer is how a retrieval model scores documents, bound to the
+ *  model's parameters: it scores the postings of a term, gives the
+ *  default score of a document that a term doesn't match, and tells
+ *  the operators how the model combines the scores of their
+ *  arguments.  A model makes its scorer once (see
+ *  RetrievalModel.scorer), and operators call it instead of testing
+ *  which model they are evaluated with, so a new model only needs a
+ *  new Scorer.
+ *
+ *  Scorers and their terms are immutable.  Operators fetch what they
+ *  need before their loops, so the loops only make calls to one
+ *  scorer class per run, which the JIT can inline.
+ */
+
+import java.io.IOException;
+
+abstract class Scorer {
+
+    /**
+     * @return The operator that unstructured queries are wrapped in,
+     * e.g., "#and".
+     */
+    abstract String defaultOperator();
+
+    /**
+     * @return True if a document that an argument doesn't match gets
+     * the argument's default score, so #AND, #WAND and #WSUM score
+     * every document that any argument matches (Indri).  False if #AND
+     * only matches the documents that all of its arguments match, and
+     * #SUM adds the scores of the arguments that match.
+     */
+    abstract boolean defaultScores();
+
+    /**
+     * @return True if every match scores 1.0, so the operators don't
+     * need to combine scores (unranked boolean).
+     */
+    boolean constantScores() {
+        return false;
+    }
+
+    /**
+     * @return A new operator that ranks a bag of words with this
+     * model, e.g., the first stage of a cascade (see Cascade).  #OR by
+     * default, so that any of the words matches.
+     */
+    Qryop bagOfWords() {
+        return new QryopSlOr();
+    }
+
+    /**
+     * @return True if the score of a term has an upper bound that is
+     * known before its list is fetched (see bound), so #SUM can skip
+     * the documents that can't reach its top k (see QryPlanner,
+     * PRUNED).
+     */
+    boolean boundedScores() {
+        return false;
+    }
+
+    /**
+     * @param term A query term.
+     * @return The largest score that the term can give a document, or
+     * infinity if the model has no bound.
+     * @throws IOException
+     */
+    double bound(QryopIlTerm term) throws IOException {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param k1 The k_1 of an impact index (see ImpactEvaluator).
+     * @param b  The b of the impact index.
+     * @return True if the impacts of the index are this scorer's
+     * scores, so #SUM queries can be evaluated over it.
+     */
+    boolean matchesImpacts(double k1, double b) {
+        return false;
+    }
+
+    /**
+     * Bind the scorer to the statistics of an inverted list.
+     *
+     * @param list The inverted list of a term or an operator.
+     * @return The scorer of the list's postings.
+     * @throws IOException
+     */
+    abstract Term term(InvList list) throws IOException;
+
+    /**
+     * The scores of one inverted list.
+     */
+    abstract static class Term {
+
+        /**
+         * @param docid The internal id of a document that the list matches.
+         * @param tf    The frequency of the list in the document.
+         * @return The score of the document.
+         * @throws IOException
+         */
+        abstract double score(int docid, int tf) throws IOException;
+
+        /**
+         * @param docid The internal id of a document that the list
+         *              doesn't match.
+         * @return The default score of the document.
+         * @throws IOException
+         */
+        double defaultScore(int docid) throws IOException {
+            return 0.0;
+        }
+
+        /**
+         * @return True if no document gets a score, e.g., a BM25 term
+         * that matches more than half of the collection.
+         */
+        boolean isEmpty() {
+            return false;
+        }
+    }
+
+    /**
+     * The unranked boolean model: every match scores 1.0.
+     */
+    static class UnrankedBoolean extends Scorer {
+        private static final Term ONE = new Term() {
+            double score(int docid, int tf) {
+                return 1.0;
+            }
+        };
+
+        String defaultOperator() {
+            return "#and";
+        }
+
+        boolean defaultScores() {
+            return false;
+        }
+
+        boolean constantScores() {
+            return true;
+        }
+
+        Term term(InvList list) {
+            return ONE;
+        }
+    }
+
+    /**
+     * The ranked boolean model: a match scores its tf, #AND keeps the
+     * minimum of its arguments and #OR the maximum.
+     */
+    static class RankedBoolean extends Scorer {
+        private static final Term TF = new Term() {
+            double score(int docid, int tf) {
+                return tf;
+            }
+        };
+
+        String defaultOperator() {
+            return "#and";
+        }
+
+        boolean defaultScores() {
+            return false;
+        }
+
+        Term term(InvList list) {
+            return TF;
+        }
+    }
+
+    /**
+     * BM25, without the query term weight (k_3), since query terms
+     * are not repeated.
+     */
+    static class BM25 extends Scorer {
+        private final double k1;
+        private final double b;
+
+        BM25(double k1, double b) {
+            this.k1 = k1;
+            this.b = b;
+        }
+
+        String defaultOperator() {
+            return "#sum";
+        }
+
+        boolean defaultScores() {
+            return false;
+        }
+
+        Qryop bagOfWords() {
+            return new QryopSlSum();
+        }
+
+        boolean boundedScores() {
+            return true;
+        }
+
+        /**
+         * The largest score of a term is its idf, because the tf weight
+         * is below 1.  The idf is computed from the smallest df that
+         * the list can have after deleted documents are removed, so it
+         * is never too low.
+         */
+        double bound(QryopIlTerm term) throws IOException {
+            int numDocs = QryEval.numDocs();
+            int deleted = (QryEval.nativeIndex != null) ? 0 : QryEval.reader().maxDoc() - QryEval.reader().numDocs();
+            int df = Math.max(QryEval.docFreq(term.getField(), term.getTerm()) - deleted, 0);
+            double idf = Math.log((numDocs - df + 0.5) / (df + 0.5));
+            return Math.max(idf, 0.0);
+        }
+
+        boolean matchesImpacts(double k1, double b) {
+            return this.k1 == k1 && this.b == b;
+        }
+
+        Term term(InvList list) throws IOException {
+            int collectionDf = list.getCollectionDf();
+            int numDocs = QryEval.numDocs();
+            final double idf = Math.log((numDocs - collectionDf + 0.5) / (collectionDf + 0.5));
+            final String field = list.field;
+            final DocLengthStore dls = QryEval.docLengths();
+            final double avgLen = QryEval.getSumTotalTermFreq(field) / (double) QryEval.getDocCount(field);
+
+            return new Term() {
+                double score(int docid, int tf) throws IOException {
+                    long docLen = dls.getDocLength(field, docid);
+                    double tfWeight = tf / (tf + k1 * ((1 - b) + b * docLen / avgLen));
+                    return idf * tfWeight;
+                }
+
+                boolean isEmpty() {
+                    return idf <= 0;
+                }
+            };
+        }
+    }
+
+    /**
+     * Indri: a term's score is its Dirichlet-smoothed probability,
+     * mixed with its collection probability by lambda.
+     */
+    static class Indri extends Scorer {
+        private final double mu;
+        private final double lambda;
+
+        Indri(double mu, double lambda) {
+            this.mu = mu;
+            this.lambda = lambda;
+        }
+
+        String defaultOperator() {
+            return "#and";
+        }
+
+        boolean defaultScores() {
+            return true;
+        }
+
+        Qryop bagOfWords() {
+            return new QryopSlAnd();
+        }
+
+        Term term(InvList list) throws IOException {
+            final double indriIDF = (double) list.getCollectionCtf() / QryEval.getSumTotalTermFreq(list.field);
+            final String field = list.field;
+            final DocLengthStore dls = QryEval.docLengths();
+
+            return new Term() {
+                double score(int docid, int tf) throws IOException {
+                    return (1 - lambda) * (tf + mu * indriIDF) / (dls.getDocLength(field, docid) + mu)
+                            + lambda * indriIDF;
+                }
+
+                double defaultScore(int docid) throws IOException {
+                    double docLength = dls.getDocLength(field, docid);
+                    return (1.0 - lambda) * mu * indriIDF / (docLength + mu) + lambda * indriIDF;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ *  SegmentEvaluator evaluates a query separately against each segment
+ *  (leaf) of the index, or against each shard of a sharded index, in
+ *  parallel, and merges the per-segment results.  A shard is evaluated
+ *  by one task that evaluates each of the shard's leaves in turn.
+ *  Within a segment, inverted lists are read directly from the
+ *  segment's reader rather than through the composite MultiFields
+ *  view of the whole index, and document ids are converted to index
+ *  ids by adding the segment's docBase.
+ *
+ *  Scores use the statistics of the whole collection: term df and ctf
+ *  are looked up once per query in the top-level reader and shared by
+ *  all of the segments, and document lengths come from
+ *  {@link DocLengthStore}.  The statistics of #NEAR, #WINDOW and #SYN
+ *  can only be known by evaluating them, so a query that contains
+ *  them is evaluated in two passes.  The first pass evaluates just
+ *  those operators in every segment and sums their df and ctf; the
+ *  second pass scores the documents.  Term postings are fetched only
+ *  once.  Scores are the same as those of a normal evaluation.
+ *
+ *  Each segment keeps only the entries that can be in the overall top
+ *  depth, so the merged list is exact to that depth.
+ */
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class SegmentEvaluator {
+
+    private final ExecutorService pool;
+    private final int depth;
+    private final boolean byShard;
+
+    /**
+     * @param threads The number of segments that are evaluated at once.
+     * @param depth   The number of results of each query.
+     * @param byShard If true, evaluate each top-level sub-reader of
+     *                the index (each shard) as one segment.
+     * @throws IOException
+     */
+    public SegmentEvaluator(int threads, int depth, boolean byShard) throws IOException {
+        //  The pool lives as long as the process, so its threads
+        //  shouldn't keep the JVM running.
+
+        this.pool = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "segment-evaluator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.depth = depth;
+        this.byShard = byShard;
+    }
+
+    /**
+     * Evaluate a query against every segment of the index.
+     *
+     * @param queryString The query text.  A query tree can only be
+     *                    evaluated by one thread, so it is parsed again
+     *                    for each segment.
+     * @param qTree       The query, parsed (and planned) for model.
+     *                    The trees of the segments share its plans.
+     * @param model       The retrieval model.
+     * @return The (unsorted) top depth results of the query.
+     * @throws IOException
+     */
+    public QryResult evaluate(String queryString, Qryop qTree, RetrievalModel model) throws IOException {
+        ConcurrentHashMap<Term, long[]> termStats = new ConcurrentHashMap<Term, long[]>();
+
+        List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+        for (List<AtomicReaderContext> leaves : partitions(QryEval.reader()))
+            tasks.add(new SegmentTask(new Partition(segments(leaves, termStats), queryString, qTree, model)));
+
+        if (tasks.isEmpty())
+            return new QryResult();
+
+        //  First pass: the statistics of the derived inverted lists.
+
+        if (hasDerivedLists(tasks.get(0).partition.tree(0))) {
+            for (SegmentTask task : tasks)
+                task.collecting = true;
+            run(tasks);
+
+            Map<String, long[]> derived = new HashMap<String, long[]>();
+            for (SegmentTask task : tasks)
+                task.partition.addLocalStats(derived);
+            for (SegmentTask task : tasks) {
+                task.partition.setDerivedStats(derived);
+                task.collecting = false;
+            }
+        }
+
+        //  Second pass: score the documents, and keep the best of each
+        //  segment.  The merge keeps the best depth of their union.
+
+        List<ScoreList> lists = run(tasks);
+
+        QryResult result = new QryResult();
+        for (ScoreList list : lists)
+            result.docScores.scores.addAll(list.scores);
+
+        result.docScores.retainTop(depth);
+        return result;
+    }
+
+    /**
+     * Group the leaves of a reader into the partitions that are
+     * evaluated by one task each: one leaf each, or the leaves of each
+     * top-level sub-reader (shard).  The top-level leaves have
+     * docBases in the whole index, and a shard's leaves are those that
+     * start within the shard's range.
+     */
+    private List<List<AtomicReaderContext>> partitions(IndexReader reader) {
+        List<List<AtomicReaderContext>> partitions = new ArrayList<List<AtomicReaderContext>>();
+        List<AtomicReaderContext> leaves = reader.leaves();
+        List<IndexReaderContext> children = reader.getContext().children();
+
+        if (!byShard || children == null) {
+            for (AtomicReaderContext leaf : leaves) {
+                if (!byShard || partitions.isEmpty())
+                    partitions.add(new ArrayList<AtomicReaderContext>());
+                partitions.get(partitions.size() - 1).add(leaf);
+            }
+            return partitions;
+        }
+
+        int leaf = 0;
+        for (int i = 0; i < children.size(); i++) {
+            int end = (i + 1 < children.size()) ? children.get(i + 1).docBaseInParent : reader.maxDoc();
+            List<AtomicReaderContext> shard = new ArrayList<AtomicReaderContext>();
+            while (leaf < leaves.size() && leaves.get(leaf).docBase < end)
+                shard.add(leaves.get(leaf++));
+            if (!shard.isEmpty())
+                partitions.add(shard);
+        }
+        return partitions;
+    }
+
+    /**
+     * @param leaves    Leaves of the index.
+     * @param termStats The collection statistics of the query's terms,
+     *                  which the segments share.
+     * @return The segments of the leaves.
+     */
+    static List<Segment> segments(List<AtomicReaderContext> leaves, ConcurrentHashMap<Term, long[]> termStats) {
+        List<Segment> segments = new ArrayList<Segment>();
+        for (AtomicReaderContext leaf : leaves)
+            segments.add(new Segment(leaf.reader(), leaf.docBase, termStats));
+        return segments;
+    }
+
+    /**
+     * Add statistics {df, ctf} to their sums.
+     *
+     * @param sums  The sums, by operator.
+     * @param stats The statistics to add, by operator.
+     */
+    static void addStats(Map<String, long[]> sums, Map<String, long[]> stats) {
+        for (Map.Entry<String, long[]> e : stats.entrySet()) {
+            long[] sum = sums.get(e.getKey());
+            if (sum == null)
+                sums.put(e.getKey(), e.getValue().clone());
+            else {
+                sum[0] += e.getValue()[0];
+                sum[1] += e.getValue()[1];
+            }
+        }
+    }
+
+    /**
+     * Run a pass of the segment tasks.  The calling thread runs the
+     * last one itself.
+     *
+     * @return The results of the tasks, in segment order.
+     */
+    private List<ScoreList> run(List<SegmentTask> tasks) throws IOException {
+        List<Future<ScoreList>> pending = new ArrayList<Future<ScoreList>>();
+        for (int i = 0; i < tasks.size() - 1; i++)
+            pending.add(pool.submit(tasks.get(i)));
+
+        ScoreList last = tasks.get(tasks.size() - 1).call();
+
+        List<ScoreList> results = new ArrayList<ScoreList>();
+        for (Future<ScoreList> f : pending) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof QueryMemory.LimitException
+                        || e.getCause() instanceof QueryDeadline.ExpiredException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+        results.add(last);
+        return results;
+    }
+
+    /**
+     * @return true if the query contains operators whose inverted lists
+     * are computed from other inverted lists.
+     */
+    static boolean hasDerivedLists(Qryop q) {
+        if (q instanceof QryopIl && !(q instanceof QryopIlTerm))
+            return true;
+        for (int i = 0; i < q.args.size(); i++) {
+            if (hasDerivedLists(q.args.get(i)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collects the outermost derived inverted list operators of a query.
+     */
+    static void derivedLists(Qryop q, List<Qryop> lists) {
+        if (q instanceof QryopIl && !(q instanceof QryopIlTerm)) {
+            lists.add(q);
+            return;
+        }
+        for (int i = 0; i < q.args.size(); i++)
+            derivedLists(q.args.get(i), lists);
+    }
+
+    /*
+     *  Return a description of the configuration.
+     */
+    public String toString() {
+        if (byShard)
+            return "Shard evaluation: " + partitions(QryEval.READER).size() + " shards, depth " + depth;
+        return "Segment evaluation: " + QryEval.READER.leaves().size() + " segments, depth " + depth;
+    }
+
+    /**
+     * Evaluates a query against a partition in the pool, with the
+     * snapshot and the context of the thread that created the task.
+     */
+    private class SegmentTask implements Callable<ScoreList> {
+        final Partition partition;
+        private final IndexSnapshot snapshot = QryEval.pinned();
+        private final QueryContext context = QueryContext.current();
+        boolean collecting = false;
+
+        SegmentTask(Partition partition) {
+            this.partition = partition;
+        }
+
+        public ScoreList call() throws IOException {
+            IndexSnapshot previous = QryEval.pin(snapshot);
+            QueryContext previousContext = QueryContext.enter(context);
+            try {
+                if (collecting) {
+                    partition.collectDerivedStats();
+                    return null;
+                }
+                return partition.evaluate(depth);
+            } finally {
+                QueryContext.enter(previousContext);
+                QryEval.pin(previous);
+            }
+        }
+    }
+
+    /**
+     * A query over the segments of one partition of the index (a leaf
+     * or a shard), which are evaluated one after another, with one
+     * query tree per segment.  The trees are kept between the passes,
+     * so the second pass reuses the postings that the first one
+     * fetched.  A partition is evaluated by one thread at a time.
+     */
+    static class Partition {
+        private final List<Segment> segments;
+        private final String queryString;
+        private final Qryop planned;
+        private final RetrievalModel model;
+        private final Qryop[] qTrees;
+
+        /**
+         * @param segments    The segments of the partition.
+         * @param queryString The query text.
+         * @param planned     The query, parsed (and planned) for model,
+         *                    whose plans the trees of the segments share.
+         * @param model       The retrieval model.
+         */
+        Partition(List<Segment> segments, String queryString, Qryop planned, RetrievalModel model) {
+            this.segments = segments;
+            this.queryString = queryString;
+            this.planned = planned;
+            this.model = model;
+            this.qTrees = new Qryop[segments.size()];
+        }
+
+        /**
+         * @return The query tree of segment i.
+         */
+        Qryop tree(int i) throws IOException {
+            if (qTrees[i] == null) {
+                qTrees[i] = QryEval.parseQuery(queryString, model, planned);
+                qTrees[i].restrictToSegment(segments.get(i));
+            }
+            return qTrees[i];
+        }
+
+        /**
+         * First pass: evaluate the derived inverted lists of the query
+         * in every segment, which records their statistics.
+         */
+        void collectDerivedStats() throws IOException {
+            for (int i = 0; i < segments.size(); i++) {
+                segments.get(i).localStats = new HashMap<String, long[]>();
+                List<Qryop> lists = new ArrayList<Qryop>();
+                derivedLists(tree(i), lists);
+                for (Qryop list : lists)
+                    list.evaluate(model);
+            }
+        }
+
+        /**
+         * Add the statistics that the first pass collected to sums.
+         */
+        void addLocalStats(Map<String, long[]> sums) {
+            for (Segment segment : segments)
+                addStats(sums, segment.localStats);
+        }
+
+        /**
+         * Set the statistics of the derived lists over the whole
+         * collection, for the second pass.
+         */
+        void setDerivedStats(Map<String, long[]> stats) {
+            for (Segment segment : segments) {
+                segment.localStats = null;
+                segment.derivedStats = stats;
+            }
+        }
+
+        /**
+         * Second pass: score the documents.
+         *
+         * @param depth The number of results that are needed.
+         * @return The (unsorted) entries that can be in the top depth.
+         */
+        ScoreList evaluate(int depth) throws IOException {
+            ScoreList scores = new ScoreList();
+            for (int i = 0; i < segments.size(); i++) {
+                ScoreList segmentScores = tree(i).evaluate(model).docScores;
+                segmentScores.retainTop(depth);
+                scores.scores.addAll(segmentScores.scores);
+            }
+            if (segments.size() > 1)
+                scores.retainTop(depth);
+            return scores;
+        }
+    }
+
+    /**
+     * One segment of the index, as seen by the query operators, and the
+     * collection statistics of the terms of the query, which all of
+     * the segments share.
+     */
+    public static class Segment {
+        final AtomicReader reader;
+        final int docBase;
+        private final ConcurrentHashMap<Term, long[]> termStats;
+
+        //  The df and ctf of the derived lists in this segment, while
+        //  they are collected, and then their sums over all segments.
+
+        Map<String, long[]> localStats;
+        Map<String, long[]> derivedStats;
+
+        Segment(AtomicReader reader, int docBase, ConcurrentHashMap<Term, long[]> termStats) {
+            this.reader = reader;
+            this.docBase = docBase;
+            this.termStats = termStats;
+        }
+
+        /**
+         * @return The number of (live) documents in the segment.
+         */
+        public int numDocs() {
+            return reader.numDocs();
+        }
+
+        /**
+         * Return the collection df and ctf of a term.
+         *
+         * @param term The term.
+         * @return {df, ctf}
+         * @throws IOException
+         */
+        public long[] termStats(Term term) throws IOException {
+            long[] stats = termStats.get(term);
+            if (stats == null) {
+                stats = new long[]{QryEval.reader().docFreq(term), QryEval.reader().totalTermFreq(term)};
+                termStats.put(term, stats);
+            }
+            return stats;
+        }
+
+        /**
+         * Record the statistics of a derived inverted list that was
+         * computed over this segment, or, once the statistics of all of
+         * the segments are known, set its collection statistics.
+         *
+         * @param key  The operator that computed the list, as a string.
+         * @param list The list.
+         * @throws QueryDeadline.ExpiredException If the query's deadline
+         *                                        truncated the list.
+         */
+        public void collectionStats(String key, InvList list) throws QueryDeadline.ExpiredException {
+            if (localStats != null) {
+                if (list.truncated)
+                    throw QueryDeadline.statisticsUnknown(key);
+                localStats.put(key, new long[]{list.df, list.ctf});
+                return;
+            }
+
+            long[] stats = (derivedStats == null) ? null : derivedStats.get(key);
+            if (stats != null) {
+                list.collectionDf = (int) stats[0];
+                list.collectionCtf = stats[1];
+            }
+        }
+    }
+}
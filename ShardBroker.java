@@ -0,0 +1,442 @@
+/**
+ *  ShardBroker evaluates queries over shards that are served by
+ *  {@link ShardWorker} processes on the same machine.  At startup it
+ *  asks every worker for the document and field statistics of its
+ *  shard and sends their sums back to all of them.  Each query is then
+ *  sent to every worker in parallel.  The workers reply with the
+ *  statistics of the query's terms (and of its #NEAR, #WINDOW and #SYN
+ *  operators) in their shards, and the broker sends back the sums, so
+ *  the workers score with the statistics of the whole collection.
+ *  Then the top depth results of the shards are merged.
+ *  Because every worker sorts its results by score and then external
+ *  id, the merged list is exact to that depth.
+ *
+ *  A shard that doesn't reply within the timeout is left out of that
+ *  query's results, and its connection is closed; the next query
+ *  opens a new one.  Errors reported by a worker (e.g., a query that
+ *  can't be parsed) fail the query.
+ *
+ *  Connections are pooled per worker, so any number of queries can be
+ *  evaluated at once.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardBroker {
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final int depth;
+    private final long timeout;
+    private final ExecutorService pool;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong missedShards = new AtomicLong();
+
+    /**
+     * @param ports   The loopback ports of the workers.
+     * @param depth   The number of results of each query.
+     * @param timeout The time that a shard may take to reply to a
+     *                query, in milliseconds.
+     */
+    public ShardBroker(List<Integer> ports, int depth, long timeout) {
+        for (int port : ports)
+            shards.add(new Shard(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), (int) timeout));
+        this.depth = depth;
+        this.timeout = timeout;
+        this.pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "shard-broker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Collect the statistics of the shards and send their sums to all
+     * of the workers.  Every worker must be running and reply within
+     * the timeout.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        CollectionStats global = new CollectionStats();
+        for (Shard shard : shards) {
+            try {
+                Connection c = shard.borrow();
+                c.out.write("STATS\n");
+                c.out.flush();
+                global.add(CollectionStats.read(c.in));
+                shard.release(c);
+            } catch (IOException e) {
+                throw new IOException("Shard " + shard + ": " + e, e);
+            }
+        }
+
+        for (Shard shard : shards) {
+            try {
+                Connection c = shard.borrow();
+                c.out.write("GLOBAL\n");
+                global.write(c.out);
+                c.out.flush();
+                c.expect("OK");
+                shard.release(c);
+            } catch (IOException e) {
+                throw new IOException("Shard " + shard + ": " + e, e);
+            }
+        }
+        System.out.println(global);
+    }
+
+    /**
+     * Evaluate a query over all of the shards.
+     *
+     * @param queryId     The query id, used in warnings.
+     * @param queryString The query text.
+     * @param model       The retrieval model.
+     * @return The (unsorted) top depth results, with their external ids.
+     * @throws IOException
+     */
+    public QryResult evaluate(String queryId, final String queryString, RetrievalModel model) throws IOException {
+        queries.incrementAndGet();
+        final String modelLine = modelLine(model);
+
+        //  Send the query to every shard.
+
+        List<Exchange> exchanges = new ArrayList<Exchange>();
+        for (Shard shard : shards)
+            exchanges.add(new Exchange(shard));
+
+        try {
+            return evaluate(queryId, queryString, modelLine, exchanges);
+        } finally {
+            //  Connections that weren't returned to their pools are in
+            //  an unknown state.
+
+            for (Exchange x : exchanges) {
+                if (x.connection != null)
+                    x.connection.close();
+            }
+        }
+    }
+
+    private QryResult evaluate(String queryId, final String queryString, final String modelLine,
+                               List<Exchange> exchanges) throws IOException {
+        List<Future<Void>> replies = new ArrayList<Future<Void>>();
+        for (final Exchange x : exchanges) {
+            replies.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    x.connection = x.shard.borrow();
+                    if (!modelLine.equals(x.connection.modelLine)) {
+                        x.connection.out.write(modelLine + "\n");
+                        x.connection.out.flush();
+                        x.connection.expect("OK");
+                        x.connection.modelLine = modelLine;
+                    }
+                    x.connection.out.write("QUERY\t" + depth + "\t" + queryString + "\n");
+                    x.connection.out.flush();
+                    x.readReply();
+                    return null;
+                }
+            }));
+        }
+        await(queryId, exchanges, replies);
+
+        //  Send the sums of the statistics of the query's terms, and
+        //  then, if the query has derived inverted lists, the sums of
+        //  theirs, and wait for the results.
+
+        final CollectionStats terms = new CollectionStats();
+        List<Exchange> pending = new ArrayList<Exchange>();
+        for (Exchange x : exchanges) {
+            if (x.terms != null) {
+                terms.add(x.terms);
+                pending.add(x);
+            }
+        }
+        sendSums(queryId, pending, new StatsWriter() {
+            public void write(Writer out) throws IOException {
+                terms.write(out);
+            }
+        });
+
+        final Map<String, long[]> derived = new HashMap<String, long[]>();
+        pending.clear();
+        for (Exchange x : exchanges) {
+            if (x.derived != null) {
+                SegmentEvaluator.addStats(derived, x.derived);
+                pending.add(x);
+            }
+        }
+        sendSums(queryId, pending, new StatsWriter() {
+            public void write(Writer out) throws IOException {
+                ShardWorker.writeDerivedStats(derived, out);
+            }
+        });
+
+        //  Merge.  Entries get distinct docids, because ScoreListEntry
+        //  treats entries with the same docid as equal.
+
+        QryResult result = new QryResult();
+        int n = 0;
+        for (Exchange x : exchanges) {
+            if (x.results == null)
+                continue;
+            for (ScoreListEntry entry : x.results) {
+                ScoreListEntry merged = new ScoreListEntry(n++, entry.getScore());
+                merged.externalId = entry.externalId;
+                result.docScores.scores.add(merged);
+            }
+            x.shard.release(x.connection);
+            x.connection = null;
+        }
+        result.docScores.retainTop(depth);
+        return result;
+    }
+
+    /**
+     * Writes statistics to a worker.
+     */
+    private interface StatsWriter {
+        void write(Writer out) throws IOException;
+    }
+
+    /**
+     * Send summed statistics to the shards that are waiting for them,
+     * and wait for their next replies.
+     */
+    private void sendSums(String queryId, List<Exchange> pending, final StatsWriter sums) throws IOException {
+        if (pending.isEmpty())
+            return;
+
+        List<Future<Void>> replies = new ArrayList<Future<Void>>();
+        for (final Exchange x : pending) {
+            replies.add(pool.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    x.terms = null;
+                    x.derived = null;
+                    sums.write(x.connection.out);
+                    x.connection.out.flush();
+                    x.readReply();
+                    return null;
+                }
+            }));
+        }
+        await(queryId, pending, replies);
+    }
+
+    /**
+     * Wait for the replies of the shards.  A shard that fails or
+     * doesn't reply in time is dropped from the query.  An error that
+     * a worker reported fails the query, once all of the shards have
+     * replied.
+     */
+    private void await(String queryId, List<Exchange> exchanges, List<Future<Void>> replies) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        IOException error = null;
+        for (int i = 0; i < replies.size(); i++) {
+            Exchange x = exchanges.get(i);
+            try {
+                replies.get(i).get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                drop(queryId, x, "timed out");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof WorkerException) {
+                    if (error == null)
+                        error = new IOException(x.shard + ": " + e.getCause().getMessage());
+                } else {
+                    drop(queryId, x, e.getCause().toString());
+                }
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private void drop(String queryId, Exchange x, String reason) {
+        missedShards.incrementAndGet();
+        System.err.println("Warning: shard " + x.shard + " " + reason + " on query " + queryId
+                + "; its results are left out.");
+        x.terms = null;
+        x.derived = null;
+        x.results = null;
+
+        //  Closing the connection also stops a reply that is still
+        //  being read.
+
+        if (x.connection != null)
+            x.connection.close();
+    }
+
+    /**
+     * Return the MODEL line that describes a model to the workers.
+     */
+    private static String modelLine(RetrievalModel model) {
+        StringBuilder line = new StringBuilder("MODEL\t").append(model.name());
+        for (Map.Entry<String, String> param : model.parameters().entrySet())
+            line.append('\t').append(param.getKey()).append('=').append(param.getValue());
+        return line.toString();
+    }
+
+    /*
+     *  Return a description of the configuration and statistics.
+     */
+    public String toString() {
+        return "Broker: " + shards.size() + " shards, depth " + depth + ", timeout " + timeout + " ms, "
+                + queries.get() + " queries, " + missedShards.get() + " missed shard replies";
+    }
+
+    /**
+     * An error that a worker reported.
+     */
+    private static class WorkerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        WorkerException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A worker and its idle connections.
+     */
+    private static class Shard {
+        private final InetSocketAddress address;
+        private final int timeout;
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+        Shard(InetSocketAddress address, int timeout) {
+            this.address = address;
+            this.timeout = timeout;
+        }
+
+        Connection borrow() throws IOException {
+            Connection c = idle.poll();
+            return (c != null) ? c : new Connection(address, timeout);
+        }
+
+        void release(Connection c) {
+            idle.offer(c);
+        }
+
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    /**
+     * A connection to a worker.  The model that was last sent is
+     * remembered, so it is only sent again when it changes.  Reads
+     * also time out, so that no thread waits for a stopped worker
+     * forever.
+     */
+    private static class Connection {
+        private final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        String modelLine;
+
+        Connection(InetSocketAddress address, int timeout) throws IOException {
+            socket = new Socket();
+            socket.connect(address, timeout);
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        }
+
+        /**
+         * Read a reply line, which must be the expected one.
+         */
+        void expect(String reply) throws IOException {
+            String line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed");
+            if (line.startsWith("ERROR"))
+                throw new WorkerException(line.substring(Math.min(6, line.length())));
+            if (!line.equals(reply))
+                throw new IOException("Unexpected reply " + line);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * The state of one shard during one query.
+     */
+    private static class Exchange {
+        final Shard shard;
+        Connection connection;
+        CollectionStats terms;
+        Map<String, long[]> derived;
+        List<ScoreListEntry> results;
+
+        Exchange(Shard shard) {
+            this.shard = shard;
+        }
+
+        /**
+         * Read a TERMS, DERIVED or RESULTS reply.
+         */
+        void readReply() throws IOException {
+            String line = connection.in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed");
+            if (line.startsWith("ERROR")) {
+                //  The connection is still usable.
+                shard.release(connection);
+                connection = null;
+                throw new WorkerException(line.substring(Math.min(6, line.length())));
+            }
+
+            if (line.equals("TERMS")) {
+                terms = CollectionStats.read(connection.in);
+            } else if (line.equals("DERIVED")) {
+                derived = ShardWorker.readDerivedStats(connection.in);
+            } else if (line.equals("RESULTS")) {
+                List<ScoreListEntry> list = new ArrayList<ScoreListEntry>();
+                while ((line = connection.in.readLine()) != null && !line.equals("END")) {
+                    int tab = line.indexOf('\t');
+                    ScoreListEntry entry = new ScoreListEntry(0, Double.parseDouble(line.substring(0, tab)));
+                    entry.externalId = line.substring(tab + 1);
+                    list.add(entry);
+                }
+                if (line == null)
+                    throw new IOException("Connection closed");
+                results = list;
+            } else {
+                throw new IOException("Unexpected reply " + line);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ *  ShardWorker serves one shard of a document-partitioned collection
+ *  to a {@link ShardBroker} in another process.  Each worker is a
+ *  separate JVM with its own heap and page cache.  It listens on a
+ *  loopback port, and each broker connection is served by its own
+ *  thread.  The protocol is line-based UTF-8 text with tab-separated
+ *  fields:
+ *
+ *    STATS                  The worker replies with the document and
+ *                           field statistics of its shard (see
+ *                           {@link CollectionStats}).
+ *    GLOBAL, statistics     Install the document and field statistics
+ *                           of the collection, which are used to score
+ *                           every query.  The worker replies OK.
+ *    MODEL name param=value...
+ *                           Set the retrieval model of the connection.
+ *                           The worker replies OK.
+ *    QUERY depth query      Evaluate a query, and reply RESULTS, then
+ *                           one "score externalId" line for each of
+ *                           the top depth documents, then END.
+ *
+ *  Before it evaluates a query, the worker replies TERMS, then the
+ *  statistics of the query's terms in its shard, and waits for the
+ *  broker to send their sums over all of the shards in the same form.
+ *  A query that contains #NEAR, #WINDOW or #SYN also needs the
+ *  collection statistics of those operators, which only evaluation
+ *  can give.  The worker then replies DERIVED, then "df ctf operator"
+ *  lines, then END, and again waits for the sums before it scores the
+ *  documents, as {@link SegmentEvaluator} does for the segments of one
+ *  index.  The shard's leaves are evaluated one after another.
+ *
+ *  Errors are reported as a single ERROR line.
+ */
+
+import org.apache.lucene.index.Term;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardWorker {
+
+    private ServerSocket server;
+    private final AtomicLong queryIds = new AtomicLong();
+
+    /**
+     * Start listening on a loopback port.  The method returns once the
+     * worker is accepting connections.
+     *
+     * @param port The port number.
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        Thread t = new Thread(new Runnable() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        }, "shard-worker-connection");
+                        t.setDaemon(true);
+                        t.start();
+                    } catch (IOException e) {
+                        if (!server.isClosed())
+                            e.printStackTrace();
+                    }
+                }
+            }
+        }, "shard-worker");
+        acceptor.start();
+        System.out.println("Shard worker listening on " + server.getLocalSocketAddress());
+    }
+
+    /**
+     * Stop accepting connections.
+     */
+    public void stop() throws IOException {
+        if (server != null)
+            server.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            RetrievalModel model = null;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", 3);
+                try {
+                    if (parts[0].equals("STATS")) {
+                        CollectionStats.of(QryEval.READER).write(out);
+                    } else if (parts[0].equals("GLOBAL")) {
+                        QryEval.globalStats = CollectionStats.read(in);
+                        out.write("OK\n");
+                    } else if (parts[0].equals("MODEL")) {
+                        model = model(line.split("\t"));
+                        out.write("OK\n");
+                    } else if (parts[0].equals("QUERY") && parts.length == 3) {
+                        query(Integer.parseInt(parts[1]), parts[2], model, in, out);
+                    } else {
+                        throw new IllegalArgumentException("Unknown command " + parts[0]);
+                    }
+                } catch (RuntimeException e) {
+                    out.write("ERROR\t" + e + "\n");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            //  The broker closed the connection, e.g., after a timeout.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Create the model of a MODEL line.
+     */
+    private static RetrievalModel model(String[] parts) {
+        if (parts.length < 2)
+            throw new IllegalArgumentException("MODEL needs a model name");
+
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 2; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq > 0)
+                params.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+        }
+        RetrievalModel model = QryEval.createModel(parts[1], params);
+        if (model == null)
+            throw new IllegalArgumentException("Unknown model " + parts[1]);
+        return model;
+    }
+
+    private void query(int depth, String queryString, RetrievalModel model, BufferedReader in, Writer out)
+            throws IOException {
+        if (QryEval.globalStats == null)
+            throw new IllegalStateException("No collection statistics");
+        if (model == null)
+            throw new IllegalStateException("No model");
+
+        Qryop qTree = QryEval.parseQuery(queryString, model, null);
+        if (qTree == null)
+            throw new IllegalArgumentException("Query syntax is incorrect");
+
+        QueryContext context = new QueryContext("shard-" + queryIds.incrementAndGet());
+        QueryContext previous = QueryContext.enter(context);
+        try {
+            //  Exchange the statistics of the query's terms, and then
+            //  plan the query with the statistics of the collection.
+            //  The trees that are evaluated share its plans.
+
+            Set<Term> terms = new LinkedHashSet<Term>();
+            queryTerms(qTree, terms);
+            out.write("TERMS\n");
+            CollectionStats.of(QryEval.reader(), terms).write(out);
+            out.flush();
+            context.termStats = CollectionStats.read(in);
+            if (QryPlanner.isActive())
+                QryPlanner.plan(qTree, model);
+
+            //  The shard is evaluated like one partition of the
+            //  collection.
+
+            List<SegmentEvaluator.Segment> segments =
+                    SegmentEvaluator.segments(QryEval.reader().leaves(), context.termStats.terms);
+            SegmentEvaluator.Partition partition = new SegmentEvaluator.Partition(segments, queryString, qTree, model);
+
+            if (SegmentEvaluator.hasDerivedLists(qTree)) {
+                partition.collectDerivedStats();
+                Map<String, long[]> local = new HashMap<String, long[]>();
+                partition.addLocalStats(local);
+
+                out.write("DERIVED\n");
+                writeDerivedStats(local, out);
+                out.flush();
+                partition.setDerivedStats(readDerivedStats(in));
+            }
+
+            ScoreList scores = partition.evaluate(depth);
+            scores.prioritySort(depth);
+
+            out.write("RESULTS\n");
+            for (ScoreListEntry entry : scores.scores)
+                out.write(entry.getScore() + "\t" + entry.externalId + "\n");
+            out.write("END\n");
+        } finally {
+            QueryContext.enter(previous);
+            context.close();
+        }
+    }
+
+    /**
+     * Collect the terms of a query.
+     */
+    private static void queryTerms(Qryop q, Set<Term> terms) {
+        if (q instanceof QryopIlTerm) {
+            QryopIlTerm term = (QryopIlTerm) q;
+            terms.add(new Term(term.getField(), term.getTerm()));
+        }
+        for (int i = 0; i < q.args.size(); i++)
+            queryTerms(q.args.get(i), terms);
+    }
+
+    /**
+     * Write the df and ctf of derived inverted lists, followed by END.
+     */
+    static void writeDerivedStats(Map<String, long[]> stats, Writer out) throws IOException {
+        for (Map.Entry<String, long[]> e : stats.entrySet())
+            out.write(e.getValue()[0] + "\t" + e.getValue()[1] + "\t" + e.getKey() + "\n");
+        out.write("END\n");
+    }
+
+    /**
+     * Read statistics written by writeDerivedStats.
+     */
+    static Map<String, long[]> readDerivedStats(BufferedReader in) throws IOException {
+        Map<String, long[]> stats = new HashMap<String, long[]>();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals("END")) {
+            String[] parts = line.split("\t", 3);
+            stats.put(parts[2], new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+        }
+        if (line == null)
+            throw new IOException("Statistics ended early");
+        return stats;
+    }
+}
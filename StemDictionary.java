@@ -0,0 +1,281 @@
+/**
+ *  StemDictionary assigns global ordinals to the stems that appear in
+ *  document term vectors, and holds their collection statistics (ctf
+ *  and df) for each generation of the index.  Stems are resolved in
+ *  bulk: the terms of a vector arrive in index order, so all of the
+ *  stems that are not in the dictionary yet are looked up with one
+ *  forward pass of TermsEnum.seekExact over the field's term
+ *  dictionary.  After that, statistics are plain array reads by
+ *  ordinal.
+ *
+ *  Ordinals and stems never change, but statistics do when the index
+ *  is reopened (see {@link IndexReopener}), so they are kept in a
+ *  {@link Stats} table per reader.  Each {@link IndexSnapshot} has the
+ *  table of its reader, and a table is never changed for another
+ *  generation, so a query sees the statistics of the generation that
+ *  it started on.
+ *
+ *  The dictionary and its tables are safe for concurrent use.  Lookups
+ *  never lock; adding stems and filling in statistics do.
+ */
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class StemDictionary {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    //  Entries are stored in fixed size pages so that growing the
+    //  dictionary never moves an entry that another thread may be
+    //  reading.
+
+    private static class Page {
+        final String[] fields = new String[PAGE_SIZE];
+        final String[] terms = new String[PAGE_SIZE];
+    }
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<BytesRef, Integer>> fields =
+            new ConcurrentHashMap<String, ConcurrentHashMap<BytesRef, Integer>>();
+    private volatile Page[] pages = new Page[0];
+    private int size = 0;
+
+    //  The table of the latest reader that asked for one.
+
+    private volatile Stats latest;
+
+    /**
+     * Return the ordinal of a stem, or -1 if it is not in the dictionary.
+     *
+     * @param field The field name.
+     * @param term  The stem.
+     * @return The stem's ordinal.
+     */
+    public int ordinal(String field, BytesRef term) {
+        ConcurrentHashMap<BytesRef, Integer> ords = fields.get(field);
+        if (ords == null)
+            return -1;
+        Integer ord = ords.get(term);
+        return ord == null ? -1 : ord;
+    }
+
+    /**
+     * Return the ordinals of a list of stems, adding the ones that are
+     * not in the dictionary yet, and fill in their statistics in the
+     * table of the current thread's query (see QryEval.stemStats).
+     * The lookup is most efficient when the stems are in index
+     * (BytesRef) order.
+     *
+     * @param field The field name.
+     * @param terms The stems.  They must not be modified afterwards.
+     * @return The ordinals of the stems.
+     * @throws IOException
+     */
+    public int[] resolve(String field, BytesRef[] terms) throws IOException {
+
+        //  Fetch the statistics of all of the stems in one pass over
+        //  the term dictionary.
+
+        Stats stats = QryEval.stemStats();
+        long[] ctf = new long[terms.length];
+        int[] df = new int[terms.length];
+        Terms fieldTerms = MultiFields.getTerms(stats.reader, field);
+
+        if (fieldTerms != null) {
+            TermsEnum termsEnum = fieldTerms.iterator(null);
+            for (int i = 0; i < terms.length; i++) {
+                if (termsEnum.seekExact(terms[i], false)) {
+                    ctf[i] = termsEnum.totalTermFreq();
+                    df[i] = termsEnum.docFreq();
+                }
+            }
+        }
+
+        int[] ords = new int[terms.length];
+
+        synchronized (this) {
+            ConcurrentHashMap<BytesRef, Integer> fieldOrds = fields.get(field);
+            if (fieldOrds == null) {
+                fieldOrds = new ConcurrentHashMap<BytesRef, Integer>();
+                fields.put(field, fieldOrds);
+            }
+
+            for (int i = 0; i < terms.length; i++) {
+                Integer ord = fieldOrds.get(terms[i]);
+                if (ord == null) {
+                    ord = size++;
+                    if ((ord >>> PAGE_BITS) == pages.length) {
+                        Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+                        grown[pages.length] = new Page();
+                        pages = grown;
+                    }
+                    Page page = pages[ord >>> PAGE_BITS];
+                    page.fields[ord & PAGE_MASK] = field;
+                    page.terms[ord & PAGE_MASK] = terms[i].utf8ToString();
+
+                    //  Publish the ordinal after its entry is filled in.
+
+                    fieldOrds.put(terms[i], ord);
+                }
+                ords[i] = ord;
+            }
+        }
+
+        for (int i = 0; i < terms.length; i++)
+            stats.set(ords[i], ctf[i], df[i]);
+        return ords;
+    }
+
+    /**
+     * Return the statistics table of a reader.  A reader that hasn't
+     * asked for one before, e.g., a new generation of the index, gets a
+     * new table, which is filled in for all of the stems that are in
+     * the dictionary, in index order, with one pass per field.  The
+     * tables of other readers don't change, and stems that are added
+     * later are filled in when they are resolved or first read.
+     *
+     * @param reader The reader.
+     * @return The reader's table.
+     * @throws IOException
+     */
+    public Stats stats(IndexReader reader) throws IOException {
+        Stats stats = latest;
+        if (stats != null && stats.reader == reader)
+            return stats;
+
+        synchronized (this) {
+            if (latest != null && latest.reader == reader)
+                return latest;
+
+            stats = new Stats(reader);
+            for (Map.Entry<String, ConcurrentHashMap<BytesRef, Integer>> e : fields.entrySet()) {
+                List<BytesRef> stems = new ArrayList<BytesRef>(e.getValue().keySet());
+                Collections.sort(stems);
+
+                Terms fieldTerms = MultiFields.getTerms(reader, e.getKey());
+                TermsEnum termsEnum = (fieldTerms == null) ? null : fieldTerms.iterator(null);
+                for (BytesRef stem : stems) {
+                    if (termsEnum != null && termsEnum.seekExact(stem, false))
+                        stats.set(e.getValue().get(stem), termsEnum.totalTermFreq(), termsEnum.docFreq());
+                    else
+                        stats.set(e.getValue().get(stem), 0, 0);
+                }
+            }
+            latest = stats;
+            return stats;
+        }
+    }
+
+    /**
+     * @param ord A stem ordinal.
+     * @return The stem string.
+     */
+    public String term(int ord) {
+        return pages[ord >>> PAGE_BITS].terms[ord & PAGE_MASK];
+    }
+
+    /**
+     * @param ord A stem ordinal.
+     * @return The field of the stem.
+     */
+    public String field(int ord) {
+        return pages[ord >>> PAGE_BITS].fields[ord & PAGE_MASK];
+    }
+
+    /**
+     * @return The number of stems in the dictionary.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The collection statistics of the stems in one reader.  Entries
+     * are only ever set to the reader's values, so they don't change
+     * once they are set.
+     */
+    public class Stats {
+        final IndexReader reader;
+
+        //  Pages of ctf and df by ordinal.  A df of -1 means that the
+        //  entry isn't set yet; df is written after ctf, and read
+        //  before it.
+
+        private volatile long[][] ctfPages = new long[0][];
+        private volatile AtomicIntegerArray[] dfPages = new AtomicIntegerArray[0];
+
+        Stats(IndexReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @param ord A stem ordinal.
+         * @return The collection term frequency of the stem.
+         * @throws IOException
+         */
+        public long ctf(int ord) throws IOException {
+            AtomicIntegerArray[] df = dfPages;
+            if ((ord >>> PAGE_BITS) >= df.length || df[ord >>> PAGE_BITS].get(ord & PAGE_MASK) < 0)
+                fill(ord);
+            return ctfPages[ord >>> PAGE_BITS][ord & PAGE_MASK];
+        }
+
+        /**
+         * @param ord A stem ordinal.
+         * @return The document frequency of the stem.
+         * @throws IOException
+         */
+        public int df(int ord) throws IOException {
+            AtomicIntegerArray[] df = dfPages;
+            if ((ord >>> PAGE_BITS) < df.length) {
+                int value = df[ord >>> PAGE_BITS].get(ord & PAGE_MASK);
+                if (value >= 0)
+                    return value;
+            }
+            fill(ord);
+            return dfPages[ord >>> PAGE_BITS].get(ord & PAGE_MASK);
+        }
+
+        /**
+         * Look up a stem that was added to the dictionary after the
+         * table was made, e.g., by a query of another generation.
+         */
+        private void fill(int ord) throws IOException {
+            Term term = new Term(field(ord), term(ord));
+            set(ord, reader.totalTermFreq(term), reader.docFreq(term));
+        }
+
+        synchronized void set(int ord, long ctf, int df) {
+            int page = ord >>> PAGE_BITS;
+            if (page >= dfPages.length) {
+                long[][] ctfGrown = Arrays.copyOf(ctfPages, page + 1);
+                AtomicIntegerArray[] dfGrown = Arrays.copyOf(dfPages, page + 1);
+                for (int i = dfPages.length; i <= page; i++) {
+                    ctfGrown[i] = new long[PAGE_SIZE];
+                    dfGrown[i] = new AtomicIntegerArray(PAGE_SIZE);
+                    for (int j = 0; j < PAGE_SIZE; j++)
+                        dfGrown[i].set(j, -1);
+                }
+                ctfPages = ctfGrown;
+                dfPages = dfGrown;
+            }
+            ctfPages[page][ord & PAGE_MASK] = ctf;
+            dfPages[page].set(ord & PAGE_MASK, df);
+        }
+    }
+}
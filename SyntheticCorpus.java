@@ -0,0 +1,487 @@
+/**
+ *  SyntheticCorpus generates a random corpus with the statistics of
+ *  real text, indexes it for QryEval, and writes queries for it, so
+ *  that benchmarks and regression tests don't need production data.
+ *
+ *    java SyntheticCorpus paramFile
+ *
+ *  It reads indexPath, and optionally queryFilePath (the query file to
+ *  write, in QryEval's id:query format), index:threads,
+ *  index:ramBufferMB and index:forceMerge (as {@link TrecIndexer}
+ *  does), and these parameters of the corpus:
+ *
+ *    synth:seed                The random seed (default 1).
+ *    synth:docs                The number of documents (default 10000).
+ *    synth:vocabulary          The number of distinct terms (default
+ *                              100000).
+ *    synth:zipf                The exponent of the Zipf distribution of
+ *                              term frequencies (default 1.0).
+ *    synth:length              The mean body length (default 300).
+ *    synth:lengthDistribution  lognormal (default), uniform or fixed.
+ *    synth:lengthSigma         The sigma of the lognormal distribution
+ *                              (default 0.8).
+ *    synth:fields              The other fields, as field:meanLength or
+ *                              field:meanLength:presence, separated by
+ *                              commas (default title:5,url:6,inlink:20:0.3).
+ *                              presence is the fraction of documents
+ *                              that have the field.
+ *    synth:phrases             The number of phrases (default 1000).
+ *    synth:phraseLength        The number of terms of a phrase (default 2).
+ *    synth:phraseRate          The probability that a body position
+ *                              starts a phrase (default 0.01).
+ *    synth:queries             The number of queries (default 100).
+ *
+ *  The term of frequency rank r is named "t" + r, so the frequency of
+ *  a term can be read from its name.  Field lengths are drawn from the
+ *  length distribution with the mean of the field, and are at most 20
+ *  times that mean.  Phrases are made of terms of rank 100 and above,
+ *  and are drawn from a Zipf distribution of their own, so some
+ *  phrases are common and most are rare.  The terms of phrases and
+ *  queries are drawn from the term distribution shifted past the most
+ *  frequent terms; a draw that falls past the vocabulary is drawn
+ *  again.
+ *
+ *  Queries are bags of 2 to 4 terms of rank 10 and above (60%),
+ *  #NEAR/1 of a phrase (20%), #WINDOW/8 of a phrase (10%) or #SYN of
+ *  2 or 3 terms (10%).
+ *
+ *  Every document and query is generated from its own random stream,
+ *  derived from the seed and its number, so the same parameters always
+ *  give the same corpus and queries.  Document k has the external id
+ *  synth-k.  With index:threads above 1, documents are generated in
+ *  parallel, and their internal docids are not in external id order.
+ *  Nothing is kept in memory per document, so the size of the corpus
+ *  is only limited by the disk.
+ */
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SyntheticCorpus {
+
+    //  Phrase terms and query terms skip the most frequent terms, which
+    //  behave like stopwords.
+
+    static final int PHRASE_MIN_RANK = 100;
+    static final int QUERY_MIN_RANK = 10;
+    static final int MAX_LENGTH_FACTOR = 20;
+
+    //  Salts that separate the random streams of documents, queries and
+    //  the phrase table.
+
+    private static final long DOCUMENT_SALT = 0x2545F4914F6CDD1DL;
+    private static final long QUERY_SALT = 0x5851F42D4C957F2DL;
+    private static final long PHRASE_SALT = 0x9E3779B97F4A7C15L;
+
+    private final long seed;
+    private final int docs;
+    private final int vocabulary;
+    private final String lengthDistribution;
+    private final double lengthSigma;
+    private final double phraseRate;
+    private final int queries;
+
+    private final List<String> fieldNames = new ArrayList<String>();
+    private final List<double[]> fieldShapes = new ArrayList<double[]>();
+
+    private final AliasTable terms;
+    private final AliasTable phraseChoice;
+    private final int[][] phrases;
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    /**
+     * @param params The parameters; see the class comment.
+     */
+    public SyntheticCorpus(Map<String, String> params) {
+        this.seed = longParam(params, "synth:seed", 1);
+        this.docs = (int) longParam(params, "synth:docs", 10000);
+        this.vocabulary = (int) longParam(params, "synth:vocabulary", 100000);
+        this.lengthDistribution = params.containsKey("synth:lengthDistribution") ?
+                params.get("synth:lengthDistribution") : "lognormal";
+        this.lengthSigma = doubleParam(params, "synth:lengthSigma", 0.8);
+        this.phraseRate = doubleParam(params, "synth:phraseRate", 0.01);
+        this.queries = (int) longParam(params, "synth:queries", 100);
+
+        if (docs <= 0 || vocabulary <= PHRASE_MIN_RANK)
+            throw new IllegalArgumentException("synth:docs must be positive, and synth:vocabulary above "
+                    + PHRASE_MIN_RANK);
+        if (!lengthDistribution.equals("lognormal") && !lengthDistribution.equals("uniform")
+                && !lengthDistribution.equals("fixed"))
+            throw new IllegalArgumentException("Unknown synth:lengthDistribution " + lengthDistribution);
+
+        //  The body is the first field; it always exists.
+
+        fieldNames.add("body");
+        fieldShapes.add(new double[]{doubleParam(params, "synth:length", 300), 1.0});
+        String fields = params.containsKey("synth:fields") ? params.get("synth:fields") : "title:5,url:6,inlink:20:0.3";
+        for (String spec : fields.split(",")) {
+            if (spec.trim().isEmpty())
+                continue;
+            String[] parts = spec.trim().split(":");
+            if (parts.length < 2 || parts.length > 3)
+                throw new IllegalArgumentException("Malformed synth:fields entry " + spec);
+            fieldNames.add(parts[0]);
+            fieldShapes.add(new double[]{Double.parseDouble(parts[1]),
+                    (parts.length == 3) ? Double.parseDouble(parts[2]) : 1.0});
+        }
+
+        double exponent = doubleParam(params, "synth:zipf", 1.0);
+        this.terms = AliasTable.zipf(vocabulary, exponent);
+
+        //  The phrase table.  Phrase terms are drawn from the term
+        //  distribution, shifted past the most frequent terms.
+
+        int numPhrases = (int) longParam(params, "synth:phrases", 1000);
+        int phraseLength = (int) longParam(params, "synth:phraseLength", 2);
+        Random random = new Random(seed ^ PHRASE_SALT);
+        this.phrases = new int[Math.max(numPhrases, 0)][phraseLength];
+        for (int[] phrase : phrases) {
+            for (int i = 0; i < phraseLength; i++)
+                phrase[i] = sampleAbove(PHRASE_MIN_RANK, random);
+        }
+        this.phraseChoice = (phrases.length > 0) ? AliasTable.zipf(phrases.length, exponent) : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:  java SyntheticCorpus paramFile");
+            System.exit(1);
+        }
+
+        Map<String, String> params = QryEval.readParameters(args[0]);
+        if (!params.containsKey("indexPath")) {
+            QryEval.fatalError("Error: indexPath is required");
+        }
+        int threads = params.containsKey("index:threads") ? Integer.parseInt(params.get("index:threads"))
+                : Runtime.getRuntime().availableProcessors();
+        double ramBufferMB = params.containsKey("index:ramBufferMB") ?
+                Double.parseDouble(params.get("index:ramBufferMB")) : 256;
+        int forceMerge = params.containsKey("index:forceMerge") ?
+                Integer.parseInt(params.get("index:forceMerge")) : 0;
+
+        SyntheticCorpus corpus = null;
+        try {
+            corpus = new SyntheticCorpus(params);
+        } catch (IllegalArgumentException e) {
+            QryEval.fatalError("Error: " + e.getMessage());
+        }
+
+        long start = System.currentTimeMillis();
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(params.get("indexPath"))),
+                TrecIndexer.config(threads, ramBufferMB, false));
+
+        //  As in TrecIndexer, a failed run is rolled back instead of
+        //  committing a partial index.
+
+        boolean committed = false;
+        try {
+            corpus.index(writer, threads);
+            if (forceMerge > 0)
+                writer.forceMerge(forceMerge);
+            writer.close();
+            committed = true;
+        } finally {
+            if (!committed)
+                writer.rollback();
+        }
+        System.out.println(corpus);
+        System.out.println("Indexed in " + (System.currentTimeMillis() - start) + " ms.");
+
+        if (params.containsKey("queryFilePath")) {
+            corpus.writeQueries(new File(params.get("queryFilePath")));
+        }
+    }
+
+    private static long longParam(Map<String, String> params, String key, long defaultValue) {
+        return params.containsKey(key) ? Long.parseLong(params.get(key)) : defaultValue;
+    }
+
+    private static double doubleParam(Map<String, String> params, String key, double defaultValue) {
+        return params.containsKey(key) ? Double.parseDouble(params.get(key)) : defaultValue;
+    }
+
+    /**
+     * Draw a term rank from the term distribution, shifted past the
+     * minRank most frequent terms.  Draws past the vocabulary are drawn
+     * again, so no term gets the mass of the tail.
+     */
+    private int sampleAbove(int minRank, Random random) {
+        int rank;
+        do {
+            rank = minRank + terms.sample(random);
+        } while (rank > vocabulary);
+        return rank;
+    }
+
+    /**
+     * Return the random stream of one document or query.
+     */
+    private Random stream(long salt, long n) {
+        long h = (seed ^ salt) + n * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return new Random(h ^ (h >>> 31));
+    }
+
+    /**
+     * Add the documents of the corpus to an index.
+     *
+     * @param writer  The index writer.
+     * @param threads The number of generator threads.
+     * @throws IOException
+     */
+    public void index(final IndexWriter writer, int threads) throws IOException {
+        final AtomicLong next = new AtomicLong();
+
+        Callable<Void> generator = new Callable<Void>() {
+            public Void call() throws IOException {
+                StringBuilder text = new StringBuilder();
+                long n;
+                try {
+                    while ((n = next.getAndIncrement()) < docs)
+                        writer.addDocument(document(n, text));
+                } catch (IOException e) {
+                    next.set(docs);     // Stop the other generators.
+                    throw e;
+                } catch (RuntimeException e) {
+                    next.set(docs);
+                    throw e;
+                }
+                return null;
+            }
+        };
+
+        threads = Math.max(threads, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicLong count = new AtomicLong();
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "synthetic-corpus-" + count.getAndIncrement());
+            }
+        });
+        try {
+            List<Future<Void>> generators = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++)
+                generators.add(pool.submit(generator));
+
+            //  Wait for all of the generators, and rethrow the first
+            //  error.
+
+            Throwable failure = null;
+            for (Future<Void> f : generators) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                } catch (InterruptedException e) {
+                    next.set(docs);
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            if (failure != null)
+                throw new IOException(failure);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Generate document n.
+     *
+     * @param n    The document number, from 0.
+     * @param text A buffer for the text of the fields.
+     * @return The document.
+     */
+    Document document(long n, StringBuilder text) {
+        Random random = stream(DOCUMENT_SALT, n);
+        Document doc = new Document();
+
+        for (int f = 0; f < fieldNames.size(); f++) {
+            double[] shape = fieldShapes.get(f);
+            if (shape[1] < 1.0 && random.nextDouble() >= shape[1])
+                continue;
+
+            int length = length(shape[0], random);
+            text.setLength(0);
+            int count = 0;
+            while (count < length) {
+                if (f == 0 && phraseChoice != null && random.nextDouble() < phraseRate) {
+                    for (int term : phrases[phraseChoice.sample(random) - 1]) {
+                        text.append('t').append(term).append(' ');
+                        count++;
+                    }
+                } else {
+                    text.append('t').append(terms.sample(random)).append(' ');
+                    count++;
+                }
+            }
+            tokens.addAndGet(count);
+            doc.add(new Field(fieldNames.get(f), text.toString(), TrecIndexer.TEXT_FIELD));
+        }
+
+        doc.add(new StringField("externalId", "synth-" + n, Field.Store.YES));
+        return doc;
+    }
+
+    /**
+     * Draw a field length from the length distribution.
+     */
+    private int length(double mean, Random random) {
+        double length;
+        if (lengthDistribution.equals("fixed")) {
+            length = mean;
+        } else if (lengthDistribution.equals("uniform")) {
+            length = 1 + random.nextDouble() * (2 * mean - 2);
+        } else {
+            double mu = Math.log(mean) - lengthSigma * lengthSigma / 2;
+            length = Math.exp(mu + lengthSigma * random.nextGaussian());
+        }
+        return (int) Math.max(1, Math.min(Math.round(length), MAX_LENGTH_FACTOR * mean));
+    }
+
+    /**
+     * Write the queries of the corpus in QryEval's id:query format.
+     *
+     * @param file The query file.
+     * @throws IOException
+     */
+    public void writeQueries(File file) throws IOException {
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (int q = 1; q <= queries; q++)
+                out.write(q + ":" + query(q) + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Generate query q.
+     */
+    String query(int q) {
+        Random random = stream(QUERY_SALT, q);
+        double type = random.nextDouble();
+        StringBuilder sb = new StringBuilder();
+
+        if (phraseChoice != null && type >= 0.6 && type < 0.9) {
+            int[] phrase = phrases[phraseChoice.sample(random) - 1];
+            sb.append((type < 0.8) ? "#NEAR/1(" : "#WINDOW/8(");
+            for (int i = 0; i < phrase.length; i++)
+                sb.append((i > 0) ? " " : "").append('t').append(phrase[i]);
+            return sb.append(')').toString();
+        }
+
+        boolean syn = type >= 0.9;
+        int length = syn ? 2 + random.nextInt(2) : 2 + random.nextInt(3);
+        if (syn)
+            sb.append("#SYN(");
+        for (int i = 0; i < length; i++) {
+            int rank = sampleAbove(QUERY_MIN_RANK, random);
+            sb.append((i > 0) ? " " : "").append('t').append(rank);
+        }
+        if (syn)
+            sb.append(')');
+        return sb.toString();
+    }
+
+    /*
+     *  Return a summary of the generated corpus.
+     */
+    public String toString() {
+        return "Synthetic corpus: " + docs + " documents, " + tokens.get() + " tokens, vocabulary "
+                + vocabulary + ", fields " + fieldNames + ", " + phrases.length + " phrases, seed " + seed;
+    }
+
+    /**
+     * Walker's alias table, which draws from a discrete distribution
+     * in constant time.  Outcomes are numbered from 1.
+     */
+    static class AliasTable {
+        private final double[] probability;
+        private final int[] alias;
+
+        AliasTable(double[] weights) {
+            int n = weights.length;
+            probability = new double[n];
+            alias = new int[n];
+
+            double sum = 0;
+            for (double w : weights)
+                sum += w;
+
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int numSmall = 0, numLarge = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * n / sum;
+                if (scaled[i] < 1.0)
+                    small[numSmall++] = i;
+                else
+                    large[numLarge++] = i;
+            }
+
+            while (numSmall > 0 && numLarge > 0) {
+                int s = small[--numSmall];
+                int l = large[--numLarge];
+                probability[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+                if (scaled[l] < 1.0)
+                    small[numSmall++] = l;
+                else
+                    large[numLarge++] = l;
+            }
+
+            //  The rest are 1 up to rounding errors.
+
+            while (numLarge > 0)
+                probability[large[--numLarge]] = 1.0;
+            while (numSmall > 0)
+                probability[small[--numSmall]] = 1.0;
+        }
+
+        /**
+         * Return the table of a Zipf distribution over 1 to n.
+         */
+        static AliasTable zipf(int n, double exponent) {
+            double[] weights = new double[n];
+            for (int r = 1; r <= n; r++)
+                weights[r - 1] = 1.0 / Math.pow(r, exponent);
+            return new AliasTable(weights);
+        }
+
+        int sample(Random random) {
+            int i = random.nextInt(probability.length);
+            return ((random.nextDouble() < probability[i]) ? i : alias[i]) + 1;
+        }
+    }
+}
@@ -34,9 +34,12 @@ public class TermVector {
      */
     public TermVector(int docId, String fieldName) throws IOException {
 
+        QryEvents.TermVectorBuild event = new QryEvents.TermVectorBuild();
+        event.begin();
+
         //  Fetch the term vector.
 
-        this.luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
+        this.luceneTerms = QryEval.reader().getTermVector(docId, fieldName);
 
         //  Allocate space for stems. The 0'th stem indicates a stopword.
 
@@ -88,6 +91,15 @@ public class TermVector {
             for (int j = 0; j < ithPositions.freq(); j++)
                 positions[ithPositions.nextPosition()] = i + 1;
         }
+
+        if (event.shouldCommit()) {
+            event.queryId = QryEvents.queryId();
+            event.docid = docId;
+            event.field = fieldName;
+            event.stems = stems.length - 1;
+            event.positions = positions.length;
+            event.commit();
+        }
     }
 
     /**
@@ -159,7 +171,7 @@ public class TermVector {
      * @throws IOException.
      */
     public long totalStemFreq(int i) throws IOException {
-        return QryEval.READER.totalTermFreq(terms[i]);
+        return QryEval.reader().totalTermFreq(terms[i]);
     }
 
     /**
@@ -170,7 +182,7 @@ public class TermVector {
      * @throws IOException.
      */
     public int stemDf(int i) throws IOException {
-        return QryEval.READER.docFreq(terms[i]);
+        return QryEval.reader().docFreq(terms[i]);
     }
 
 }
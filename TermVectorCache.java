@@ -0,0 +1,179 @@
+/**
+ *  A bounded, least-recently-used cache of {@link CompactTermVector}s
+ *  keyed by (docid, field).  Across a query batch the same highly
+ *  ranked documents appear in the feedback sets of many queries, so
+ *  caching their term vectors avoids decoding them from Lucene again.
+ *
+ *  The cache is safe for concurrent use.  Vectors are built outside
+ *  of the lock, so two threads that miss on the same document at the
+ *  same time may both build it; the second copy simply replaces the
+ *  first.
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TermVectorCache {
+
+    private final int capacity;
+    private final boolean keepPositions;
+    private final LinkedHashMap<Key, CompactTermVector> vectors;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    //  The index generation of the cached vectors (see IndexReopener).
+    //  Queries that still use an older generation bypass the cache,
+    //  because their docids may refer to other documents.
+
+    private long generation = 0;
+
+    /**
+     * @param capacity      The maximum number of vectors to keep.
+     * @param keepPositions If true, cached vectors keep position information.
+     */
+    public TermVectorCache(int capacity, boolean keepPositions) {
+        this.capacity = capacity;
+        this.keepPositions = keepPositions;
+        this.vectors = new LinkedHashMap<Key, CompactTermVector>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CompactTermVector> eldest) {
+                if (size() > TermVectorCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the term vector of a field in a document, fetching it
+     * from the index if it is not cached.
+     *
+     * @param docid     The internal document id.
+     * @param fieldName The field name.
+     * @return The document's term vector.
+     * @throws IOException
+     */
+    public CompactTermVector get(int docid, String fieldName) throws IOException {
+        Key key = new Key(docid, fieldName);
+        long queryGeneration = QryEval.generation();
+
+        synchronized (this) {
+            if (queryGeneration != generation) {
+                misses++;
+                return new CompactTermVector(docid, fieldName, keepPositions);
+            }
+            CompactTermVector v = vectors.get(key);
+            if (v != null) {
+                hits++;
+                return v;
+            }
+            misses++;
+        }
+
+        CompactTermVector v = new CompactTermVector(docid, fieldName, keepPositions);
+
+        if (capacity > 0) {
+            synchronized (this) {
+                if (queryGeneration == generation)
+                    vectors.put(key, v);
+            }
+        }
+        return v;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return vectors.size();
+    }
+
+    /**
+     * Discard all cached vectors.  The statistics are not reset.
+     */
+    public synchronized void clear() {
+        vectors.clear();
+    }
+
+    /**
+     * Move the cache to a new index generation.  The vectors of
+     * documents outside of a set of docid ranges, i.e., of segments
+     * that the reopen merged or moved, are discarded.  The statistics
+     * are not reset.
+     *
+     * @param ranges     {first docid, last docid + 1} of each range.
+     * @param generation The new generation.
+     * @return The number of vectors discarded.
+     */
+    public synchronized int retainRanges(List<int[]> ranges, long generation) {
+        this.generation = generation;
+
+        int discarded = 0;
+        Iterator<Key> keys = vectors.keySet().iterator();
+        while (keys.hasNext()) {
+            int docid = keys.next().docid;
+            boolean keep = false;
+            for (int[] range : ranges) {
+                if (docid >= range[0] && docid < range[1]) {
+                    keep = true;
+                    break;
+                }
+            }
+            if (!keep) {
+                keys.remove();
+                discarded++;
+            }
+        }
+        return discarded;
+    }
+
+    /*
+     *  Return a summary of the cache statistics.
+     */
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "Term vector cache: " + vectors.size() + "/" + capacity + " vectors, "
+                + hits + " hits, " + misses + " misses ("
+                + (lookups == 0 ? 0 : (100 * hits / lookups)) + "% hit rate), "
+                + evictions + " evictions";
+    }
+
+    private static class Key {
+        final int docid;
+        final String field;
+
+        Key(int docid, String field) {
+            this.docid = docid;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return docid == k.docid && field.equals(k.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * docid + field.hashCode();
+        }
+    }
+}
@@ -0,0 +1,724 @@
+/**
+ *  TrecIndexer builds the Lucene index that QryEval searches from
+ *  TREC-style or WARC document files.
+ *
+ *    java TrecIndexer paramFile
+ *
+ *  It reads these parameters from the parameter file:
+ *
+ *    indexPath           The index to create.
+ *    corpusPath          Document files or directories, separated by
+ *                        commas.  Directories are read recursively,
+ *                        and files whose names end with .gz are
+ *                        decompressed.
+ *    index:threads       The number of parse/analyze threads (default
+ *                        the number of processors).
+ *    index:ramBufferMB   The indexing buffer, shared by the threads
+ *                        (default 256).
+ *    index:forceMerge    Merge the index down to at most this many
+ *                        segments at the end (default 0, don't merge).
+ *    index:append        Add to an existing index instead of replacing
+ *                        it (default false).
+ *
+ *  A TREC file holds <DOC> ... </DOC> elements with a <DOCNO>, and
+ *  optionally a <DOCHDR> whose first token is the URL (the trecweb
+ *  format), a <URL>, and <INLINK> elements with anchor text.  The rest
+ *  of the document is HTML or plain text.  A WARC file holds response
+ *  records with a WARC-TREC-ID header (e.g., ClueWeb).  The format of
+ *  each file is detected from its first line.
+ *
+ *  Each document gets the fields that QryEval expects: body, title,
+ *  url and inlink, with term vectors and positions, and a stored
+ *  externalId.  They are analyzed with the same analyzer as queries,
+ *  and the documents' lengths are stored as raw norms by
+ *  {@link DocLenStoreSimilarity}, which {@link DocLengthStore} reads.
+ *
+ *  One thread reads and splits the files, and a bounded queue hands
+ *  the raw documents to the worker threads, which strip the markup,
+ *  analyze the text and add the documents to the shared IndexWriter.
+ *  Each worker fills its own in-memory segment, so documents are not
+ *  in corpus order in the index.
+ */
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+public class TrecIndexer {
+
+    //  Text fields are indexed with positions and term vectors, which
+    //  feedback and the proximity operators read.
+
+    static final FieldType TEXT_FIELD = new FieldType(TextField.TYPE_NOT_STORED);
+
+    static {
+        TEXT_FIELD.setStoreTermVectors(true);
+        TEXT_FIELD.setStoreTermVectorPositions(true);
+        TEXT_FIELD.freeze();
+    }
+
+    //  URLs are split into words at punctuation, which the tokenizer
+    //  would keep inside host names.
+
+    private static final Pattern URL_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    //  Marks the end of the corpus in the queue.
+
+    private static final RawDocument END_OF_CORPUS = new RawDocument(null, null, null, false);
+
+    private final IndexWriter writer;
+    private final int threads;
+    private final BlockingQueue<RawDocument> queue;
+    private volatile Throwable failure;
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private long files = 0;
+
+    /**
+     * @param writer  The index writer.
+     * @param threads The number of parse/analyze threads.
+     */
+    public TrecIndexer(IndexWriter writer, int threads) {
+        this.writer = writer;
+        this.threads = Math.max(threads, 1);
+        this.queue = new ArrayBlockingQueue<RawDocument>(256 * this.threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:  java TrecIndexer paramFile");
+            System.exit(1);
+        }
+
+        Map<String, String> params = QryEval.readParameters(args[0]);
+        if (!params.containsKey("indexPath") || !params.containsKey("corpusPath")) {
+            QryEval.fatalError("Error: indexPath and corpusPath are required");
+        }
+        int threads = params.containsKey("index:threads") ? Integer.parseInt(params.get("index:threads"))
+                : Runtime.getRuntime().availableProcessors();
+        double ramBufferMB = params.containsKey("index:ramBufferMB") ?
+                Double.parseDouble(params.get("index:ramBufferMB")) : 256;
+        int forceMerge = params.containsKey("index:forceMerge") ?
+                Integer.parseInt(params.get("index:forceMerge")) : 0;
+
+        List<File> files = new ArrayList<File>();
+        for (String path : params.get("corpusPath").split(",")) {
+            File f = new File(path.trim());
+            if (!f.exists())
+                QryEval.fatalError("Error: " + f + " doesn't exist");
+            collectFiles(f, files);
+        }
+
+        long start = System.currentTimeMillis();
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(params.get("indexPath"))),
+                config(threads, ramBufferMB, "true".equals(params.get("index:append"))));
+
+        //  The index is only committed if every document was indexed.
+        //  Otherwise it is rolled back to its last commit, so a failed
+        //  run never leaves a partial index behind.
+
+        boolean committed = false;
+        try {
+            TrecIndexer indexer = new TrecIndexer(writer, threads);
+            indexer.index(files);
+            System.out.println(indexer);
+
+            if (forceMerge > 0) {
+                long mergeStart = System.currentTimeMillis();
+                writer.forceMerge(forceMerge);
+                System.out.println("Merged to " + forceMerge + " segments in "
+                        + (System.currentTimeMillis() - mergeStart) + " ms.");
+            }
+            writer.close();
+            committed = true;
+        } finally {
+            if (!committed)
+                writer.rollback();
+        }
+        System.out.println("Indexed in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Return a writer configuration for bulk indexing: a large RAM
+     * buffer instead of a document count limit, one indexing thread
+     * state per worker, and a merge policy that merges less often and
+     * doesn't write compound files, which only save file handles.
+     */
+    static IndexWriterConfig config(int threads, double ramBufferMB, boolean append) {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, QryEval.analyzer);
+        config.setSimilarity(new DocLenStoreSimilarity());
+        config.setOpenMode(append ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+        config.setRAMBufferSizeMB(ramBufferMB);
+        config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        config.setMaxThreadStates(Math.max(threads, 1));
+
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(20);
+        mergePolicy.setMaxMergeAtOnce(20);
+        mergePolicy.setUseCompoundFile(false);
+        mergePolicy.setNoCFSRatio(0.0);
+        config.setMergePolicy(mergePolicy);
+        return config;
+    }
+
+    /**
+     * Add the files under a path, in name order.
+     */
+    static void collectFiles(File f, List<File> files) {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children == null)
+                return;
+            Arrays.sort(children);
+            for (File child : children)
+                collectFiles(child, files);
+        } else if (!f.isHidden()) {
+            files.add(f);
+        }
+    }
+
+    /**
+     * Index the documents of some files.  The method returns when all
+     * of them have been added to the writer; it doesn't commit.
+     *
+     * @param files The document files.
+     * @throws IOException
+     */
+    public void index(List<File> files) throws IOException {
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "indexer-" + i);
+            t.start();
+            workers.add(t);
+        }
+
+        try {
+            for (File f : files) {
+                if (failure != null)
+                    break;
+                read(f);
+                this.files++;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                for (int i = 0; i < threads; i++)
+                    queue.put(END_OF_CORPUS);
+                for (Thread t : workers)
+                    t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new IOException(failure);
+    }
+
+    /**
+     * Take raw documents from the queue and index them until the end
+     * of the corpus.  After an error, the worker keeps emptying the
+     * queue so that the reader isn't blocked.
+     */
+    private void work() {
+        try {
+            while (true) {
+                RawDocument raw = queue.take();
+                if (raw == END_OF_CORPUS)
+                    break;
+                if (failure != null)
+                    continue;
+
+                try {
+                    Document doc = raw.trec ? parseTrec(raw.content) : parseWarc(raw);
+                    if (doc == null) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    writer.addDocument(doc);
+                    indexed.incrementAndGet();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Split a file into raw documents and queue them.
+     */
+    private void read(File f) throws IOException, InterruptedException {
+        InputStream stream = new FileInputStream(f);
+        try {
+            if (f.getName().endsWith(".gz"))
+                stream = new GZIPInputStream(stream, 1 << 16);
+            LineInput in = new LineInput(stream, 1 << 16);
+
+            String line = in.readLine();
+            while (line != null && line.trim().isEmpty())
+                line = in.readLine();
+            if (line == null)
+                return;
+
+            if (line.startsWith("WARC/"))
+                readWarc(f, in);
+            else
+                readTrec(line, in);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Queue the <DOC> elements of a TREC file.
+     */
+    private void readTrec(String line, LineInput in) throws IOException, InterruptedException {
+        StringBuilder doc = null;
+        for (; line != null; line = in.readLine()) {
+            if (doc == null) {
+                int start = line.indexOf("<DOC>");
+                if (start >= 0)
+                    doc = new StringBuilder(line.substring(start + 5)).append('\n');
+                continue;
+            }
+
+            int end = line.indexOf("</DOC>");
+            if (end < 0) {
+                doc.append(line).append('\n');
+                continue;
+            }
+            doc.append(line, 0, end);
+            queue.put(new RawDocument(null, null, doc.toString(), true));
+            doc = null;
+            if (failure != null)
+                return;
+        }
+    }
+
+    /**
+     * Queue the response records of a WARC file.  The first line, the
+     * version of the first record, was already read.
+     */
+    private void readWarc(File f, LineInput in) throws IOException, InterruptedException {
+        while (true) {
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = in.readLine()) != null && !line.trim().isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            if (line == null)
+                return;
+
+            int length;
+            try {
+                length = Integer.parseInt(headers.get("content-length"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed WARC record in " + f + ": no Content-Length");
+            }
+            byte[] content = in.readFully(length);
+            if (content == null)
+                throw new IOException("Truncated WARC record in " + f);
+
+            String id = headers.get("warc-trec-id");
+            if ("response".equals(headers.get("warc-type")) && id != null) {
+                queue.put(new RawDocument(id, headers.get("warc-target-uri"), new String(content, "UTF-8"), false));
+                if (failure != null)
+                    return;
+            }
+
+            //  Skip to the version line of the next record.
+
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith("WARC/"));
+            if (line == null)
+                return;
+        }
+    }
+
+    /**
+     * Build the document of a TREC <DOC> element.
+     *
+     * @return The document, or null if it has no DOCNO.
+     */
+    static Document parseTrec(String doc) {
+        String docno = element(doc, "DOCNO");
+        if (docno == null || docno.trim().isEmpty())
+            return null;
+
+        String url = element(doc, "URL");
+        String header = element(doc, "DOCHDR");
+        if (url == null && header != null) {
+            String[] tokens = header.trim().split("\\s+", 2);
+            url = tokens[0];
+        }
+
+        StringBuilder inlinks = new StringBuilder();
+        String content = removeElements(doc, "DOCNO", null);
+        content = removeElements(content, "DOCHDR", null);
+        content = removeElements(content, "URL", null);
+        content = removeElements(content, "INLINK", inlinks);
+
+        return document(docno.trim(), url, content, inlinks.toString());
+    }
+
+    /**
+     * Build the document of a WARC response record.  The HTTP headers
+     * that precede the HTML are skipped.
+     */
+    static Document parseWarc(RawDocument raw) {
+        String content = raw.content;
+        if (content.startsWith("HTTP/")) {
+            int end = content.indexOf("\r\n\r\n");
+            int skip = 4;
+            if (end < 0) {
+                end = content.indexOf("\n\n");
+                skip = 2;
+            }
+            content = (end < 0) ? "" : content.substring(end + skip);
+        }
+        return document(raw.docno, raw.url, content, "");
+    }
+
+    /**
+     * Build a document from its parts.
+     */
+    private static Document document(String docno, String url, String html, String inlinks) {
+        String title = element(html, "TITLE");
+        if (title == null)
+            title = element(html, "HEADLINE");
+
+        Document doc = new Document();
+        doc.add(new Field("body", stripTags(html), TEXT_FIELD));
+        doc.add(new Field("title", (title == null) ? "" : stripTags(title), TEXT_FIELD));
+        doc.add(new Field("url", (url == null) ? "" : URL_SEPARATORS.matcher(url).replaceAll(" "), TEXT_FIELD));
+        doc.add(new Field("inlink", inlinks, TEXT_FIELD));
+        doc.add(new StringField("externalId", docno, Field.Store.YES));
+        return doc;
+    }
+
+    /**
+     * Return the content of the first element with a tag, ignoring
+     * case, or null.
+     */
+    static String element(String doc, String tag) {
+        int open = indexOfIgnoreCase(doc, "<" + tag, 0);
+        while (open >= 0) {
+            int after = open + tag.length() + 1;
+            if (after < doc.length() && (doc.charAt(after) == '>' || Character.isWhitespace(doc.charAt(after))))
+                break;
+            open = indexOfIgnoreCase(doc, "<" + tag, after);
+        }
+        if (open < 0)
+            return null;
+
+        int start = doc.indexOf('>', open);
+        if (start < 0)
+            return null;
+        int end = indexOfIgnoreCase(doc, "</" + tag, start + 1);
+        return doc.substring(start + 1, (end < 0) ? doc.length() : end);
+    }
+
+    /**
+     * Remove every element with a tag (ignoring case), and append the
+     * contents of the removed elements to text, if it isn't null.
+     */
+    static String removeElements(String doc, String tag, StringBuilder text) {
+        String open = "<" + tag + ">";
+        String close = "</" + tag + ">";
+        int start = indexOfIgnoreCase(doc, open, 0);
+        if (start < 0)
+            return doc;
+
+        StringBuilder sb = new StringBuilder(doc.length());
+        int from = 0;
+        while (start >= 0) {
+            int end = indexOfIgnoreCase(doc, close, start + open.length());
+            if (end < 0)
+                break;
+            sb.append(doc, from, start).append(' ');
+            if (text != null)
+                text.append(doc, start + open.length(), end).append('\n');
+            from = end + close.length();
+            start = indexOfIgnoreCase(doc, open, from);
+        }
+        return sb.append(doc, from, doc.length()).toString();
+    }
+
+    /**
+     * Return the text of an HTML document: tags and comments are
+     * replaced by spaces, the contents of script and style elements
+     * are dropped, and common character entities are decoded.
+     */
+    static String stripTags(String html) {
+        StringBuilder sb = new StringBuilder(html.length());
+        int n = html.length();
+        int i = 0;
+        while (i < n) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int end;
+                if (html.startsWith("<!--", i)) {
+                    end = html.indexOf("-->", i + 4);
+                    end = (end < 0) ? n : end + 3;
+                } else if (html.regionMatches(true, i, "<script", 0, 7)) {
+                    end = skipElement(html, i, "</script");
+                } else if (html.regionMatches(true, i, "<style", 0, 6)) {
+                    end = skipElement(html, i, "</style");
+                } else {
+                    end = html.indexOf('>', i);
+                    end = (end < 0) ? n : end + 1;
+                }
+                sb.append(' ');
+                i = end;
+            } else if (c == '&') {
+                int semi = html.indexOf(';', i);
+                if (semi > i + 1 && semi - i <= 8) {
+                    int decoded = entity(html.substring(i + 1, semi));
+                    if (decoded >= 0) {
+                        sb.appendCodePoint(decoded);
+                        i = semi + 1;
+                        continue;
+                    }
+                }
+                sb.append(c);
+                i++;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int skipElement(String html, int start, String close) {
+        int end = indexOfIgnoreCase(html, close, start);
+        if (end < 0)
+            return html.length();
+        end = html.indexOf('>', end);
+        return (end < 0) ? html.length() : end + 1;
+    }
+
+    /**
+     * Decode a character entity without its & and ;.
+     *
+     * @return The code point, or -1 if the entity isn't known.
+     */
+    private static int entity(String name) {
+        if (name.charAt(0) == '#') {
+            try {
+                int code = (name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')) ?
+                        Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+                return Character.isValidCodePoint(code) ? code : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        if (name.equals("amp"))
+            return '&';
+        if (name.equals("lt"))
+            return '<';
+        if (name.equals("gt"))
+            return '>';
+        if (name.equals("quot"))
+            return '"';
+        if (name.equals("apos"))
+            return '\'';
+        if (name.equals("nbsp"))
+            return ' ';
+        return -1;
+    }
+
+    /**
+     * Return the index of the first occurrence of target in s at or
+     * after from, ignoring case as String.regionMatches does, or -1.
+     * The search is Knuth-Morris-Pratt over case-folded characters, so
+     * it is linear in the length of s, also for long documents with
+     * many partial matches of the target.
+     */
+    static int indexOfIgnoreCase(String s, String target, int from) {
+        int m = target.length();
+        from = Math.max(from, 0);
+        if (m == 0)
+            return (from <= s.length()) ? from : -1;
+
+        char[] t = new char[m];
+        for (int i = 0; i < m; i++)
+            t[i] = fold(target.charAt(i));
+
+        //  next[i] is the length of the longest proper prefix of
+        //  t[0..i] that is also a suffix of it.
+
+        int[] next = new int[m];
+        for (int i = 1, k = 0; i < m; i++) {
+            while (k > 0 && t[i] != t[k])
+                k = next[k - 1];
+            if (t[i] == t[k])
+                k++;
+            next[i] = k;
+        }
+
+        for (int i = from, k = 0; i < s.length(); i++) {
+            char c = fold(s.charAt(i));
+            while (k > 0 && c != t[k])
+                k = next[k - 1];
+            if (c == t[k] && ++k == m)
+                return i - m + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Fold the case of a character: two characters are equal ignoring
+     * case (as in String.regionMatches) if their folds are equal.
+     */
+    private static char fold(char c) {
+        if (c < 128)
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Reads the lines and records of a document file from a buffer
+     * that is refilled in blocks, so lines are found by scanning the
+     * buffer rather than by reading one byte at a time, and the bytes
+     * of a line are collected in a buffer that is reused for every
+     * line.
+     */
+    static class LineInput {
+        private final InputStream in;
+        private final byte[] buffer;
+        private int position = 0;
+        private int limit = 0;
+        private byte[] line = new byte[128];
+
+        /**
+         * @param in         The stream.  It is not closed by LineInput.
+         * @param bufferSize The size of the read buffer.
+         */
+        LineInput(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * @return False if the stream has ended.
+         */
+        private boolean fill() throws IOException {
+            if (position < limit)
+                return true;
+            int n = in.read(buffer, 0, buffer.length);
+            position = 0;
+            limit = Math.max(n, 0);
+            return n > 0;
+        }
+
+        /**
+         * Read a line of UTF-8 text, without its line terminator.
+         *
+         * @return The line, or null at the end of the stream.
+         */
+        String readLine() throws IOException {
+            int length = 0;
+            boolean found = false;
+            while (!found && fill()) {
+                int end = position;
+                while (end < limit && buffer[end] != '\n')
+                    end++;
+                int n = end - position;
+                if (length + n > line.length)
+                    line = Arrays.copyOf(line, Math.max(2 * line.length, length + n));
+                System.arraycopy(buffer, position, line, length, n);
+                length += n;
+                found = end < limit;
+                position = found ? end + 1 : end;
+            }
+            if (!found && length == 0)
+                return null;
+
+            if (length > 0 && line[length - 1] == '\r')
+                length--;
+            return new String(line, 0, length, "UTF-8");
+        }
+
+        /**
+         * Read length bytes.
+         *
+         * @return The bytes, or null if the stream ends first.
+         */
+        byte[] readFully(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                if (!fill())
+                    return null;
+                int n = Math.min(length - read, limit - position);
+                System.arraycopy(buffer, position, bytes, read, n);
+                position += n;
+                read += n;
+            }
+            return bytes;
+        }
+    }
+
+    /*
+     *  Return a summary of the indexing statistics.
+     */
+    public String toString() {
+        return "Indexing: " + files + " files, " + indexed.get() + " documents, " + skipped.get()
+                + " skipped without DOCNO, " + threads + " threads";
+    }
+
+    /**
+     * A document as read from its file, before parsing.  TREC
+     * documents are parsed completely by the workers; the reader
+     * already took the id and URL of WARC records from their headers.
+     */
+    static class RawDocument {
+        final String docno;
+        final String url;
+        final String content;
+        final boolean trec;
+
+        RawDocument(String docno, String url, String content, boolean trec) {
+            this.docno = docno;
+            this.url = url;
+            this.content = content;
+            this.trec = trec;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ *  BenchWorkloads sets up the engine for the JMH benchmarks of
+ *  qryeval.bench: it generates and opens the benchmark index, and
+ *  creates the workloads that the benchmarks run.  It is in the
+ *  default package so that it can use the engine's classes; the
+ *  benchmarks find it by reflection (see qryeval.bench.Engine).
+ *
+ *  The index is a {@link SyntheticCorpus} with a body and a title.
+ *  Terms are named by frequency rank, so benchmarks can choose terms
+ *  with a known df: t2 is in almost every document, t60 in a fair
+ *  share of them and t3000 in a few, and the frequent terms t3 and t4
+ *  often occur near each other, so #NEAR and #WINDOW have matches to
+ *  merge.  Documents are indexed by one thread, so internal docids are
+ *  in corpus order and the same seed always gives the same index.
+ *
+ *  Inverted list and score list operators are measured without the
+ *  cost of fetching their arguments: their arguments are evaluated
+ *  once, and FixedInvList and FixedScoreList hand the results back
+ *  on every evaluation.  Operators don't change their arguments'
+ *  lists, so each evaluation does the same work.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import qryeval.bench.Workload;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class BenchWorkloads {
+
+    //  The terms of the inverted list benchmarks, by df.
+
+    private static final Map<String, String> TERMS = new HashMap<String, String>();
+
+    static {
+        TERMS.put("high", "t2");
+        TERMS.put("mid", "t60");
+        TERMS.put("low", "t3000");
+    }
+
+    static final String PARSE_QUERY =
+            "#wand(0.4 #and(t5 t9.title #near/3(t3 t4)) 0.3 #syn(t20 t21 t22) 0.3 #window/8(t7 t11 t30))";
+
+    static final String TOKENIZE_TEXT =
+            "The quick brown foxes were jumping over the lazy dogs while the farmers' children "
+                    + "watched them from the houses across the river, laughing at their running";
+
+    /**
+     * Open the benchmark index, and generate it first if it doesn't
+     * exist.
+     *
+     * @param path The index directory.
+     * @param docs The number of documents.
+     * @param seed The random seed of the corpus.
+     * @throws IOException
+     */
+    public static void open(String path, int docs, long seed) throws IOException {
+        Directory dir = FSDirectory.open(new File(path));
+        if (!DirectoryReader.indexExists(dir)) {
+            long start = System.currentTimeMillis();
+            generate(dir, docs, seed);
+            System.out.println("Generated the benchmark index " + path + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+
+        QryEval.READER = DirectoryReader.open(dir);
+        QryEval.dls = new DocLengthStore(QryEval.READER);
+    }
+
+    static void generate(Directory dir, int docs, long seed) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:seed", Long.toString(seed));
+        params.put("synth:docs", Integer.toString(docs));
+        params.put("synth:vocabulary", "50000");
+        params.put("synth:length", "275");
+        params.put("synth:lengthDistribution", "uniform");
+        params.put("synth:fields", "title:3");
+
+        IndexWriter writer = new IndexWriter(dir, TrecIndexer.config(1, 64, false));
+        try {
+            new SyntheticCorpus(params).index(writer, 1);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Create a workload.
+     *
+     * @param name    invList, syn, near, window, and, sum, wand,
+     *                prioritySort, parseQuery or tokenizeQuery.
+     * @param variant The df class of an invList term (high, mid or
+     *                low), or the size of the list of prioritySort.
+     *                Other workloads ignore it.
+     * @return The workload.
+     * @throws IOException
+     */
+    public static Workload create(String name, String variant) throws IOException {
+        if (name.equals("invList"))
+            return invList(variant);
+        if (name.equals("syn") || name.equals("near") || name.equals("window"))
+            return invListMerge(name);
+        if (name.equals("and") || name.equals("sum") || name.equals("wand"))
+            return scoreCombine(name);
+        if (name.equals("prioritySort"))
+            return prioritySort(Integer.parseInt(variant));
+        if (name.equals("parseQuery"))
+            return parseQuery();
+        if (name.equals("tokenizeQuery"))
+            return tokenizeQuery();
+        throw new IllegalArgumentException("Unknown workload " + name);
+    }
+
+    private static Workload invList(String variant) {
+        final String term = TERMS.get(variant);
+        if (term == null)
+            throw new IllegalArgumentException("Unknown df class " + variant);
+
+        return new Operation() {
+            public Object run() throws IOException {
+                return new InvList(term, "body");
+            }
+        };
+    }
+
+    private static Workload invListMerge(final String name) throws IOException {
+        final Qryop[] lists = (name.equals("syn")) ?
+                fixedInvLists("t20", "t21", "t22") : fixedInvLists("t3", "t4");
+        final RetrievalModel model = model("Indri");
+
+        return new Operation() {
+            public Object run() throws IOException {
+                Qryop op;
+                if (name.equals("syn"))
+                    op = new QryopIlSyn(lists);
+                else if (name.equals("near"))
+                    op = new QryopIlNear(3, lists);
+                else
+                    op = new QryopIlWindow(8, lists);
+                return op.evaluate(model);
+            }
+        };
+    }
+
+    private static Workload scoreCombine(final String name) throws IOException {
+        final RetrievalModel model = model(name.equals("sum") ? "BM25" : "Indri");
+        final Qryop[] lists = fixedScoreLists(model, "t80", "t150", "t300");
+
+        return new Operation() {
+            public Object run() throws IOException {
+                Qryop op;
+                if (name.equals("and"))
+                    op = new QryopSlAnd(lists);
+                else {
+                    op = name.equals("sum") ? new QryopSlSum() : new QryopSlWand();
+                    for (Qryop list : lists)
+                        op.add(list);
+                }
+                return op.evaluate(model);
+            }
+        };
+    }
+
+    private static Workload prioritySort(final int size) {
+        final int[] docids = new int[size];
+        final double[] scores = new double[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            docids[i] = random.nextInt(QryEval.reader().maxDoc());
+            scores[i] = random.nextDouble();
+        }
+
+        //  prioritySort reorders the list and caches external ids in its
+        //  entries, so every invocation gets new ones.
+
+        return new Workload() {
+            private ScoreList list;
+
+            public void prepare() throws IOException {
+                list = new ScoreList();
+                for (int i = 0; i < size; i++)
+                    list.add(docids[i], scores[i]);
+            }
+
+            public Object run() {
+                list.prioritySort(BatchRunner.RESULTS_PER_QUERY);
+                return list;
+            }
+        };
+    }
+
+    private static Workload parseQuery() {
+        final RetrievalModel model = model("Indri");
+
+        return new Operation() {
+            public Object run() throws IOException {
+                return QryEval.parseQuery(PARSE_QUERY, model);
+            }
+        };
+    }
+
+    private static Workload tokenizeQuery() {
+        return new Operation() {
+            public Object run() throws IOException {
+                return QryEval.tokenizeQuery(TOKENIZE_TEXT);
+            }
+        };
+    }
+
+    private static RetrievalModel model(String name) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("BM25:k_1", "1.2");
+        params.put("BM25:b", "0.75");
+        params.put("BM25:k_3", "0");
+        params.put("Indri:mu", "2500");
+        params.put("Indri:lambda", "0.4");
+        return QryEval.createModel(name, params);
+    }
+
+    private static Qryop[] fixedInvLists(String... terms) throws IOException {
+        Qryop[] lists = new Qryop[terms.length];
+        for (int i = 0; i < terms.length; i++)
+            lists[i] = new FixedInvList(new InvList(terms[i], "body"));
+        return lists;
+    }
+
+    private static Qryop[] fixedScoreLists(RetrievalModel model, String... terms) throws IOException {
+        Qryop[] lists = new Qryop[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            QryopSlScore score = new QryopSlScore(new QryopIlTerm(terms[i]));
+            lists[i] = new FixedScoreList(score, score.evaluate(model));
+            lists[i].weight = 1.0 / terms.length;
+        }
+        return lists;
+    }
+
+    /**
+     * A workload without per-invocation state.
+     */
+    private abstract static class Operation implements Workload {
+        public void prepare() {
+        }
+    }
+
+    /**
+     * An inverted list operator that returns a list that was fetched
+     * before.
+     */
+    static class FixedInvList extends QryopIl {
+        private final QryResult result = new QryResult();
+
+        FixedInvList(InvList list) {
+            result.invertedList = list;
+        }
+
+        public void add(Qryop q) {
+            throw new UnsupportedOperationException();
+        }
+
+        public QryResult evaluate(RetrievalModel r) {
+            return result;
+        }
+
+        public String toString() {
+            return "#FIXED(" + result.invertedList.field + ")";
+        }
+    }
+
+    /**
+     * A score list operator that returns the scores of an evaluated
+     * #SCORE operator, whose default scores it also returns.
+     */
+    static class FixedScoreList extends QryopSl {
+        private final QryopSlScore score;
+        private final QryResult result;
+
+        FixedScoreList(QryopSlScore score, QryResult result) {
+            this.score = score;
+            this.result = result;
+        }
+
+        public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+            return score.getDefaultScore(r, docid);
+        }
+
+        public void add(Qryop q) {
+            throw new UnsupportedOperationException();
+        }
+
+        public QryResult evaluate(RetrievalModel r) {
+            return result;
+        }
+
+        public String toString() {
+            return "#FIXED(" + score + ")";
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package qryeval.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ *  Engine opens the benchmark index and creates workloads through the
+ *  default package class BenchWorkloads, which it finds by reflection
+ *  once per trial.
+ *
+ *  The index is generated on first use and then reused.  These system
+ *  properties control it:
+ *
+ *    qryeval.bench.index   The index directory (default
+ *                          java.io.tmpdir/qryeval-bench-synth-DOCS-SEED).
+ *    qryeval.bench.docs    The number of documents (default 20000).
+ *    qryeval.bench.seed    The random seed of the corpus (default 42).
+ */
+public final class Engine {
+
+    private static final String WORKLOADS = "BenchWorkloads";
+
+    private static boolean opened = false;
+
+    private Engine() {
+    }
+
+    /**
+     * Open the benchmark index, generating it first if it doesn't
+     * exist.  Only the first call of a JVM opens it.
+     *
+     * @throws Exception
+     */
+    public static synchronized void open() throws Exception {
+        if (opened)
+            return;
+
+        int docs = Integer.getInteger("qryeval.bench.docs", 20000);
+        long seed = Long.getLong("qryeval.bench.seed", 42);
+        String path = System.getProperty("qryeval.bench.index",
+                System.getProperty("java.io.tmpdir") + "/qryeval-bench-synth-" + docs + "-" + seed);
+
+        invoke("open", new Class<?>[]{String.class, int.class, long.class}, path, docs, seed);
+        opened = true;
+    }
+
+    /**
+     * Create a workload.
+     *
+     * @param name    The operation, e.g., "near".
+     * @param variant The variant of the operation, e.g., "high" for a
+     *                frequent term.
+     * @return The workload.
+     * @throws Exception
+     */
+    public static Workload workload(String name, String variant) throws Exception {
+        open();
+        return (Workload) invoke("create", new Class<?>[]{String.class, String.class}, name, variant);
+    }
+
+    private static Object invoke(String name, Class<?>[] types, Object... args) throws Exception {
+        Method method = Class.forName(WORKLOADS).getMethod(name, types);
+        try {
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package qryeval.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Construction of an InvList from the index: postings and positions of
+ *  one body term with a high, medium or low df.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvListBenchmark {
+
+    @Param({"high", "mid", "low"})
+    public String df;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Engine.workload("invList", df);
+    }
+
+    @Benchmark
+    public Object construct() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,44 @@
+package qryeval.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  The merges of #SYN (three frequent terms), #NEAR/3 and #WINDOW/8
+ *  (two frequent terms that often occur together), without the cost
+ *  of fetching their arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvListMergeBenchmark {
+
+    @Param({"syn", "near", "window"})
+    public String op;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Engine.workload(op, op);
+    }
+
+    @Benchmark
+    public Object merge() throws Exception {
+        return workload.run();
+    }
+}
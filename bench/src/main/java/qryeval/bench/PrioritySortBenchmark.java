@@ -0,0 +1,50 @@
+package qryeval.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  ScoreList.prioritySort of the top 100 documents of a score list of
+ *  random scores, including the external id lookups.  The list is
+ *  rebuilt before each invocation, outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrioritySortBenchmark {
+
+    @Param({"1000", "100000"})
+    public String size;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Engine.workload("prioritySort", size);
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        workload.prepare();
+    }
+
+    @Benchmark
+    public Object sort() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,46 @@
+package qryeval.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  QryEval.parseQuery of a structured query with nested operators and
+ *  fields, and QryEval.tokenizeQuery of a sentence of English text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryParseBenchmark {
+
+    private Workload parse;
+    private Workload tokenize;
+
+    @Setup
+    public void setup() throws Exception {
+        parse = Engine.workload("parseQuery", null);
+        tokenize = Engine.workload("tokenizeQuery", null);
+    }
+
+    @Benchmark
+    public Object parseQuery() throws Exception {
+        return parse.run();
+    }
+
+    @Benchmark
+    public Object tokenizeQuery() throws Exception {
+        return tokenize.run();
+    }
+}
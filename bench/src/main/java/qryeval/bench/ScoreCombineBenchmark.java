@@ -0,0 +1,44 @@
+package qryeval.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  The combination of the score lists of three medium df terms by
+ *  #AND and #WAND (Indri) and #SUM (BM25), without the cost of scoring
+ *  their arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoreCombineBenchmark {
+
+    @Param({"and", "sum", "wand"})
+    public String op;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Engine.workload(op, op);
+    }
+
+    @Benchmark
+    public Object combine() throws Exception {
+        return workload.run();
+    }
+}
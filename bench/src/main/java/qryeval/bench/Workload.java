@@ -0,0 +1,27 @@
+package qryeval.bench;
+
+/**
+ *  One operation of the engine that a benchmark measures.  Workloads
+ *  are created by BenchWorkloads in the default package, because
+ *  classes in a named package can't refer to the engine's classes.
+ *  Calls through this interface are ordinary interface calls, so the
+ *  benchmarks don't measure reflection.
+ */
+public interface Workload {
+
+    /**
+     * Prepare the state of one invocation, e.g., a fresh list to
+     * sort.  It isn't part of the measurement.
+     *
+     * @throws Exception
+     */
+    void prepare() throws Exception;
+
+    /**
+     * Run the operation.
+     *
+     * @return The result, which the benchmark consumes.
+     * @throws Exception
+     */
+    Object run() throws Exception;
+}
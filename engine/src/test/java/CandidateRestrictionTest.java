@@ -0,0 +1,180 @@
+/**
+ *  Tests of evaluation restricted to candidate documents: with exact
+ *  statistics, the scores of the candidates are those of an
+ *  unrestricted evaluation, also for queries with derived inverted
+ *  lists (#NEAR, #WINDOW, #SYN); with estimated statistics, the same
+ *  candidates match.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CandidateRestrictionTest {
+
+    private static final int DOCS = 3000;
+    private static final int TOP = 50;
+
+    private static File dir;
+    private static Directory directory;
+    private static List<String> queries = new ArrayList<String>();
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        dir = TestIndexes.tempDir("candidates");
+        directory = FSDirectory.open(dir);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:docs", String.valueOf(DOCS));
+        params.put("synth:vocabulary", "3000");
+        params.put("synth:length", "40");
+        params.put("synth:phraseRate", "0.05");
+        SyntheticCorpus corpus = new SyntheticCorpus(params);
+        IndexWriter writer = new IndexWriter(directory, TrecIndexer.config(2, 16, false));
+        try {
+            corpus.index(writer, 2);
+        } finally {
+            writer.close();
+        }
+
+        //  The corpus's queries with derived lists, alone and with
+        //  another term.
+
+        for (int q = 1; q <= 100; q++) {
+            String query = corpus.query(q);
+            if (query.startsWith("#")) {
+                queries.add(query);
+                queries.add(query + " t" + (20 + q));
+            }
+        }
+
+        QryEval.READER = DirectoryReader.open(directory);
+        QryEval.dls = new DocLengthStore(QryEval.READER);
+        QryEval.stemDictionary = new StemDictionary();
+        QryEval.termVectors = new TermVectorCache(1000, false);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        DerivedStats.estimated = false;
+        if (QryEval.READER != null)
+            QryEval.READER.close();
+        QryEval.READER = null;
+        QryEval.dls = null;
+        QryEval.termVectors = null;
+        QryEval.stemDictionary = new StemDictionary();
+        directory.close();
+        TestIndexes.delete(dir);
+    }
+
+    @Test
+    public void bm25ExactScores() throws IOException {
+        assertRestrictedScores(bm25(), false);
+    }
+
+    @Test
+    public void indriExactScores() throws IOException {
+        assertRestrictedScores(indri(), false);
+    }
+
+    @Test
+    public void bm25EstimatedMatches() throws IOException {
+        assertRestrictedScores(bm25(), true);
+    }
+
+    @Test
+    public void indriEstimatedMatches() throws IOException {
+        assertRestrictedScores(indri(), true);
+    }
+
+    /**
+     * Evaluate each query over the whole collection and over a set of
+     * candidates: its top documents and every 7th document.  The same
+     * candidates must match, and with exact statistics they must have
+     * the same scores.
+     */
+    private static void assertRestrictedScores(RetrievalModel model, boolean estimated) throws IOException {
+        assertTrue("The corpus has too few queries with derived lists", queries.size() >= 10);
+        DerivedStats.estimated = estimated;
+        try {
+            int compared = 0;
+            for (String query : queries) {
+                ScoreList full = evaluate(query, model, null);
+
+                TreeSet<Integer> set = new TreeSet<Integer>();
+                for (int docid : full.bestDocids(TOP))
+                    set.add(docid);
+                for (int docid = 0; docid < DOCS; docid += 7)
+                    set.add(docid);
+                int[] candidates = new int[set.size()];
+                int n = 0;
+                for (int docid : set)
+                    candidates[n++] = docid;
+
+                Map<Integer, Double> expected = new HashMap<Integer, Double>();
+                for (int i = 0; i < full.size(); i++) {
+                    if (set.contains(full.getDocid(i)))
+                        expected.put(full.getDocid(i), full.getDocidScore(i));
+                }
+
+                ScoreList restricted = evaluate(query, model, candidates);
+                assertEquals(query, expected.size(), restricted.size());
+                for (int i = 0; i < restricted.size(); i++) {
+                    String where = query + " doc " + restricted.getDocid(i);
+                    Double score = expected.get(restricted.getDocid(i));
+                    assertTrue(where + " isn't an expected match", score != null);
+                    if (!estimated)
+                        assertEquals(where, score, restricted.getDocidScore(i), 1e-9 * Math.max(1.0, Math.abs(score)));
+                }
+                compared += restricted.size();
+            }
+            assertTrue("Too few candidates matched", compared > 100);
+        } finally {
+            DerivedStats.estimated = false;
+        }
+    }
+
+    private static ScoreList evaluate(String query, RetrievalModel model, int[] candidates) throws IOException {
+        QueryContext context = new QueryContext("q");
+        QueryContext previous = QueryContext.enter(context);
+        try {
+            Qryop qTree = QryEval.parseQuery(query, model);
+            if (candidates != null)
+                qTree.restrictTo(candidates);
+            return qTree.evaluate(model).docScores;
+        } finally {
+            QueryContext.enter(previous);
+            context.close();
+        }
+    }
+
+    private static RetrievalModel bm25() {
+        RetrievalModel model = new RetrievalModelBM25();
+        model.setParameter("k_1", "1.2");
+        model.setParameter("b", "0.75");
+        model.setParameter("k_3", "0");
+        return model;
+    }
+
+    private static RetrievalModel indri() {
+        RetrievalModel model = new RetrievalModelIndri();
+        model.setParameter("mu", "2500");
+        model.setParameter("lambda", "0.4");
+        return model;
+    }
+}
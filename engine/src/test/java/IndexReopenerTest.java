@@ -0,0 +1,212 @@
+/**
+ *  Tests of reopening the index while queries run: a query that pinned
+ *  a snapshot keeps its documents, scores and stem statistics after
+ *  documents are committed and the index is reopened, the reader of
+ *  the old generation is closed once the query releases it, and the
+ *  term vector cache keeps the vectors of the segments that didn't
+ *  change.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexReopenerTest {
+
+    private static final int DOCS = 600;
+    private static final String QUERY = "t20 t35 t50";
+
+    private File dir;
+    private Directory directory;
+    private SyntheticCorpus corpus;
+    private RetrievalModel model;
+
+    @Before
+    public void createIndex() throws Exception {
+        dir = TestIndexes.tempDir("reopen");
+        directory = FSDirectory.open(dir);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:docs", String.valueOf(3 * DOCS));
+        params.put("synth:vocabulary", "2000");
+        params.put("synth:length", "40");
+        corpus = new SyntheticCorpus(params);
+        addDocuments(0, DOCS, false);
+
+        model = new RetrievalModelBM25();
+        model.setParameter("k_1", "1.2");
+        model.setParameter("b", "0.75");
+
+        QryEval.READER = DirectoryReader.open(directory);
+        QryEval.dls = new DocLengthStore(QryEval.READER);
+        QryEval.stemDictionary = new StemDictionary();
+        QryEval.termVectors = new TermVectorCache(1000, false);
+        QryEval.reopener = new IndexReopener((DirectoryReader) QryEval.READER);
+    }
+
+    @After
+    public void closeIndex() throws IOException {
+        if (QryEval.READER != null)
+            QryEval.READER.decRef();
+        QryEval.READER = null;
+        QryEval.dls = null;
+        QryEval.termVectors = null;
+        QryEval.reopener = null;
+        QryEval.stemDictionary = new StemDictionary();
+        directory.close();
+        TestIndexes.delete(dir);
+    }
+
+    @Test
+    public void oldSnapshotIsUnchanged() throws IOException {
+        IndexSnapshot old = QryEval.acquireSnapshot();
+        IndexSnapshot previous = QryEval.pin(old);
+        ScoreList before;
+        int ord;
+        long ctf;
+        int df;
+        try {
+            before = QryEval.parseQuery(QUERY, model).evaluate(model).docScores;
+            CompactTermVector vector = QryEval.termVectors.get(0, "body");
+            ord = 1;
+            ctf = vector.totalStemFreq(ord);
+            df = vector.stemDf(ord);
+            Term term = new Term("body", vector.stemString(ord));
+            assertEquals(old.reader.totalTermFreq(term), ctf);
+            assertEquals(old.reader.docFreq(term), df);
+        } finally {
+            QryEval.pin(previous);
+        }
+
+        addDocuments(DOCS, 2 * DOCS, false);
+        assertTrue(QryEval.reopener.maybeReopen());
+        assertEquals(1, QryEval.reopener.getGeneration());
+
+        //  The query that still holds the old snapshot sees the old
+        //  documents and statistics.
+
+        previous = QryEval.pin(old);
+        try {
+            ScoreList after = QryEval.parseQuery(QUERY, model).evaluate(model).docScores;
+            assertSameScores(before, after);
+
+            CompactTermVector vector = QryEval.termVectors.get(0, "body");
+            assertEquals(ctf, vector.totalStemFreq(ord));
+            assertEquals(df, vector.stemDf(ord));
+            assertEquals(DOCS, QryEval.numDocs());
+        } finally {
+            QryEval.pin(previous);
+        }
+
+        //  A new query sees the new documents and statistics.
+
+        IndexSnapshot current = QryEval.acquireSnapshot();
+        previous = QryEval.pin(current);
+        try {
+            assertEquals(2 * DOCS, QryEval.numDocs());
+            ScoreList scores = QryEval.parseQuery(QUERY, model).evaluate(model).docScores;
+            assertTrue(scores.size() > before.size());
+
+            CompactTermVector vector = QryEval.termVectors.get(0, "body");
+            Term term = new Term("body", vector.stemString(ord));
+            assertEquals(current.reader.totalTermFreq(term), vector.totalStemFreq(ord));
+            assertEquals(current.reader.docFreq(term), vector.stemDf(ord));
+            assertNotEquals(df, vector.stemDf(ord));
+        } finally {
+            QryEval.pin(previous);
+            QryEval.releaseSnapshot(current);
+        }
+
+        //  The old reader is closed when the query releases it.
+
+        IndexReader oldReader = old.reader;
+        assertTrue(oldReader.getRefCount() > 0);
+        QryEval.releaseSnapshot(old);
+        assertEquals(0, oldReader.getRefCount());
+    }
+
+    @Test
+    public void termVectorsOfUnchangedSegmentsAreKept() throws IOException {
+        IndexSnapshot snapshot = QryEval.acquireSnapshot();
+        IndexSnapshot previous = QryEval.pin(snapshot);
+        try {
+            for (int docid = 0; docid < 10; docid++)
+                QryEval.termVectors.get(docid, "body");
+        } finally {
+            QryEval.pin(previous);
+            QryEval.releaseSnapshot(snapshot);
+        }
+        assertEquals(10, QryEval.termVectors.size());
+
+        //  New documents go to new segments, so the cached vectors are
+        //  still valid.
+
+        addDocuments(DOCS, 2 * DOCS, false);
+        assertTrue(QryEval.reopener.maybeReopen());
+        assertEquals(10, QryEval.termVectors.size());
+
+        snapshot = QryEval.acquireSnapshot();
+        previous = QryEval.pin(snapshot);
+        try {
+            long hits = QryEval.termVectors.getHits();
+            QryEval.termVectors.get(0, "body");
+            assertEquals(hits + 1, QryEval.termVectors.getHits());
+        } finally {
+            QryEval.pin(previous);
+            QryEval.releaseSnapshot(snapshot);
+        }
+
+        //  A merge of every segment moves every document.
+
+        addDocuments(2 * DOCS, 3 * DOCS, true);
+        assertTrue(QryEval.reopener.maybeReopen());
+        assertEquals(0, QryEval.termVectors.size());
+        assertFalse(QryEval.reopener.maybeReopen());
+    }
+
+    /**
+     * Commit documents [from, to) of the corpus, and optionally merge
+     * the index into one segment.
+     */
+    private void addDocuments(int from, int to, boolean merge) throws IOException {
+        IndexWriterConfig config = TrecIndexer.config(1, 16, true);
+        if (!merge)
+            config.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+        IndexWriter writer = new IndexWriter(directory, config);
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int n = from; n < to; n++)
+                writer.addDocument(corpus.document(n, text));
+            if (merge)
+                writer.forceMerge(1);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void assertSameScores(ScoreList expected, ScoreList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getDocid(i), actual.getDocid(i));
+            assertEquals(expected.getDocidScore(i), actual.getDocidScore(i), 0.0);
+        }
+    }
+}
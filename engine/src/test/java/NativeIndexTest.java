@@ -0,0 +1,217 @@
+/**
+ *  Round-trip tests of the native index: a synthetic Lucene index is
+ *  exported with NativeIndexWriter, and everything that NativeIndex
+ *  and its cursors read back is compared with what Lucene reads.  The
+ *  index is mapped in small chunks, so reads cross the boundaries of
+ *  the mappings, as they do in indexes larger than 1 GB.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NativeIndexTest {
+
+    //  16 KB chunks: the largest postings of the corpus fit in one,
+    //  and the other files span several.
+
+    private static final int CHUNK_BITS = 14;
+
+    private static File dir;
+    private static IndexReader reader;
+    private static NativeIndex index;
+
+    @BeforeClass
+    public static void export() throws Exception {
+        dir = TestIndexes.tempDir("native");
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:docs", "3000");
+        params.put("synth:vocabulary", "5000");
+        params.put("synth:length", "30");
+        File luceneDir = new File(dir, "lucene");
+        IndexWriter writer = new IndexWriter(FSDirectory.open(luceneDir), TrecIndexer.config(2, 16, false));
+        try {
+            new SyntheticCorpus(params).index(writer, 2);
+            for (int n = 0; n < 3000; n += 7)
+                writer.deleteDocuments(new Term("externalId", "synth-" + n));
+        } finally {
+            writer.close();
+        }
+
+        reader = DirectoryReader.open(FSDirectory.open(luceneDir));
+        File nativeDir = new File(dir, "native");
+        new NativeIndexWriter(reader, nativeDir).write();
+        index = new NativeIndex(nativeDir.getPath(), CHUNK_BITS);
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        if (reader != null)
+            reader.close();
+        TestIndexes.delete(dir);
+    }
+
+    @Test
+    public void collectionStatistics() throws IOException {
+        assertEquals(reader.maxDoc(), index.maxDoc());
+        assertEquals(reader.numDocs(), index.numDocs());
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            if (!MultiFields.getTerms(reader, field).hasPositions())
+                continue;
+            assertEquals(field, reader.getSumTotalTermFreq(field), index.getSumTotalTermFreq(field));
+            assertEquals(field, reader.getDocCount(field), index.getDocCount(field));
+        }
+        assertTrue(new File(dir, "native/lengths.dat").length() > 1 << CHUNK_BITS);
+    }
+
+    @Test
+    public void postingsRoundTrip() throws IOException {
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int terms = 0;
+        for (String field : MultiFields.getIndexedFields(reader)) {
+            if (!MultiFields.getTerms(reader, field).hasPositions())
+                continue;
+            TermsEnum termsEnum = MultiFields.getTerms(reader, field).iterator(null);
+            BytesRef term;
+            while ((term = termsEnum.next()) != null) {
+                String text = term.utf8ToString();
+                DocsAndPositionsEnum expected = termsEnum.docsAndPositions(liveDocs, null);
+                NativePostingsCursor actual = index.postings(field, text);
+
+                int df = 0;
+                long ctf = 0;
+                while (expected.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    String where = field + ":" + text + " doc " + expected.docID();
+                    assertEquals(where, expected.docID(), actual.nextDoc());
+                    assertEquals(where, expected.freq(), actual.freq());
+                    for (int i = 0; i < expected.freq(); i++)
+                        assertEquals(where, expected.nextPosition(), actual.nextPosition());
+                    df++;
+                    ctf += expected.freq();
+                }
+                if (df == 0) {
+                    assertNull(actual);     // Only deleted documents contain the term.
+                    continue;
+                }
+                assertEquals(NativePostingsCursor.NO_MORE_DOCS, actual.nextDoc());
+                assertEquals(df, index.docFreq(field, text));
+                assertEquals(ctf, index.totalTermFreq(field, text));
+                terms++;
+            }
+        }
+        assertTrue(terms > 1000);
+        assertEquals(0, index.docFreq("body", "no-such-term"));
+        assertNull(index.postings("body", "no-such-term"));
+    }
+
+    @Test
+    public void advanceMatchesLucene() throws IOException {
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        Random random = new Random(36);
+        TermsEnum termsEnum = MultiFields.getTerms(reader, "body").iterator(null);
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            String text = term.utf8ToString();
+            NativePostingsCursor actual = index.postings("body", text);
+            if (actual == null)
+                continue;
+            DocsAndPositionsEnum expected = termsEnum.docsAndPositions(liveDocs, null);
+
+            //  Mix advance, to short and long distances, with nextDoc,
+            //  and read the positions of some documents.
+
+            while (true) {
+                int doc;
+                if (random.nextInt(4) == 0) {
+                    doc = expected.nextDoc();
+                    assertEquals(text, doc, actual.nextDoc());
+                } else {
+                    int target = actual.docID() + 1 + random.nextInt(random.nextBoolean() ? 4 : 400);
+                    doc = expected.advance(target);
+                    assertEquals(text + " advance(" + target + ")", doc, actual.advance(target));
+                }
+                if (doc == DocIdSetIterator.NO_MORE_DOCS)
+                    break;
+                assertEquals(text, expected.freq(), actual.freq());
+                if (random.nextBoolean()) {
+                    for (int i = 0; i < expected.freq(); i++)
+                        assertEquals(text, expected.nextPosition(), actual.nextPosition());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void documentsRoundTrip() throws IOException {
+        DocLengthStore lengths = new DocLengthStore(reader);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int docid = 0; docid < reader.maxDoc(); docid++) {
+            for (String field : new String[]{"body", "title", "url", "inlink"})
+                assertEquals(field + " " + docid, lengths.getDocLength(field, docid),
+                        index.getDocLength(field, docid));
+
+            if (liveDocs != null && !liveDocs.get(docid))
+                assertNull(index.getExternalId(docid));
+            else
+                assertEquals(reader.document(docid).get("externalId"), index.getExternalId(docid));
+        }
+    }
+
+    @Test
+    public void mappedFileCrossesChunks() throws IOException {
+        byte[] bytes = new byte[10000];
+        new Random(1).nextBytes(bytes);
+        File file = new File(dir, "random.dat");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        MappedFile mapped = new MappedFile(file, 8);
+        ByteBuffer expected = ByteBuffer.wrap(bytes);
+        assertEquals(bytes.length, mapped.length());
+        for (int offset = 0; offset + 8 <= bytes.length; offset++) {
+            assertEquals(expected.get(offset), mapped.get(offset));
+            assertEquals(expected.getInt(offset), mapped.getInt(offset));
+            assertEquals(expected.getLong(offset), mapped.getLong(offset));
+        }
+
+        ByteBuffer slice = mapped.slice(250, 256);
+        for (int i = 0; i < 256; i++)
+            assertEquals(bytes[250 + i], slice.get(i));
+
+        try {
+            mapped.slice(0, 257);
+            throw new AssertionError("A slice larger than a chunk was mapped");
+        } catch (IOException e) {
+            //  Expected.
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ *  Tests of the planner's pruning: when the caller only needs the top
+ *  k documents, a BM25 #SUM of terms that is evaluated with the PRUNED
+ *  strategy has the same top k, with the same scores, as an
+ *  exhaustive evaluation.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QryPlannerTest {
+
+    private static final int DOCS = 3000;
+    private static final int TOP = 10;
+
+    private static File dir;
+    private static Directory directory;
+    private static List<String> queries = new ArrayList<String>();
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        dir = TestIndexes.tempDir("planner");
+        directory = FSDirectory.open(dir);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:docs", String.valueOf(DOCS));
+        params.put("synth:vocabulary", "3000");
+        params.put("synth:length", "40");
+        SyntheticCorpus corpus = new SyntheticCorpus(params);
+        IndexWriter writer = new IndexWriter(directory, TrecIndexer.config(2, 16, false));
+        try {
+            corpus.index(writer, 2);
+        } finally {
+            writer.close();
+        }
+
+        //  The corpus's bag-of-words queries, alone and with a frequent
+        //  term, whose list pruning can skip.
+
+        for (int q = 1; q <= 100; q++) {
+            String query = corpus.query(q);
+            if (!query.startsWith("#")) {
+                queries.add(query);
+                queries.add(query + " t" + (1 + q % 5));
+            }
+        }
+
+        QryEval.READER = DirectoryReader.open(directory);
+        QryEval.dls = new DocLengthStore(QryEval.READER);
+        QryEval.stemDictionary = new StemDictionary();
+        QryEval.termVectors = new TermVectorCache(1000, false);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        QryPlanner.enabled = true;
+        if (QryEval.READER != null)
+            QryEval.READER.close();
+        QryEval.READER = null;
+        QryEval.dls = null;
+        QryEval.termVectors = null;
+        QryEval.stemDictionary = new StemDictionary();
+        directory.close();
+        TestIndexes.delete(dir);
+    }
+
+    @Test
+    public void prunedTopKIsExact() throws IOException {
+        RetrievalModel model = new RetrievalModelBM25();
+        model.setParameter("k_1", "1.2");
+        model.setParameter("b", "0.75");
+        model.setParameter("k_3", "0");
+
+        int pruned = 0;
+        for (String query : queries) {
+            QryPlanner.Strategy[] strategy = new QryPlanner.Strategy[1];
+            ScoreList top = evaluate(query, model, TOP, strategy);
+            if (strategy[0] != QryPlanner.Strategy.PRUNED)
+                continue;
+            pruned++;
+
+            QryPlanner.enabled = false;
+            ScoreList full;
+            try {
+                full = evaluate(query, model, 0, strategy);
+            } finally {
+                QryPlanner.enabled = true;
+            }
+
+            int[] expected = full.bestDocids(TOP);
+            assertArrayEquals(query, expected, top.bestDocids(TOP));
+
+            Map<Integer, Double> scores = new HashMap<Integer, Double>();
+            for (int i = 0; i < top.size(); i++)
+                scores.put(top.getDocid(i), top.getDocidScore(i));
+            for (int i = 0; i < full.size(); i++) {
+                if (Arrays.binarySearch(expected, full.getDocid(i)) >= 0)
+                    assertEquals(query + " doc " + full.getDocid(i), full.getDocidScore(i),
+                            scores.get(full.getDocid(i)), 1e-9);
+            }
+        }
+        assertTrue("Too few queries were pruned: " + pruned, pruned >= 10);
+    }
+
+    /**
+     * Plan and evaluate a query for a caller that needs its top depth
+     * documents, or every match if depth is 0.  strategy[0] is set to
+     * the strategy of the root.
+     */
+    private static ScoreList evaluate(String query, RetrievalModel model, int depth,
+                                      QryPlanner.Strategy[] strategy) throws IOException {
+        QueryContext context = new QueryContext("q");
+        context.depth = depth;
+        QueryContext previous = QueryContext.enter(context);
+        try {
+            Qryop qTree = QryEval.parseQuery(query, model);
+            strategy[0] = QryPlanner.strategy(qTree, null);
+            return qTree.evaluate(model).docScores;
+        } finally {
+            QueryContext.enter(previous);
+            context.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ *  Tests of partial results: when a query's deadline passes, the result
+ *  contains exactly the documents before the limit, with the scores of
+ *  an unlimited evaluation, also when an operator merges a nested
+ *  term-at-a-time result that isn't in docid order.
+ */
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueryDeadlineTest {
+
+    private static final int DOCS = 3000;
+    private static final int LIMIT = DOCS / 2;
+
+    //  Nested #SUMs of rare terms, so that their hash tables are much
+    //  smaller than the docids that they hold, and their results aren't
+    //  in docid order, and a last term.
+
+    private static final String[][] QUERIES = {
+            {"#sum", "#sum(t300 t400)", "t500"},
+            {"#sum", "#sum(t350 t450 t550)", "t250"},
+            {"#or", "#sum(t300 t600)", "t700"}
+    };
+
+    private static File dir;
+    private static Directory directory;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        dir = TestIndexes.tempDir("deadline");
+        directory = FSDirectory.open(dir);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:docs", String.valueOf(DOCS));
+        params.put("synth:vocabulary", "3000");
+        params.put("synth:length", "40");
+        SyntheticCorpus corpus = new SyntheticCorpus(params);
+        IndexWriter writer = new IndexWriter(directory, TrecIndexer.config(2, 16, false));
+        try {
+            corpus.index(writer, 2);
+        } finally {
+            writer.close();
+        }
+
+        QryEval.READER = DirectoryReader.open(directory);
+        QryEval.dls = new DocLengthStore(QryEval.READER);
+        QryEval.stemDictionary = new StemDictionary();
+        QryEval.termVectors = new TermVectorCache(1000, false);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws IOException {
+        if (QryEval.READER != null)
+            QryEval.READER.close();
+        QryEval.READER = null;
+        QryEval.dls = null;
+        QryEval.termVectors = null;
+        QryEval.stemDictionary = new StemDictionary();
+        directory.close();
+        TestIndexes.delete(dir);
+    }
+
+    @Test
+    public void nestedTermAtATimePartialResults() throws IOException {
+        RetrievalModel model = new RetrievalModelBM25();
+        model.setParameter("k_1", "1.2");
+        model.setParameter("b", "0.75");
+        model.setParameter("k_3", "0");
+
+        //  Without the planner, every #SUM and #OR is term at a time.
+
+        QryPlanner.enabled = false;
+        try {
+            for (String[] parts : QUERIES) {
+                String query = parts[0] + "(" + parts[1] + " " + parts[2] + ")";
+                ScoreList full = evaluate(parts, model, false).docScores;
+                QryResult partial = evaluate(parts, model, true);
+                assertTrue(query + " isn't partial", partial.partial);
+
+                Map<Integer, Double> expected = new HashMap<Integer, Double>();
+                for (int i = 0; i < full.size(); i++) {
+                    if (full.getDocid(i) < LIMIT)
+                        expected.put(full.getDocid(i), full.getDocidScore(i));
+                }
+                assertTrue(query + " matches too few documents before the limit", expected.size() > 20);
+                assertTrue(query + " matches too few documents after the limit", full.size() > expected.size() + 20);
+
+                ScoreList result = partial.docScores;
+                assertEquals(query, expected.size(), result.size());
+                for (int i = 0; i < result.size(); i++) {
+                    String where = query + " doc " + result.getDocid(i);
+                    Double score = expected.get(result.getDocid(i));
+                    assertTrue(where + " isn't an expected match", score != null);
+                    assertEquals(where, score, result.getDocidScore(i), 1e-9);
+                }
+            }
+        } finally {
+            QryPlanner.enabled = true;
+        }
+    }
+
+    /**
+     * Evaluate #SUM or #OR of a nested query and a term, term at a
+     * time.  If expire is true, the deadline passes at LIMIT after the
+     * nested query was evaluated completely, before the term is scored.
+     */
+    private static QryResult evaluate(String[] parts, RetrievalModel model, final boolean expire)
+            throws IOException {
+        final QueryContext context = new QueryContext("q");
+        QueryContext previous = QueryContext.enter(context);
+        try {
+            context.deadline.start(60000, true);
+
+            Qryop qTree = parts[0].equals("#or") ? new QryopSlOr() : new QryopSlSum();
+            qTree.add(QryEval.parseQuery(parts[1], model));
+            qTree.add(new QryopSlScore(new QryopIlTerm(parts[2])) {
+                @Override
+                public QryResult evaluate(RetrievalModel r) throws IOException {
+                    if (expire)
+                        context.deadline.expire(LIMIT);
+                    return super.evaluate(r);
+                }
+            });
+            return QueryDeadline.finish(qTree.evaluate(model));
+        } finally {
+            QueryContext.enter(previous);
+            context.close();
+        }
+    }
+}
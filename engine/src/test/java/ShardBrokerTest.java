@@ -0,0 +1,252 @@
+/**
+ *  End-to-end tests of the shard broker: a synthetic collection is
+ *  indexed once as a whole and once as two shards, each shard is
+ *  served by a ShardWorker in its own JVM, and the results that a
+ *  broker gets from the workers are compared with the results of one
+ *  process over the whole index, for each retrieval model and for
+ *  queries with derived inverted lists (#NEAR, #WINDOW, #SYN).
+ */
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardBrokerTest {
+
+    private static final int DOCS = 2000;
+    private static final int SHARDS = 2;
+    private static final int QUERIES = 40;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private static File dir;
+    private static File queryFile;
+    private static final List<Process> workers = new ArrayList<Process>();
+    private static final List<Integer> ports = new ArrayList<Integer>();
+
+    @BeforeClass
+    public static void startWorkers() throws Exception {
+        dir = TestIndexes.tempDir("broker");
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("synth:docs", String.valueOf(DOCS));
+        params.put("synth:vocabulary", "3000");
+        params.put("synth:length", "40");
+        params.put("synth:phraseRate", "0.05");
+        SyntheticCorpus corpus = new SyntheticCorpus(params);
+
+        //  The whole collection, and the shards, each with several
+        //  segments.
+
+        IndexWriter whole = new IndexWriter(FSDirectory.open(new File(dir, "whole")), TrecIndexer.config(2, 16, false));
+        IndexWriter[] shards = new IndexWriter[SHARDS];
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new IndexWriter(FSDirectory.open(new File(dir, "shard" + i)), TrecIndexer.config(2, 16, false));
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int n = 0; n < DOCS; n++) {
+                whole.addDocument(corpus.document(n, text));
+                shards[n % SHARDS].addDocument(corpus.document(n, text));
+                if (n % 300 == 299) {
+                    for (IndexWriter shard : shards)
+                        shard.commit();
+                }
+            }
+        } finally {
+            whole.close();
+            for (IndexWriter shard : shards)
+                shard.close();
+        }
+
+        //  The corpus's queries, alone and with another term, so that
+        //  derived lists are scored next to terms.
+
+        queryFile = new File(dir, "queries.txt");
+        Writer out = new FileWriter(queryFile);
+        try {
+            for (int q = 1; q <= QUERIES; q++) {
+                out.write(q + ":" + corpus.query(q) + "\n");
+                out.write((QUERIES + q) + ":" + corpus.query(q) + " t" + (20 + q) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+
+        for (int i = 0; i < SHARDS; i++) {
+            int port = freePort();
+            Map<String, String> worker = new HashMap<String, String>();
+            worker.put("indexPath", new File(dir, "shard" + i).getPath());
+            worker.put("worker", "true");
+            worker.put("workerPort", String.valueOf(port));
+            File log = new File(dir, "worker" + i + ".log");
+            workers.add(start(writeParams("worker" + i, worker), log));
+            ports.add(port);
+            waitFor(log, "Shard worker listening");
+        }
+    }
+
+    @AfterClass
+    public static void stopWorkers() throws InterruptedException {
+        for (Process worker : workers) {
+            worker.destroy();
+            worker.waitFor();
+        }
+        TestIndexes.delete(dir);
+    }
+
+    @Test
+    public void indri() throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("Indri:mu", "2500");
+        params.put("Indri:lambda", "0.4");
+        assertSameResults("Indri", params);
+    }
+
+    @Test
+    public void bm25() throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("BM25:k_1", "1.2");
+        params.put("BM25:b", "0.75");
+        params.put("BM25:k_3", "0");
+        assertSameResults("BM25", params);
+    }
+
+    @Test
+    public void rankedBoolean() throws Exception {
+        assertSameResults("RankedBoolean", new HashMap<String, String>());
+    }
+
+    @Test
+    public void unrankedBoolean() throws Exception {
+        assertSameResults("UnrankedBoolean", new HashMap<String, String>());
+    }
+
+    /**
+     * Run the queries with a model over the whole index and through a
+     * broker, and compare the rankings.
+     */
+    private static void assertSameResults(String model, Map<String, String> modelParams) throws Exception {
+        Map<String, String> params = new HashMap<String, String>(modelParams);
+        params.put("retrievalAlgorithm", model);
+        params.put("queryFilePath", queryFile.getPath());
+
+        File expected = new File(dir, model + ".whole.out");
+        params.put("indexPath", new File(dir, "whole").getPath());
+        params.put("trecEvalOutputPath", expected.getPath());
+        run(writeParams(model + ".whole", params));
+
+        File actual = new File(dir, model + ".broker.out");
+        params.remove("indexPath");
+        params.put("broker", "true");
+        StringBuilder workerPorts = new StringBuilder();
+        for (int port : ports)
+            workerPorts.append((workerPorts.length() > 0) ? "," : "").append(port);
+        params.put("broker:workers", workerPorts.toString());
+        params.put("broker:timeout", String.valueOf(TIMEOUT_MILLIS));
+        params.put("trecEvalOutputPath", actual.getPath());
+        run(writeParams(model + ".broker", params));
+
+        List<String> expectedLines = readLines(expected);
+        List<String> actualLines = readLines(actual);
+        assertEquals(model, expectedLines.size(), actualLines.size());
+
+        int ranked = 0;
+        for (int i = 0; i < expectedLines.size(); i++) {
+            String[] e = expectedLines.get(i).split("\\s+");
+            String[] a = actualLines.get(i).split("\\s+");
+            String where = model + " query " + e[0] + " rank " + e[3];
+            assertEquals(where, e[0], a[0]);
+            assertEquals(where, e[2], a[2]);
+            double score = Double.parseDouble(e[4]);
+            assertEquals(where, score, Double.parseDouble(a[4]), 1e-9 * Math.max(1.0, Math.abs(score)));
+            if (!e[2].equals("dummy"))
+                ranked++;
+        }
+        assertTrue(model + " ranked too few documents to compare", ranked > 100);
+    }
+
+    /**
+     * Run QryEval in another JVM, and wait for it to finish.
+     */
+    private static void run(File paramFile) throws Exception {
+        File log = new File(paramFile.getPath() + ".log");
+        Process process = start(paramFile, log);
+        assertEquals("QryEval " + paramFile.getName() + " failed; see " + log, 0, process.waitFor());
+    }
+
+    private static Process start(File paramFile, File log) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "QryEval", paramFile.getPath());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(log);
+        return builder.start();
+    }
+
+    /**
+     * Wait until a line of a log starts with a prefix.
+     */
+    private static void waitFor(File log, String prefix) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (String line : readLines(log)) {
+                if (line.startsWith(prefix))
+                    return;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("No \"" + prefix + "\" in " + log);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (!file.exists())
+            return lines;
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null)
+                lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private static File writeParams(String name, Map<String, String> params) throws IOException {
+        File file = new File(dir, name + ".param");
+        Writer out = new FileWriter(file);
+        try {
+            for (Map.Entry<String, String> e : params.entrySet())
+                out.write(e.getKey() + "=" + e.getValue() + "\n");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ *  Temporary directories for the indexes that tests build.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+class TestIndexes {
+
+    /**
+     * @param prefix The prefix of the directory's name.
+     * @return A new, empty directory under java.io.tmpdir.
+     * @throws IOException
+     */
+    static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile("qryeval-" + prefix, "");
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        return dir;
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     *
+     * @param file The directory, or null.
+     */
+    static void delete(File file) {
+        if (file == null)
+            return;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
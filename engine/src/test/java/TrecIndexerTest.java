@@ -0,0 +1,87 @@
+/**
+ *  Tests of the document file reading of TrecIndexer: lines and WARC
+ *  records that cross the boundaries of the read buffer, and the
+ *  case-insensitive search of tags.
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TrecIndexerTest {
+
+    @Test
+    public void linesCrossBuffers() throws IOException {
+        StringBuilder text = new StringBuilder();
+        String[] lines = {"", "<DOC>", "a line that is longer than the buffer", "\u00e9t\u00e9", "x", "", "last"};
+        for (int i = 0; i < lines.length; i++)
+            text.append(lines[i]).append((i % 2 == 0) ? "\r\n" : "\n");
+        text.append("no terminator");
+
+        for (int bufferSize = 1; bufferSize <= 16; bufferSize++) {
+            TrecIndexer.LineInput in = new TrecIndexer.LineInput(
+                    new ByteArrayInputStream(text.toString().getBytes("UTF-8")), bufferSize);
+            for (String line : lines)
+                assertEquals("buffer " + bufferSize, line, in.readLine());
+            assertEquals("no terminator", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void recordsCrossBuffers() throws IOException {
+        byte[] content = new byte[100];
+        new Random(41).nextBytes(content);
+        byte[] header = "Content-Length: 100\r\n\r\n".getBytes("UTF-8");
+        byte[] file = new byte[header.length + content.length + 2];
+        System.arraycopy(header, 0, file, 0, header.length);
+        System.arraycopy(content, 0, file, header.length, content.length);
+        file[file.length - 2] = '\r';
+        file[file.length - 1] = '\n';
+
+        for (int bufferSize = 1; bufferSize <= 40; bufferSize += 3) {
+            TrecIndexer.LineInput in = new TrecIndexer.LineInput(new ByteArrayInputStream(file), bufferSize);
+            assertEquals("Content-Length: 100", in.readLine());
+            assertEquals("", in.readLine());
+            assertArrayEquals(content, in.readFully(100));
+            assertEquals("", in.readLine());
+            assertNull(in.readFully(1));
+        }
+    }
+
+    @Test
+    public void indexOfIgnoreCaseMatchesRegionMatches() {
+        Random random = new Random(41);
+        String alphabet = "aAbB<>/\u00df\u0130i";
+        for (int n = 0; n < 2000; n++) {
+            String s = randomString(random, alphabet, random.nextInt(40));
+            String target = randomString(random, alphabet, 1 + random.nextInt(4));
+            int from = random.nextInt(s.length() + 2) - 1;
+            assertEquals("\"" + target + "\" in \"" + s + "\" from " + from,
+                    naiveIndexOf(s, target, from), TrecIndexer.indexOfIgnoreCase(s, target, from));
+        }
+        assertEquals(5, TrecIndexer.indexOfIgnoreCase("<doc><DOCNO>", "<docno>", 0));
+        assertEquals(-1, TrecIndexer.indexOfIgnoreCase("<doc>", "</doc>", 0));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    private static int naiveIndexOf(String s, String target, int from) {
+        for (int i = Math.max(from, 0); i <= s.length() - target.length(); i++) {
+            if (s.regionMatches(true, i, target, 0, target.length()))
+                return i;
+        }
+        return -1;
+    }
+}